@@ -0,0 +1,152 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import client.Client;
+
+/**
+ * The {@code BatchBenchmark} class measures transferring many 4 KB files
+ * over a session, with a request each ({@code downloadSingle} and
+ * {@code uploadSingle}) against all at once with a BATCH_DOWNLOAD or
+ * BATCH_UPLOAD ({@code downloadArchive} and {@code uploadArchive}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BatchBenchmark extends ServerState {
+
+	/** The size of each file. */
+	private static final int FILE_SIZE = 4096;
+
+	/** The number of files. */
+	@Param({"100", "1000"})
+	public int files;
+
+	/** The names of the files. */
+	private final List<String> names = new ArrayList<>();
+
+	/** The client's copies of the files. */
+	private final List<File> local = new ArrayList<>();
+
+	/** The directory the client keeps its files in. */
+	private Path clientDir;
+
+	/** Transfers the files. */
+	private Client client;
+
+	/**
+	 * <b><em>setUp</em></b>
+	 *
+	 * <p>Writes the files for both the server and the client and starts a
+	 * server.</p>
+	 *
+	 * @throws Exception if the server did not start.
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		Path serverDir = createDirectory("server");
+		clientDir = createDirectory("client");
+		names.clear();
+		local.clear();
+		for (int i = 0; i < files; i ++) {
+			String name = String.format("file-%08d.bin", i);
+			createFile(serverDir.resolve(name), FILE_SIZE);
+			createFile(clientDir.resolve(name), FILE_SIZE);
+			names.add(name);
+			local.add(clientDir.resolve(name).toFile());
+		}
+		start(serverDir);
+		client = new Client(clientDir.toString());
+		client.setPersistent(true);
+	}
+
+	/**
+	 * <b><em>tearDown</em></b>
+	 *
+	 * <p>Stops the server and deletes the files.</p>
+	 *
+	 * @throws Exception if the files could not be deleted.
+	 */
+	@TearDown
+	public void tearDown() throws Exception {
+		client.closeSessions();
+		stop();
+	}
+
+	/**
+	 * <b><em>downloadSingle</em></b>
+	 *
+	 * <p>Downloads the files with a request each.</p>
+	 *
+	 * @throws IOException if a download failed.
+	 */
+	@Benchmark
+	public void downloadSingle() throws IOException {
+		for (String name : names) {
+			client.download(name, HOST, PORT, clientDir.resolve(name));
+		}
+	}
+
+	/**
+	 * <b><em>downloadArchive</em></b>
+	 *
+	 * <p>Downloads the files with one BATCH_DOWNLOAD.</p>
+	 *
+	 * @throws IOException if a file is missing.
+	 */
+	@Benchmark
+	public void downloadArchive() throws IOException {
+		if (!client.downloadBatch(names, null, HOST, PORT).isComplete()) {
+			throw new IOException("files missing");
+		}
+	}
+
+	/**
+	 * <b><em>uploadSingle</em></b>
+	 *
+	 * <p>Uploads the files with a request each.</p>
+	 *
+	 * @throws IOException if an upload failed.
+	 */
+	@Benchmark
+	public void uploadSingle() throws IOException {
+		for (File file : local) {
+			client.upload(file, HOST, PORT);
+		}
+	}
+
+	/**
+	 * <b><em>uploadArchive</em></b>
+	 *
+	 * <p>Uploads the files with one BATCH_UPLOAD.</p>
+	 *
+	 * @throws IOException if a file was not saved.
+	 */
+	@Benchmark
+	public void uploadArchive() throws IOException {
+		if (!client.uploadBatch(local, HOST, PORT).isComplete()) {
+			throw new IOException("files not saved");
+		}
+	}
+}
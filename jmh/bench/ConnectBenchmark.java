@@ -0,0 +1,117 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import client.Client;
+import server.FTServer;
+
+/**
+ * The {@code ConnectBenchmark} class measures what setting up a connection
+ * costs a request. {@code sendRequest} is a legacy request over a new
+ * connection with {@link Client#sendRequest(String, String, int)}, against
+ * {@code oneshot} and {@code session}, a version 2 DIR over a new
+ * connection and over a persistent session.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ConnectBenchmark extends ServerState {
+
+	/** Sends each request over a new connection. */
+	private Client oneshot;
+
+	/** Sends every request over one session. */
+	private Client session;
+
+	/**
+	 * <b><em>setUp</em></b>
+	 *
+	 * <p>Starts a server sharing one file.</p>
+	 *
+	 * @throws Exception if the server did not start.
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		Path dir = createDirectory("connect");
+		Files.createFile(dir.resolve("file.txt"));
+		start(dir);
+		oneshot = new Client(root.toString());
+		session = new Client(root.toString());
+		session.setPersistent(true);
+	}
+
+	/**
+	 * <b><em>tearDown</em></b>
+	 *
+	 * <p>Stops the server and deletes the files.</p>
+	 *
+	 * @throws Exception if the files could not be deleted.
+	 */
+	@TearDown
+	public void tearDown() throws Exception {
+		session.closeSessions();
+		stop();
+	}
+
+	/**
+	 * <b><em>sendRequest</em></b>
+	 *
+	 * <p>Sends a legacy DIR over a new connection.</p>
+	 *
+	 * @return the response.
+	 * @throws IOException if there was no response.
+	 */
+	@Benchmark
+	public String sendRequest() throws IOException {
+		String response = oneshot.sendRequest(FTServer.LIST_DIRECTORIES,
+				HOST, PORT);
+		if (response.isEmpty()) {
+			throw new IOException("no response");
+		}
+		return response;
+	}
+
+	/**
+	 * <b><em>oneshot</em></b>
+	 *
+	 * <p>Sends a version 2 DIR over a new connection.</p>
+	 *
+	 * @return the listing.
+	 * @throws IOException if the listing failed.
+	 */
+	@Benchmark
+	public String[] oneshot() throws IOException {
+		return oneshot.list(HOST, PORT);
+	}
+
+	/**
+	 * <b><em>session</em></b>
+	 *
+	 * <p>Sends a version 2 DIR over the session.</p>
+	 *
+	 * @return the listing.
+	 * @throws IOException if the listing failed.
+	 */
+	@Benchmark
+	public String[] session() throws IOException {
+		return session.list(HOST, PORT);
+	}
+}
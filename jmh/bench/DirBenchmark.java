@@ -0,0 +1,92 @@
+package bench;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import client.Client;
+
+/**
+ * The {@code DirBenchmark} class measures the latency of a DIR listing of a
+ * directory of many files, over a session. The largest directories are left
+ * out by default since creating their files takes a while; to list a
+ * million files, run it with {@code -p files=1000000}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class DirBenchmark extends ServerState {
+
+	/** The number of files in the directory. */
+	@Param({"1000", "100000"})
+	public int files;
+
+	/** Lists the directory. */
+	private Client client;
+
+	/**
+	 * <b><em>setUp</em></b>
+	 *
+	 * <p>Fills a directory with empty files and starts a server sharing
+	 * it.</p>
+	 *
+	 * @throws Exception if the server did not start.
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		Path dir = createDirectory("dir");
+		for (int i = 0; i < files; i ++) {
+			Files.createFile(dir.resolve(String.format("file-%08d.txt", i)));
+		}
+		start(dir);
+		client = new Client(root.toString());
+		client.setPersistent(true);
+	}
+
+	/**
+	 * <b><em>tearDown</em></b>
+	 *
+	 * <p>Stops the server and deletes the files.</p>
+	 *
+	 * @throws Exception if the files could not be deleted.
+	 */
+	@TearDown
+	public void tearDown() throws Exception {
+		client.closeSessions();
+		stop();
+	}
+
+	/**
+	 * <b><em>dir</em></b>
+	 *
+	 * <p>Lists the directory.</p>
+	 *
+	 * @return the listing.
+	 * @throws IOException if the listing failed or is missing files.
+	 */
+	@Benchmark
+	public String[] dir() throws IOException {
+		String[] listing = client.list(HOST, PORT);
+		if (listing.length != files) {
+			throw new IOException("wrong listing");
+		}
+		return listing;
+	}
+}
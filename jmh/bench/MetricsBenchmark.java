@@ -0,0 +1,66 @@
+package bench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import server.FTServer;
+import server.ServerMetrics;
+
+/**
+ * The {@code MetricsBenchmark} class measures the cost of counting a
+ * request in the {@link ServerMetrics}, with one in 64 of them failed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MetricsBenchmark {
+
+	/** The number of requests counted per call. */
+	private static final int RECORDS = 1000;
+
+	/** The metrics of a server that is never started. */
+	private ServerMetrics metrics;
+
+	/** The error of the failed requests. */
+	private final IOException error = new IOException();
+
+	/**
+	 * <b><em>setUp</em></b>
+	 *
+	 * <p>Creates the metrics.</p>
+	 */
+	@Setup
+	public void setUp() {
+		metrics = new FTServer("127.0.0.1", ".").getMetrics();
+	}
+
+	/**
+	 * <b><em>record</em></b>
+	 *
+	 * <p>Counts a thousand downloads and their bytes.</p>
+	 */
+	@Benchmark
+	@OperationsPerInvocation(RECORDS)
+	public void record() {
+		for (int i = 0; i < RECORDS; i ++) {
+			metrics.record(FTServer.DOWNLOAD, i * 1000L,
+					(i & 63) == 0? error : null);
+			metrics.addBytesOut(i);
+		}
+	}
+}
@@ -0,0 +1,178 @@
+package bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Random;
+
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import server.FTServer;
+import server.ServerManager;
+
+/**
+ * The {@code ServerState} class is the state the server benchmarks share:
+ * an in-process {@link FTServer} over loopback, so the results can be
+ * reproduced on any machine, and a directory to keep the files of the
+ * server and its clients in. Every benchmark is run for each engine, and
+ * with the server's metrics on, which {@code -p metrics=true,false} changes
+ * to show what they cost end to end.
+ */
+@State(Scope.Benchmark)
+public abstract class ServerState {
+
+	/** The host the server listens on. */
+	protected static final String HOST = "127.0.0.1";
+
+	/** The port the server listens on. */
+	protected static final int PORT = FTServer.SERVER_PORT;
+
+	/** The bytes of random data the test files are made of. */
+	private static final int BLOCK_SIZE = 1024 * 1024;
+
+	/** A block of random data, repeated to make the test files. */
+	private static final byte[] BLOCK = new byte[BLOCK_SIZE];
+
+	static {
+		new Random(1).nextBytes(BLOCK);
+	}
+
+	/** The engine of the server. */
+	@Param({"BLOCKING", "NIO"})
+	public FTServer.Engine engine;
+
+	/** True if the server counts metrics. */
+	@Param({"true"})
+	public boolean metrics;
+
+	/** The directory the server and clients keep their files in. */
+	protected Path root;
+
+	/** The server, once started. */
+	protected FTServer server;
+
+	/**
+	 * <b><em>start</em></b>
+	 *
+	 * <p>Starts a server sharing a directory and waits until it accepts
+	 * connections.</p>
+	 *
+	 * @param dir - the directory to share.
+	 *
+	 * @throws Exception if the server did not start.
+	 */
+	protected void start(Path dir) throws Exception {
+		server = new FTServer(HOST, dir.toString());
+		server.setEngine(engine);
+		server.getMetrics().setEnabled(metrics);
+		ServerManager manager = new ServerManager(server);
+		manager.setDaemon(true);
+		manager.start();
+		for (int i = 0; ; i ++) {
+			try (Socket socket = new Socket()) {
+				socket.connect(new InetSocketAddress(HOST, PORT), 1000);
+				return;
+			} catch (IOException e) {
+				if (i == 100) {
+					throw e;
+				}
+				Thread.sleep(50);
+			}
+		}
+	}
+
+	/**
+	 * <b><em>stop</em></b>
+	 *
+	 * <p>Stops the server, waits until its port is free again and deletes
+	 * the files.</p>
+	 *
+	 * @throws Exception if the files could not be deleted.
+	 */
+	protected void stop() throws Exception {
+		if (server != null) {
+			server.close();
+			for (int i = 0; i < 100; i ++) {
+				try (Socket socket = new Socket()) {
+					socket.connect(new InetSocketAddress(HOST, PORT), 1000);
+				} catch (IOException e) {
+					break;
+				}
+				Thread.sleep(50);
+			}
+			server = null;
+		}
+		if (root != null) {
+			delete(root);
+			root = null;
+		}
+	}
+
+	/**
+	 * <b><em>createDirectory</em></b>
+	 *
+	 * <p>Creates a new directory under the root, creating the root the
+	 * first time.</p>
+	 *
+	 * @param prefix - the start of the name of the directory.
+	 *
+	 * @return the directory.
+	 * @throws IOException if it could not be created.
+	 */
+	protected Path createDirectory(String prefix) throws IOException {
+		if (root == null) {
+			root = Files.createTempDirectory("ft-bench");
+		}
+		return Files.createTempDirectory(root, prefix);
+	}
+
+	/**
+	 * <b><em>createFile</em></b>
+	 *
+	 * <p>Writes a file of some size out of the random block.</p>
+	 *
+	 * @param file - the file.
+	 * @param size - its size in bytes.
+	 *
+	 * @throws IOException if it could not be written.
+	 */
+	protected static void createFile(Path file, long size)
+			throws IOException {
+		try (OutputStream out = Files.newOutputStream(file)) {
+			for (long left = size; left > 0; left -= BLOCK.length) {
+				out.write(BLOCK, 0, (int) Math.min(left, BLOCK.length));
+			}
+		}
+	}
+
+	/** Deletes a directory and everything in it. */
+	private static void delete(Path dir) throws IOException {
+		if (!Files.exists(dir)) {
+			return;
+		}
+		Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+
+			@Override
+			public FileVisitResult visitFile(Path file,
+					BasicFileAttributes attrs) throws IOException {
+				Files.delete(file);
+				return FileVisitResult.CONTINUE;
+			}
+
+			@Override
+			public FileVisitResult postVisitDirectory(Path dir,
+					IOException e) throws IOException {
+				Files.delete(dir);
+				return FileVisitResult.CONTINUE;
+			}
+		});
+	}
+}
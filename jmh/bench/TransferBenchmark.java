@@ -0,0 +1,144 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import client.Client;
+
+/**
+ * The {@code TransferBenchmark} class measures the throughput of downloads
+ * and uploads of one file, over a session. Besides the transfers per
+ * second, the bytes per second are reported as the {@code bytes} counter.
+ * Files of 1 GB are left out by default since creating them takes a while;
+ * run it with {@code -p size=1g} to include them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransferBenchmark extends ServerState {
+
+	/** The size of the file, with an optional {@code k}, {@code m} or
+	 * {@code g} suffix. */
+	@Param({"1k", "64k", "1m", "16m", "256m"})
+	public String size;
+
+	/**
+	 * The {@code Bytes} class counts the bytes of file data moved, which
+	 * JMH reports as a rate next to the transfers per second.
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Bytes {
+
+		/** The bytes moved in this iteration. */
+		public long bytes;
+
+		/** Starts counting the next iteration from 0. */
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+		}
+	}
+
+	/** The name of the file. */
+	private static final String NAME = "file";
+
+	/** The size of the file in bytes. */
+	private long length;
+
+	/** The file uploaded. */
+	private File local;
+
+	/** Transfers the file. */
+	private Client client;
+
+	/** Throws the downloaded data away. */
+	private final WritableByteChannel discard = new DiscardChannel();
+
+	/**
+	 * <b><em>setUp</em></b>
+	 *
+	 * <p>Writes the file for both the server and the client and starts a
+	 * server.</p>
+	 *
+	 * @throws Exception if the server did not start.
+	 */
+	@Setup
+	public void setUp() throws Exception {
+		length = LoadGenerator.parseSize(size);
+		Path serverDir = createDirectory("server");
+		Path clientDir = createDirectory("client");
+		createFile(serverDir.resolve(NAME), length);
+		local = clientDir.resolve(NAME).toFile();
+		Files.copy(serverDir.resolve(NAME), local.toPath());
+		start(serverDir);
+		client = new Client(clientDir.toString());
+		client.setPersistent(true);
+	}
+
+	/**
+	 * <b><em>tearDown</em></b>
+	 *
+	 * <p>Stops the server and deletes the files.</p>
+	 *
+	 * @throws Exception if the files could not be deleted.
+	 */
+	@TearDown
+	public void tearDown() throws Exception {
+		client.closeSessions();
+		stop();
+	}
+
+	/**
+	 * <b><em>download</em></b>
+	 *
+	 * <p>Downloads the file, throwing the data away.</p>
+	 *
+	 * @param bytes - counts the bytes downloaded.
+	 *
+	 * @throws IOException if the download failed or was cut short.
+	 */
+	@Benchmark
+	public void download(Bytes bytes) throws IOException {
+		if (client.download(NAME, HOST, PORT, discard) != length) {
+			throw new IOException("wrong length");
+		}
+		bytes.bytes += length;
+	}
+
+	/**
+	 * <b><em>upload</em></b>
+	 *
+	 * <p>Uploads the file over the one the server has.</p>
+	 *
+	 * @param bytes - counts the bytes uploaded.
+	 *
+	 * @throws IOException if the upload failed.
+	 */
+	@Benchmark
+	public void upload(Bytes bytes) throws IOException {
+		bytes.bytes += client.upload(local, HOST, PORT);
+	}
+}
@@ -0,0 +1,27 @@
+package bench;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * The {@code DiscardChannel} class is a channel that throws away what is
+ * written to it, so downloads can be measured without writing the data.
+ */
+class DiscardChannel implements WritableByteChannel {
+
+	@Override
+	public int write(ByteBuffer src) {
+		int n = src.remaining();
+		src.position(src.limit());
+		return n;
+	}
+
+	@Override
+	public boolean isOpen() {
+		return true;
+	}
+
+	@Override
+	public void close() {
+	}
+}
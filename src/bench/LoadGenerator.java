@@ -0,0 +1,617 @@
+package bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Method;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import client.Client;
+import server.FTServer;
+
+/**
+ * The {@code LoadGenerator} class puts a server under the load of many
+ * clients at once, to find out how much it can take before it saturates. It
+ * is a command line program with no user interface. Each simulated client
+ * is a {@link Client} of its own that sends DIR, DOWNLOAD and UPLOAD
+ * requests in a random mix, for files of random sizes, with a random think
+ * time between requests. Clients run on virtual threads if the JVM has them,
+ * so thousands of them can be run from one machine.
+ * <p>
+ * Before the load starts, the server is seeded with {@code --files} files of
+ * each size (files that are already there are kept), which are the files
+ * that are downloaded. Uploads go to {@code --upload-slots} names per size,
+ * so the server does not fill up however long the run is.
+ * <p>
+ * Progress is printed every few seconds, with the throughput, error rate
+ * and latency percentiles since the last line, so the point where adding
+ * clients (with {@code --ramp}) stops adding throughput can be seen. The
+ * totals of every operation are printed at the end. Latencies are kept in
+ * HdrHistograms, in microseconds.
+ */
+public class LoadGenerator {
+
+	/**
+	 * The {@code Operation} enum lists the requests a client sends.
+	 */
+	public enum Operation {
+
+		/** List the server's files. */
+		DIR,
+
+		/** Download one of the seeded files. */
+		DOWNLOAD,
+
+		/** Upload a file. */
+		UPLOAD
+	}
+
+	/** The usage of the command line. */
+	private static final String USAGE =
+			"Usage: java bench.LoadGenerator [options]\n" +
+			"  --host HOST          the server host (127.0.0.1)\n" +
+			"  --port PORT          the server port (" +
+					FTServer.SERVER_PORT + ")\n" +
+			"  --clients N          the number of clients (100)\n" +
+			"  --duration SECONDS   how long to run for (60)\n" +
+			"  --ramp SECONDS       the time to start the clients over (0)\n" +
+			"  --think MS           the mean time between requests (100)\n" +
+			"  --mix LIST           the weights of the operations\n" +
+			"                       (dir=20,download=60,upload=20)\n" +
+			"  --sizes LIST         the weights of the file sizes\n" +
+			"                       (1k=50,64k=30,1m=15,8m=5)\n" +
+			"  --files N            the files of each size to seed (10)\n" +
+			"  --upload-slots N     the names of each size to upload to (64)\n" +
+			"  --persistent         send requests over a session per client\n" +
+			"  --report SECONDS     the time between progress lines (5)";
+
+	/** The significant digits latencies are kept to. */
+	private static final int LATENCY_DIGITS = 2;
+
+	/** The most distinct error messages kept. */
+	private static final int MAX_ERRORS = 20;
+
+	/** The host of the server. */
+	private String host = "127.0.0.1";
+
+	/** The port of the server. */
+	private int port = FTServer.SERVER_PORT;
+
+	/** The number of clients. */
+	private int clients = 100;
+
+	/** How long to run for, in milliseconds. */
+	private long duration = 60000;
+
+	/** The time to start the clients over, in milliseconds. */
+	private long ramp;
+
+	/** The mean time between the requests of a client, in milliseconds. */
+	private long think = 100;
+
+	/** The weights of the operations. */
+	private final Map<Operation, Double> mix = new EnumMap<>(Operation.class);
+
+	/** The weights of the file sizes, by label (e.g. {@code 64k}). */
+	private final Map<String, Double> sizes = new LinkedHashMap<>();
+
+	/** The number of files of each size seeded. */
+	private int files = 10;
+
+	/** The number of names of each size that uploads go to. */
+	private int uploadSlots = 64;
+
+	/** True if each client sends its requests over a session. */
+	private boolean persistent;
+
+	/** The time between progress lines, in milliseconds. */
+	private long reportInterval = 5000;
+
+	/** The directory the files to upload are kept in. */
+	private Path scratch;
+
+	/** What was measured for each operation. */
+	private final Map<Operation, Stats> stats = new EnumMap<>(Operation.class);
+
+	/** The number of times each error happened, by message. */
+	private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+	/** The number of clients running. */
+	private final AtomicInteger running = new AtomicInteger();
+
+	/** The time the run took, in nanoseconds. */
+	private long elapsed;
+
+	/** The time of the last progress line since the start, in nanoseconds. */
+	private long lastProgress;
+
+	/** Constructs a load generator with the default settings. */
+	public LoadGenerator() {
+		mix.put(Operation.DIR, 20.0);
+		mix.put(Operation.DOWNLOAD, 60.0);
+		mix.put(Operation.UPLOAD, 20.0);
+		sizes.put("1k", 50.0);
+		sizes.put("64k", 30.0);
+		sizes.put("1m", 15.0);
+		sizes.put("8m", 5.0);
+		for (Operation op : Operation.values()) {
+			stats.put(op, new Stats());
+		}
+	}
+
+	/**
+	 * <b><em>main</em></b>
+	 *
+	 * <p>Parses the options, runs the load and prints the results.</p>
+	 *
+	 * @param args - the options (see {@link #USAGE}).
+	 *
+	 * @throws Exception if the server could not be seeded.
+	 */
+	public static void main(String[] args) throws Exception {
+		LoadGenerator load = new LoadGenerator();
+		try {
+			load.parse(args);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.err.println(USAGE);
+			System.exit(2);
+		}
+		load.run();
+		load.report(System.out);
+		System.exit(0);
+	}
+
+	/**
+	 * <b><em>parse</em></b>
+	 *
+	 * <p>Sets the load up from command line options.</p>
+	 *
+	 * @param args - the options.
+	 *
+	 * @throws IllegalArgumentException if an option is not known or its
+	 * value is not valid.
+	 */
+	public void parse(String[] args) {
+		for (int i = 0; i < args.length; i ++) {
+			String option = args[i];
+			if (option.equals("--persistent")) {
+				persistent = true;
+				continue;
+			}
+			if (i + 1 == args.length) {
+				throw new IllegalArgumentException("missing value: " + option);
+			}
+			String value = args[++ i];
+			try {
+				switch (option) {
+				case "--host": host = value; break;
+				case "--port": port = Integer.parseInt(value); break;
+				case "--clients": clients = positive(value); break;
+				case "--duration": duration = seconds(value); break;
+				case "--ramp": ramp = seconds(value); break;
+				case "--think": think = Long.parseLong(value); break;
+				case "--files": files = positive(value); break;
+				case "--upload-slots": uploadSlots = positive(value); break;
+				case "--report": reportInterval = seconds(value); break;
+				case "--mix":
+					mix.clear();
+					for (Map.Entry<String, Double> e :
+							weights(value).entrySet()) {
+						mix.put(Operation.valueOf(e.getKey().toUpperCase()),
+								e.getValue());
+					}
+					break;
+				case "--sizes":
+					sizes.clear();
+					for (Map.Entry<String, Double> e :
+							weights(value).entrySet()) {
+						parseSize(e.getKey());
+						sizes.put(e.getKey(), e.getValue());
+					}
+					break;
+				default:
+					throw new IllegalArgumentException("unknown option: " +
+							option);
+				}
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("bad value of " + option +
+						": " + value);
+			}
+		}
+		if (sum(mix.values()) <= 0 || sum(sizes.values()) <= 0) {
+			throw new IllegalArgumentException("the weights must not all " +
+					"be 0");
+		}
+	}
+
+	/**
+	 * <b><em>run</em></b>
+	 *
+	 * <p>Seeds the server, then runs the clients for the duration and
+	 * prints progress to the standard error stream.</p>
+	 *
+	 * @throws IOException if the server could not be seeded.
+	 * @throws InterruptedException if the run was interrupted.
+	 */
+	public void run() throws IOException, InterruptedException {
+		scratch = Files.createTempDirectory("ft-load");
+		try {
+			seed();
+			ExecutorService pool = newExecutor();
+			long start = System.nanoTime();
+			long end = start + TimeUnit.MILLISECONDS.toNanos(duration);
+			for (int i = 0; i < clients; i ++) {
+				int id = i;
+				long delay = ramp * i / clients;
+				pool.execute(() -> runClient(id, start +
+						TimeUnit.MILLISECONDS.toNanos(delay), end));
+			}
+			pool.shutdown();
+
+			// Print progress until every client is done
+			while (!pool.awaitTermination(reportInterval,
+					TimeUnit.MILLISECONDS)) {
+				progress(System.err, System.nanoTime() - start);
+			}
+			elapsed = System.nanoTime() - start;
+			progress(System.err, elapsed);
+		} finally {
+			for (File file : scratch.toFile().listFiles()) {
+				file.delete();
+			}
+			Files.deleteIfExists(scratch);
+		}
+	}
+
+	/** Uploads the files to download that the server does not have yet. */
+	private void seed() throws IOException {
+		Client client = new Client(scratch.toString());
+		Set<String> existing = new HashSet<>(Arrays.asList(
+				client.list(host, port)));
+		for (String size : sizes.keySet()) {
+			Path data = createFile(size);
+			for (int i = 0; i < files; i ++) {
+				String name = "load-seed-" + size + "-" + i;
+				if (!existing.contains(name)) {
+					client.upload(link(data, name).toFile(), host, port);
+				}
+			}
+		}
+		System.err.println("# " + clients + " clients, " + mix + ", sizes " +
+				sizes + (persistent? ", persistent" : ""));
+	}
+
+	/** Runs one client from its start time until the end time. */
+	private void runClient(int id, long start, long end) {
+		try {
+			long delay = start - System.nanoTime();
+			if (delay > 0) {
+				TimeUnit.NANOSECONDS.sleep(delay);
+			}
+		} catch (InterruptedException e) {
+			return;
+		}
+		running.incrementAndGet();
+		Client client = new Client(scratch.toString());
+		client.setPersistent(persistent);
+		WritableByteChannel discard = new DiscardChannel();
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		try {
+			while (System.nanoTime() < end) {
+				Operation op = pick(mix, random);
+				String size = pick(sizes, random);
+				long opStart = System.nanoTime();
+				try {
+					long bytes = perform(client, op, size, id, random,
+							discard);
+					stats.get(op).ok(System.nanoTime() - opStart, bytes);
+				} catch (IOException | RuntimeException e) {
+					stats.get(op).failed();
+					error(op, e);
+				}
+
+				// Think before the next request
+				if (think > 0) {
+					long pause = (long) (-Math.log(1 - random.nextDouble()) *
+							think);
+					Thread.sleep(Math.min(pause, TimeUnit.NANOSECONDS.toMillis(
+							Math.max(0, end - System.nanoTime()))));
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			client.closeSessions();
+			running.decrementAndGet();
+		}
+	}
+
+	/** Sends one request and returns the bytes of file data it moved. */
+	private long perform(Client client, Operation op, String size, int id,
+			Random random, WritableByteChannel discard) throws IOException {
+		switch (op) {
+		case DIR:
+			client.list(host, port);
+			return 0;
+		case DOWNLOAD:
+			return client.download("load-seed-" + size + "-" +
+					random.nextInt(files), host, port, discard);
+		default:
+			String name = "load-up-" + size + "-" + (id % uploadSlots);
+			return client.upload(link(scratch.resolve("load-" + size), name)
+					.toFile(), host, port);
+		}
+	}
+
+	/** Writes a file of random data of a size, once. */
+	private synchronized Path createFile(String size) throws IOException {
+		Path file = scratch.resolve("load-" + size);
+		if (!Files.exists(file)) {
+			byte[] block = new byte[64 * 1024];
+			new Random(size.hashCode()).nextBytes(block);
+			try (OutputStream out = Files.newOutputStream(file)) {
+				for (long left = parseSize(size); left > 0;
+						left -= block.length) {
+					out.write(block, 0, (int) Math.min(left, block.length));
+				}
+			}
+		}
+		return file;
+	}
+
+	/** Gives a file another name, since uploads are named by their file. */
+	private Path link(Path file, String name) throws IOException {
+		Path link = scratch.resolve(name);
+		try {
+			Files.createLink(link, file);
+		} catch (FileAlreadyExistsException e) {
+			// Another client made it first
+		} catch (UnsupportedOperationException e) {
+			Files.copy(file, link);
+		}
+		return link;
+	}
+
+	/** Counts an error by its message. */
+	private void error(Operation op, Exception e) {
+		String key = op + ": " + (e.getMessage() == null? e.toString() :
+				e.getMessage());
+		LongAdder count = errors.get(key);
+		if (count == null && errors.size() < MAX_ERRORS) {
+			count = errors.computeIfAbsent(key, k -> new LongAdder());
+		}
+		if (count != null) {
+			count.increment();
+		}
+	}
+
+	/** Prints what was measured since the last progress line. */
+	private void progress(PrintStream out, long elapsed) {
+		Histogram interval = new Histogram(LATENCY_DIGITS);
+		long ok = 0;
+		long failed = 0;
+		long bytes = 0;
+		for (Stats s : stats.values()) {
+			interval.add(s.interval.getIntervalHistogram());
+			long sOk = s.ok.sum();
+			long sFailed = s.failed.sum();
+			long sBytes = s.bytes.sum();
+			ok += sOk - s.reportedOk;
+			failed += sFailed - s.reportedFailed;
+			bytes += sBytes - s.reportedBytes;
+			s.reportedOk = sOk;
+			s.reportedFailed = sFailed;
+			s.reportedBytes = sBytes;
+		}
+		double seconds = Math.max(1, elapsed - lastProgress) / 1e9;
+		lastProgress = elapsed;
+		out.println(String.format("t=%ds clients=%d ops/s=%.1f MB/s=%.1f " +
+				"errors=%.2f%% p50=%.2fms p99=%.2fms max=%.2fms",
+				TimeUnit.NANOSECONDS.toSeconds(elapsed), running.get(),
+				(ok + failed) / seconds, bytes / seconds / (1024 * 1024),
+				ok + failed == 0? 0 : 100.0 * failed / (ok + failed),
+				interval.getValueAtPercentile(50) / 1000.0,
+				interval.getValueAtPercentile(99) / 1000.0,
+				interval.getMaxValue() / 1000.0));
+	}
+
+	/**
+	 * <b><em>report</em></b>
+	 *
+	 * <p>Prints the totals of every operation and the errors seen.</p>
+	 *
+	 * @param out - the stream to print to.
+	 */
+	public void report(PrintStream out) {
+		double seconds = Math.max(1, elapsed) / 1e9;
+		out.println(String.format("%-9s %10s %10s %8s %10s %9s %9s %9s " +
+				"%9s %9s %9s", "Operation", "Ops", "Ops/s", "Errors", "MB/s",
+				"Mean(ms)", "p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)",
+				"Max(ms)"));
+		Histogram all = new Histogram(LATENCY_DIGITS);
+		long failed = 0;
+		long bytes = 0;
+		for (Operation op : Operation.values()) {
+			Stats s = stats.get(op);
+			all.add(s.total);
+			failed += s.failed.sum();
+			bytes += s.bytes.sum();
+			out.println(row(op.toString(), s.total, s.failed.sum(),
+					s.bytes.sum(), seconds));
+		}
+		out.println(row("ALL", all, failed, bytes, seconds));
+		for (Map.Entry<String, LongAdder> e : errors.entrySet()) {
+			out.println(e.getValue().sum() + " x " + e.getKey());
+		}
+	}
+
+	/** Formats a row of the report. */
+	private static String row(String name, Histogram latencies,
+			long failed, long bytes, double seconds) {
+		long ops = latencies.getTotalCount() + failed;
+		return String.format("%-9s %10d %10.1f %7.2f%% %10.1f %9.2f %9.2f " +
+				"%9.2f %9.2f %9.2f %9.2f", name, ops, ops / seconds,
+				ops == 0? 0 : 100.0 * failed / ops,
+				bytes / seconds / (1024 * 1024), latencies.getMean() / 1000,
+				latencies.getValueAtPercentile(50) / 1000.0,
+				latencies.getValueAtPercentile(90) / 1000.0,
+				latencies.getValueAtPercentile(99) / 1000.0,
+				latencies.getValueAtPercentile(99.9) / 1000.0,
+				latencies.getMaxValue() / 1000.0);
+	}
+
+	/** Starts a virtual thread per client if the JVM can, and a platform
+	 * thread per client otherwise. */
+	private static ExecutorService newExecutor() {
+		try {
+			Method factory = Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return Executors.newCachedThreadPool(r -> {
+				Thread t = new Thread(r, "ft-load");
+				t.setDaemon(true);
+				return t;
+			});
+		}
+	}
+
+	/** Picks a key at random, in proportion to its weight. */
+	private static <K> K pick(Map<K, Double> weights, Random random) {
+		double r = random.nextDouble() * sum(weights.values());
+		K last = null;
+		for (Map.Entry<K, Double> e : weights.entrySet()) {
+			last = e.getKey();
+			r -= e.getValue();
+			if (r < 0) {
+				break;
+			}
+		}
+		return last;
+	}
+
+	/**
+	 * <b><em>parseSize</em></b>
+	 *
+	 * <p>Parses a size with an optional {@code k}, {@code m} or {@code g}
+	 * suffix, e.g. {@code 64k}.</p>
+	 *
+	 * @param size - the size.
+	 *
+	 * @return the number of bytes.
+	 * @throws NumberFormatException if the size is not a number.
+	 */
+	public static long parseSize(String size) {
+		size = size.trim().toLowerCase();
+		long unit = 1;
+		switch (size.isEmpty()? ' ' : size.charAt(size.length() - 1)) {
+		case 'k': unit = 1L << 10; break;
+		case 'm': unit = 1L << 20; break;
+		case 'g': unit = 1L << 30; break;
+		default: return Long.parseLong(size);
+		}
+		return Long.parseLong(size.substring(0, size.length() - 1)) * unit;
+	}
+
+	/** Parses a list of weights, e.g. {@code dir=20,download=80}. */
+	private static Map<String, Double> weights(String list) {
+		Map<String, Double> weights = new LinkedHashMap<>();
+		for (String item : list.split(",")) {
+			String[] parts = item.split("=", 2);
+			double weight = parts.length == 1? 1 :
+					Double.parseDouble(parts[1].trim());
+			if (weight < 0) {
+				throw new NumberFormatException("negative weight");
+			}
+			weights.put(parts[0].trim(), weight);
+		}
+		return weights;
+	}
+
+	private static double sum(Iterable<Double> values) {
+		double sum = 0;
+		for (double value : values) {
+			sum += value;
+		}
+		return sum;
+	}
+
+	private static int positive(String value) {
+		int n = Integer.parseInt(value);
+		if (n <= 0) {
+			throw new NumberFormatException("not positive");
+		}
+		return n;
+	}
+
+	private static long seconds(String value) {
+		return (long) (Double.parseDouble(value) * 1000);
+	}
+
+	/** What was measured for one operation. */
+	private static class Stats {
+
+		/** The latencies of every request that worked, in microseconds. */
+		private final Histogram total =
+				new ConcurrentHistogram(LATENCY_DIGITS);
+
+		/** The latencies since the last progress line, which are taken
+		 * out at every line. */
+		private final Recorder interval = new Recorder(LATENCY_DIGITS);
+
+		/** The number of requests that worked. */
+		private final LongAdder ok = new LongAdder();
+
+		/** The number of requests that failed. */
+		private final LongAdder failed = new LongAdder();
+
+		/** The bytes of file data moved. */
+		private final LongAdder bytes = new LongAdder();
+
+		/** The number of requests that worked at the last progress line. */
+		private long reportedOk;
+
+		/** The number of requests that failed at the last progress line. */
+		private long reportedFailed;
+
+		/** The bytes moved at the last progress line. */
+		private long reportedBytes;
+
+		/** Counts a request that worked. */
+		private void ok(long nanos, long bytes) {
+			long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+			total.recordValue(micros);
+			interval.recordValue(micros);
+			ok.increment();
+			this.bytes.add(bytes);
+		}
+
+		/** Counts a request that failed. */
+		private void failed() {
+			failed.increment();
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package client;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The {@code BatchResult} class is what happened to each file of a batch
+ * transfer, since one file that could not be sent does not stop the others.
+ * Files are kept in the order they were sent.
+ */
+public class BatchResult {
+
+	/** The length of each file that was sent, by name. */
+	private final Map<String, Long> transferred = new LinkedHashMap<>();
+
+	/** Why each file that was not sent failed, by name. */
+	private final Map<String, String> failed = new LinkedHashMap<>();
+
+	/** The bytes of all the files that were sent. */
+	private long bytes;
+
+	/**
+	 * Records a file that was sent.
+	 *
+	 * @param name - the name of the file.
+	 * @param length - the length of the file.
+	 */
+	void transferred(String name, long length) {
+		transferred.put(name, length);
+		bytes += length;
+	}
+
+	/**
+	 * Records a file that was not sent.
+	 *
+	 * @param name - the name of the file.
+	 * @param reason - why it failed.
+	 */
+	void failed(String name, String reason) {
+		failed.put(name, reason);
+	}
+
+	/**
+	 * Forgets every file, before the batch is sent again.
+	 */
+	void clear() {
+		transferred.clear();
+		failed.clear();
+		bytes = 0;
+	}
+
+	/**
+	 * <b><em>isComplete</em></b>
+	 *
+	 * @return true if every file was sent.
+	 */
+	public boolean isComplete() {
+		return failed.isEmpty();
+	}
+
+	public Map<String, Long> getTransferred() {
+		return Collections.unmodifiableMap(transferred);
+	}
+
+	public Map<String, String> getFailed() {
+		return Collections.unmodifiableMap(failed);
+	}
+
+	public long getBytes() {
+		return bytes;
+	}
+
+	@Override
+	public String toString() {
+		return "BatchResult[transferred=" + transferred.size() + ", bytes=" +
+				bytes + ", failed=" + failed + "]";
+	}
+}
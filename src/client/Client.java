@@ -10,15 +10,114 @@
 package client;
 
 import java.io.*;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import server.BatchArchive;
+import server.ChunkedOutputStream;
+import server.Codec;
+import server.Codecs;
+import server.CompressionStats;
+import server.DeltaSync;
+import server.DirChange;
+import server.DirDelta;
+import server.DirQuery;
+import server.FTServer;
+import server.FileEntry;
+import server.FileRange;
+import server.Header;
+import server.Protocol;
+import server.ServerBusyException;
+import server.Transfers;
 
 public class Client {
+	
+	/** The suffix of the file a download is written to until it is done. */
+	public static final String PART_SUFFIX = ".part";
+	
+	/** The suffix of the file next to a {@link #PART_SUFFIX} file that holds
+	 * the ETag of the server file, so the download can be resumed. */
+	public static final String ETAG_SUFFIX = ".etag";
+	
+	/** The default size of the chunks of a parallel download. */
+	public static final long DEFAULT_CHUNK_SIZE = 8 * 1024 * 1024;
+	
+	/** The default number of times a chunk is retried. */
+	public static final int DEFAULT_CHUNK_RETRIES = 3;
+	
+	/** The default number of times a request the server was too busy for is
+	 * sent again. */
+	public static final int DEFAULT_BUSY_RETRIES = 3;
+	
+	/** The shortest wait before a request the server was too busy for is
+	 * sent again, in milliseconds, which doubles with each retry. */
+	private static final long BUSY_BACKOFF = 100;
+	
+	/** The directory in the shared path the {@link MetadataCache} is kept
+	 * in, which is not listed as a file. */
+	public static final String METADATA_DIRECTORY = ".ft-client";
 
 	/** The path to the files on the client machine. */
 	private String sharedPath;
 	
+	/** True if requests should be sent over a persistent
+	 * {@link ClientSession} instead of a new connection each. */
+	private boolean persistent;
+	
+	/** The number of connections a large file is downloaded over at once,
+	 * or 1 to download every file over a single connection. */
+	private int parallelism = 1;
+	
+	/** The size of the chunks of a parallel download. */
+	private long chunkSize = DEFAULT_CHUNK_SIZE;
+	
+	/** The number of times a failed chunk is retried. */
+	private int chunkRetries = DEFAULT_CHUNK_RETRIES;
+	
+	/** The number of times a request the server was too busy for is sent
+	 * again before giving up. */
+	private int busyRetries = DEFAULT_BUSY_RETRIES;
+	
+	/** True if downloads and uploads should be compressed when it helps. */
+	private boolean compression;
+	
+	/** True if a file the other side has an older copy of should be sent
+	 * as a delta (see {@link DeltaSync}). */
+	private boolean deltaSync;
+	
+	/** True if a file the client already has a copy of is checked with
+	 * the server before it is downloaded. */
+	private boolean revalidation;
+	
+	/** What is known about the copies in the shared path, or null before it
+	 * is needed. */
+	private MetadataCache metadata;
+	
+	/** Counts the file data sent and received. */
+	private final CompressionStats compressionStats = new CompressionStats();
+	
+	/** The open sessions, by host and port. */
+	private final Map<String, ClientSession> sessions = new HashMap<>();
+	
 	/** Constructs a client with the path being the working directory. */
 	public Client() {
 		this((new File("")).getAbsolutePath());
@@ -118,11 +217,1146 @@ public class Client {
 		return response;
 	}
 
+	/**
+	 * <b><em>upload</em></b>
+	 * 
+	 * <p>Uploads a file to the server using a version 2 UPLOAD request. The
+	 * request has the length of the file and its modification time, which
+	 * the server's copy gets too, and is followed by the raw bytes,
+	 * which are sent straight from the file to the socket, so the file is
+	 * never held in memory and binary files are not changed.</p>
+	 * 
+	 * <p>If the {@link #getParallelism() parallelism} is more than 1 and the
+	 * file is larger than a chunk, it is sent in chunks over several
+	 * connections at once instead (see {@link ParallelUploader}).</p>
+	 * 
+	 * <p>If {@link #isDeltaSync() delta sync} is on and the server already
+	 * has the file, only what changed is sent (see
+	 * {@link #uploadDelta(File, String, int)}).</p>
+	 * 
+	 * @param file - the file to upload.
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * 
+	 * @return the number of bytes the server saved.
+	 * @throws IOException if the file could not be sent or the server
+	 * refused it.
+	 */
+	public long upload(File file, String host, int port) throws IOException {
+		
+		// Only send what changed if the server has an older copy
+		if (deltaSync && file.length() >= DeltaSync.MIN_SIZE) {
+			try {
+				long length = uploadDelta(file, host, port);
+				if (length >= 0) {
+					return length;
+				}
+			} catch (IOException e) {
+				if (!FileRange.CHANGED.equals(e.getMessage())) {
+					throw e;
+				}
+			}
+		}
+		
+		// Split large files over several connections
+		if (parallelism > 1 && file.length() > chunkSize) {
+			return new ParallelUploader(this, host, port, file).upload();
+		}
+		
+		return retryBusy(() -> uploadFile(file, host, port));
+	}
+	
+	/** Uploads a file over a single connection, or the session. */
+	private long uploadFile(File file, String host, int port)
+			throws IOException {
+		try (FileChannel fileIn = FileChannel.open(
+				file.toPath(), StandardOpenOption.READ)) {
+			long length = fileIn.size();
+			Header request = new Header(FTServer.UPLOAD)
+					.set("length", length).set("mtime", file.lastModified())
+					.arg(file.getName());
+			Codec codec = compression? Codecs.choose(Codecs.accept(),
+					file.getName(), length) : null;
+			if (codec != null) {
+				request.set("encoding", codec.getName());
+			}
+			
+			// Send it over the session
+			if (persistent) {
+				ClientSession session = getSession(host, port);
+				InputStream in = codec == null?
+						session.send(request, Channels.newInputStream(fileIn),
+								length) :
+						session.send(request, out -> Protocol.sendEncoded(
+								fileIn, 0, length, codec, out,
+								compressionStats));
+				try {
+					if (codec == null) {
+						compressionStats.addSent(length, length);
+					}
+					return Protocol.readStatus(in).getLong("length", length);
+				} finally {
+					in.close();
+				}
+			}
+			
+			// Send the header and then the file
+			try (SocketChannel channel = connect(host, port)) {
+				try {
+					write(channel, Protocol.request(request));
+					if (codec == null) {
+						Transfers.sendFile(fileIn, 0, length, channel);
+						compressionStats.addSent(length, length);
+					} else {
+						OutputStream out = new BufferedOutputStream(
+								Channels.newOutputStream(channel),
+								Protocol.MAX_FRAME + 4);
+						Protocol.sendEncoded(fileIn, 0, length, codec, out,
+								compressionStats);
+					}
+				} catch (IOException e) {
+					throw writeFailed(channel, e);
+				}
+				
+				// Receive the response
+				Header status = Protocol.readStatus(new BufferedInputStream(
+						Channels.newInputStream(channel)));
+				return status.getLong("length", length);
+			}
+		}
+	}
+	
+	/**
+	 * <b><em>uploadBatch</em></b>
+	 * 
+	 * <p>Uploads many files with a single BATCH_UPLOAD request, instead of a
+	 * request each. The files are streamed one after the other without
+	 * waiting for the server (see {@link BatchArchive}), so thousands of
+	 * small files cost one round trip, and the server saves them while it
+	 * reads the rest. If compression is on, each file is compressed when it
+	 * helps.</p>
+	 * 
+	 * <p>A file that could not be read or saved does not stop the others,
+	 * and is reported in the result instead.</p>
+	 * 
+	 * @param files - the files to upload.
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * 
+	 * @return what happened to each file.
+	 * @throws IOException if the files could not be sent or the server
+	 * refused the batch.
+	 */
+	public BatchResult uploadBatch(Collection<File> files, String host,
+			int port) throws IOException {
+		BatchResult result = new BatchResult();
+		Header request = new Header(FTServer.BATCH_UPLOAD)
+				.set("count", files.size());
+		try (InputStream in = open(request,
+				out -> writeBatch(files, out, result), host, port)) {
+			Protocol.readStatus(in);
+			Header entry;
+			while ((entry = BatchArchive.readEntry(in)) != null) {
+				if (entry.has("error")) {
+					result.failed(entry.getArg(0), entry.get("error"));
+				} else {
+					result.transferred(entry.getArg(0),
+							entry.getLong("length", 0));
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Writes the files of a batch upload as an archive. The archive is
+	 * written again if the server was busy, so the result is started over.
+	 */
+	private void writeBatch(Collection<File> files, OutputStream out,
+			BatchResult result) throws IOException {
+		result.clear();
+		OutputStream archive = new BufferedOutputStream(out,
+				Protocol.MAX_FRAME + 4);
+		OutputStream unflushed = BatchArchive.unflushed(archive);
+		for (File file : files) {
+			FileChannel fileIn;
+			try {
+				fileIn = FileChannel.open(file.toPath(),
+						StandardOpenOption.READ);
+			} catch (IOException e) {
+				result.failed(file.getName(), e.toString());
+				continue;
+			}
+			try {
+				long length = fileIn.size();
+				Header entry = new Header(BatchArchive.ENTRY)
+						.set("length", length)
+						.set("mtime", file.lastModified()).arg(file.getName());
+				Codec codec = compression? Codecs.choose(Codecs.accept(),
+						file.getName(), length) : null;
+				if (codec == null) {
+					BatchArchive.write(archive, entry);
+					
+					// The rest of the batch can not be read if this is short
+					if (Transfers.copy(fileIn, 0, length,
+							Channels.newChannel(unflushed)) != length) {
+						throw new EOFException(file.getName() +
+								" was shortened while it was sent");
+					}
+					compressionStats.addSent(length, length);
+				} else {
+					BatchArchive.write(archive,
+							entry.set("encoding", codec.getName()));
+					Protocol.sendEncoded(fileIn, 0, length, codec, unflushed,
+							compressionStats);
+				}
+			} finally {
+				fileIn.close();
+			}
+		}
+		BatchArchive.write(archive, new Header(BatchArchive.END)
+				.set("count", files.size()));
+		archive.flush();
+	}
+	
+	/**
+	 * <b><em>uploadDelta</em></b>
+	 * 
+	 * <p>Uploads a file the server has an older copy of by sending only what
+	 * changed. The server sends the signature of its copy, and the client
+	 * sends back the blocks of its file that are not in it along with where
+	 * to copy the rest from (see {@link DeltaSync}). The server rebuilds the
+	 * file in a temporary file which then replaces its copy.</p>
+	 * 
+	 * @param file - the file to upload.
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * 
+	 * @return the number of bytes the server saved, or -1 if the server has
+	 * no copy of the file.
+	 * @throws IOException if the file could not be sent or the server
+	 * refused it, with the message {@link FileRange#CHANGED} if the server's
+	 * copy changed in the meantime.
+	 */
+	public long uploadDelta(File file, String host, int port)
+			throws IOException {
+		
+		// Get the signature of the server's copy
+		Header status;
+		DeltaSync.Signature signature;
+		try (InputStream in = open(new Header(FTServer.SIGNATURE)
+				.arg(file.getName()), host, port)) {
+			status = Protocol.readStatus(in);
+			signature = DeltaSync.Signature.readFrom(in);
+		} catch (IOException e) {
+			String reason = e.getMessage();
+			if (reason != null && reason.startsWith(FTServer.NOT_FOUND)) {
+				return -1;
+			}
+			throw e;
+		}
+		
+		// Send the delta
+		Header request = new Header(FTServer.DELTA_UPLOAD)
+				.set("ifmatch", status.get("etag"))
+				.set("mtime", file.lastModified()).arg(file.getName());
+		try (InputStream fileIn = new BufferedInputStream(
+				new FileInputStream(file), Transfers.BUFFER_SIZE);
+				InputStream in = open(request, out -> DeltaSync.delta(
+						signature, fileIn, out, compressionStats),
+						host, port)) {
+			return Protocol.readStatus(in).getLong("length", file.length());
+		}
+	}
+	
+	/**
+	 * <b><em>hash</em></b>
+	 * 
+	 * <p>Gets the SHA-256 hash of a file on the server, to tell whether it has
+	 * the same data as a local file without downloading it.</p>
+	 * 
+	 * @param filename - the name of the file on the server.
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * 
+	 * @return the hash in hex.
+	 * @throws IOException if the hash could not be received.
+	 * @see FileEntry#hash(InputStream)
+	 */
+	public String hash(String filename, String host, int port)
+			throws IOException {
+		return call(new Header(FTServer.HASH).arg(filename), host, port)
+				.get("sha256");
+	}
+	
+	/**
+	 * <b><em>stats</em></b>
+	 * 
+	 * <p>Gets the metrics of the server, e.g. {@code bytes.out} or
+	 * {@code command.DOWNLOAD.p99}. Only clients on the same machine as the
+	 * server are sent them.</p>
+	 * 
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * 
+	 * @return the metrics by name, in the order the server sent them.
+	 * @throws IOException if the metrics could not be received.
+	 * @see server.ServerMetrics#snapshot()
+	 */
+	public Map<String, String> stats(String host, int port)
+			throws IOException {
+		try (InputStream in = open(new Header(FTServer.STATS), host, port)) {
+			Protocol.readStatus(in);
+			BufferedReader br = new BufferedReader(
+					new InputStreamReader(in, StandardCharsets.UTF_8));
+			Map<String, String> stats = new LinkedHashMap<>();
+			String line;
+			while ((line = br.readLine()) != null) {
+				int space = line.indexOf(' ');
+				if (space > 0) {
+					stats.put(line.substring(0, space),
+							line.substring(space + 1));
+				}
+			}
+			return stats;
+		}
+	}
+	
+	/**
+	 * <b><em>list</em></b>
+	 * 
+	 * <p>Gets the list of files on the server using a version 2 DIR request.
+	 * </p>
+	 * 
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * 
+	 * @return the names of the files on the server.
+	 * @throws IOException if the list could not be received.
+	 */
+	public String[] list(String host, int port) throws IOException {
+		try (InputStream in = open(
+				new Header(FTServer.LIST_DIRECTORIES), host, port)) {
+			Protocol.readStatus(in);
+			BufferedReader br = new BufferedReader(
+					new InputStreamReader(in, StandardCharsets.UTF_8));
+			List<String> files = new ArrayList<>();
+			String line;
+			while ((line = br.readLine()) != null) {
+				files.add(line);
+			}
+			return files.toArray(new String[files.size()]);
+		}
+	}
+	
+	/**
+	 * <b><em>list</em></b>
+	 * 
+	 * <p>Gets a page of the files on the server, with their sizes and
+	 * modification times. The entries are read from the connection as the
+	 * listing is iterated.</p>
+	 * 
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * @param query - the files to list.
+	 * 
+	 * @return the listing, which should be read to the end or closed.
+	 * @throws IOException if the request failed.
+	 */
+	public DirListing list(String host, int port, DirQuery query)
+			throws IOException {
+		InputStream in = open(query.toHeader(), host, port);
+		try {
+			Protocol.readStatus(in);
+		} catch (IOException e) {
+			in.close();
+			throw e;
+		}
+		return new DirListing(in);
+	}
+	
+	/**
+	 * <b><em>listChanges</em></b>
+	 * 
+	 * <p>Gets the files on the server that changed since an earlier listing.
+	 * The first call should pass a null token, which gets every file (as a
+	 * reset delta); after that, passing the token of the last delta only
+	 * gets what changed since, which is nothing most of the time.</p>
+	 * 
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * @param since - the token of the last delta, or null.
+	 * 
+	 * @return the changes and the token to pass next time.
+	 * @throws IOException if the changes could not be received.
+	 */
+	public DirDelta listChanges(String host, int port, String since)
+			throws IOException {
+		Header request = new Header(FTServer.LIST_DIRECTORIES)
+				.set("since", since == null? "" : since);
+		try (InputStream in = open(request, host, port)) {
+			Header status = Protocol.readStatus(in);
+			BufferedReader br = new BufferedReader(
+					new InputStreamReader(in, StandardCharsets.UTF_8));
+			List<DirChange> changes = new ArrayList<>();
+			String line;
+			while ((line = br.readLine()) != null) {
+				if (!line.isEmpty()) {
+					changes.add(DirChange.fromHeader(Header.parse(line)));
+				}
+			}
+			return new DirDelta(status.get("token"),
+					Boolean.parseBoolean(status.get("reset")), changes);
+		} catch (IllegalArgumentException e) {
+			throw new IOException("bad DIR response", e);
+		}
+	}
+	
+	/**
+	 * <b><em>download</em></b>
+	 * 
+	 * <p>Downloads a file from the server straight into a local file, which
+	 * is replaced if it already exists. The data is written to a
+	 * {@link #PART_SUFFIX} file first, so the local file is only replaced once
+	 * the download is complete.</p>
+	 * 
+	 * <p>If a download fails part way, the partial file is kept along with
+	 * the ETag of the server file, and the next download of the same file
+	 * resumes from the length of the partial file. If the server file has
+	 * changed in the meantime the partial file is thrown away and the
+	 * download starts over.</p>
+	 * 
+	 * <p>If the {@link #getParallelism() parallelism} is more than 1 and the
+	 * file is larger than a chunk, it is downloaded over several connections
+	 * at once instead (see {@link ParallelDownloader}). A failed parallel
+	 * download is not resumed.</p>
+	 * 
+	 * <p>If {@link #isDeltaSync() delta sync} is on and the local file
+	 * already exists, only what changed is downloaded (see
+	 * {@link #downloadDelta(String, String, int, Path)}).</p>
+	 * 
+	 * <p>If {@link #isRevalidation() revalidation} is on and the local file
+	 * already exists, nothing is downloaded if it is still the same as the
+	 * server file (see {@link #revalidate(String, String, int, Path)}).</p>
+	 * 
+	 * @param filename - the name of the file on the server.
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * @param dest - the local file to save the data to.
+	 * 
+	 * @return the size of the file.
+	 * @throws IOException if the file could not be downloaded or saved.
+	 * @see #downloadRange(String, String, int, long, long, String,
+	 * WritableByteChannel)
+	 */
+	public long download(String filename, String host, int port, Path dest)
+			throws IOException {
+		Path part = Paths.get(dest + PART_SUFFIX);
+		Path etagFile = Paths.get(part + ETAG_SUFFIX);
+		
+		// Skip the transfer if the local copy is still the same
+		if (revalidation && !Files.exists(etagFile) &&
+				Files.isRegularFile(dest)) {
+			Header status = revalidate(filename, host, port, dest);
+			if (status.has(FileRange.UNCHANGED)) {
+				return status.getLong("size", 0);
+			}
+		}
+		
+		// Only fetch what changed if there is an older copy
+		if (deltaSync && !Files.exists(etagFile) && Files.isRegularFile(dest)
+				&& Files.size(dest) >= DeltaSync.MIN_SIZE) {
+			return downloadDelta(filename, host, port, dest);
+		}
+		
+		// Split large files over several connections
+		if (parallelism > 1 && !Files.exists(etagFile)) {
+			Header status = call(rangeRequest(filename, 0, 0, null),
+					host, port);
+			long size = status.getLong("size", 0);
+			if (size > chunkSize) {
+				try {
+					new ParallelDownloader(this, host, port, filename, size,
+							status.get("etag")).download(part);
+				} catch (IOException e) {
+					Files.deleteIfExists(part);
+					throw e;
+				}
+				Files.move(part, dest, StandardCopyOption.REPLACE_EXISTING);
+				remember(filename, dest, status.get("etag"));
+				return size;
+			}
+		}
+		
+		long size;
+		for (int attempt = 0; ; attempt ++) {
+			try {
+				size = resume(filename, host, port, part, etagFile);
+				break;
+			} catch (IOException e) {
+				
+				// Keep what was received unless it is of no use
+				boolean changed = FileRange.CHANGED.equals(e.getMessage());
+				if (changed || !Files.exists(etagFile) ||
+						!Files.exists(part) || Files.size(part) == 0) {
+					Files.deleteIfExists(part);
+					Files.deleteIfExists(etagFile);
+				}
+				if (!changed || attempt > 0) {
+					throw e;
+				}
+			}
+		}
+		String etag = new String(Files.readAllBytes(etagFile),
+				StandardCharsets.UTF_8).trim();
+		Files.move(part, dest, StandardCopyOption.REPLACE_EXISTING);
+		Files.deleteIfExists(etagFile);
+		remember(filename, dest, etag);
+		return size;
+	}
+	
+	/**
+	 * <b><em>downloadBatch</em></b>
+	 * 
+	 * <p>Downloads many files into the shared path with a single
+	 * BATCH_DOWNLOAD request, instead of a request each. The server streams
+	 * the files back one after the other (see {@link BatchArchive}), and
+	 * each one is saved as soon as it has arrived, through a
+	 * {@link #PART_SUFFIX} file that then replaces any local copy. The files
+	 * keep the server's modification times. If compression is on, each file
+	 * is compressed when it helps.</p>
+	 * 
+	 * <p>A file that the server could not send does not stop the others, and
+	 * is reported in the result instead.</p>
+	 * 
+	 * @param filenames - the names of the files on the server.
+	 * @param glob - a glob that selects more files on the server, or null.
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * 
+	 * @return what happened to each file.
+	 * @throws IOException if the files could not be received or saved.
+	 */
+	public BatchResult downloadBatch(Collection<String> filenames,
+			String glob, String host, int port) throws IOException {
+		byte[] names = BatchArchive.writeNames(filenames);
+		Header request = new Header(FTServer.BATCH_DOWNLOAD)
+				.set("length", names.length).set("glob", glob)
+				.set("accept", compression? Codecs.accept() : null);
+		BatchResult result = new BatchResult();
+		try (InputStream in = open(request, out -> out.write(names),
+				host, port)) {
+			Protocol.readStatus(in);
+			Header entry;
+			while ((entry = BatchArchive.readEntry(in)) != null) {
+				String name = entry.getArg(0);
+				if (entry.has("error")) {
+					result.failed(name, entry.get("error"));
+				} else if (!FTServer.isValidName(name)) {
+					
+					// Drop the data of a file that can not be saved
+					Protocol.receive(in, entry, Channels.newChannel(
+							OutputStream.nullOutputStream()), null);
+					result.failed(name, "invalid file name");
+				} else {
+					result.transferred(name, save(name, entry, in));
+				}
+			}
+		}
+		return result;
+	}
+	
+	/** Saves the data of an entry of a batch download to the shared path. */
+	private long save(String filename, Header entry, InputStream in)
+			throws IOException {
+		Path dest = Paths.get(sharedPath, filename);
+		Path part = Paths.get(dest + PART_SUFFIX);
+		long length;
+		try (FileChannel fileOut = FileChannel.open(part,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			length = Protocol.receive(in, entry, fileOut, compressionStats);
+		} catch (IOException e) {
+			Files.deleteIfExists(part);
+			throw e;
+		}
+		long mtime = entry.getLong("mtime", 0);
+		if (mtime > 0) {
+			Files.setLastModifiedTime(part, FileTime.fromMillis(mtime));
+		}
+		Files.move(part, dest, StandardCopyOption.REPLACE_EXISTING);
+		remember(filename, dest, entry.get("etag"));
+		return length;
+	}
+	
+	/**
+	 * <b><em>revalidate</em></b>
+	 * 
+	 * <p>Asks the server whether a local copy of a file is still the same
+	 * as the server file, without downloading it. The request has the ETag
+	 * of the server file the copy was last the same as, or if that is not
+	 * known, the ETag the copy would have if it kept the server's time along
+	 * with its SHA-256 hash and size, so a copy that was made some other way
+	 * is still found to be the same. What is learned is kept in the
+	 * {@link MetadataCache}, so a copy is only hashed once and is compared
+	 * by ETag after that.</p>
+	 * 
+	 * @param filename - the name of the file on the server.
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * @param copy - the local copy of the file.
+	 * 
+	 * @return the status from the server, with the {@code size} and
+	 * {@code etag} of the file and the {@link FileRange#UNCHANGED} option if
+	 * the copy is the same.
+	 * @throws IOException if the copy could not be read or the server could
+	 * not be asked.
+	 */
+	public Header revalidate(String filename, String host, int port,
+			Path copy) throws IOException {
+		MetadataCache metadata = getMetadata();
+		MetadataCache.Entry entry = metadata.get(filename, copy);
+		String etag = entry == null? null : entry.getETag();
+		String hash = entry == null? null : entry.getHash();
+		if (etag == null) {
+			etag = new FileEntry(filename, Files.size(copy),
+					Files.getLastModifiedTime(copy).toMillis()).getETag();
+			hash = metadata.hash(filename, copy);
+		}
+		Header request = rangeRequest(filename, 0, 0, null)
+				.set("ifnonematch", etag).set("ifhash", hash)
+				.set("ifsize", hash == null? null : Files.size(copy));
+		Header status = call(request, host, port);
+		String serverETag = status.get("etag");
+		if (status.has(FileRange.UNCHANGED) && serverETag != null &&
+				(entry == null || !serverETag.equals(entry.getETag()))) {
+			metadata.put(filename, copy, serverETag, hash);
+		}
+		return status;
+	}
+	
+	/** Records that a copy that was just downloaded is the same as the
+	 * server file, if revalidation is on. */
+	private void remember(String filename, Path dest, String etag)
+			throws IOException {
+		if (revalidation && etag != null && !etag.isEmpty()) {
+			getMetadata().put(filename, dest, etag, null);
+		}
+	}
+	
+	/**
+	 * <b><em>downloadDelta</em></b>
+	 * 
+	 * <p>Downloads a file that there is an older copy of by receiving only
+	 * what changed. The client sends the signature of its copy, and the
+	 * server sends back the blocks of its file that are not in it along with
+	 * where to copy the rest from (see {@link DeltaSync}). The new version is
+	 * rebuilt in a {@link #PART_SUFFIX} file which then replaces the copy.
+	 * </p>
+	 * 
+	 * @param filename - the name of the file on the server.
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * @param dest - the older copy of the file, which is replaced.
+	 * 
+	 * @return the size of the file.
+	 * @throws IOException if the file could not be downloaded or saved.
+	 */
+	public long downloadDelta(String filename, String host, int port,
+			Path dest) throws IOException {
+		
+		// Get the signature of the local copy
+		DeltaSync.Signature signature;
+		try (InputStream fileIn = new BufferedInputStream(
+				Files.newInputStream(dest), Transfers.BUFFER_SIZE)) {
+			signature = DeltaSync.signature(fileIn, Files.size(dest));
+		}
+		
+		// Rebuild the file from the delta
+		Path part = Paths.get(dest + PART_SUFFIX);
+		Header request = new Header(FTServer.DELTA_DOWNLOAD).arg(filename);
+		long size;
+		String etag;
+		try (FileChannel basis = FileChannel.open(dest,
+				StandardOpenOption.READ);
+				FileChannel fileOut = FileChannel.open(part,
+						StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+						StandardOpenOption.TRUNCATE_EXISTING);
+				InputStream in = open(request, signature::writeTo, host,
+						port)) {
+			Header status = Protocol.readStatus(in);
+			etag = status.get("etag");
+			size = DeltaSync.apply(in, (position, count, target) ->
+					Transfers.sendFile(basis, position, count, target),
+					fileOut, compressionStats);
+			if (size != status.getLong("size", size)) {
+				throw new IOException("expected " + status.get("size") +
+						" bytes but got " + size);
+			}
+		} catch (IOException e) {
+			Files.deleteIfExists(part);
+			throw e;
+		}
+		Files.move(part, dest, StandardCopyOption.REPLACE_EXISTING);
+		remember(filename, dest, etag);
+		return size;
+	}
+	
+	/**
+	 * Downloads the rest of a file into a partial file, starting from its
+	 * length if the ETag of the server file is known, and returns the size of
+	 * the file.
+	 */
+	private long resume(String filename, String host, int port, Path part,
+			Path etagFile) throws IOException {
+		String etag = null;
+		long offset = 0;
+		if (Files.exists(part) && Files.exists(etagFile)) {
+			etag = new String(Files.readAllBytes(etagFile),
+					StandardCharsets.UTF_8).trim();
+			offset = Files.size(part);
+		}
+		Header request = rangeRequest(filename, offset, -1, etag);
+		try (FileChannel fileOut = FileChannel.open(part,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+				InputStream in = open(request, host, port)) {
+			Header status = Protocol.readStatus(in);
+			fileOut.truncate(offset);
+			fileOut.position(offset);
+			if (etag == null) {
+				Files.write(etagFile, status.get("etag", "").getBytes(
+						StandardCharsets.UTF_8));
+			}
+			long received = Protocol.receive(in, status, fileOut,
+					compressionStats);
+			long size = status.getLong("size", offset + received);
+			if (offset + received != size) {
+				throw new IOException("expected " + size + " bytes but got " +
+						(offset + received));
+			}
+			return size;
+		}
+	}
+	
+	/**
+	 * <b><em>download</em></b>
+	 * 
+	 * <p>Downloads a file from the server into a stream. The stream is not
+	 * closed.</p>
+	 * 
+	 * @param filename - the name of the file on the server.
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * @param out - the stream to write the data to.
+	 * 
+	 * @return the number of bytes downloaded.
+	 * @throws IOException if the file could not be downloaded or written.
+	 * @see #download(String, String, int, WritableByteChannel)
+	 */
+	public long download(String filename, String host, int port,
+			OutputStream out) throws IOException {
+		long length = download(filename, host, port, Channels.newChannel(out));
+		out.flush();
+		return length;
+	}
+	
+	/**
+	 * <b><em>download</em></b>
+	 * 
+	 * <p>Downloads a file from the server using a version 2 DOWNLOAD request.
+	 * The data is streamed from the socket into the channel through a fixed
+	 * size buffer, so the file is never held in memory. The channel is not
+	 * closed.</p>
+	 * 
+	 * @param filename - the name of the file on the server.
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * @param out - the channel to write the data to.
+	 * 
+	 * @return the number of bytes downloaded.
+	 * @throws IOException if the file could not be downloaded or written.
+	 */
+	public long download(String filename, String host, int port,
+			WritableByteChannel out) throws IOException {
+		return downloadRange(filename, host, port, 0, -1, null, out)
+				.getLong("length", 0);
+	}
+	
+	/**
+	 * <b><em>downloadRange</em></b>
+	 * 
+	 * <p>Downloads part of a file from the server. The server starts sending
+	 * from the offset without reading the rest of the file. The channel is
+	 * not closed.</p>
+	 * 
+	 * @param filename - the name of the file on the server.
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * @param offset - the position of the first byte to download.
+	 * @param length - the most bytes to download, or -1 for the rest of the
+	 * file.
+	 * @param ifMatch - the ETag the file must still have, or null for any.
+	 * @param out - the channel to write the data to.
+	 * 
+	 * @return the status from the server, with the {@code length} of the
+	 * range and the {@code size} and {@code etag} of the whole file.
+	 * @throws IOException if the range could not be downloaded or written,
+	 * with the message {@link FileRange#CHANGED} if the ETag did not match.
+	 */
+	public Header downloadRange(String filename, String host, int port,
+			long offset, long length, String ifMatch, WritableByteChannel out)
+			throws IOException {
+		Header request = rangeRequest(filename, offset, length, ifMatch);
+		try (InputStream in = open(request, host, port)) {
+			Header status = Protocol.readStatus(in);
+			Protocol.receive(in, status, out, compressionStats);
+			return status;
+		}
+	}
+	
+	/**
+	 * Sends a version 2 request without a body and returns the status, for
+	 * requests that have no response data.
+	 */
+	Header call(Header request, String host, int port) throws IOException {
+		try (InputStream in = open(request, host, port)) {
+			return Protocol.readStatus(in);
+		}
+	}
+	
+	/**
+	 * Builds the header of a DOWNLOAD request for part of a file, which
+	 * accepts compressed data if compression is on.
+	 */
+	Header rangeRequest(String filename, long offset, long length,
+			String ifMatch) {
+		Header request = new Header(FTServer.DOWNLOAD).set("ifmatch", ifMatch)
+				.set("accept", compression? Codecs.accept() : null);
+		if (offset > 0) {
+			request.set("offset", offset);
+		}
+		if (length >= 0) {
+			request.set("length", length);
+		}
+		return request.arg(filename);
+	}
+	
+	/**
+	 * <b><em>getSession</em></b>
+	 * 
+	 * <p>Gets the open session with a server, starting a new one if there is
+	 * none or the last one was closed.</p>
+	 * 
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * 
+	 * @return the session.
+	 * @throws IOException if a new session could not be started.
+	 */
+	public synchronized ClientSession getSession(String host, int port)
+			throws IOException {
+		String key = host + ":" + port;
+		ClientSession session = sessions.get(key);
+		if (session == null || !session.isOpen()) {
+			session = new ClientSession(host, port);
+			sessions.put(key, session);
+		}
+		return session;
+	}
+	
+	/**
+	 * <b><em>closeSessions</em></b>
+	 * 
+	 * <p>Closes every open session.</p>
+	 */
+	public synchronized void closeSessions() {
+		for (ClientSession session : sessions.values()) {
+			try {
+				session.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		sessions.clear();
+	}
+	
+	/**
+	 * Sends a version 2 request without a body and returns the response. In
+	 * persistent mode the request goes over the session (which is restarted
+	 * once if it was closed), otherwise a new connection is opened that is
+	 * closed with the returned stream.
+	 */
+	private InputStream open(Header request, String host, int port)
+			throws IOException {
+		return retryBusy(() -> {
+			if (persistent) {
+				try {
+					return getSession(host, port).send(request);
+				} catch (ServerBusyException e) {
+					throw e;
+				} catch (IOException e) {
+					return getSession(host, port).send(request);
+				}
+			}
+			SocketChannel channel = connect(host, port);
+			try {
+				write(channel, Protocol.request(request));
+			} catch (IOException e) {
+				throw writeFailed(channel, e);
+			}
+			return response(channel);
+		});
+	}
+	
+	/**
+	 * Sends a version 2 request with a body of unknown length and returns the
+	 * response. The body has to mark its own end. In persistent mode it is
+	 * sent in chunks over the session, otherwise it is written after the
+	 * header on a new connection that is closed with the returned stream.
+	 */
+	private InputStream open(Header request, ClientSession.Body body,
+			String host, int port) throws IOException {
+		return retryBusy(() -> {
+			if (persistent) {
+				return getSession(host, port).send(request, out -> {
+					ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+					body.writeTo(chunked);
+					chunked.close();
+				});
+			}
+			SocketChannel channel = connect(host, port);
+			try {
+				write(channel, Protocol.request(request));
+				body.writeTo(Channels.newOutputStream(channel));
+			} catch (IOException e) {
+				throw writeFailed(channel, e);
+			}
+			return response(channel);
+		});
+	}
+	
+	/**
+	 * Opens the response to a request sent over a new connection. If the
+	 * server sent {@link Protocol#BUSY} instead of serving the connection,
+	 * the connection is closed and a {@link ServerBusyException} is thrown.
+	 */
+	private static InputStream response(SocketChannel channel)
+			throws IOException {
+		InputStream in = new BufferedInputStream(
+				Channels.newInputStream(channel));
+		try {
+			in.mark(Protocol.MAX_LINE + 2);
+			String line = Protocol.readLine(in);
+			in.reset();
+			if (line != null && line.startsWith(Protocol.BUSY)) {
+				Protocol.checkBusy(Header.parse(line));
+			}
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return in;
+	}
+	
+	/**
+	 * Closes a new connection a request could not be written to, and gets
+	 * the error to throw. A server that was too busy sends
+	 * {@link Protocol#BUSY} and closes the connection without reading the
+	 * request, so the write fails but the status can still be read.
+	 */
+	private static IOException writeFailed(SocketChannel channel,
+			IOException e) {
+		try {
+			response(channel);
+		} catch (ServerBusyException busy) {
+			return busy;
+		} catch (IOException other) {
+			// Report the write error
+		}
+		try {
+			channel.close();
+		} catch (IOException other) {
+			e.addSuppressed(other);
+		}
+		return e;
+	}
+	
+	/**
+	 * Runs a request, and runs it again while the server is too busy for it
+	 * (up to {@link #getBusyRetries()} times). Each retry waits at least as
+	 * long as the server asked, and twice as long as the last one, with some
+	 * random jitter so clients turned away together do not come back
+	 * together.
+	 */
+	private <T> T retryBusy(Request<T> request) throws IOException {
+		for (int attempt = 0; ; attempt ++) {
+			try {
+				return request.run();
+			} catch (ServerBusyException e) {
+				if (attempt >= busyRetries) {
+					throw e;
+				}
+				long wait = Math.max(e.getRetryAfter(),
+						BUSY_BACKOFF << Math.min(attempt, 10));
+				wait += ThreadLocalRandom.current().nextLong(wait / 2 + 1);
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("request interrupted");
+				}
+			}
+		}
+	}
+	
+	/** A request that can be sent again, see {@link #retryBusy(Request)}. */
+	private interface Request<T> {
+		
+		T run() throws IOException;
+	}
+	
+	/** Opens a blocking channel to the server. */
+	private SocketChannel connect(String host, int port) throws IOException {
+		return SocketChannel.open(new InetSocketAddress(host, port));
+	}
+	
+	/** Writes all the bytes to a channel. */
+	private static void write(WritableByteChannel channel, byte[] data)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
 	public String getSharedPath() {
 		return sharedPath;
 	}
 
-	public void setSharedPath(String sharedPath) {
+	public synchronized void setSharedPath(String sharedPath) {
 		this.sharedPath = sharedPath;
+		this.metadata = null;
+	}
+
+	public boolean isPersistent() {
+		return persistent;
+	}
+
+	/**
+	 * <b><em>setPersistent</em></b>
+	 * 
+	 * <p>Sets whether the version 2 requests ({@link #list(String, int)},
+	 * uploads and downloads) are sent over a persistent session. Turning it
+	 * off closes any open sessions.</p>
+	 * 
+	 * @param persistent - true to use sessions.
+	 */
+	public void setPersistent(boolean persistent) {
+		this.persistent = persistent;
+		if (!persistent) {
+			closeSessions();
+		}
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public long getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(long chunkSize) {
+		this.chunkSize = Math.max(64 * 1024, chunkSize);
+	}
+
+	public int getChunkRetries() {
+		return chunkRetries;
+	}
+
+	public void setChunkRetries(int chunkRetries) {
+		this.chunkRetries = Math.max(0, chunkRetries);
+	}
+
+	public int getBusyRetries() {
+		return busyRetries;
+	}
+
+	public void setBusyRetries(int busyRetries) {
+		this.busyRetries = Math.max(0, busyRetries);
+	}
+
+	public boolean isDeltaSync() {
+		return deltaSync;
+	}
+
+	/**
+	 * <b><em>setDeltaSync</em></b>
+	 * 
+	 * <p>Sets whether files that the other side has an older copy of are
+	 * sent as a delta, so a small change to a large file only sends about
+	 * the blocks around the change. Files smaller than
+	 * {@link DeltaSync#MIN_SIZE} are always sent whole.</p>
+	 * 
+	 * @param deltaSync - true to send deltas.
+	 */
+	public void setDeltaSync(boolean deltaSync) {
+		this.deltaSync = deltaSync;
+	}
+
+	public boolean isCompression() {
+		return compression;
+	}
+
+	/**
+	 * <b><em>setCompression</em></b>
+	 * 
+	 * <p>Sets whether downloads and uploads may be compressed. Files that
+	 * are already compressed and small files are always sent as they are
+	 * (see {@link Codecs}).</p>
+	 * 
+	 * @param compression - true to compress transfers where it helps.
+	 */
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	public boolean isRevalidation() {
+		return revalidation;
+	}
+	
+	/**
+	 * <b><em>setRevalidation</em></b>
+	 * 
+	 * <p>Sets whether a file that the client already has a copy of is
+	 * checked with the server before it is downloaded, so an up to date copy
+	 * is not downloaded again.</p>
+	 * 
+	 * @param revalidation - true to check copies first.
+	 */
+	public void setRevalidation(boolean revalidation) {
+		this.revalidation = revalidation;
+	}
+	
+	/**
+	 * <b><em>getMetadata</em></b>
+	 * 
+	 * @return what is known about the copies in the shared path, which is
+	 * kept in the {@link #METADATA_DIRECTORY}.
+	 */
+	public synchronized MetadataCache getMetadata() {
+		if (metadata == null) {
+			metadata = new MetadataCache(Paths.get(sharedPath,
+					METADATA_DIRECTORY, "metadata"));
+		}
+		return metadata;
+	}
+
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
 	}
 }
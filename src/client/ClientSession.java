@@ -0,0 +1,350 @@
+package client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import server.FTServer;
+import server.Header;
+import server.Protocol;
+
+/**
+ * The {@code ClientSession} class is a persistent connection to the server.
+ * It is started with a version 2 SESSION request, after which any number of
+ * requests can be sent over the same connection without waiting for earlier
+ * responses. Each request gets an ID, and a reader thread passes the response
+ * frames for each ID to the stream returned by {@link #send(Header)}, so
+ * responses can come back in any order.
+ * <p>
+ * Every response stream should be read to the end or closed, since the
+ * reader thread waits when the buffer of an unread response is full.
+ */
+public class ClientSession implements Closeable {
+
+	/** The number of response frames buffered for each request. */
+	private static final int RESPONSE_BUFFER_FRAMES = 32;
+
+	/** The frame that marks the end of a response in a response queue. */
+	private static final byte[] END = new byte[0];
+
+	/** The frame that marks a response that failed with the session. */
+	private static final byte[] FAILED = new byte[0];
+
+	/** The connection with the server. */
+	private final Socket socket;
+
+	/** The stream request frames are written to. Writes must hold the lock
+	 * on this stream so frames are never mixed together. */
+	private final DataOutputStream out;
+
+	/** The stream response frames are read from. */
+	private final DataInputStream in;
+
+	/** The responses that have not ended yet, by request ID. */
+	private final Map<Integer, ResponseStream> pending =
+			new ConcurrentHashMap<>();
+
+	/** The ID of the next request. */
+	private final AtomicInteger nextId = new AtomicInteger();
+
+	/** Set once the session failed or was closed. */
+	private volatile IOException failure;
+
+	/**
+	 * Opens a new session with the server.
+	 *
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 *
+	 * @throws IOException if the session could not be started.
+	 */
+	public ClientSession(String host, int port) throws IOException {
+		this.socket = new Socket(host, port);
+		try {
+			
+			// Frames are small and flushed one at a time, so they must not
+			// wait for the ACK of the last one
+			socket.setTcpNoDelay(true);
+			this.out = new DataOutputStream(new BufferedOutputStream(
+					socket.getOutputStream(), Protocol.MAX_FRAME + 32));
+			InputStream raw = new BufferedInputStream(socket.getInputStream(),
+					Protocol.MAX_FRAME + 8);
+			out.write(Protocol.request(new Header(FTServer.SESSION)));
+			out.flush();
+			Protocol.readStatus(raw);
+			this.in = new DataInputStream(raw);
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		Thread reader = new Thread(this::readResponses, "ft-client-session");
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * <b><em>send</em></b>
+	 *
+	 * <p>Sends a request without a body.</p>
+	 *
+	 * @param request - the header of the request.
+	 *
+	 * @return the response, starting with the status line.
+	 * @throws IOException if the request could not be sent.
+	 * @see #send(Header, InputStream, long)
+	 */
+	public InputStream send(Header request) throws IOException {
+		return send(request, null, 0);
+	}
+
+	/**
+	 * <b><em>send</em></b>
+	 *
+	 * <p>Sends a request and returns as soon as it was written, so more
+	 * requests can be sent before this one has been answered.</p>
+	 *
+	 * @param request - the header of the request.
+	 * @param body - the body of the request, or null if there is none.
+	 * @param length - the number of bytes of the body to send.
+	 *
+	 * @return the response, starting with the status line.
+	 * @throws IOException if the request could not be sent.
+	 */
+	public InputStream send(Header request, InputStream body, long length)
+			throws IOException {
+		return send(request, length, out -> {
+			byte[] buffer = new byte[Protocol.MAX_FRAME];
+			long sent = 0;
+			while (sent < length) {
+				int n = body.read(buffer, 0,
+						(int) Math.min(buffer.length, length - sent));
+				if (n < 0) {
+					throw new IOException("body ended early");
+				}
+				out.write(buffer, 0, n);
+				sent += n;
+			}
+		});
+	}
+
+	/**
+	 * <b><em>send</em></b>
+	 *
+	 * <p>Sends a request with a body whose length is not known up front. The
+	 * body must be written as chunks, e.g. through a
+	 * {@link server.ChunkedOutputStream}, so the server can tell where it
+	 * ends.</p>
+	 *
+	 * @param request - the header of the request.
+	 * @param body - writes the chunked body.
+	 *
+	 * @return the response, starting with the status line.
+	 * @throws IOException if the request could not be sent.
+	 */
+	public InputStream send(Header request, Body body) throws IOException {
+		return send(request, Protocol.CHUNKED, body);
+	}
+
+	/** Writes a request frame and its body, and registers the response. */
+	private InputStream send(Header request, long length, Body body)
+			throws IOException {
+		checkOpen();
+		int id = nextId.incrementAndGet();
+		ResponseStream response = new ResponseStream();
+		pending.put(id, response);
+		try {
+			synchronized (out) {
+				Protocol.writeRequestFrame(out, id, request, length);
+				if (length != 0) {
+					body.writeTo(out);
+				}
+				out.flush();
+			}
+		} catch (IOException e) {
+			pending.remove(id);
+			fail(e);
+			throw e;
+		}
+
+		return response;
+	}
+
+	/**
+	 * <b><em>isOpen</em></b>
+	 *
+	 * @return true if requests can still be sent.
+	 */
+	public boolean isOpen() {
+		return failure == null;
+	}
+
+	@Override
+	public void close() throws IOException {
+		fail(new IOException("session closed"));
+	}
+
+	/**
+	 * The {@code Body} interface writes the body of a request straight to
+	 * the connection.
+	 */
+	public interface Body {
+
+		/**
+		 * <b><em>writeTo</em></b>
+		 *
+		 * @param out - the stream to write the body to.
+		 *
+		 * @throws IOException if the body could not be written.
+		 */
+		void writeTo(OutputStream out) throws IOException;
+	}
+
+	/** Reads response frames and passes them to the right response. */
+	private void readResponses() {
+		try {
+			while (true) {
+				int id = in.readInt();
+				int length = in.readInt();
+				byte[] data = END;
+				if (length != Protocol.END_OF_RESPONSE) {
+					if (length < 0 || length > Protocol.MAX_FRAME) {
+						throw new IOException("bad frame length " + length);
+					}
+					data = new byte[length];
+					in.readFully(data);
+				}
+				ResponseStream response = data == END?
+						pending.remove(id) : pending.get(id);
+				if (response != null) {
+					response.offer(data);
+				}
+			}
+		} catch (IOException e) {
+			fail(e);
+		}
+	}
+
+	/** Ends the session and every response that is still open. */
+	private void fail(IOException e) {
+		synchronized (this) {
+			if (failure != null) {
+				return;
+			}
+			failure = e;
+		}
+		try {
+			socket.close();
+		} catch (IOException ignored) {
+		}
+		for (ResponseStream response : pending.values()) {
+			response.fail();
+		}
+		pending.clear();
+	}
+
+	private void checkOpen() throws IOException {
+		if (failure != null) {
+			throw new IOException("session is closed", failure);
+		}
+	}
+
+	/**
+	 * The {@code ResponseStream} class is the response to one request. It is
+	 * fed frames by the reader thread and ends at the end of response frame,
+	 * or with an exception if the session fails first.
+	 */
+	private class ResponseStream extends InputStream {
+
+		private final BlockingQueue<byte[]> frames =
+				new ArrayBlockingQueue<>(RESPONSE_BUFFER_FRAMES);
+
+		private byte[] frame = new byte[0];
+
+		private int pos;
+
+		private boolean ended;
+
+		private volatile boolean discarded;
+
+		/** Called by the reader thread with the next frame. */
+		private void offer(byte[] data) {
+			if (discarded) {
+				return;
+			}
+			try {
+				frames.put(data);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		/** Called when the session fails before the response ended. */
+		private void fail() {
+			frames.clear();
+			frames.offer(FAILED);
+		}
+
+		/** Makes sure there is data to read, returns false at the end. */
+		private boolean fill() throws IOException {
+			while (!ended && pos >= frame.length) {
+				try {
+					frame = frames.take();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException("interrupted", e);
+				}
+				pos = 0;
+				if (frame == FAILED) {
+					ended = true;
+					throw new IOException("session failed", failure);
+				}
+				ended = frame == END;
+			}
+			return pos < frame.length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (!fill()) {
+				return -1;
+			}
+			return frame[pos++] & 0xff;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			if (!fill()) {
+				return -1;
+			}
+			int n = Math.min(len, frame.length - pos);
+			System.arraycopy(frame, pos, b, off, n);
+			pos += n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return frame.length - pos;
+		}
+
+		@Override
+		public void close() {
+			discarded = true;
+			frames.clear();
+		}
+	}
+}
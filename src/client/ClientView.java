@@ -9,17 +9,20 @@
 
 package client;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.layout.*;
 import javafx.stage.Stage;
+import server.DirChange;
+import server.DirDelta;
 import server.FTServer;
 import server.ServerManager;
 
@@ -45,6 +48,9 @@ public class ClientView extends Scene {
 	/** The button that sends the UPLOAD command to the server. */
 	private Button upload;
 	
+	/** The button that syncs the client's directory with the server's. */
+	private Button sync;
+	
 	/** The button that creates a new {@link SetupView} so the user can enter
 	 * the server info and what directory they want to use. */
 	private Button updatePath;
@@ -57,6 +63,10 @@ public class ClientView extends Scene {
 	 * specified. To get these files, the DIR command is sent to the server
 	 * and the server responds with the list of files in the directory. */
 	private ListView<String> serverFiles;
+	
+	/** The token of the server listing shown in {@link #serverFiles}, or null
+	 * before the first refresh. */
+	private String serverToken;
 
 	/**
 	 * Constructs a new {@code ClientView} with a display, client, and server.
@@ -84,6 +94,10 @@ public class ClientView extends Scene {
 		super(new BorderPane(), width, height);
 		setDisplay(display);
 		this.client = client;
+		this.client.setPersistent(true);
+		this.client.setCompression(true);
+		this.client.setDeltaSync(true);
+		this.client.setRevalidation(true);
 		setServer(server);
 		init();
 	}
@@ -99,18 +113,25 @@ public class ClientView extends Scene {
 		// Create the components
 		this.download = new Button("Download");
 		this.upload = new Button("Upload");
+		this.sync = new Button("Sync");
 		this.updatePath = new Button("Update Location");
 		GridPane buttons = new GridPane();
 		buttons.setPadding(new Insets(5,0,5,0));
 		buttons.setHgap(5);
 		this.localFiles = new ListView<>();
+		this.localFiles.getSelectionModel().setSelectionMode(
+				SelectionMode.MULTIPLE);
 		this.serverFiles = new ListView<>();
+		this.serverFiles.getSelectionModel().setSelectionMode(
+				SelectionMode.MULTIPLE);
 		refresh();
 		
 		// Add actions to the components
 		this.download.setOnAction(e -> download());
 		this.upload.setOnAction(e -> upload());
+		this.sync.setOnAction(e -> sync());
 		this.updatePath.setOnAction(e -> {
+			client.closeSessions();
 			serverManager.getServer().close();
 			display.setScene(new SetupView(display));
 		});
@@ -118,7 +139,8 @@ public class ClientView extends Scene {
 		// Add components to the main layout
 		buttons.add(download, 0, 0);
 		buttons.add(upload, 1, 0);
-		buttons.add(updatePath, 2, 0);
+		buttons.add(sync, 2, 0);
+		buttons.add(updatePath, 3, 0);
 		panes.getItems().add(localFiles);
 		panes.getItems().add(serverFiles);
 		layout.setTop(buttons);
@@ -129,50 +151,80 @@ public class ClientView extends Scene {
 	 * <b><em>refresh</em></b>
 	 * 
 	 * <p>Refreshes the list of files on the local machine and server. To get
-	 * the list of server files, the client sends a DIR request and the server
-	 * responds with the list of file names in the directory specified by the
-	 * user.</p>
+	 * the server files, the client sends a DIR request with the token of the
+	 * last refresh, and the server responds with only the files that were
+	 * added, removed or modified since. The server list is patched in place
+	 * with those changes, so a refresh when nothing changed costs almost
+	 * nothing. The request is sent over the client's persistent session, so
+	 * a refresh does not need a new connection either.</p>
 	 */
 	public void refresh() {
 		this.localFiles.getItems().clear();
 		this.localFiles.getItems().addAll(client.listFiles());
-		this.serverFiles.getItems().clear();
-		String response = client.sendRequest(
-				FTServer.LIST_DIRECTORIES, serverManager.getServer().getHost(),
-				FTServer.SERVER_PORT);
-		if (response.length() > 0) {
-			this.serverFiles.getItems().addAll(response.split("\n"));
+		try {
+			DirDelta delta = client.listChanges(
+					serverManager.getServer().getHost(), FTServer.SERVER_PORT,
+					serverToken);
+			List<String> items = this.serverFiles.getItems();
+			if (delta.isReset()) {
+				items.clear();
+			}
+			for (DirChange change : delta.getChanges()) {
+				
+				// The list is kept in name order, like the server's
+				int i = Collections.binarySearch(items, change.getName());
+				if (change.getKind() == DirChange.Kind.REMOVED) {
+					if (i >= 0) {
+						items.remove(i);
+					}
+				} else if (i < 0) {
+					items.add(-i - 1, change.getName());
+				}
+			}
+			serverToken = delta.getToken();
+		} catch (IOException e) {
+			serverToken = null;
+			e.printStackTrace();
 		}
 	}
 	
 	/**
 	 * <b><em>download</em></b>
 	 * 
-	 * <p>Downloads the selected server file to the client's machine. This is
-	 * achieved through the client sending a DOWNLOAD request to the server
-	 * with the file name. The server responds with the data contained in the
-	 * file. Finally, the client saves that data to the local machine.</p>
+	 * <p>Downloads the selected server files to the client's machine. For a
+	 * single file this is achieved through the client sending a DOWNLOAD
+	 * request to the server with the file name. The server responds with the
+	 * length of the file and the data contained in it, which the client
+	 * streams straight to a file on the local machine. If the local machine
+	 * already has the same copy of the file, the server says so and nothing
+	 * is sent. When several files are selected they are all requested at
+	 * once with a BATCH_DOWNLOAD, and the server streams them back in one
+	 * response, so there is only one round trip and one refresh.</p>
 	 * 
 	 * @see {@link #upload()}
 	 */
 	public void download() {
 		
-		// Get the selected file
-		String file = serverFiles.getSelectionModel().getSelectedItem();
-		if (file == null || file.length() == 0) {
+		// Get the selected files
+		List<String> files = new ArrayList<>(
+				serverFiles.getSelectionModel().getSelectedItems());
+		files.removeIf(file -> file == null || file.isEmpty());
+		if (files.isEmpty()) {
 			return;
 		}
 		
-		// Ask the server for the file
-		String data = client.sendRequest(FTServer.DOWNLOAD + " " + file,
-				serverManager.getServer().getHost(), FTServer.SERVER_PORT);
-		
-		// Save the file
+		// Stream the files from the server straight to the local files
+		String host = serverManager.getServer().getHost();
 		try {
-			FileWriter fw = new FileWriter(
-					client.getSharedPath()+File.separator+file);
-			fw.write(data);
-			fw.close();
+			if (files.size() == 1) {
+				client.download(files.get(0), host, FTServer.SERVER_PORT,
+						Paths.get(client.getSharedPath(), files.get(0)));
+			} else {
+				
+				// Files the server could not send are just not in the
+				// local list after the refresh
+				client.downloadBatch(files, null, host, FTServer.SERVER_PORT);
+			}
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -182,44 +234,66 @@ public class ClientView extends Scene {
 	/**
 	 * <b><em>upload</em></b>
 	 * 
-	 * <p>Uploads the selected client file to the server. This is achieved by
-	 * sending a UPLOAD command to the server with the file name followed by
-	 * all the file data. The server then saves that data to the server path
-	 * specified.</p>
+	 * <p>Uploads the selected client files to the server. For a single file
+	 * this is achieved by sending a UPLOAD command to the server with the
+	 * file name and length, followed by the file data streamed straight from
+	 * the file. The server then saves that data to the server path
+	 * specified. When several files are selected they are all streamed in
+	 * one BATCH_UPLOAD, which the server answers once with how each file
+	 * went, so there is only one round trip and one refresh.</p>
 	 * 
 	 * @see {@link #download()}
 	 */
 	public void upload() {
 		
-		// Get the selected file
-		String filename = localFiles.getSelectionModel().getSelectedItem();
-		File file = new File(client.getSharedPath()+File.separator+filename);
-		if (filename == null || filename.length() == 0) {
-			return;
+		// Get the selected files
+		List<File> files = new ArrayList<>();
+		for (String filename :
+				localFiles.getSelectionModel().getSelectedItems()) {
+			if (filename == null || filename.length() == 0) {
+				continue;
+			}
+			File file = new File(client.getSharedPath()+File.separator+
+					filename);
+			if (file.exists()) {
+				files.add(file);
+			}
 		}
-		if (!file.exists()) {
+		if (files.isEmpty()) {
 			return;
 		}
 		
-		// Get the file data
-		String fileData = "";
+		// Stream the files to the server
+		String host = serverManager.getServer().getHost();
 		try {
-			BufferedReader br = new BufferedReader(new FileReader(file));
-			String line = null;
-			while ((line = br.readLine()) != null) {
-				fileData += line + "\n";
+			if (files.size() == 1) {
+				this.client.upload(files.get(0), host, FTServer.SERVER_PORT);
+			} else {
+				
+				// Files the server could not save are just not in the
+				// server list after the refresh
+				this.client.uploadBatch(files, host, FTServer.SERVER_PORT);
 			}
-			if (fileData.length() > 0) {
-				fileData = fileData.substring(0, fileData.length()-1);
-			}
-			br.close();
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
-		
-		// Send the data to the server
-		this.client.sendRequest(FTServer.UPLOAD+" "+filename+"\n"+fileData,
-				serverManager.getServer().getHost(), FTServer.SERVER_PORT);
+		refresh();
+	}
+	
+	/**
+	 * <b><em>sync</em></b>
+	 * 
+	 * <p>Syncs the client's directory with the server's, so that files that
+	 * are only on one side are copied to the other and files that changed
+	 * are replaced by the newer copy (see {@link DirectorySync}).</p>
+	 */
+	public void sync() {
+		try {
+			new DirectorySync(client, serverManager.getServer().getHost(),
+					FTServer.SERVER_PORT).sync();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
 		refresh();
 	}
 
@@ -255,6 +329,7 @@ public class ClientView extends Scene {
 		this.display = display;
 		if (display != null) {
 			this.display.setOnCloseRequest(e -> {
+				client.closeSessions();
 				serverManager.getServer().close();
 				System.exit(0);
 			});
@@ -0,0 +1,82 @@
+package client;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import server.FileEntry;
+import server.Header;
+
+/**
+ * The {@code DirListing} class is the response to a detailed DIR request. The
+ * lines are read and parsed one at a time as the listing is iterated, so
+ * entries can be shown while the rest of the list is still arriving and the
+ * whole list is never held in memory. The listing should be read to the end
+ * or closed.
+ */
+public class DirListing implements Iterator<FileEntry>, Closeable {
+
+	/** The lines of the response, after the status line. */
+	private final BufferedReader reader;
+
+	/** The next entry, or null if it has not been read yet. */
+	private FileEntry next;
+
+	/** True once the end of the response was read. */
+	private boolean ended;
+
+	/**
+	 * Constructs a listing that reads entries from a response.
+	 *
+	 * @param in - the response, after the status line.
+	 */
+	public DirListing(InputStream in) {
+		this.reader = new BufferedReader(
+				new InputStreamReader(in, StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * @throws UncheckedIOException if the response could not be read.
+	 */
+	@Override
+	public boolean hasNext() {
+		while (next == null && !ended) {
+			try {
+				String line = reader.readLine();
+				if (line == null) {
+					ended = true;
+					close();
+				} else if (!line.isEmpty()) {
+					next = FileEntry.fromHeader(Header.parse(line));
+				}
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+		}
+		return next != null;
+	}
+
+	@Override
+	public FileEntry next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		FileEntry entry = next;
+		next = null;
+		return entry;
+	}
+
+	@Override
+	public void close() throws IOException {
+		ended = true;
+		reader.close();
+	}
+}
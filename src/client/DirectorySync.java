@@ -0,0 +1,426 @@
+package client;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import server.DirQuery;
+import server.FileEntry;
+
+/**
+ * The {@code DirectorySync} class brings the client's shared path and the
+ * server's in line. It lists both sides (the server with a single DIR
+ * request), works out a plan of the files that differ and then transfers
+ * them, {@link #getParallelism()} at a time. A {@link Client} in persistent
+ * mode sends all of them over its one session, so the transfers of a large
+ * tree are pipelined rather than waiting on each other.
+ * <p>
+ * Files are the same if they have the same size and modification time.
+ * Transfers keep the modification time, so a file that was synced once is
+ * skipped the next time. With {@link #setChecksums(boolean) checksums} on,
+ * files of the same size but a different time are also compared by their
+ * SHA-256 hash before they are sent. Files are never deleted.
+ * <p>
+ * {@link #plan()} on its own is a dry run: it returns what
+ * {@link #sync(List)} would do without changing anything.
+ */
+public class DirectorySync {
+
+	/** The default number of files transferred at once. */
+	public static final int DEFAULT_PARALLELISM = 4;
+
+	/**
+	 * The {@code Direction} enum lists which way files can be sent.
+	 */
+	public enum Direction {
+
+		/** Make the server's files match the client's. */
+		UPLOAD,
+
+		/** Make the client's files match the server's. */
+		DOWNLOAD,
+
+		/** Send new files both ways, and the newer copy of changed files. */
+		BOTH
+	}
+
+	/**
+	 * The {@code Listener} interface is told how a sync is going, e.g. to
+	 * show progress. It is called from the transfer threads.
+	 */
+	public interface Listener {
+
+		/**
+		 * <b><em>started</em></b>
+		 *
+		 * @param action - the transfer that started.
+		 */
+		default void started(Action action) {}
+
+		/**
+		 * <b><em>finished</em></b>
+		 *
+		 * @param action - the transfer that finished.
+		 */
+		default void finished(Action action) {}
+
+		/**
+		 * <b><em>failed</em></b>
+		 *
+		 * @param action - the transfer that failed.
+		 * @param e - the reason.
+		 */
+		default void failed(Action action, IOException e) {}
+	}
+
+	/** The client that sends the requests. */
+	private final Client client;
+
+	/** The host to connect to. */
+	private final String host;
+
+	/** The port to connect to. */
+	private final int port;
+
+	/** Which way files can be sent. */
+	private Direction direction = Direction.BOTH;
+
+	/** The number of files transferred at once. */
+	private int parallelism = DEFAULT_PARALLELISM;
+
+	/** True if files that may be the same are compared by hash. */
+	private boolean checksums;
+
+	/** Told how the sync is going, or null. */
+	private Listener listener;
+
+	/** The number of transfers finished in the current sync. */
+	private final AtomicInteger completed = new AtomicInteger();
+
+	/** The bytes of the files transferred in the current sync. */
+	private final LongAdder bytes = new LongAdder();
+
+	/**
+	 * Constructs a sync between a client's shared path and a server.
+	 *
+	 * @param client - the client that sends the requests.
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 */
+	public DirectorySync(Client client, String host, int port) {
+		this.client = client;
+		this.host = host;
+		this.port = port;
+	}
+
+	/**
+	 * <b><em>plan</em></b>
+	 *
+	 * <p>Compares the two sides and works out what has to be sent. Nothing
+	 * is changed.</p>
+	 *
+	 * @return the transfers, in name order.
+	 * @throws IOException if the server files could not be listed.
+	 */
+	public List<Action> plan() throws IOException {
+
+		// List both sides
+		Map<String, File> local = new TreeMap<>();
+		for (String name : client.listFiles()) {
+			if (!name.endsWith(Client.PART_SUFFIX) &&
+					!name.endsWith(Client.ETAG_SUFFIX)) {
+				local.put(name, new File(client.getSharedPath(), name));
+			}
+		}
+		Map<String, FileEntry> remote = new TreeMap<>();
+		try (DirListing listing = client.list(host, port, new DirQuery())) {
+			while (listing.hasNext()) {
+				FileEntry entry = listing.next();
+				remote.put(entry.getName(), entry);
+			}
+		}
+
+		// Compare them
+		List<Action> plan = new ArrayList<>();
+		TreeSet<String> names = new TreeSet<>(local.keySet());
+		names.addAll(remote.keySet());
+		for (String name : names) {
+			File file = local.get(name);
+			FileEntry entry = remote.get(name);
+			Action.Type type = compare(file, entry);
+			if (type == Action.Type.UPLOAD) {
+				plan.add(new Action(type, name, file.length(),
+						file.lastModified()));
+			} else if (type == Action.Type.DOWNLOAD) {
+				plan.add(new Action(type, name, entry.getSize(),
+						entry.getLastModified()));
+			}
+		}
+		return plan;
+	}
+
+	/**
+	 * <b><em>sync</em></b>
+	 *
+	 * <p>Works out the plan and carries it out.</p>
+	 *
+	 * @return the transfers that were made.
+	 * @throws IOException if the server files could not be listed, or any
+	 * transfer failed (the others are still made).
+	 */
+	public List<Action> sync() throws IOException {
+		return sync(plan());
+	}
+
+	/**
+	 * <b><em>sync</em></b>
+	 *
+	 * <p>Carries out a plan from {@link #plan()}, {@link #getParallelism()}
+	 * files at a time. A failed transfer does not stop the others.</p>
+	 *
+	 * @param plan - the transfers to make.
+	 *
+	 * @return the transfers that were made.
+	 * @throws IOException if any transfer failed, with the others as
+	 * suppressed exceptions.
+	 */
+	public List<Action> sync(List<Action> plan) throws IOException {
+		completed.set(0);
+		bytes.reset();
+		if (plan.isEmpty()) {
+			return plan;
+		}
+		int threads = Math.min(parallelism, plan.size());
+		ExecutorService pool = Executors.newFixedThreadPool(threads, r -> {
+			Thread t = new Thread(r, "ft-sync");
+			t.setDaemon(true);
+			return t;
+		});
+		List<Future<?>> futures = new ArrayList<>();
+		for (Action action : plan) {
+			futures.add(pool.submit(() -> {
+				perform(action);
+				return null;
+			}));
+		}
+
+		// Wait for every transfer and collect the failures
+		List<Action> done = new ArrayList<>();
+		IOException failure = null;
+		try {
+			for (int i = 0; i < futures.size(); i ++) {
+				try {
+					futures.get(i).get();
+					done.add(plan.get(i));
+				} catch (ExecutionException e) {
+					IOException cause = e.getCause() instanceof IOException?
+							(IOException) e.getCause() :
+							new IOException(e.getCause());
+					if (failure == null) {
+						failure = new IOException("could not sync " +
+								plan.get(i).getName(), cause);
+					} else {
+						failure.addSuppressed(cause);
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		} finally {
+			pool.shutdownNow();
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return done;
+	}
+
+	/** Works out which way a file has to be sent, or null if it does not. */
+	private Action.Type compare(File file, FileEntry entry)
+			throws IOException {
+		boolean up = direction != Direction.DOWNLOAD;
+		boolean down = direction != Direction.UPLOAD;
+		if (entry == null) {
+			return up? Action.Type.UPLOAD : null;
+		}
+		if (file == null) {
+			return down? Action.Type.DOWNLOAD : null;
+		}
+		if (file.length() == entry.getSize() &&
+				file.lastModified() == entry.getLastModified()) {
+			return null;
+		}
+
+		// Files of the same size may only differ in time
+		if (checksums && file.length() == entry.getSize()) {
+			String hash;
+			try (InputStream in = new FileInputStream(file)) {
+				hash = FileEntry.hash(in);
+			}
+			if (hash.equals(client.hash(entry.getName(), host, port))) {
+				return null;
+			}
+		}
+
+		// The newer copy wins, or the client's if neither is
+		if (direction == Direction.BOTH) {
+			return file.lastModified() >= entry.getLastModified()?
+					Action.Type.UPLOAD : Action.Type.DOWNLOAD;
+		}
+		return up? Action.Type.UPLOAD : Action.Type.DOWNLOAD;
+	}
+
+	/** Makes one transfer and tells the listener. */
+	private void perform(Action action) throws IOException {
+		Listener listener = this.listener;
+		if (listener != null) {
+			listener.started(action);
+		}
+		try {
+			Path path = Paths.get(client.getSharedPath(), action.getName());
+			if (action.getType() == Action.Type.UPLOAD) {
+				client.upload(path.toFile(), host, port);
+			} else {
+				client.download(action.getName(), host, port, path);
+				Files.setLastModifiedTime(path,
+						FileTime.fromMillis(action.getLastModified()));
+			}
+		} catch (IOException e) {
+			if (listener != null) {
+				listener.failed(action, e);
+			}
+			throw e;
+		}
+		bytes.add(action.getSize());
+		completed.incrementAndGet();
+		if (listener != null) {
+			listener.finished(action);
+		}
+	}
+
+	public Direction getDirection() {
+		return direction;
+	}
+
+	public void setDirection(Direction direction) {
+		this.direction = direction == null? Direction.BOTH : direction;
+	}
+
+	public int getParallelism() {
+		return parallelism;
+	}
+
+	public void setParallelism(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	public boolean isChecksums() {
+		return checksums;
+	}
+
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+
+	public Listener getListener() {
+		return listener;
+	}
+
+	public void setListener(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * <b><em>getCompleted</em></b>
+	 *
+	 * @return the number of transfers finished in the current or last sync.
+	 */
+	public int getCompleted() {
+		return completed.get();
+	}
+
+	/**
+	 * <b><em>getBytes</em></b>
+	 *
+	 * @return the bytes of the files transferred in the current or last
+	 * sync.
+	 */
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	/**
+	 * The {@code Action} class is one file to transfer in a sync.
+	 */
+	public static class Action {
+
+		/**
+		 * The {@code Type} enum lists the ways a file can be sent.
+		 */
+		public enum Type {
+
+			/** Send the client's file to the server. */
+			UPLOAD,
+
+			/** Send the server's file to the client. */
+			DOWNLOAD
+		}
+
+		/** Which way the file is sent. */
+		private final Type type;
+
+		/** The name of the file. */
+		private final String name;
+
+		/** The size of the file that is sent. */
+		private final long size;
+
+		/** The modification time of the file that is sent. */
+		private final long lastModified;
+
+		private Action(Type type, String name, long size, long lastModified) {
+			this.type = type;
+			this.name = name;
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+
+		public Type getType() {
+			return type;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		@Override
+		public String toString() {
+			return type + " " + name + " (" + size + " bytes)";
+		}
+	}
+}
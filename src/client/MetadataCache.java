@@ -0,0 +1,254 @@
+package client;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+
+import server.FileEntry;
+
+/**
+ * The {@code MetadataCache} class remembers what is known about the client's
+ * copies of server files: the SHA-256 hash of each copy and the
+ * {@link FileEntry#getETag() ETag} of the server file it was last the same
+ * as. Each entry is only used while the copy still has the size and
+ * modification time it had when the entry was made, so a copy that was
+ * changed is hashed again, but one that was not is never read.
+ * <p>
+ * The cache is kept in a file, so it lasts between runs. Every change is
+ * appended to the file as a line {@code size mtime etag sha256 name}, with
+ * {@code -} for a value that is not known, and the last line for a name
+ * wins. The file is rewritten with only the current entries when it is
+ * loaded and has grown to more than twice their number.
+ */
+public class MetadataCache {
+
+	/** The file the cache is kept in. */
+	private final Path file;
+
+	/** The entries, by name, or null before the file is loaded. */
+	private Map<String, Entry> entries;
+
+	/**
+	 * Constructs a cache that is kept in a file.
+	 *
+	 * @param file - the file, which is created with its directory when the
+	 * first entry is added.
+	 */
+	public MetadataCache(Path file) {
+		this.file = file;
+	}
+
+	/**
+	 * <b><em>get</em></b>
+	 *
+	 * <p>Gets the entry of a copy, if the copy has not changed since.</p>
+	 *
+	 * @param name - the name of the file.
+	 * @param copy - the client's copy of the file.
+	 *
+	 * @return the entry, or null if there is none or the copy has changed.
+	 * @throws IOException if the copy or the cache could not be read.
+	 */
+	public synchronized Entry get(String name, Path copy) throws IOException {
+		Entry entry = load().get(name);
+		BasicFileAttributes attrs = Files.readAttributes(copy,
+				BasicFileAttributes.class);
+		if (entry == null || entry.size != attrs.size() ||
+				entry.lastModified != attrs.lastModifiedTime().toMillis()) {
+			return null;
+		}
+		return entry;
+	}
+
+	/**
+	 * <b><em>hash</em></b>
+	 *
+	 * <p>Gets the SHA-256 hash of a copy. The copy is only read if its hash
+	 * is not in the cache yet.</p>
+	 *
+	 * @param name - the name of the file.
+	 * @param copy - the client's copy of the file.
+	 *
+	 * @return the hash.
+	 * @throws IOException if the copy or the cache could not be read or the
+	 * cache could not be written.
+	 */
+	public String hash(String name, Path copy) throws IOException {
+		Entry entry = get(name, copy);
+		if (entry != null && entry.hash != null) {
+			return entry.hash;
+		}
+
+		// Hash the copy without holding up other lookups
+		BasicFileAttributes attrs = Files.readAttributes(copy,
+				BasicFileAttributes.class);
+		String hash;
+		try (InputStream in = Files.newInputStream(copy)) {
+			hash = FileEntry.hash(in);
+		}
+		put(name, new Entry(attrs.size(),
+				attrs.lastModifiedTime().toMillis(),
+				entry == null? null : entry.etag, hash));
+		return hash;
+	}
+
+	/**
+	 * <b><em>put</em></b>
+	 *
+	 * <p>Records that a copy is the same as a version of the server file.
+	 * </p>
+	 *
+	 * @param name - the name of the file.
+	 * @param copy - the client's copy of the file.
+	 * @param etag - the ETag of the server file.
+	 * @param hash - the SHA-256 hash of the copy, or null if it is not known.
+	 *
+	 * @throws IOException if the copy could not be read or the cache could
+	 * not be written.
+	 */
+	public void put(String name, Path copy, String etag, String hash)
+			throws IOException {
+		BasicFileAttributes attrs = Files.readAttributes(copy,
+				BasicFileAttributes.class);
+		put(name, new Entry(attrs.size(), attrs.lastModifiedTime().toMillis(),
+				etag, hash));
+	}
+
+	/** Adds an entry and appends it to the file. */
+	private synchronized void put(String name, Entry entry)
+			throws IOException {
+		load().put(name, entry);
+		Files.createDirectories(file.getParent());
+		try (Writer out = Files.newBufferedWriter(file,
+				StandardCharsets.UTF_8, StandardOpenOption.CREATE,
+				StandardOpenOption.APPEND)) {
+			out.write(entry.format(name));
+		}
+	}
+
+	/** Reads the file the first time the entries are needed. */
+	private Map<String, Entry> load() throws IOException {
+		if (entries != null) {
+			return entries;
+		}
+		Map<String, Entry> loaded = new HashMap<>();
+		int lines = 0;
+		try (BufferedReader in = Files.newBufferedReader(file,
+				StandardCharsets.UTF_8)) {
+			String line;
+			while ((line = in.readLine()) != null) {
+				String[] parts = line.split(" ", 5);
+				if (parts.length < 5) {
+					continue;
+				}
+				try {
+					loaded.put(parts[4], new Entry(Long.parseLong(parts[0]),
+							Long.parseLong(parts[1]), value(parts[2]),
+							value(parts[3])));
+				} catch (NumberFormatException e) {
+					continue;
+				}
+				lines ++;
+			}
+		} catch (NoSuchFileException e) {
+			// Nothing was cached yet
+		}
+		entries = loaded;
+		if (lines > 2 * loaded.size()) {
+			compact();
+		}
+		return entries;
+	}
+
+	/** Rewrites the file with only the current entries. */
+	private void compact() throws IOException {
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		try (BufferedWriter out = Files.newBufferedWriter(temp,
+				StandardCharsets.UTF_8)) {
+			for (Map.Entry<String, Entry> e : entries.entrySet()) {
+				out.write(e.getValue().format(e.getKey()));
+			}
+		}
+		Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING,
+				StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/** Turns a {@code -} from the file back into null. */
+	private static String value(String part) {
+		return part.equals("-")? null : part;
+	}
+
+	/**
+	 * <b><em>size</em></b>
+	 *
+	 * @return the number of files in the cache.
+	 * @throws IOException if the cache could not be read.
+	 */
+	public synchronized int size() throws IOException {
+		return load().size();
+	}
+
+	public Path getFile() {
+		return file;
+	}
+
+	/**
+	 * The {@code Entry} class is what is known about one copy.
+	 */
+	public static class Entry {
+
+		/** The size of the copy. */
+		private final long size;
+
+		/** The modification time of the copy. */
+		private final long lastModified;
+
+		/** The ETag of the server file the copy is the same as, or null. */
+		private final String etag;
+
+		/** The SHA-256 hash of the copy, or null. */
+		private final String hash;
+
+		private Entry(long size, long lastModified, String etag,
+				String hash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.etag = etag;
+			this.hash = hash;
+		}
+
+		/** Formats the entry as a line of the file. */
+		private String format(String name) {
+			return size + " " + lastModified + " " +
+					(etag == null? "-" : etag) + " " +
+					(hash == null? "-" : hash) + " " + name + "\n";
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getLastModified() {
+			return lastModified;
+		}
+
+		public String getETag() {
+			return etag;
+		}
+
+		public String getHash() {
+			return hash;
+		}
+	}
+}
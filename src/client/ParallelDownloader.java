@@ -0,0 +1,198 @@
+package client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.FileRange;
+import server.Header;
+import server.Protocol;
+import server.Transfers;
+
+/**
+ * The {@code ParallelDownloader} class downloads one large file over several
+ * connections at once. The file is split into chunks of
+ * {@link Client#getChunkSize()} bytes, and {@link Client#getParallelism()}
+ * workers each open their own {@link ClientSession} and fetch chunks until
+ * there are none left. Each chunk is written straight to its position in the
+ * local file, which is allocated up front, so no chunk is ever held in
+ * memory or copied twice.
+ * <p>
+ * Every chunk is requested with the ETag of the file, so a file that changes
+ * during the download fails with {@link FileRange#CHANGED} instead of being
+ * put together from two versions. Any other failure of a chunk is retried
+ * {@link Client#getChunkRetries()} times on a new connection.
+ */
+class ParallelDownloader {
+
+	/** The time to wait before the first retry of a chunk, in milliseconds.
+	 * It doubles with each retry. */
+	private static final long RETRY_DELAY = 100;
+
+	/** The client with the settings. */
+	private final Client client;
+
+	/** The host to connect to. */
+	private final String host;
+
+	/** The port to connect to. */
+	private final int port;
+
+	/** The name of the file on the server. */
+	private final String filename;
+
+	/** The size of the file on the server. */
+	private final long size;
+
+	/** The ETag of the file on the server. */
+	private final String etag;
+
+	/** The offset of the next chunk nobody has taken yet. */
+	private final AtomicLong nextChunk = new AtomicLong();
+
+	/** Set when a chunk has failed for good, so the other workers stop. */
+	private volatile boolean failed;
+
+	/**
+	 * Constructs a downloader for a file.
+	 *
+	 * @param client - the client with the settings.
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * @param filename - the name of the file on the server.
+	 * @param size - the size of the file on the server.
+	 * @param etag - the ETag of the file on the server.
+	 */
+	ParallelDownloader(Client client, String host, int port, String filename,
+			long size, String etag) {
+		this.client = client;
+		this.host = host;
+		this.port = port;
+		this.filename = filename;
+		this.size = size;
+		this.etag = etag;
+	}
+
+	/**
+	 * <b><em>download</em></b>
+	 *
+	 * <p>Downloads the whole file into a local file, which is replaced.</p>
+	 *
+	 * @param dest - the local file to write to.
+	 *
+	 * @throws IOException if a chunk could not be downloaded.
+	 */
+	void download(Path dest) throws IOException {
+		long chunkSize = client.getChunkSize();
+		int workers = (int) Math.max(1, Math.min(client.getParallelism(),
+				(size + chunkSize - 1) / chunkSize));
+		ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+			Thread t = new Thread(r, "ft-download");
+			t.setDaemon(true);
+			return t;
+		});
+		try (FileChannel file = FileChannel.open(dest,
+				StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+
+			// Allocate the file so chunks can be written in any order
+			if (size > 0) {
+				file.write(ByteBuffer.allocate(1), size - 1);
+			}
+
+			// Fetch chunks until they are all done
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int i = 0; i < workers; i ++) {
+				tasks.add(() -> {
+					work(file, chunkSize);
+					return null;
+				});
+			}
+			for (Future<Void> f : pool.invokeAll(tasks)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** Takes chunks and downloads them over one session. */
+	private void work(FileChannel file, long chunkSize) throws IOException {
+		ClientSession session = null;
+		try {
+			while (!failed) {
+				long offset = nextChunk.getAndAdd(chunkSize);
+				if (offset >= size) {
+					break;
+				}
+				long length = Math.min(chunkSize, size - offset);
+				for (int attempt = 0; ; attempt ++) {
+					try {
+						if (session == null || !session.isOpen()) {
+							session = new ClientSession(host, port);
+						}
+						fetch(session, file, offset, length);
+						break;
+					} catch (IOException e) {
+						if (session != null) {
+							session.close();
+						}
+						if (failed || attempt >= client.getChunkRetries() ||
+								FileRange.CHANGED.equals(e.getMessage())) {
+							failed = true;
+							throw e;
+						}
+						pause(RETRY_DELAY << attempt);
+					}
+				}
+			}
+		} finally {
+			if (session != null) {
+				session.close();
+			}
+		}
+	}
+
+	/** Downloads one chunk into its place in the file. */
+	private void fetch(ClientSession session, FileChannel file, long offset,
+			long length) throws IOException {
+		Header request = client.rangeRequest(filename, offset, length, etag);
+		try (InputStream in = session.send(request)) {
+			Header status = Protocol.readStatus(in);
+			if (status.getLong("length", -1) != length) {
+				throw new IOException("expected a chunk of " + length +
+						" bytes but got " + status.get("length"));
+			}
+			Protocol.receive(in, status, Transfers.writeAt(file, offset),
+					client.getCompressionStats());
+		}
+	}
+
+	private static void pause(long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		}
+	}
+}
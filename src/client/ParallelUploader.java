@@ -0,0 +1,191 @@
+package client;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import server.FTServer;
+import server.Header;
+import server.Protocol;
+
+/**
+ * The {@code ParallelUploader} class uploads one large file over several
+ * connections at once, using a chunked upload on the server (see
+ * {@link server.UploadSessionManager}). The upload is opened, then
+ * {@link Client#getParallelism()} workers each open their own
+ * {@link ClientSession} and send chunks of {@link Client#getChunkSize()}
+ * bytes until there are none left, and finally the upload is committed, at
+ * which point the file appears on the server. A failed chunk is retried
+ * {@link Client#getChunkRetries()} times on a new connection; if it still
+ * fails the upload is aborted.
+ */
+class ParallelUploader {
+
+	/** The time to wait before the first retry of a chunk, in milliseconds.
+	 * It doubles with each retry. */
+	private static final long RETRY_DELAY = 100;
+
+	/** The client with the settings. */
+	private final Client client;
+
+	/** The host to connect to. */
+	private final String host;
+
+	/** The port to connect to. */
+	private final int port;
+
+	/** The file to upload. */
+	private final File file;
+
+	/** The offset of the next chunk nobody has taken yet. */
+	private final AtomicLong nextChunk = new AtomicLong();
+
+	/** Set when a chunk has failed for good, so the other workers stop. */
+	private volatile boolean failed;
+
+	/**
+	 * Constructs an uploader for a file.
+	 *
+	 * @param client - the client with the settings.
+	 * @param host - the host to connect to.
+	 * @param port - the port to connect to.
+	 * @param file - the file to upload.
+	 */
+	ParallelUploader(Client client, String host, int port, File file) {
+		this.client = client;
+		this.host = host;
+		this.port = port;
+		this.file = file;
+	}
+
+	/**
+	 * <b><em>upload</em></b>
+	 *
+	 * <p>Uploads the whole file.</p>
+	 *
+	 * @return the number of bytes uploaded.
+	 * @throws IOException if the file could not be read or uploaded.
+	 */
+	long upload() throws IOException {
+		long size = file.length();
+		String id = client.call(new Header(FTServer.UPLOAD_OPEN)
+				.set("size", size).set("mtime", file.lastModified())
+				.arg(file.getName()), host, port).get("id");
+		try {
+			sendChunks(id, size);
+			return client.call(new Header(FTServer.UPLOAD_COMMIT)
+					.set("id", id), host, port).getLong("length", size);
+		} catch (IOException e) {
+			try {
+				client.call(new Header(FTServer.UPLOAD_ABORT).set("id", id),
+						host, port);
+			} catch (IOException ignored) {
+			}
+			throw e;
+		}
+	}
+
+	/** Runs the workers until every chunk was sent. */
+	private void sendChunks(String id, long size) throws IOException {
+		long chunkSize = client.getChunkSize();
+		int workers = (int) Math.max(1, Math.min(client.getParallelism(),
+				(size + chunkSize - 1) / chunkSize));
+		ExecutorService pool = Executors.newFixedThreadPool(workers, r -> {
+			Thread t = new Thread(r, "ft-upload");
+			t.setDaemon(true);
+			return t;
+		});
+		try {
+			List<Callable<Void>> tasks = new ArrayList<>();
+			for (int i = 0; i < workers; i ++) {
+				tasks.add(() -> {
+					work(id, size, chunkSize);
+					return null;
+				});
+			}
+			for (Future<Void> f : pool.invokeAll(tasks)) {
+				f.get();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException(e.getCause());
+		} finally {
+			pool.shutdownNow();
+		}
+	}
+
+	/** Takes chunks and sends them over one session. */
+	private void work(String id, long size, long chunkSize)
+			throws IOException {
+		ClientSession session = null;
+		try (FileChannel fileIn = FileChannel.open(file.toPath(),
+				StandardOpenOption.READ)) {
+			while (!failed) {
+				long offset = nextChunk.getAndAdd(chunkSize);
+				if (offset >= size) {
+					break;
+				}
+				long length = Math.min(chunkSize, size - offset);
+				for (int attempt = 0; ; attempt ++) {
+					try {
+						if (session == null || !session.isOpen()) {
+							session = new ClientSession(host, port);
+						}
+						send(session, fileIn, id, offset, length);
+						break;
+					} catch (IOException e) {
+						if (session != null) {
+							session.close();
+						}
+						if (failed || attempt >= client.getChunkRetries()) {
+							failed = true;
+							throw e;
+						}
+						pause(RETRY_DELAY << attempt);
+					}
+				}
+			}
+		} finally {
+			if (session != null) {
+				session.close();
+			}
+		}
+	}
+
+	/** Sends one chunk of the file. */
+	private void send(ClientSession session, FileChannel fileIn, String id,
+			long offset, long length) throws IOException {
+		Header request = new Header(FTServer.UPLOAD_CHUNK).set("id", id)
+				.set("offset", offset).set("length", length);
+		fileIn.position(offset);
+		try (InputStream in = session.send(request,
+				Channels.newInputStream(fileIn), length)) {
+			Protocol.readStatus(in);
+		}
+	}
+
+	private static void pause(long millis) throws IOException {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("interrupted", e);
+		}
+	}
+}
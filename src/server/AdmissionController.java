@@ -0,0 +1,430 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * The {@code AdmissionController} class decides which connections a server
+ * takes on, and how long it lets them hold a thread. It limits:
+ * <ul>
+ * <li>the connections open at once, in all and from each address</li>
+ * <li>how long a connection may be idle before its first request (or
+ * between the requests of a session)</li>
+ * <li>how long a read or a write of a request may block</li>
+ * <li>how long a request line may be</li>
+ * </ul>
+ * A connection over the limits, or one the server has no room to queue, is
+ * not just dropped: it is sent a {@link Protocol#BUSY} status with how long
+ * to wait (see {@link #busy()}), so clients can back off instead of piling
+ * up. Under overload the server then answers quickly with BUSY rather than
+ * slowly with everything.
+ * <p>
+ * Each admitted connection holds a {@link Ticket} until it is closed. The
+ * limits can be changed at any time, from the server or over JMX as
+ * {@value #OBJECT_NAME}, and apply to the requests read after the change.
+ */
+public class AdmissionController implements AdmissionControllerMXBean {
+
+	/** The name the controller is registered with JMX as. */
+	public static final String OBJECT_NAME =
+			"server:type=FTServer,name=Admission";
+
+	/** The default number of connections that can be open at once. */
+	public static final int DEFAULT_MAX_CONNECTIONS = 1024;
+
+	/** The default number of connections one address can have open. */
+	public static final int DEFAULT_MAX_CONNECTIONS_PER_ADDRESS = 64;
+
+	/** The default idle timeout, in milliseconds. */
+	public static final long DEFAULT_IDLE_TIMEOUT = 60 * 1000;
+
+	/** The default timeout of a read or write, in milliseconds. */
+	public static final long DEFAULT_TIMEOUT = 30 * 1000;
+
+	/** The default time clients are told to wait when the server is busy, in
+	 * milliseconds. */
+	public static final long DEFAULT_RETRY_AFTER = 500;
+
+	/** How long a rejected connection is kept open for the client to read
+	 * the BUSY status, in milliseconds. Closing it right away could reset
+	 * the connection before the status arrives. */
+	private static final long LINGER = 500;
+
+	/** How often writes are checked for the write timeout, in milliseconds.
+	 * */
+	private static final long CHECK_PERIOD = 1000;
+
+	/** The most connections open at once, or 0 for no limit. */
+	private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+	/** The most connections open at once from one address, or 0 for no
+	 * limit. */
+	private volatile int maxConnectionsPerAddress =
+			DEFAULT_MAX_CONNECTIONS_PER_ADDRESS;
+
+	/** The idle timeout, or 0 for none. */
+	private volatile long idleTimeout = DEFAULT_IDLE_TIMEOUT;
+
+	/** The read timeout, or 0 for none. */
+	private volatile long readTimeout = DEFAULT_TIMEOUT;
+
+	/** The write timeout, or 0 for none. */
+	private volatile long writeTimeout = DEFAULT_TIMEOUT;
+
+	/** The longest request line, in bytes. */
+	private volatile int maxHeaderSize = Protocol.MAX_LINE;
+
+	/** The time clients are told to wait when the server is busy. */
+	private volatile long retryAfter = DEFAULT_RETRY_AFTER;
+
+	/** The number of connections open. */
+	private final AtomicInteger connections = new AtomicInteger();
+
+	/** The number of connections open from each address. */
+	private final Map<InetAddress, Integer> addresses =
+			new ConcurrentHashMap<>();
+
+	/** The tickets of the connections open. */
+	private final Set<Ticket> tickets = ConcurrentHashMap.newKeySet();
+
+	/** The number of connections that were sent BUSY. */
+	private final LongAdder rejected = new LongAdder();
+
+	/** The number of connections closed by a timeout. */
+	private final LongAdder timedOut = new LongAdder();
+
+	/** Checks the write timeout and closes rejected connections, while the
+	 * server is listening. */
+	private ScheduledExecutorService timer;
+
+	/** The name the controller is registered with JMX as, or null. */
+	private ObjectName registered;
+
+	/**
+	 * <b><em>start</em></b>
+	 *
+	 * <p>Starts the thread that checks the write timeout, and registers the
+	 * controller with JMX.</p>
+	 */
+	public synchronized void start() {
+		if (timer != null) {
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ft-admission");
+			t.setDaemon(true);
+			return t;
+		});
+		timer.scheduleWithFixedDelay(this::expire, CHECK_PERIOD, CHECK_PERIOD,
+				TimeUnit.MILLISECONDS);
+		registered = ServerMetrics.register(this, OBJECT_NAME);
+	}
+
+	/**
+	 * <b><em>close</em></b>
+	 *
+	 * <p>Stops the timer thread and removes the controller from JMX.</p>
+	 */
+	public synchronized void close() {
+		if (timer != null) {
+			timer.shutdownNow();
+			timer = null;
+		}
+		ServerMetrics.unregister(registered);
+		registered = null;
+	}
+
+	/**
+	 * <b><em>admit</em></b>
+	 *
+	 * <p>Decides whether to take on a new connection.</p>
+	 *
+	 * @param socket - the connection.
+	 *
+	 * @return the ticket the connection holds until it is closed, or null if
+	 * it is over the limits and should be {@link #reject(Socket) rejected}.
+	 */
+	public Ticket admit(Socket socket) {
+		InetAddress address = socket.getInetAddress();
+		int max = maxConnections;
+		if (connections.incrementAndGet() > max && max > 0) {
+			connections.decrementAndGet();
+			return null;
+		}
+		int perAddress = maxConnectionsPerAddress;
+		if (addresses.merge(address, 1, Integer::sum) > perAddress &&
+				perAddress > 0) {
+			release(address);
+			return null;
+		}
+		Ticket ticket = new Ticket(address, socket);
+		tickets.add(ticket);
+		return ticket;
+	}
+
+	/** Gives back the place of a connection that was closed. */
+	private void release(InetAddress address) {
+		connections.decrementAndGet();
+		addresses.computeIfPresent(address,
+				(k, count) -> count <= 1? null : count - 1);
+	}
+
+	/**
+	 * <b><em>reject</em></b>
+	 *
+	 * <p>Sends the {@link #busy()} status to a connection and closes it
+	 * shortly after, without waiting for its request. The socket must be in
+	 * blocking mode.</p>
+	 *
+	 * @param socket - the connection.
+	 */
+	public void reject(Socket socket) {
+		rejected.increment();
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write((busy() + "\n").getBytes(StandardCharsets.UTF_8));
+			out.flush();
+			socket.shutdownOutput();
+		} catch (IOException e) {
+			closeQuietly(socket);
+			return;
+		}
+		ScheduledExecutorService timer = this.timer;
+		try {
+			if (timer != null) {
+				timer.schedule(() -> linger(socket), LINGER,
+						TimeUnit.MILLISECONDS);
+				return;
+			}
+		} catch (RejectedExecutionException e) {
+			// The server is closing
+		}
+		closeQuietly(socket);
+	}
+
+	/**
+	 * Closes a rejected connection, dropping what the client sent first so
+	 * the connection is not reset.
+	 */
+	private static void linger(Socket socket) {
+		try {
+			InputStream in = socket.getInputStream();
+			while (in.available() > 0 && in.skip(in.available()) > 0) {
+				continue;
+			}
+		} catch (IOException e) {
+			// It is closed anyway
+		}
+		closeQuietly(socket);
+	}
+
+	/**
+	 * <b><em>busy</em></b>
+	 *
+	 * @return the status sent to connections the server has no room for,
+	 * e.g. {@code BUSY retry-after=500}.
+	 */
+	public Header busy() {
+		return new Header(Protocol.BUSY).set("retry-after", retryAfter);
+	}
+
+	/** Closes the connections whose write blocked for too long. */
+	private void expire() {
+		long timeout = writeTimeout;
+		if (timeout <= 0) {
+			return;
+		}
+		long now = System.nanoTime();
+		for (Ticket ticket : tickets) {
+			long since = ticket.writingSince;
+			if (since != 0 &&
+					now - since > TimeUnit.MILLISECONDS.toNanos(timeout)) {
+				timedOut.increment();
+				closeQuietly(ticket.socket);
+			}
+		}
+	}
+
+	/**
+	 * <b><em>timedOut</em></b>
+	 *
+	 * <p>Counts a connection that was closed by a timeout.</p>
+	 */
+	public void timedOut() {
+		timedOut.increment();
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	@Override
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	@Override
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = Math.max(0, maxConnections);
+	}
+
+	@Override
+	public int getMaxConnectionsPerAddress() {
+		return maxConnectionsPerAddress;
+	}
+
+	@Override
+	public void setMaxConnectionsPerAddress(int maxConnections) {
+		this.maxConnectionsPerAddress = Math.max(0, maxConnections);
+	}
+
+	@Override
+	public long getIdleTimeout() {
+		return idleTimeout;
+	}
+
+	@Override
+	public void setIdleTimeout(long timeout) {
+		this.idleTimeout = Math.max(0, timeout);
+	}
+
+	@Override
+	public long getReadTimeout() {
+		return readTimeout;
+	}
+
+	@Override
+	public void setReadTimeout(long timeout) {
+		this.readTimeout = Math.max(0, timeout);
+	}
+
+	@Override
+	public long getWriteTimeout() {
+		return writeTimeout;
+	}
+
+	@Override
+	public void setWriteTimeout(long timeout) {
+		this.writeTimeout = Math.max(0, timeout);
+	}
+
+	@Override
+	public int getMaxHeaderSize() {
+		return maxHeaderSize;
+	}
+
+	@Override
+	public void setMaxHeaderSize(int size) {
+		this.maxHeaderSize = Math.max(64, size);
+	}
+
+	@Override
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+
+	@Override
+	public void setRetryAfter(long retryAfter) {
+		this.retryAfter = Math.max(0, retryAfter);
+	}
+
+	@Override
+	public int getConnections() {
+		return connections.get();
+	}
+
+	@Override
+	public long getRejectedConnections() {
+		return rejected.sum();
+	}
+
+	@Override
+	public long getTimedOutConnections() {
+		return timedOut.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "AdmissionController[connections=" + getConnections() +
+				", rejected=" + getRejectedConnections() + ", timedOut=" +
+				getTimedOutConnections() + "]";
+	}
+
+	/**
+	 * The {@code Ticket} class is the place of an admitted connection, which
+	 * is given back with {@link #release()} when the connection is closed.
+	 * Blocking handlers also mark their writes with it, so that a write the
+	 * client stopped reading can be timed out.
+	 */
+	public class Ticket {
+
+		/** The address of the client. */
+		private final InetAddress address;
+
+		/** The connection, which is closed if a write times out. */
+		private final Socket socket;
+
+		/** When the write in progress started, from
+		 * {@link System#nanoTime()}, or 0 if none is. */
+		private volatile long writingSince;
+
+		/** Set once the ticket was given back. */
+		private final AtomicBoolean released = new AtomicBoolean();
+
+		private Ticket(InetAddress address, Socket socket) {
+			this.address = address;
+			this.socket = socket;
+		}
+
+		/**
+		 * <b><em>startWrite</em></b>
+		 *
+		 * <p>Marks the start of a blocking write.</p>
+		 */
+		public void startWrite() {
+			writingSince = System.nanoTime();
+		}
+
+		/**
+		 * <b><em>endWrite</em></b>
+		 *
+		 * <p>Marks the end of a blocking write.</p>
+		 */
+		public void endWrite() {
+			writingSince = 0;
+		}
+
+		/**
+		 * <b><em>release</em></b>
+		 *
+		 * <p>Gives back the place of the connection. Only the first call
+		 * does anything.</p>
+		 */
+		public void release() {
+			if (released.compareAndSet(false, true)) {
+				tickets.remove(this);
+				AdmissionController.this.release(address);
+			}
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package server;
+
+/**
+ * The {@code AdmissionControllerMXBean} interface is what an
+ * {@link AdmissionController} shows over JMX, so its limits can be changed
+ * while the server runs. Timeouts are in milliseconds, and a limit or
+ * timeout of 0 is unlimited.
+ */
+public interface AdmissionControllerMXBean {
+
+	int getMaxConnections();
+
+	void setMaxConnections(int maxConnections);
+
+	int getMaxConnectionsPerAddress();
+
+	void setMaxConnectionsPerAddress(int maxConnections);
+
+	long getIdleTimeout();
+
+	void setIdleTimeout(long timeout);
+
+	long getReadTimeout();
+
+	void setReadTimeout(long timeout);
+
+	long getWriteTimeout();
+
+	void setWriteTimeout(long timeout);
+
+	int getMaxHeaderSize();
+
+	void setMaxHeaderSize(int size);
+
+	long getRetryAfter();
+
+	void setRetryAfter(long retryAfter);
+
+	int getConnections();
+
+	long getRejectedConnections();
+
+	long getTimedOutConnections();
+}
@@ -0,0 +1,200 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The {@code BatchArchive} class has the methods used to read and write the
+ * archive a BATCH_DOWNLOAD is answered with, and a BATCH_UPLOAD is sent as,
+ * so that many files can be sent in one response or request instead of a
+ * request each. Each file is an entry line followed by its data, and the
+ * archive ends with an {@link #END} line:
+ * <pre>
+ * ENTRY length=12 mtime=1490000000000 etag=c-15adf5a1a60 notes.txt
+ * (12 bytes)
+ * ENTRY error=file+not+found gone.txt
+ * END count=2
+ * </pre>
+ * An entry with an {@code encoding} has its data compressed and chunked as
+ * in a single DOWNLOAD (see {@link Protocol#receive(InputStream, Header,
+ * java.nio.channels.WritableByteChannel, CompressionStats)}), and an entry
+ * with an {@code error} has no data, so one file that could not be read
+ * does not end the archive.
+ * <p>
+ * The names of the files a client wants are sent as the body of the
+ * request, one per line, since a list of hundreds of names would not fit on
+ * the request line (see {@link #writeNames(Collection)}).
+ */
+public final class BatchArchive {
+
+	/** The verb of the line before each file. */
+	public static final String ENTRY = "ENTRY";
+
+	/** The verb of the line that ends the archive. */
+	public static final String END = "END";
+
+	/** The longest list of names a request may have, in bytes. */
+	public static final int MAX_NAMES = 1024 * 1024;
+
+	private BatchArchive() {}
+
+	/**
+	 * <b><em>entry</em></b>
+	 *
+	 * @param name - the name of the file.
+	 * @param range - the whole file.
+	 *
+	 * @return the entry line of the file, without an encoding.
+	 */
+	public static Header entry(String name, FileRange range) {
+		return new Header(ENTRY).set("length", range.getLength())
+				.set("mtime", range.getLastModified())
+				.set("etag", range.getETag()).arg(name);
+	}
+
+	/**
+	 * <b><em>failed</em></b>
+	 *
+	 * @param name - the name of the file.
+	 * @param e - why the file could not be sent.
+	 *
+	 * @return the entry line of a file that is not in the archive.
+	 */
+	public static Header failed(String name, Exception e) {
+		String reason = e.getMessage();
+		return new Header(ENTRY).set("error",
+				reason == null? e.toString() : reason).arg(name);
+	}
+
+	/**
+	 * <b><em>write</em></b>
+	 *
+	 * <p>Writes an entry or end line. Unlike
+	 * {@link Protocol#writeLine(OutputStream, Header)} the stream is not
+	 * flushed, so the lines of small files are sent together.</p>
+	 *
+	 * @param out - the stream to write to.
+	 * @param header - the line to write.
+	 *
+	 * @throws IOException if the line could not be written.
+	 */
+	public static void write(OutputStream out, Header header)
+			throws IOException {
+		out.write((header + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * <b><em>unflushed</em></b>
+	 *
+	 * <p>Wraps the stream an archive is written to, for the compressed data
+	 * of entries. Compressed data is flushed when it ends (see
+	 * {@link Protocol#sendEncoded(FileRange, Codec, OutputStream,
+	 * CompressionStats)}), which would send each small file on its own.</p>
+	 *
+	 * @param out - the stream the archive is written to.
+	 *
+	 * @return a stream that writes to it but is not flushed when asked.
+	 */
+	public static OutputStream unflushed(OutputStream out) {
+		return new UnflushedOutputStream(out);
+	}
+
+	/**
+	 * <b><em>readEntry</em></b>
+	 *
+	 * <p>Reads the line before the next file. The data of the last entry
+	 * must have been read already.</p>
+	 *
+	 * @param in - the stream to read from.
+	 *
+	 * @return the entry line, or null at the end of the archive.
+	 * @throws EOFException if the archive ended early.
+	 * @throws IOException if the server sent an error or a line that is not
+	 * part of an archive.
+	 */
+	public static Header readEntry(InputStream in) throws IOException {
+		String line = Protocol.readLine(in);
+		if (line == null) {
+			throw new EOFException("archive ended early");
+		}
+		Header header = Header.parse(line);
+		if (header.is(ENTRY)) {
+			return header;
+		} else if (header.is(END)) {
+			return null;
+		} else if (header.is(Protocol.ERROR)) {
+			String reason = header.getArg(0);
+			throw new IOException(reason == null? line : reason);
+		}
+		throw new IOException("not an archive entry: " + line);
+	}
+
+	/**
+	 * <b><em>writeNames</em></b>
+	 *
+	 * @param names - the names of files.
+	 *
+	 * @return the body of a request for the files.
+	 */
+	public static byte[] writeNames(Collection<String> names) {
+		StringBuilder sb = new StringBuilder();
+		for (String name : names) {
+			sb.append(name).append('\n');
+		}
+		return sb.toString().getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * <b><em>readNames</em></b>
+	 *
+	 * @param in - the stream with the body of a request.
+	 * @param length - the length of the body.
+	 *
+	 * @return the names in the body.
+	 * @throws IOException if the body is too long or ended early.
+	 */
+	public static List<String> readNames(InputStream in, long length)
+			throws IOException {
+		if (length > MAX_NAMES) {
+			throw new IOException("too many names");
+		}
+		byte[] body = new byte[(int) Math.max(length, 0)];
+		new DataInputStream(in).readFully(body);
+		List<String> names = new ArrayList<>();
+		for (String name : new String(body, StandardCharsets.UTF_8)
+				.split("\n")) {
+			if (name.endsWith("\r")) {
+				name = name.substring(0, name.length()-1);
+			}
+			if (!name.isEmpty()) {
+				names.add(name);
+			}
+		}
+		return names;
+	}
+
+	/** A stream that is not flushed when asked. */
+	private static class UnflushedOutputStream extends FilterOutputStream {
+
+		private UnflushedOutputStream(OutputStream out) {
+			super(out);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			out.write(b, off, len);
+		}
+
+		@Override
+		public void flush() {
+		}
+	}
+}
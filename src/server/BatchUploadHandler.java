@@ -0,0 +1,265 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code BatchUploadHandler} class serves a version 2 BATCH_UPLOAD,
+ * which sends many files in one request instead of a request each. The
+ * body is a {@link BatchArchive}: each file is an entry line with its
+ * {@code length}, {@code mtime} and maybe an {@code encoding}, followed by
+ * its data, and an {@link BatchArchive#END} line ends the batch. The client
+ * sends the whole batch without waiting, so thousands of small files take
+ * one round trip rather than one each.
+ * <p>
+ * The entries can only be read one after the other, but saving a file
+ * (creating it, writing it and moving it into place) is done by a few
+ * writer threads, so the connection is read while the disk is busy. A small
+ * file is read into memory and a writer saves it; a larger file is read
+ * straight into a temporary file and a writer moves it into place. At most
+ * twice as many files as there are writers wait to be saved, so when the
+ * disk falls behind the batch stops being read and the client is slowed
+ * down by TCP instead of the server running out of memory.
+ * <p>
+ * A file that can not be saved does not stop the others. Once every file
+ * was saved, the status {@code OK count=N failed=M} is sent, followed by an
+ * entry line for each file with the {@code length} saved or the
+ * {@code error}, and an {@link BatchArchive#END} line.
+ */
+class BatchUploadHandler {
+
+	/** The largest file that is read into memory before it is saved. */
+	static final int MAX_BUFFERED = 1024 * 1024;
+
+	/** Counts the writer threads, to name them. */
+	private static final AtomicInteger COUNT = new AtomicInteger();
+
+	/** The server the files are saved to. */
+	private final FTServer server;
+
+	/** Limits how fast the files are read. */
+	private final TransferScheduler.Throttle throttle;
+
+	/** The body of the request. It is buffered, and never the stream of a
+	 * chunked session body, so the chunks of compressed entries are not
+	 * mistaken for it (see {@link Protocol#receive(InputStream, Header,
+	 * java.nio.channels.WritableByteChannel, CompressionStats)}). */
+	private final InputStream in;
+
+	/** The stream the summary is written to. */
+	private final OutputStream out;
+
+	/** The number of writer threads. */
+	private final int threads;
+
+	/**
+	 * Constructs a handler for one batch.
+	 *
+	 * @param server - the server the files are saved to.
+	 * @param throttle - limits how fast the files are read.
+	 * @param in - the body of the request.
+	 * @param out - the stream to write the response to.
+	 * @param threads - the number of files that can be saved at once.
+	 */
+	BatchUploadHandler(FTServer server, TransferScheduler.Throttle throttle,
+			InputStream in, OutputStream out, int threads) {
+		this.server = server;
+		this.throttle = throttle;
+		this.in = new BufferedInputStream(in);
+		this.out = out;
+		this.threads = Math.max(1, threads);
+	}
+
+	/**
+	 * <b><em>run</em></b>
+	 *
+	 * <p>Reads the batch, saves the files and sends the summary.</p>
+	 *
+	 * @throws IOException if the batch could not be read or the summary
+	 * could not be sent. The files saved until then are kept.
+	 */
+	void run() throws IOException {
+		ExecutorService writers = Executors.newFixedThreadPool(threads,
+				r -> {
+					Thread t = new Thread(r, "ft-batch-" +
+							COUNT.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				});
+		Semaphore pending = new Semaphore(threads * 2);
+		Map<String, Future<Long>> files = new HashMap<>();
+		List<String> names = new ArrayList<>();
+		List<Future<Long>> results = new ArrayList<>();
+		try {
+
+			// Read each file and hand it to a writer
+			Header entry;
+			while ((entry = BatchArchive.readEntry(in)) != null) {
+				String name = entry.getArg(0) == null? "" : entry.getArg(0);
+				Callable<Long> save = read(name, entry);
+
+				// The same file twice is saved in order
+				Future<Long> previous = files.get(name);
+				if (previous != null) {
+					try {
+						await(previous);
+					} catch (IOException e) {
+						// It is in the summary
+					}
+				}
+				try {
+					pending.acquire();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("upload interrupted");
+				}
+				Future<Long> result = writers.submit(() -> {
+					try {
+						return save.call();
+					} finally {
+						pending.release();
+					}
+				});
+				files.put(name, result);
+				names.add(name);
+				results.add(result);
+			}
+
+			// Send the summary once every file was saved
+			List<Header> lines = new ArrayList<>();
+			int failed = 0;
+			for (int i = 0; i < names.size(); i ++) {
+				try {
+					lines.add(new Header(BatchArchive.ENTRY)
+							.set("length", await(results.get(i)))
+							.arg(names.get(i)));
+				} catch (IOException e) {
+					lines.add(BatchArchive.failed(names.get(i), e));
+					failed ++;
+				}
+			}
+			Protocol.writeLine(out, new Header(Protocol.OK)
+					.set("count", names.size()).set("failed", failed));
+			OutputStream summary = new BufferedOutputStream(out);
+			for (Header line : lines) {
+				BatchArchive.write(summary, line);
+			}
+			BatchArchive.write(summary, new Header(BatchArchive.END)
+					.set("count", names.size()));
+			summary.flush();
+		} finally {
+			writers.shutdown();
+			try {
+				writers.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Reads the data of an entry, and gets the task that saves it. If the
+	 * file can not be saved, its data is dropped and the task fails.
+	 */
+	private Callable<Long> read(String name, Header entry)
+			throws IOException {
+		long length = entry.getLong("length", -1);
+		if (length < 0) {
+			throw new IOException("missing length");
+		}
+		InputStream data = throttle.throttle(in, length);
+		CompressionStats stats = server.getCompressionStats();
+		long mtime = entry.getLong("mtime", 0);
+
+		// Drop the data of a file that can not be saved
+		if (!FTServer.isValidName(name)) {
+			Protocol.receive(data, entry, Channels.newChannel(
+					OutputStream.nullOutputStream()), null);
+			return () -> {
+				throw new IOException("invalid file name: " + name);
+			};
+		}
+
+		// Keep a small file in memory until a writer saves it
+		if (length <= MAX_BUFFERED) {
+			ByteArrayOutputStream buffer =
+					new ByteArrayOutputStream((int) length);
+			Protocol.receive(data, entry, Channels.newChannel(buffer), stats);
+			return () -> {
+				Path temp = server.createTempFile();
+				try {
+					Files.write(temp, buffer.toByteArray());
+				} catch (IOException e) {
+					Files.deleteIfExists(temp);
+					throw e;
+				}
+				commit(temp, name, mtime);
+				return (long) buffer.size();
+			};
+		}
+
+		// Stream a large file to disk, and let a writer move it into place
+		Path temp = server.createTempFile();
+		long received;
+		try (FileChannel file = FileChannel.open(temp,
+				StandardOpenOption.WRITE)) {
+			received = Protocol.receive(data, entry, file, stats);
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		return () -> {
+			commit(temp, name, mtime);
+			return received;
+		};
+	}
+
+	/** Moves a saved file into place, or deletes it if it can not be. */
+	private void commit(Path temp, String name, long mtime)
+			throws IOException {
+		try {
+			server.commit(temp, name, mtime);
+		} catch (IOException | RuntimeException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+
+	/** Waits for a file to be saved, and gets its length. */
+	private static long await(Future<Long> result) throws IOException {
+		try {
+			return result.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("upload interrupted");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause.toString(), cause);
+		}
+	}
+}
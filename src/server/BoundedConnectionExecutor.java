@@ -0,0 +1,195 @@
+package server;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code BoundedConnectionExecutor} class handles connections on a fixed
+ * number of worker threads. Connections that arrive while every worker is
+ * busy wait in a queue of limited capacity, and once that queue is full the
+ * {@link RejectionPolicy} decides what happens to the new connection.
+ */
+public class BoundedConnectionExecutor implements ConnectionExecutor {
+
+	/** The default number of worker threads. */
+	public static final int DEFAULT_THREADS =
+			Math.max(8, Runtime.getRuntime().availableProcessors() * 4);
+
+	/** The default number of connections that can wait for a worker. */
+	public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+	/**
+	 * The {@code RejectionPolicy} enum lists what can be done with a new
+	 * connection when all workers are busy and the queue is full.
+	 */
+	public enum RejectionPolicy {
+
+		/** The new connection is rejected, and the server sends it
+		 * {@link Protocol#BUSY}. */
+		REJECT,
+
+		/** The new connection is handled on the accepting thread, which
+		 * stops the server from accepting more until it is done. */
+		CALLER_RUNS,
+
+		/** The connection that has waited the longest is sent
+		 * {@link Protocol#BUSY} and closed to make room for the new one. */
+		DISCARD_OLDEST
+	}
+
+	/** The pool of worker threads. */
+	private final ThreadPoolExecutor pool;
+
+	/** The queue of connections waiting for a worker. */
+	private final BlockingQueue<Runnable> queue;
+
+	/** What to do when the queue is full. */
+	private final RejectionPolicy policy;
+
+	/** The number of connections currently being handled. */
+	private final AtomicInteger active = new AtomicInteger();
+
+	/** Constructs an executor with the default limits. */
+	public BoundedConnectionExecutor() {
+		this(DEFAULT_THREADS, DEFAULT_QUEUE_CAPACITY, RejectionPolicy.REJECT);
+	}
+
+	/**
+	 * Constructs an executor with a fixed number of workers and a queue.
+	 *
+	 * @param threads - the number of worker threads.
+	 * @param queueCapacity - the number of connections that can wait.
+	 * @param policy - what to do when the queue is full.
+	 */
+	public BoundedConnectionExecutor(int threads, int queueCapacity,
+			RejectionPolicy policy) {
+		if (threads < 1) {
+			throw new IllegalArgumentException("threads must be at least 1");
+		}
+		this.queue = queueCapacity > 0?
+				new ArrayBlockingQueue<>(queueCapacity) :
+					new SynchronousQueue<>();
+		this.policy = policy == null? RejectionPolicy.REJECT : policy;
+		this.pool = new ThreadPoolExecutor(threads, threads, 60,
+				TimeUnit.SECONDS, queue, new WorkerFactory(),
+				new ThreadPoolExecutor.AbortPolicy());
+		this.pool.allowCoreThreadTimeOut(true);
+	}
+
+	@Override
+	public boolean execute(ClientConnectionHandler connection) {
+		return execute(connection, policy);
+	}
+
+	/**
+	 * A full queue is handled as {@link RejectionPolicy#REJECT} instead of
+	 * {@link RejectionPolicy#CALLER_RUNS}, so the caller is never blocked by
+	 * the connection.
+	 */
+	@Override
+	public boolean offer(ClientConnectionHandler connection) {
+		return execute(connection, policy == RejectionPolicy.CALLER_RUNS?
+				RejectionPolicy.REJECT : policy);
+	}
+
+	/** Runs or queues a connection, with what to do if the queue is full. */
+	private boolean execute(ClientConnectionHandler connection,
+			RejectionPolicy policy) {
+		Runnable task = new Task(connection);
+		try {
+			pool.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			if (pool.isShutdown()) {
+				return false;
+			}
+		}
+
+		// The queue is full
+		switch (policy) {
+		case CALLER_RUNS:
+			task.run();
+			return true;
+		case DISCARD_OLDEST:
+			Runnable oldest = queue.poll();
+			if (oldest instanceof Task) {
+				((Task) oldest).connection.reject();
+			}
+			try {
+				pool.execute(task);
+				return true;
+			} catch (RejectedExecutionException e) {
+				return false;
+			}
+		default:
+			return false;
+		}
+	}
+
+	@Override
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	@Override
+	public int getQueuedCount() {
+		return queue.size();
+	}
+
+	@Override
+	public void shutdown() {
+		pool.shutdown();
+	}
+
+	public int getThreads() {
+		return pool.getMaximumPoolSize();
+	}
+
+	public RejectionPolicy getPolicy() {
+		return policy;
+	}
+
+	/** A queued connection, which keeps track of the active count. */
+	private class Task implements Runnable {
+
+		private final ClientConnectionHandler connection;
+
+		private Task(ClientConnectionHandler connection) {
+			this.connection = connection;
+		}
+
+		@Override
+		public void run() {
+			active.incrementAndGet();
+			try {
+				connection.run();
+			} finally {
+				active.decrementAndGet();
+			}
+		}
+	}
+
+	/** Creates the named daemon worker threads. */
+	private static class WorkerFactory implements ThreadFactory {
+
+		private static final AtomicInteger POOL = new AtomicInteger();
+
+		private final int pool = POOL.incrementAndGet();
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ft-worker-" + pool + "-" +
+					count.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
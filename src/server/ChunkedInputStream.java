@@ -0,0 +1,123 @@
+package server;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.function.UnaryOperator;
+
+/**
+ * The {@code ChunkedInputStream} class reads the data written by a
+ * {@link ChunkedOutputStream}, and ends at its end marker. Closing the stream
+ * does not close the stream underneath.
+ */
+public class ChunkedInputStream extends InputStream {
+
+	/** The stream the chunks are read from. */
+	private DataInputStream in;
+
+	/** The bytes left in the current chunk. */
+	private int remaining;
+
+	/** The number of bytes of data read so far, not counting lengths. */
+	private long count;
+
+	/** True once the end marker was read. */
+	private boolean ended;
+
+	/**
+	 * Constructs a stream that reads chunks from another stream.
+	 *
+	 * @param in - the stream to read from.
+	 */
+	public ChunkedInputStream(InputStream in) {
+		this.in = in instanceof DataInputStream? (DataInputStream) in :
+			new DataInputStream(in);
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		int b = in.read();
+		if (b < 0) {
+			throw new EOFException("chunk ended early");
+		}
+		remaining --;
+		count ++;
+		return b;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = in.read(b, off, Math.min(len, remaining));
+		if (n < 0) {
+			throw new EOFException("chunk ended early");
+		}
+		remaining -= n;
+		count += n;
+		return n;
+	}
+
+	@Override
+	public int available() throws IOException {
+		return ended? 0 : Math.min(remaining, in.available());
+	}
+
+	@Override
+	public void close() {
+	}
+
+	/**
+	 * <b><em>skipRemaining</em></b>
+	 *
+	 * <p>Reads up to and including the end marker, so whatever follows on
+	 * the stream underneath can be read.</p>
+	 *
+	 * @throws IOException if the stream ended before the end marker.
+	 */
+	public void skipRemaining() throws IOException {
+		while (fill()) {
+			in.readFully(new byte[remaining]);
+			count += remaining;
+			remaining = 0;
+		}
+	}
+
+	/**
+	 * <b><em>filter</em></b>
+	 *
+	 * <p>Reads the rest of the chunks through a filter of the stream
+	 * underneath, e.g. one that is throttled. This stream is still read as
+	 * the chunks, which a filter over it would hide.</p>
+	 *
+	 * @param filter - wraps the stream underneath.
+	 */
+	void filter(UnaryOperator<InputStream> filter) {
+		in = new DataInputStream(filter.apply(in));
+	}
+
+	/** Starts the next chunk if needed, returns false at the end. */
+	private boolean fill() throws IOException {
+		while (!ended && remaining == 0) {
+			int length = in.readInt();
+			if (length < 0 || length > Protocol.MAX_FRAME) {
+				throw new IOException("bad chunk length " + length);
+			}
+			remaining = length;
+			ended = length == 0;
+		}
+		return !ended;
+	}
+
+	public long getCount() {
+		return count;
+	}
+}
@@ -0,0 +1,96 @@
+package server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * The {@code ChunkedOutputStream} class sends data whose length is not known
+ * up front, e.g. compressed data. The data is sent in chunks, each an
+ * {@code int} length followed by that many bytes, and a chunk of length 0
+ * marks the end. Closing the stream writes the end marker but does not close
+ * the stream underneath, so more can be sent on the connection.
+ *
+ * @see ChunkedInputStream
+ */
+public class ChunkedOutputStream extends OutputStream {
+
+	/** The stream the chunks are written to. */
+	private final DataOutputStream out;
+
+	/** The data of the next chunk. */
+	private final byte[] buffer = new byte[Protocol.MAX_FRAME];
+
+	/** The number of bytes in the buffer. */
+	private int count;
+
+	/** The number of bytes of data written so far, not counting lengths. */
+	private long written;
+
+	/** True once the end marker was written. */
+	private boolean closed;
+
+	/**
+	 * Constructs a stream that writes chunks to another stream.
+	 *
+	 * @param out - the stream to write to.
+	 */
+	public ChunkedOutputStream(OutputStream out) {
+		this.out = out instanceof DataOutputStream? (DataOutputStream) out :
+			new DataOutputStream(out);
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (count == buffer.length) {
+			writeChunk();
+		}
+		buffer[count++] = (byte) b;
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		while (len > 0) {
+			if (count == buffer.length) {
+				writeChunk();
+			}
+			int n = Math.min(len, buffer.length - count);
+			System.arraycopy(b, off, buffer, count, n);
+			count += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	@Override
+	public void flush() throws IOException {
+		writeChunk();
+		out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (closed) {
+			return;
+		}
+		writeChunk();
+		out.writeInt(0);
+		out.flush();
+		closed = true;
+	}
+
+	/** Writes the buffer as a chunk, if it has anything. */
+	private void writeChunk() throws IOException {
+		if (count == 0) {
+			return;
+		}
+		out.writeInt(count);
+		out.write(buffer, 0, count);
+		written += count;
+		count = 0;
+	}
+
+	public long getCount() {
+		return written + count;
+	}
+}
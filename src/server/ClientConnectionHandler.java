@@ -2,22 +2,54 @@ package server;
 
 import java.io.*;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * The {@code ClientConnectionHandler} class is a way for a new connection
  * between the client and server to be handled. The {@link #run()} method will
  * get the command passed from the client and respond if and only if the
- * command is one of {DIR, UPLOAD, DOWNLOAD}. Note: the class extends thread,
- * so it should be started using {@link #start()} so that the server can handle
- * multiple connections.
+ * command is one of {DIR, UPLOAD, DOWNLOAD}, or is a version 2 request (see
+ * {@link Protocol}). Note: the handler does not start
+ * a thread of its own, it is run by the server's {@link ConnectionExecutor} so
+ * that the server can handle multiple connections.
  */
-public class ClientConnectionHandler extends Thread {
+public class ClientConnectionHandler implements Runnable {
 
 	/** The server that the client connected to. */
 	private FTServer server;
 	
 	/** The connection between the client and the server. */
 	private Socket socket;
+	
+	/** The output stream of the socket. */
+	private OutputStream socketOut;
+	
+	/** The request line, if it was already read by the {@link NioServerEngine}
+	 * before the connection was handed over. */
+	private String firstLine;
+	
+	/** Data the client sent after the request line that was already read by
+	 * the {@link NioServerEngine}. */
+	private byte[] buffered;
+	
+	/** Limits the bandwidth of the transfers over the connection. */
+	private final TransferScheduler.Throttle throttle;
+	
+	/** The place of the connection in the {@link AdmissionController}, or
+	 * null if it was not admitted by it. */
+	private final AdmissionController.Ticket ticket;
 
 	/**
 	 * Constructs a new connection handler.
@@ -26,26 +58,90 @@ public class ClientConnectionHandler extends Thread {
 	 * @param socket - the connection between the client and server.
 	 */
 	public ClientConnectionHandler(FTServer server, Socket socket) {
+		this(server, socket, (AdmissionController.Ticket) null);
+	}
+	
+	/**
+	 * Constructs a handler for a connection that was admitted by the server's
+	 * {@link AdmissionController}.
+	 * 
+	 * @param server - the server the client connected to.
+	 * @param socket - the connection between the client and server.
+	 * @param ticket - the place of the connection, which is given back when
+	 * it is closed.
+	 */
+	ClientConnectionHandler(FTServer server, Socket socket,
+			AdmissionController.Ticket ticket) {
 		this.server = server;
 		this.socket = socket;
+		this.ticket = ticket;
+		this.throttle = server.getScheduler().newThrottle();
+	}
+	
+	/**
+	 * Constructs a handler for a connection taken over from the
+	 * {@link NioServerEngine} after it already read the request line.
+	 * 
+	 * @param server - the server the client connected to.
+	 * @param socket - the connection between the client and server, which
+	 * must be in blocking mode.
+	 * @param ticket - the place of the connection, or null.
+	 * @param firstLine - the request line that was read.
+	 * @param buffered - data read after the request line.
+	 */
+	ClientConnectionHandler(FTServer server, Socket socket,
+			AdmissionController.Ticket ticket, String firstLine,
+			byte[] buffered) {
+		this(server, socket, ticket);
+		this.firstLine = firstLine;
+		this.buffered = buffered;
 	}
 
 	@Override
 	public void run() {
-
+		ServerMetrics metrics = server.getMetrics();
+		String command = null;
+		long start = System.nanoTime();
+		IOException error = null;
 		try {
 			
-			// Get the input stream from the socket
-			InputStream in = socket.getInputStream();
-			BufferedReader br = new BufferedReader(new InputStreamReader(in));
-			String line = br.readLine();
+			// Get the streams from the socket, counting what goes through
+			// them (data read by the NioServerEngine was counted already)
+			InputStream in = new MeteredInputStream(socket.getInputStream(),
+					metrics);
+			if (buffered != null && buffered.length > 0) {
+				in = new SequenceInputStream(
+						new ByteArrayInputStream(buffered), in);
+			}
+			in = new BufferedInputStream(in);
+			OutputStream out = new MeteredOutputStream(
+					socket.getOutputStream(), metrics, ticket);
+			this.socketOut = out;
+			
+			// Wait for the request no longer than the idle timeout
+			AdmissionController admission = server.getAdmission();
+			String line = firstLine;
+			if (line == null) {
+				setTimeout(true);
+				line = Protocol.readLine(in, admission.getMaxHeaderSize());
+				if (line == null) {
+					return;
+				}
+			}
+			setTimeout(false);
+			
+			// Client is using version 2 of the protocol
+			if (Protocol.isVersion2(line)) {
+				handle(Protocol.parseRequest(line), in, out);
+			}
 			
 			// Client wants a list of directories
-			if (line.startsWith(FTServer.LIST_DIRECTORIES)) {
+			else if (line.startsWith(FTServer.LIST_DIRECTORIES)) {
+				command = FTServer.LIST_DIRECTORIES;
 				
 				// Write the list of files
 				String[] files = server.listFiles();
-				PrintWriter pw = new PrintWriter(socket.getOutputStream());
+				PrintWriter pw = new PrintWriter(out);
 				for (String file : files) {
 					pw.println(file);
 				}
@@ -56,51 +152,579 @@ public class ClientConnectionHandler extends Thread {
 			// Client wants to upload a file
 			else if (line.startsWith(FTServer.UPLOAD)) {
 				
-				// Upload (write) the file to the server
+				// Upload (write) the file to the server. The upload ends when
+				// no more data is ready, and the final new line is dropped.
+				// It is written to a temporary file which replaces the file
+				// once it is complete, so a download of the old file is never
+				// cut short (the ContentCache may have it mapped).
+				command = FTServer.UPLOAD;
 				String filename = line.substring(FTServer.UPLOAD.length()+1);
-				PrintWriter out = new PrintWriter(
-						server.getSharedPath()+File.separator+filename);
-				String fileData = "";
-				while (br.ready()) {
-					line = br.readLine();
-					fileData += line + "\n";
+				server.resolve(filename);
+				Path temp = server.createTempFile();
+				try (OutputStream fileOut = new BufferedOutputStream(
+						Files.newOutputStream(temp))) {
+					byte[] buffer = new byte[8192];
+					boolean pendingNewLine = false;
+					while (in.available() > 0) {
+						int bytesRead = in.read(buffer);
+						if (bytesRead <= 0) {
+							break;
+						}
+						if (pendingNewLine) {
+							fileOut.write('\n');
+						}
+						pendingNewLine = buffer[bytesRead-1] == '\n';
+						fileOut.write(buffer, 0,
+								pendingNewLine? bytesRead-1 : bytesRead);
+					}
+				} catch (IOException e) {
+					Files.deleteIfExists(temp);
+					throw e;
 				}
-				if (fileData.length() > 0) {
-					fileData = fileData.substring(0, fileData.length()-1);
-				}
-				out.write(fileData);
-				out.flush();
-
-				// Close streams
-				out.close();
-				br.close();
+				server.commit(temp, filename);
 			}
 			
 			// Client wants to download a file
 			else if (line.startsWith(FTServer.DOWNLOAD)) {
 				
-				// Copy the file from the server
+				// Send the file straight from the page cache if possible
+				command = FTServer.DOWNLOAD;
 				String filename = line.substring(FTServer.DOWNLOAD.length()+1);
-				byte[] buffer = new byte[1024];
-				FileInputStream fileIn = new FileInputStream(
-						server.getSharedPath()+File.separator+filename);
-				OutputStream out = socket.getOutputStream();
-				int bytesRead = 0;
-		        while ((bytesRead = fileIn.read(buffer)) > 0) {
-		            out.write(buffer, 0, bytesRead);
-		        }
-		        out.flush();
-		        
-		        // Close streams
-		        fileIn.close();
-		        out.close();
+				try (FileRange range = FileRange.open(server,
+						new Header(FTServer.DOWNLOAD).arg(filename))) {
+					send(range, out);
+				}
 			}
 			
-			// Close streams
-			br.close();
+		} catch (IOException e) {
+			error = e;
+			if (e instanceof SocketTimeoutException) {
+				server.getAdmission().timedOut();
+			} else {
+				e.printStackTrace();
+			}
+		} finally {
+			if (command != null) {
+				metrics.record(command, System.nanoTime() - start, error);
+			} else if (error != null) {
+				metrics.error(error);
+			}
+			close();
+		}
+	}
+	
+	/**
+	 * <b><em>handle</em></b>
+	 * 
+	 * <p>Handles a version 2 request. If the request fails before its
+	 * status was sent, an {@link Protocol#ERROR} status with the reason is
+	 * sent to the client. If it fails later the client would read that line
+	 * as part of the response, so the error is thrown instead and the
+	 * connection is closed.</p>
+	 * 
+	 * @param request - the header of the request.
+	 * @param in - the stream with any data sent after the header.
+	 * @param out - the stream to write the response to.
+	 * 
+	 * @throws IOException if the response could not be written, or the
+	 * request failed after part of the response was sent.
+	 */
+	public void handle(Header request, InputStream in, OutputStream out)
+			throws IOException {
+		long start = System.nanoTime();
+		Exception error = null;
+		ResponseOutputStream response = new ResponseOutputStream(out);
+		try {
+			if (request.is(FTServer.UPLOAD)) {
+				upload(request, in, response);
+			} else if (request.is(FTServer.DOWNLOAD)) {
+				download(request, response);
+			} else if (request.is(FTServer.LIST_DIRECTORIES)) {
+				list(request, response);
+			} else if (request.is(FTServer.UPLOAD_OPEN) ||
+					request.is(FTServer.UPLOAD_CHUNK) ||
+					request.is(FTServer.UPLOAD_COMMIT) ||
+					request.is(FTServer.UPLOAD_ABORT)) {
+				chunkedUpload(request, in, response);
+			} else if (request.is(FTServer.SIGNATURE) ||
+					request.is(FTServer.DELTA_UPLOAD) ||
+					request.is(FTServer.DELTA_DOWNLOAD)) {
+				deltaSync(request, in, response);
+			} else if (request.is(FTServer.HASH)) {
+				hash(request, response);
+			} else if (request.is(FTServer.STATS)) {
+				stats(response);
+			} else if (request.is(FTServer.BATCH_DOWNLOAD)) {
+				batchDownload(request, in, response);
+			} else if (request.is(FTServer.BATCH_UPLOAD)) {
+				new BatchUploadHandler(server, throttle, in, response,
+						server.getBatchThreads()).run();
+			} else if (request.is(FTServer.SESSION) && out == socketOut) {
+				
+				// Frames are small and flushed one at a time, so they must
+				// not wait for the ACK of the last one
+				socket.setTcpNoDelay(true);
+				new SessionHandler(this, in, out,
+						server.getSessionThreads()).run();
+				return;
+			} else {
+				throw new IOException("unknown command: " + request.getVerb());
+			}
+		} catch (IOException | RuntimeException e) {
+			error = e;
+			if (response.isStarted()) {
+				throw e instanceof IOException? (IOException) e :
+					new IOException(e.toString(), e);
+			}
+			String reason = e.getMessage();
+			Protocol.writeLine(out, Protocol.error(
+					reason == null? e.toString() : reason));
+		} finally {
 			
+			// A session is counted as the requests sent over it
+			if (!request.is(FTServer.SESSION) || out != socketOut) {
+				server.getMetrics().record(request.getVerb(),
+						System.nanoTime() - start, error);
+			}
+		}
+	}
+	
+	/**
+	 * <b><em>upload</em></b>
+	 * 
+	 * <p>Handles a version 2 UPLOAD. The header has the length of the file,
+	 * and exactly that many bytes are streamed into a temporary file which
+	 * replaces the file in the shared path once it is complete. If the
+	 * header has an {@code encoding} the bytes arrive compressed and are
+	 * decompressed on the way to the file.</p>
+	 */
+	private void upload(Header request, InputStream in, OutputStream out)
+			throws IOException {
+		
+		// Check the request
+		String filename = request.getArg(0);
+		long length = request.getLong("length", -1);
+		if (length < 0) {
+			throw new IOException("missing length");
+		}
+		server.resolve(filename);
+		
+		// Stream the data into a temporary file
+		Path temp = server.createTempFile();
+		try (FileChannel file = FileChannel.open(temp,
+				StandardOpenOption.WRITE)) {
+			Protocol.receive(throttle.throttle(in, length), request, file,
+					server.getCompressionStats());
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+		server.commit(temp, filename, request.getLong("mtime", 0));
+		Protocol.writeLine(out, new Header(Protocol.OK).set("length", length));
+	}
+	
+	/**
+	 * <b><em>chunkedUpload</em></b>
+	 * 
+	 * <p>Handles the version 2 requests of a chunked upload (see
+	 * {@link UploadSessionManager}):</p>
+	 * <ul>
+	 * <li>{@code UPLOAD_OPEN size=N [mtime=T] name} answers
+	 * {@code OK id=ID}</li>
+	 * <li>{@code UPLOAD_CHUNK id=ID offset=O length=L} followed by L bytes
+	 * answers {@code OK length=L}</li>
+	 * <li>{@code UPLOAD_COMMIT id=ID} answers {@code OK length=N}</li>
+	 * <li>{@code UPLOAD_ABORT id=ID} answers {@code OK}</li>
+	 * </ul>
+	 */
+	private void chunkedUpload(Header request, InputStream in,
+			OutputStream out) throws IOException {
+		UploadSessionManager uploads = server.getUploads();
+		String id = request.get("id");
+		Header status = new Header(Protocol.OK);
+		if (request.is(FTServer.UPLOAD_OPEN)) {
+			status.set("id", uploads.open(request.getArg(0),
+					request.getLong("size", -1), request.getLong("mtime", 0)));
+		} else if (request.is(FTServer.UPLOAD_CHUNK)) {
+			long length = request.getLong("length", -1);
+			status.set("length", uploads.write(id,
+					request.getLong("offset", -1), length,
+					throttle.throttle(in, length)));
+		} else if (request.is(FTServer.UPLOAD_COMMIT)) {
+			status.set("length", uploads.commit(id));
+		} else {
+			uploads.abort(id);
+		}
+		Protocol.writeLine(out, status);
+	}
+	
+	/**
+	 * <b><em>list</em></b>
+	 * 
+	 * <p>Handles a version 2 DIR. The status is followed by a line for each
+	 * file: just the name, or with the {@code detail} option a
+	 * {@link FileEntry#FILE} line with its size and modification time. The
+	 * other options select a page of the list (see {@link DirQuery}). Lines
+	 * are written as the files are found, so the whole list is never built
+	 * up in memory. With the {@code since} option only the changes are sent
+	 * (see {@link #listChanges(String, OutputStream)}).</p>
+	 */
+	private void list(Header request, OutputStream out) throws IOException {
+		if (request.has("since")) {
+			listChanges(request.get("since"), out);
+			return;
+		}
+		Iterator<FileEntry> files = DirQuery.fromHeader(request).apply(server);
+		boolean detail = Boolean.parseBoolean(request.get("detail"));
+		Protocol.writeLine(out, new Header(Protocol.OK));
+		Writer w = new BufferedWriter(new OutputStreamWriter(
+				out, StandardCharsets.UTF_8));
+		while (files.hasNext()) {
+			FileEntry file = files.next();
+			w.write(detail? file.toHeader(FileEntry.FILE).toString() :
+				file.getName());
+			w.write('\n');
+		}
+		w.flush();
+	}
+	
+	/**
+	 * <b><em>listChanges</em></b>
+	 * 
+	 * <p>Handles a version 2 DIR with a {@code since} token. The status
+	 * carries the token of the current version, followed by a
+	 * {@link DirChange} line for each file that changed. If the token is too
+	 * old the status has {@code reset=true} and every file is sent as added.
+	 * </p>
+	 */
+	private void listChanges(String since, OutputStream out)
+			throws IOException {
+		DirDelta delta = server.listChanges(since);
+		Header status = new Header(Protocol.OK).set("token", delta.getToken());
+		if (delta.isReset()) {
+			status.set("reset", true);
+		}
+		Protocol.writeLine(out, status);
+		Writer w = new BufferedWriter(new OutputStreamWriter(
+				out, StandardCharsets.UTF_8));
+		if (delta.isReset()) {
+			for (FileEntry file : server.listEntries()) {
+				w.write(file.toHeader(DirChange.Kind.ADDED.name()).toString());
+				w.write('\n');
+			}
+		} else {
+			for (DirChange change : delta.getChanges()) {
+				w.write(change.toHeader().toString());
+				w.write('\n');
+			}
+		}
+		w.flush();
+	}
+	
+	/**
+	 * <b><em>deltaSync</em></b>
+	 * 
+	 * <p>Handles the version 2 requests that only send what changed in a
+	 * file (see {@link DeltaSync}):</p>
+	 * <ul>
+	 * <li>{@code SIGNATURE name} answers {@code OK size=N etag=E} followed by
+	 * the signature of the file</li>
+	 * <li>{@code DELTA_UPLOAD ifmatch=E name} followed by a delta against the
+	 * file rebuilds the new version in a temporary file, which then replaces
+	 * the file, and answers {@code OK length=N}</li>
+	 * <li>{@code DELTA_DOWNLOAD name} followed by the signature of the
+	 * client's copy answers {@code OK size=N etag=E} followed by a delta
+	 * against that copy</li>
+	 * </ul>
+	 */
+	private void deltaSync(Header request, InputStream in, OutputStream out)
+			throws IOException {
+		CompressionStats stats = server.getCompressionStats();
+		String filename = request.getArg(0);
+		if (request.is(FTServer.DELTA_UPLOAD)) {
+			Path temp = server.createTempFile();
+			long length;
+			try (FileRange basis = FileRange.open(server, request);
+					FileChannel file = FileChannel.open(temp,
+							StandardOpenOption.WRITE)) {
+				length = DeltaSync.apply(throttle.throttle(in, -1), basis::copy,
+						file, stats);
+			} catch (IOException | RuntimeException e) {
+				Files.deleteIfExists(temp);
+				throw e;
+			}
+			server.commit(temp, filename, request.getLong("mtime", 0));
+			Protocol.writeLine(out, new Header(Protocol.OK)
+					.set("length", length));
+			return;
+		}
+		try (FileRange range = FileRange.open(server, request)) {
+			Header status = new Header(Protocol.OK)
+					.set("size", range.getSize()).set("etag", range.getETag());
+			InputStream file = range.newInputStream();
+			if (request.is(FTServer.SIGNATURE)) {
+				Protocol.writeLine(out, status);
+				DeltaSync.signature(file, range.getSize()).writeTo(out);
+			} else {
+				DeltaSync.Signature signature =
+						DeltaSync.Signature.readFrom(in);
+				Protocol.writeLine(out, status);
+				DeltaSync.delta(signature, file,
+						throttle.throttle(out, range.getSize()), stats);
+			}
+		}
+	}
+	
+	/**
+	 * <b><em>hash</em></b>
+	 * 
+	 * <p>Handles a version 2 HASH. The response is
+	 * {@code OK size=N etag=E sha256=H}, with the SHA-256 hash of the
+	 * file.</p>
+	 */
+	private void hash(Header request, OutputStream out) throws IOException {
+		try (FileRange range = FileRange.open(server, request)) {
+			Protocol.writeLine(out, new Header(Protocol.OK)
+					.set("size", range.getSize()).set("etag", range.getETag())
+					.set("sha256", FileEntry.hash(range.newInputStream())));
+		}
+	}
+	
+	/**
+	 * <b><em>download</em></b>
+	 * 
+	 * <p>Handles a version 2 DOWNLOAD. The status has the length of the
+	 * range that was asked for (the whole file by default) along with the
+	 * size and ETag of the file, and is followed by exactly that many bytes.
+	 * The range is sent from its offset, without reading the start of the
+	 * file. If the request has an {@code accept} option and the file is
+	 * worth compressing, the range is sent compressed and the status names
+	 * the {@code encoding} (see {@link Codecs}). If the client's copy of the
+	 * file is the same, the status says {@link FileRange#UNCHANGED} and no
+	 * data follows.</p>
+	 * 
+	 * @see FileRange
+	 */
+	private void download(Header request, OutputStream out)
+			throws IOException {
+		CompressionStats stats = server.getCompressionStats();
+		try (FileRange range = FileRange.open(server, request)) {
+			Codec codec = Codecs.choose(request.get("accept"),
+					request.getArg(0), range.getLength());
+			if (codec == null) {
+				Protocol.writeLine(out, range.status());
+				send(range, out);
+				stats.addSent(range.getLength(), range.getLength());
+				return;
+			}
+			Protocol.writeLine(out, range.status().set("encoding",
+					codec.getName()));
+			Protocol.sendEncoded(range, codec,
+					throttle.throttle(out, range.getLength()), stats);
+		}
+	}
+	
+	/**
+	 * <b><em>batchDownload</em></b>
+	 * 
+	 * <p>Handles a version 2 BATCH_DOWNLOAD, which sends many files in one
+	 * response. The files are those named in the arguments and in the body
+	 * of the request (with a {@code length} option), plus those a
+	 * {@code glob} or {@code prefix} option matches (see {@link DirQuery}).
+	 * The status {@code OK count=N} is followed by the files as a
+	 * {@link BatchArchive}, each compressed with a codec from the
+	 * {@code accept} option if it helps. The lines and data of small files
+	 * are buffered and sent together, while large files are sent on their
+	 * own as in a single DOWNLOAD.</p>
+	 */
+	private void batchDownload(Header request, InputStream in,
+			OutputStream out) throws IOException {
+		
+		// Collect the names
+		Set<String> names = new LinkedHashSet<>(request.getArgs());
+		names.addAll(BatchArchive.readNames(in, request.getLong("length", 0)));
+		if (request.has("glob") || request.has("prefix")) {
+			Iterator<FileEntry> files =
+					DirQuery.fromHeader(request).apply(server);
+			while (files.hasNext()) {
+				names.add(files.next().getName());
+			}
+		}
+		
+		// Send each file after its entry line
+		CompressionStats stats = server.getCompressionStats();
+		String accept = request.get("accept");
+		Protocol.writeLine(out, new Header(Protocol.OK)
+				.set("count", names.size()));
+		OutputStream archive = new BufferedOutputStream(out,
+				TransferScheduler.CHUNK_SIZE);
+		OutputStream unflushed = BatchArchive.unflushed(archive);
+		for (String name : names) {
+			FileRange range;
+			try {
+				range = FileRange.open(server,
+						new Header(FTServer.DOWNLOAD).arg(name));
+			} catch (IOException e) {
+				BatchArchive.write(archive, BatchArchive.failed(name, e));
+				continue;
+			}
+			try {
+				Header entry = BatchArchive.entry(name, range);
+				Codec codec = Codecs.choose(accept, name, range.getLength());
+				if (codec != null) {
+					BatchArchive.write(archive,
+							entry.set("encoding", codec.getName()));
+					Protocol.sendEncoded(range, codec, throttle.throttle(
+							unflushed, range.getLength()), stats);
+				} else if (range.getLength() < TransferScheduler.CHUNK_SIZE) {
+					BatchArchive.write(archive, entry);
+					range.sendTo(Channels.newChannel(archive));
+					stats.addSent(range.getLength(), range.getLength());
+				} else {
+					BatchArchive.write(archive, entry);
+					archive.flush();
+					send(range, out);
+					stats.addSent(range.getLength(), range.getLength());
+				}
+			} finally {
+				range.close();
+			}
+		}
+		BatchArchive.write(archive, new Header(BatchArchive.END)
+				.set("count", names.size()));
+		archive.flush();
+	}
+	
+	/**
+	 * <b><em>stats</em></b>
+	 * 
+	 * <p>Handles a version 2 STATS. The response is {@code OK} followed by
+	 * a line {@code name value} for each of the server's metrics (see
+	 * {@link ServerMetrics#snapshot()}). Only clients on the same machine
+	 * may ask.</p>
+	 */
+	private void stats(OutputStream out) throws IOException {
+		if (!socket.getInetAddress().isLoopbackAddress()) {
+			throw new IOException("stats are only sent to local clients");
+		}
+		StringBuilder sb = new StringBuilder();
+		sb.append(new Header(Protocol.OK)).append('\n');
+		for (Map.Entry<String, String> e :
+				server.getMetrics().snapshot().entrySet()) {
+			sb.append(e.getKey()).append(' ').append(e.getValue())
+				.append('\n');
+		}
+		out.write(sb.toString().getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+	
+	/**
+	 * Sends a range to a response stream. If the stream is the socket's own
+	 * stream the range is sent to the socket channel, so that files can be
+	 * sent with
+	 * {@link Transfers#sendFile(FileChannel, long, long, WritableByteChannel)},
+	 * and since that goes around the stream the bytes are counted here. A
+	 * throttled range is sent a chunk at a time, waiting after each one.
+	 */
+	private void send(FileRange range, OutputStream out) throws IOException {
+		OutputStream stream = out instanceof ResponseOutputStream?
+				((ResponseOutputStream) out).getStream() : out;
+		if (stream != socketOut || socket.getChannel() == null) {
+			range.sendTo(Channels.newChannel(
+					throttle.throttle(out, range.getLength())));
+			return;
+		}
+		WritableByteChannel channel = socket.getChannel();
+		ServerMetrics metrics = server.getMetrics();
+		if (!throttle.start(range.getLength())) {
+			startWrite();
+			try {
+				metrics.addBytesOut(range.sendTo(channel));
+			} finally {
+				endWrite();
+			}
+			return;
+		}
+		long position = range.getOffset();
+		long end = position + range.getLength();
+		while (position < end) {
+			long sent;
+			startWrite();
+			try {
+				sent = range.copy(position, Math.min(end - position,
+						TransferScheduler.CHUNK_SIZE), channel);
+			} finally {
+				endWrite();
+			}
+			if (sent <= 0) {
+				break;
+			}
+			metrics.addBytesOut(sent);
+			position += sent;
+			throttle.acquire(sent);
+		}
+	}
+	
+	/** Marks the start of a write to the socket that is not made through
+	 * its stream, for the write timeout. */
+	private void startWrite() {
+		if (ticket != null) {
+			ticket.startWrite();
+		}
+	}
+	
+	/** Marks the end of a write started with {@link #startWrite()}. */
+	private void endWrite() {
+		if (ticket != null) {
+			ticket.endWrite();
+		}
+	}
+	
+	/**
+	 * <b><em>setTimeout</em></b>
+	 * 
+	 * <p>Sets how long a read from the client may block, to the idle or the
+	 * read timeout of the server's {@link AdmissionController}.</p>
+	 * 
+	 * @param idle - true while waiting for a new request.
+	 * 
+	 * @throws SocketException if the timeout could not be set.
+	 */
+	void setTimeout(boolean idle) throws SocketException {
+		AdmissionController admission = server.getAdmission();
+		long timeout = idle? admission.getIdleTimeout() :
+			admission.getReadTimeout();
+		socket.setSoTimeout((int) Math.min(timeout, Integer.MAX_VALUE));
+	}
+	
+	/**
+	 * <b><em>close</em></b>
+	 * 
+	 * <p>Closes the connection with the client. This is also used to drop a
+	 * connection that is still waiting to be handled.</p>
+	 */
+	public void close() {
+		try {
+			socket.close();
 		} catch (IOException e) {
 			e.printStackTrace();
+		} finally {
+			if (ticket != null) {
+				ticket.release();
+			}
+		}
+	}
+	
+	/**
+	 * <b><em>reject</em></b>
+	 * 
+	 * <p>Sends {@link Protocol#BUSY} and closes the connection, when the
+	 * server has no room to handle it.</p>
+	 */
+	public void reject() {
+		server.getAdmission().reject(socket);
+		if (ticket != null) {
+			ticket.release();
 		}
 	}
 
@@ -119,4 +743,106 @@ public class ClientConnectionHandler extends Thread {
 	public void setSocket(Socket socket) {
 		this.socket = socket;
 	}
+	
+	/** The stream a version 2 response is written to, which knows whether
+	 * any of the response was written yet. */
+	private static class ResponseOutputStream extends FilterOutputStream {
+		
+		/** Set once the first byte was written. */
+		private boolean started;
+		
+		private ResponseOutputStream(OutputStream out) {
+			super(out);
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			started = true;
+			out.write(b);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			started = true;
+			out.write(b, off, len);
+		}
+		
+		private boolean isStarted() {
+			return started;
+		}
+		
+		private OutputStream getStream() {
+			return out;
+		}
+	}
+	
+	/** A stream of the data read from a client that counts its bytes. */
+	private static class MeteredInputStream extends FilterInputStream {
+		
+		/** The metrics the bytes are counted in. */
+		private final ServerMetrics metrics;
+		
+		private MeteredInputStream(InputStream in, ServerMetrics metrics) {
+			super(in);
+			this.metrics = metrics;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				metrics.addBytesIn(1);
+			}
+			return b;
+		}
+		
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, len);
+			metrics.addBytesIn(n);
+			return n;
+		}
+	}
+	
+	/**
+	 * A stream of the data written to a client that counts its bytes, and
+	 * marks each write on the ticket of the connection so a write the client
+	 * stopped reading can be timed out.
+	 */
+	private static class MeteredOutputStream extends FilterOutputStream {
+		
+		/** The metrics the bytes are counted in. */
+		private final ServerMetrics metrics;
+		
+		/** The ticket the writes are marked on, or null. */
+		private final AdmissionController.Ticket ticket;
+		
+		private MeteredOutputStream(OutputStream out, ServerMetrics metrics,
+				AdmissionController.Ticket ticket) {
+			super(out);
+			this.metrics = metrics;
+			this.ticket = ticket;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			write(new byte[] {(byte) b}, 0, 1);
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			if (ticket != null) {
+				ticket.startWrite();
+			}
+			try {
+				out.write(b, off, len);
+			} finally {
+				if (ticket != null) {
+					ticket.endWrite();
+				}
+			}
+			metrics.addBytesOut(len);
+		}
+	}
+
 }
@@ -0,0 +1,42 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The {@code Codec} interface is a compression format that can be used for
+ * the data of a transfer. Codecs are looked up by {@link #getName() name} in
+ * {@link Codecs}, where new ones can be registered.
+ */
+public interface Codec {
+
+	/**
+	 * <b><em>getName</em></b>
+	 *
+	 * @return the name of the codec in the {@code accept} and
+	 * {@code encoding} options, e.g. {@code gzip}.
+	 */
+	String getName();
+
+	/**
+	 * <b><em>encode</em></b>
+	 *
+	 * @param out - the stream to write the compressed data to.
+	 *
+	 * @return a stream that compresses what is written to it. Closing it
+	 * finishes the compressed data and closes {@code out}.
+	 * @throws IOException if the stream could not be started.
+	 */
+	OutputStream encode(OutputStream out) throws IOException;
+
+	/**
+	 * <b><em>decode</em></b>
+	 *
+	 * @param in - the stream to read the compressed data from.
+	 *
+	 * @return a stream of the data after it was decompressed.
+	 * @throws IOException if the stream could not be started.
+	 */
+	InputStream decode(InputStream in) throws IOException;
+}
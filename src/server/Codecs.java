@@ -0,0 +1,204 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * The {@code Codecs} class has the {@link Codec}s known to this program and
+ * decides when a transfer should be compressed. A client lists the codecs it
+ * can decode in the {@code accept} option of a request (best first), and the
+ * side sending the data picks one and names it in the {@code encoding}
+ * option. The data is then sent compressed, split into chunks (see
+ * {@link ChunkedOutputStream}) since its compressed length is not known
+ * up front.
+ * <p>
+ * Files that are already compressed (by their extension) and very small
+ * transfers are always sent as they are. The built in codecs use the
+ * fastest level of {@link Deflater}, since they run while the data is sent.
+ */
+public final class Codecs {
+
+	/** The name of the raw zlib format. */
+	public static final String DEFLATE = "deflate";
+
+	/** The name of the gzip format. */
+	public static final String GZIP = "gzip";
+
+	/** The name used to ask for no compression. */
+	public static final String IDENTITY = "identity";
+
+	/** Transfers shorter than this are never compressed. */
+	public static final long MIN_LENGTH = 1024;
+
+	/** The size of the buffers of the compression streams. */
+	private static final int BUFFER_SIZE = 64 * 1024;
+
+	/** The extensions of files that are already compressed. */
+	private static final Set<String> COMPRESSED = new HashSet<>(Arrays.asList(
+			"7z", "avi", "bz2", "docx", "flac", "gif", "gz", "jar", "jpeg",
+			"jpg", "lz4", "mkv", "mov", "mp3", "mp4", "ogg", "png", "pptx",
+			"rar", "tgz", "webm", "webp", "xlsx", "xz", "zip", "zst"));
+
+	/** The registered codecs, by name. */
+	private static final Map<String, Codec> CODECS = new LinkedHashMap<>();
+
+	static {
+		register(new Codec() {
+
+			@Override
+			public String getName() {
+				return DEFLATE;
+			}
+
+			@Override
+			public OutputStream encode(OutputStream out) {
+				Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+				return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							deflater.end();
+						}
+					}
+				};
+			}
+
+			@Override
+			public InputStream decode(InputStream in) {
+				Inflater inflater = new Inflater();
+				return new InflaterInputStream(in, inflater, BUFFER_SIZE) {
+					@Override
+					public void close() throws IOException {
+						try {
+							super.close();
+						} finally {
+							inflater.end();
+						}
+					}
+				};
+			}
+		});
+		register(new Codec() {
+
+			@Override
+			public String getName() {
+				return GZIP;
+			}
+
+			@Override
+			public OutputStream encode(OutputStream out) throws IOException {
+				return new GZIPOutputStream(out, BUFFER_SIZE) {
+					{
+						def.setLevel(Deflater.BEST_SPEED);
+					}
+				};
+			}
+
+			@Override
+			public InputStream decode(InputStream in) throws IOException {
+				return new GZIPInputStream(in, BUFFER_SIZE);
+			}
+		});
+	}
+
+	private Codecs() {}
+
+	/**
+	 * <b><em>register</em></b>
+	 *
+	 * <p>Adds a codec, or replaces the one with the same name.</p>
+	 *
+	 * @param codec - the codec.
+	 */
+	public static synchronized void register(Codec codec) {
+		CODECS.put(codec.getName(), codec);
+	}
+
+	/**
+	 * <b><em>get</em></b>
+	 *
+	 * @param name - the name of a codec.
+	 *
+	 * @return the codec.
+	 * @throws IOException if there is no codec with the name.
+	 */
+	public static synchronized Codec get(String name) throws IOException {
+		Codec codec = CODECS.get(name);
+		if (codec == null) {
+			throw new IOException("unsupported encoding: " + name);
+		}
+		return codec;
+	}
+
+	/**
+	 * <b><em>accept</em></b>
+	 *
+	 * @return the value of the {@code accept} option listing every codec.
+	 */
+	public static synchronized String accept() {
+		return String.join(",", CODECS.keySet());
+	}
+
+	/**
+	 * <b><em>choose</em></b>
+	 *
+	 * <p>Picks the codec to send a file with.</p>
+	 *
+	 * @param accept - the codecs the receiver can decode, best first and
+	 * separated by commas, or null if it did not say.
+	 * @param filename - the name of the file.
+	 * @param length - the number of bytes that will be sent.
+	 *
+	 * @return the first codec in the list that is known, or null if the
+	 * data should be sent as it is.
+	 */
+	public static synchronized Codec choose(String accept, String filename,
+			long length) {
+		if (accept == null || length < MIN_LENGTH ||
+				!isCompressible(filename)) {
+			return null;
+		}
+		for (String name : accept.split(",")) {
+			name = name.trim();
+			if (name.equals(IDENTITY)) {
+				return null;
+			}
+			Codec codec = CODECS.get(name);
+			if (codec != null) {
+				return codec;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * <b><em>isCompressible</em></b>
+	 *
+	 * @param filename - the name of a file.
+	 *
+	 * @return false if the extension of the file is one of a format that is
+	 * already compressed.
+	 */
+	public static boolean isCompressible(String filename) {
+		if (filename == null) {
+			return false;
+		}
+		int dot = filename.lastIndexOf('.');
+		return dot < 0 || !COMPRESSED.contains(
+				filename.substring(dot + 1).toLowerCase());
+	}
+}
@@ -0,0 +1,80 @@
+package server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code CompressionStats} class counts the file data sent and received
+ * by one side of the connection, both before compression and as it went
+ * over the network. Transfers that were not compressed count the same for
+ * both, so the ratio is the saving over all transfers.
+ */
+public class CompressionStats {
+
+	/** The bytes of file data sent. */
+	private final LongAdder sent = new LongAdder();
+
+	/** The bytes sent over the network for that data. */
+	private final LongAdder sentEncoded = new LongAdder();
+
+	/** The bytes of file data received. */
+	private final LongAdder received = new LongAdder();
+
+	/** The bytes received over the network for that data. */
+	private final LongAdder receivedEncoded = new LongAdder();
+
+	/**
+	 * <b><em>addSent</em></b>
+	 *
+	 * @param raw - the bytes of file data sent.
+	 * @param encoded - the bytes that went over the network.
+	 */
+	public void addSent(long raw, long encoded) {
+		sent.add(raw);
+		sentEncoded.add(encoded);
+	}
+
+	/**
+	 * <b><em>addReceived</em></b>
+	 *
+	 * @param raw - the bytes of file data received.
+	 * @param encoded - the bytes that went over the network.
+	 */
+	public void addReceived(long raw, long encoded) {
+		received.add(raw);
+		receivedEncoded.add(encoded);
+	}
+
+	public long getSent() {
+		return sent.sum();
+	}
+
+	public long getSentEncoded() {
+		return sentEncoded.sum();
+	}
+
+	public long getReceived() {
+		return received.sum();
+	}
+
+	public long getReceivedEncoded() {
+		return receivedEncoded.sum();
+	}
+
+	/**
+	 * <b><em>getRatio</em></b>
+	 *
+	 * @return the bytes of file data moved for each byte that went over the
+	 * network, or 1 if nothing was moved yet.
+	 */
+	public double getRatio() {
+		long encoded = getSentEncoded() + getReceivedEncoded();
+		return encoded == 0? 1 : (getSent() + getReceived()) / (double) encoded;
+	}
+
+	@Override
+	public String toString() {
+		return "CompressionStats[sent=" + getSent() + "/" + getSentEncoded() +
+				", received=" + getReceived() + "/" + getReceivedEncoded() +
+				String.format(", ratio=%.2f]", getRatio());
+	}
+}
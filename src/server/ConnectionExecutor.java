@@ -0,0 +1,64 @@
+package server;
+
+/**
+ * The {@code ConnectionExecutor} interface is the strategy the
+ * {@link FTServer} uses to run each {@link ClientConnectionHandler} once a
+ * connection has been accepted. Implementations decide how many connections
+ * can be handled at once and what happens when that limit is reached.
+ *
+ * @see BoundedConnectionExecutor
+ * @see VirtualThreadConnectionExecutor
+ */
+public interface ConnectionExecutor {
+
+	/**
+	 * <b><em>execute</em></b>
+	 *
+	 * <p>Runs (or queues) the handler for a new connection.</p>
+	 *
+	 * @param connection - the handler for the connection.
+	 *
+	 * @return true if the connection was accepted for execution, false if it
+	 * was rejected and the caller should close it.
+	 */
+	boolean execute(ClientConnectionHandler connection);
+
+	/**
+	 * <b><em>offer</em></b>
+	 *
+	 * <p>Queues the handler for a connection, like
+	 * {@link #execute(ClientConnectionHandler)}, but never runs it on the
+	 * calling thread. It is used by threads that must not block, such as the
+	 * event loops of the {@link FTServer.Engine#NIO} engine.</p>
+	 *
+	 * @param connection - the handler for the connection.
+	 *
+	 * @return true if the connection was accepted for execution, false if it
+	 * was rejected and the caller should close it.
+	 */
+	default boolean offer(ClientConnectionHandler connection) {
+		return execute(connection);
+	}
+
+	/**
+	 * <b><em>getActiveCount</em></b>
+	 *
+	 * @return the number of connections currently being handled.
+	 */
+	int getActiveCount();
+
+	/**
+	 * <b><em>getQueuedCount</em></b>
+	 *
+	 * @return the number of accepted connections waiting to be handled.
+	 */
+	int getQueuedCount();
+
+	/**
+	 * <b><em>shutdown</em></b>
+	 *
+	 * <p>Stops accepting new connections. Connections that are already being
+	 * handled are allowed to finish.</p>
+	 */
+	void shutdown();
+}
@@ -0,0 +1,396 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code ContentCache} class keeps the data of popular files in memory,
+ * so a DOWNLOAD of a hot file does not have to open and read it again.
+ * Files up to {@link #getSmallFileLimit()} bytes are copied into direct
+ * (off-heap) buffers; larger files are memory-mapped, which keeps their
+ * pages shared with the page cache instead of copying them. The two kinds
+ * have their own size limits, and the least recently used files are evicted
+ * to stay under them.
+ * <p>
+ * A file is only cached the second time it is asked for, so a single pass
+ * over many files does not push out the files that are actually hot. Every
+ * lookup checks the size and modification time of the file on disk, so a
+ * file that was changed is never served from the cache; uploads through
+ * {@link FTServer#commit(java.nio.file.Path, String)} also drop it right
+ * away.
+ */
+public class ContentCache {
+
+	/** The default bytes of small files kept in direct buffers. */
+	public static final long DEFAULT_MAX_BYTES = 64 * 1024 * 1024;
+
+	/** The default bytes of large files kept mapped. */
+	public static final long DEFAULT_MAX_MAPPED_BYTES = 1024 * 1024 * 1024;
+
+	/** The default largest file copied into a direct buffer. */
+	public static final int DEFAULT_SMALL_FILE_LIMIT = 1024 * 1024;
+
+	/** The most files remembered as asked for once. */
+	private static final int MAX_CANDIDATES = 1024;
+
+	/** The cached files, least recently used first. */
+	private final LinkedHashMap<String, Entry> entries =
+			new LinkedHashMap<>(16, 0.75f, true);
+
+	/** The files that were asked for once, least recently used first. */
+	private final LinkedHashMap<String, Boolean> candidates =
+			new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, Boolean> e) {
+			return size() > MAX_CANDIDATES;
+		}
+	};
+
+	/** The bytes of the files in direct buffers. */
+	private long bytes;
+
+	/** The bytes of the files that are mapped. */
+	private long mappedBytes;
+
+	/** The most bytes of files kept in direct buffers. */
+	private volatile long maxBytes = DEFAULT_MAX_BYTES;
+
+	/** The most bytes of files kept mapped. */
+	private volatile long maxMappedBytes = DEFAULT_MAX_MAPPED_BYTES;
+
+	/** The largest file copied into a direct buffer. */
+	private volatile int smallFileLimit = DEFAULT_SMALL_FILE_LIMIT;
+
+	/** The number of lookups that found the file. */
+	private final LongAdder hits = new LongAdder();
+
+	/** The number of lookups that did not. */
+	private final LongAdder misses = new LongAdder();
+
+	/** The bytes served from the cache. */
+	private final LongAdder bytesServed = new LongAdder();
+
+	/** The number of files evicted to make room. */
+	private final LongAdder evictions = new LongAdder();
+
+	/** The number of files dropped because they changed. */
+	private final LongAdder invalidations = new LongAdder();
+
+	/**
+	 * <b><em>get</em></b>
+	 *
+	 * <p>Looks a file up. If the cached copy does not have the size and
+	 * modification time the file has on disk now, it is dropped.</p>
+	 *
+	 * @param name - the name of the file.
+	 * @param attrs - the attributes the file has on disk.
+	 *
+	 * @return the cached file, or null if it is not cached.
+	 */
+	public synchronized Entry get(String name, BasicFileAttributes attrs) {
+		Entry entry = entries.get(name);
+		if (entry != null && (entry.diskSize != attrs.size() ||
+				entry.diskModified != attrs.lastModifiedTime().toMillis())) {
+			remove(name);
+			invalidations.increment();
+			entry = null;
+		}
+		if (entry == null) {
+			misses.increment();
+			return null;
+		}
+		hits.increment();
+		return entry;
+	}
+
+	/**
+	 * <b><em>offer</em></b>
+	 *
+	 * <p>Offers a file that was not in the cache. The first time a file is
+	 * offered it is only remembered; the second time it is read into the
+	 * cache, if it fits.</p>
+	 *
+	 * @param name - the name of the file.
+	 * @param attrs - the attributes the file has on disk.
+	 * @param range - the open file, with the data to cache.
+	 *
+	 * @return the cached file, or null if it was not cached.
+	 * @throws IOException if the file could not be read.
+	 */
+	public Entry offer(String name, BasicFileAttributes attrs, FileRange range)
+			throws IOException {
+		long size = range.getSize();
+		boolean small = size <= smallFileLimit;
+		synchronized (this) {
+			if (candidates.remove(name) == null) {
+				candidates.put(name, Boolean.TRUE);
+				return null;
+			}
+		}
+		if (small? size > maxBytes : range.getChannel() == null ||
+				size > Integer.MAX_VALUE || size > maxMappedBytes) {
+			return null;
+		}
+
+		// Read the file without holding up other lookups
+		ByteBuffer data;
+		if (small) {
+			data = ByteBuffer.allocateDirect((int) size);
+			range.copy(0, size, new BufferChannel(data));
+			data.flip();
+		} else {
+			data = range.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+					size);
+		}
+		Entry entry = new Entry(new FileEntry(name, size,
+				range.getLastModified()), attrs.size(),
+				attrs.lastModifiedTime().toMillis(), data.asReadOnlyBuffer(),
+				!small);
+		synchronized (this) {
+			remove(name);
+			entries.put(name, entry);
+			if (small) {
+				bytes += size;
+			} else {
+				mappedBytes += size;
+			}
+			evict();
+		}
+		return entry;
+	}
+
+	/**
+	 * <b><em>invalidate</em></b>
+	 *
+	 * <p>Drops a file, e.g. because it is being replaced.</p>
+	 *
+	 * @param name - the name of the file.
+	 */
+	public synchronized void invalidate(String name) {
+		candidates.remove(name);
+		if (remove(name) != null) {
+			invalidations.increment();
+		}
+	}
+
+	/**
+	 * <b><em>clear</em></b>
+	 *
+	 * <p>Drops every file.</p>
+	 */
+	public synchronized void clear() {
+		entries.clear();
+		candidates.clear();
+		bytes = 0;
+		mappedBytes = 0;
+	}
+
+	/**
+	 * <b><em>served</em></b>
+	 *
+	 * <p>Counts bytes that were served from the cache.</p>
+	 *
+	 * @param count - the number of bytes.
+	 */
+	public void served(long count) {
+		bytesServed.add(count);
+	}
+
+	/** Removes a file and returns it, or null if it was not cached. */
+	private Entry remove(String name) {
+		Entry entry = entries.remove(name);
+		if (entry != null) {
+			if (entry.mapped) {
+				mappedBytes -= entry.data.capacity();
+			} else {
+				bytes -= entry.data.capacity();
+			}
+		}
+		return entry;
+	}
+
+	/** Evicts the least recently used files until both kinds fit. */
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+		while ((bytes > maxBytes || mappedBytes > maxMappedBytes) &&
+				it.hasNext()) {
+			Entry entry = it.next();
+			if (entry.mapped && mappedBytes > maxMappedBytes) {
+				mappedBytes -= entry.data.capacity();
+			} else if (!entry.mapped && bytes > maxBytes) {
+				bytes -= entry.data.capacity();
+			} else {
+				continue;
+			}
+			it.remove();
+			evictions.increment();
+		}
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	public synchronized long getBytes() {
+		return bytes;
+	}
+
+	public synchronized long getMappedBytes() {
+		return mappedBytes;
+	}
+
+	public long getMaxBytes() {
+		return maxBytes;
+	}
+
+	public synchronized void setMaxBytes(long maxBytes) {
+		this.maxBytes = Math.max(0, maxBytes);
+		evict();
+	}
+
+	public long getMaxMappedBytes() {
+		return maxMappedBytes;
+	}
+
+	public synchronized void setMaxMappedBytes(long maxMappedBytes) {
+		this.maxMappedBytes = Math.max(0, maxMappedBytes);
+		evict();
+	}
+
+	public int getSmallFileLimit() {
+		return smallFileLimit;
+	}
+
+	public void setSmallFileLimit(int smallFileLimit) {
+		this.smallFileLimit = Math.max(0, smallFileLimit);
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/**
+	 * <b><em>getHitRatio</em></b>
+	 *
+	 * @return the share of lookups that found the file, from 0 to 1.
+	 */
+	public double getHitRatio() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total == 0? 0 : hits / (double) total;
+	}
+
+	public long getBytesServed() {
+		return bytesServed.sum();
+	}
+
+	public long getEvictions() {
+		return evictions.sum();
+	}
+
+	public long getInvalidations() {
+		return invalidations.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "ContentCache[files=" + size() + ", bytes=" + getBytes() +
+				", mapped=" + getMappedBytes() +
+				String.format(", hitRatio=%.2f", getHitRatio()) +
+				", served=" + getBytesServed() + ", evictions=" +
+				getEvictions() + ", invalidations=" + getInvalidations() +
+				"]";
+	}
+
+	/**
+	 * The {@code Entry} class is a cached file.
+	 */
+	public static class Entry {
+
+		/** The name, size and modification time of the file. */
+		private final FileEntry file;
+
+		/** The size of the file on disk when it was cached, which is not the
+		 * size of a manifest's file. */
+		private final long diskSize;
+
+		/** The modification time of the file on disk when it was cached. */
+		private final long diskModified;
+
+		/** The data of the file, which is read-only. */
+		private final ByteBuffer data;
+
+		/** True if the data is mapped rather than copied. */
+		private final boolean mapped;
+
+		private Entry(FileEntry file, long diskSize, long diskModified,
+				ByteBuffer data, boolean mapped) {
+			this.file = file;
+			this.diskSize = diskSize;
+			this.diskModified = diskModified;
+			this.data = data;
+			this.mapped = mapped;
+		}
+
+		public FileEntry getFile() {
+			return file;
+		}
+
+		/**
+		 * <b><em>getData</em></b>
+		 *
+		 * @return a view of the data of the file, with its own position.
+		 */
+		public ByteBuffer getData() {
+			return data.duplicate();
+		}
+
+		public boolean isMapped() {
+			return mapped;
+		}
+	}
+
+	/** A channel that fills a buffer. */
+	private static class BufferChannel implements WritableByteChannel {
+
+		/** The buffer being filled. */
+		private final ByteBuffer buffer;
+
+		private BufferChannel(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int write(ByteBuffer src) {
+			int n = Math.min(src.remaining(), buffer.remaining());
+			ByteBuffer part = src.duplicate();
+			part.limit(part.position() + n);
+			buffer.put(part);
+			src.position(src.position() + n);
+			return n;
+		}
+
+		@Override
+		public boolean isOpen() {
+			return true;
+		}
+
+		@Override
+		public void close() {
+		}
+	}
+}
@@ -0,0 +1,619 @@
+package server;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code DedupStore} class stores files as lists of chunks, keeping each
+ * distinct chunk only once. A file is split where a rolling hash of its
+ * content hits a pattern (content-defined chunking), so an insertion or
+ * deletion only changes the chunks around it and the rest of the file still
+ * matches chunks that are already stored. Each chunk is named by its SHA-256
+ * hash and kept in a chunk store under {@link FTServer#STORE_DIRECTORY}.
+ * <p>
+ * In the shared path a stored file is replaced by a small manifest that
+ * lists its chunks. Which files are manifests is recorded in the store, not
+ * in the files: a plain file a client uploaded that looks like a manifest
+ * is still read as a plain file, so it can not point at the chunks of other
+ * files. Reading a file streams its chunks back in order, straight from the
+ * chunk files. Chunks are never changed once written, so files can be read
+ * while others are stored.
+ */
+public class DedupStore {
+
+	/** The first line of every manifest. */
+	public static final String MAGIC = "FTDEDUP1";
+
+	/** The smallest chunk, except for the last chunk of a file. */
+	public static final int MIN_CHUNK = 16 * 1024;
+
+	/** The largest chunk. */
+	public static final int MAX_CHUNK = 256 * 1024;
+
+	/** A chunk ends where these bits of the rolling hash are all 0, which
+	 * makes chunks about 64 KB on average. */
+	private static final long CHUNK_MASK = (1L << 16) - 1;
+
+	/** Chunks younger than this are never collected, since a file that is
+	 * being stored may need them before its manifest is in place. */
+	private static final long COLLECT_GRACE = 60 * 60 * 1000;
+
+	/** Random values for each byte, used by the rolling (gear) hash. */
+	private static final long[] GEAR = new long[256];
+
+	static {
+		Random random = new Random(0x46543244L);
+		for (int i = 0; i < GEAR.length; i ++) {
+			GEAR[i] = random.nextLong();
+		}
+	}
+
+	/** The directory the chunks are kept in. */
+	private final Path chunks;
+
+	/** The directory with a record of the manifest of each stored file,
+	 * named like the file. */
+	private final Path records;
+
+	/** Held while the records are changed. */
+	private final Object recordLock = new Object();
+
+	/** The bytes of file data stored. */
+	private final LongAdder logicalBytes = new LongAdder();
+
+	/** The bytes of new chunks written for that data. */
+	private final LongAdder storedBytes = new LongAdder();
+
+	/** The number of chunks in the files stored. */
+	private final LongAdder totalChunks = new LongAdder();
+
+	/** The number of those chunks that were already in the store. */
+	private final LongAdder duplicateChunks = new LongAdder();
+
+	/**
+	 * Constructs a store that keeps its chunks in a directory.
+	 *
+	 * @param dir - the directory of the store.
+	 */
+	public DedupStore(Path dir) {
+		this.chunks = dir.resolve("chunks");
+		this.records = dir.resolve("manifests");
+	}
+
+	/**
+	 * <b><em>store</em></b>
+	 *
+	 * <p>Splits a file into chunks, adds the new ones to the store and
+	 * writes a manifest for the file. The manifest is only read as one once
+	 * it was moved into place with {@link #commit(Path, Path, Manifest)}.
+	 * </p>
+	 *
+	 * @param file - the file to store.
+	 * @param manifest - the file to write the manifest to.
+	 *
+	 * @return the manifest.
+	 * @throws IOException if the file could not be read or stored.
+	 */
+	public Manifest store(Path file, Path manifest) throws IOException {
+		List<String> hashes = new ArrayList<>();
+		List<Long> lengths = new ArrayList<>();
+		MessageDigest digest = sha256();
+		byte[] chunk = new byte[MAX_CHUNK];
+		int count = 0;
+		long hash = 0;
+		long size = 0;
+		try (InputStream in = Channels.newInputStream(
+				FileChannel.open(file, StandardOpenOption.READ))) {
+			byte[] buffer = new byte[Transfers.BUFFER_SIZE];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				for (int i = 0; i < n; i ++) {
+					byte b = buffer[i];
+					chunk[count++] = b;
+					hash = (hash << 1) + GEAR[b & 0xff];
+
+					// Cut the chunk at a content boundary or the maximum
+					if ((count >= MIN_CHUNK && (hash & CHUNK_MASK) == 0) ||
+							count == MAX_CHUNK) {
+						hashes.add(put(digest, chunk, count));
+						lengths.add((long) count);
+						size += count;
+						count = 0;
+						hash = 0;
+					}
+				}
+			}
+		}
+		if (count > 0) {
+			hashes.add(put(digest, chunk, count));
+			lengths.add((long) count);
+			size += count;
+		}
+
+		// Write the manifest
+		long[] offsets = new long[lengths.size() + 1];
+		for (int i = 0; i < lengths.size(); i ++) {
+			offsets[i+1] = offsets[i] + lengths.get(i);
+		}
+		digest.reset();
+		try (Writer w = new BufferedWriter(new OutputStreamWriter(
+				new DigestOutputStream(Files.newOutputStream(manifest),
+						digest), StandardCharsets.UTF_8))) {
+			w.write(MAGIC + " size=" + size + "\n");
+			for (int i = 0; i < hashes.size(); i ++) {
+				w.write(hashes.get(i) + " " + lengths.get(i) + "\n");
+			}
+		}
+		logicalBytes.add(size);
+		return new Manifest(hashes.toArray(new String[0]), offsets,
+				toHex(digest.digest()) + " " + Files.size(manifest));
+	}
+
+	/**
+	 * <b><em>commit</em></b>
+	 *
+	 * <p>Moves a manifest written by {@link #store(Path, Path)} into the
+	 * shared path, replacing any file with the same name, and records that
+	 * the file is a manifest. While it is moved both the old and the new
+	 * file are recorded, so a file read at the same time is read as what it
+	 * is either way.</p>
+	 *
+	 * @param file - the manifest.
+	 * @param target - the path of the file in the shared path.
+	 * @param manifest - what {@link #store(Path, Path)} returned.
+	 *
+	 * @throws IOException if the manifest could not be moved or recorded.
+	 */
+	public void commit(Path file, Path target, Manifest manifest)
+			throws IOException {
+		String name = target.getFileName().toString();
+		synchronized (recordLock) {
+			List<String> old = readRecords(name);
+			List<String> both = new ArrayList<>(old);
+			both.add(manifest.record);
+			writeRecords(name, both);
+			try {
+				try {
+					Files.move(file, target, StandardCopyOption.ATOMIC_MOVE,
+							StandardCopyOption.REPLACE_EXISTING);
+				} catch (AtomicMoveNotSupportedException e) {
+					Files.move(file, target,
+							StandardCopyOption.REPLACE_EXISTING);
+				}
+			} catch (IOException e) {
+				writeRecords(name, old);
+				throw e;
+			}
+			writeRecords(name, Collections.singletonList(manifest.record));
+		}
+	}
+
+	/**
+	 * <b><em>readManifest</em></b>
+	 *
+	 * @param path - a file in the shared path.
+	 * @param file - the file, open.
+	 *
+	 * @return the manifest, or null if the file is a plain file: one that
+	 * was not stored, or was replaced since it was.
+	 * @throws IOException if the file could not be read, or is a manifest
+	 * that is not valid.
+	 */
+	public Manifest readManifest(Path path, FileChannel file)
+			throws IOException {
+
+		// Only a file as long as a recorded manifest is worth hashing
+		List<String> recorded = readRecords(path.getFileName().toString());
+		String length = " " + file.size();
+		boolean sized = false;
+		for (String record : recorded) {
+			sized |= record.endsWith(length);
+		}
+		if (!sized) {
+			return null;
+		}
+		MessageDigest digest = sha256();
+		ByteBuffer buffer = ByteBuffer.allocate(Transfers.BUFFER_SIZE);
+		long position = 0;
+		int n;
+		while ((n = file.read(buffer, position)) > 0) {
+			buffer.flip();
+			digest.update(buffer);
+			buffer.clear();
+			position += n;
+		}
+		String record = toHex(digest.digest()) + length;
+		if (!recorded.contains(record)) {
+			return null;
+		}
+		return parse(file, record);
+	}
+
+	/** Parses a manifest, checking every line. */
+	private static Manifest parse(FileChannel file, String record)
+			throws IOException {
+		BufferedReader br = new BufferedReader(new InputStreamReader(
+				Channels.newInputStream(file.position(0)),
+				StandardCharsets.UTF_8));
+		String line = br.readLine();
+		String magic = MAGIC + " size=";
+		if (line == null || !line.startsWith(magic)) {
+			throw new IOException("not a manifest");
+		}
+		try {
+			long size = Long.parseLong(line.substring(magic.length()));
+			List<String> hashes = new ArrayList<>();
+			List<Long> offsets = new ArrayList<>();
+			offsets.add(0L);
+			while ((line = br.readLine()) != null) {
+				int space = line.indexOf(' ');
+				String hash = space < 0? "" : line.substring(0, space);
+				long length = space < 0? 0 :
+					Long.parseLong(line.substring(space + 1));
+				if (!hash.matches("[0-9a-f]{64}") || length <= 0 ||
+						length > MAX_CHUNK) {
+					throw new IOException("bad manifest line: " + line);
+				}
+				hashes.add(hash);
+				offsets.add(offsets.get(offsets.size() - 1) + length);
+			}
+			long[] ends = new long[offsets.size()];
+			for (int i = 0; i < ends.length; i ++) {
+				ends[i] = offsets.get(i);
+			}
+			if (ends[ends.length - 1] != size) {
+				throw new IOException("manifest size does not match");
+			}
+			return new Manifest(hashes.toArray(new String[0]), ends, record);
+		} catch (NumberFormatException e) {
+			throw new IOException("bad manifest: " + e.getMessage(), e);
+		}
+	}
+
+	/** Reads the records of the manifest of a file, as hash and length. */
+	private List<String> readRecords(String name) throws IOException {
+		try {
+			return Files.readAllLines(records.resolve(name),
+					StandardCharsets.UTF_8);
+		} catch (NoSuchFileException e) {
+			return new ArrayList<>();
+		}
+	}
+
+	/** Replaces the records of a file, so they are never seen half
+	 * written. */
+	private void writeRecords(String name, List<String> lines)
+			throws IOException {
+		Path path = records.resolve(name);
+		if (lines.isEmpty()) {
+			Files.deleteIfExists(path);
+			return;
+		}
+		Files.createDirectories(records);
+		Path temp = Files.createTempFile(records, ".record", ".tmp");
+		try {
+			Files.write(temp, lines, StandardCharsets.UTF_8);
+			try {
+				Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * <b><em>copy</em></b>
+	 *
+	 * <p>Sends part of a stored file to a blocking channel, chunk by chunk,
+	 * with {@link Transfers#sendFile(FileChannel, long, long,
+	 * WritableByteChannel)} so chunks can go straight from the page cache to
+	 * a socket.</p>
+	 *
+	 * @param manifest - the manifest of the file.
+	 * @param position - the position in the file to start at.
+	 * @param count - the number of bytes to send.
+	 * @param target - the channel to send to.
+	 *
+	 * @return the number of bytes sent.
+	 * @throws IOException if a chunk is missing or could not be sent.
+	 */
+	public long copy(Manifest manifest, long position, long count,
+			WritableByteChannel target) throws IOException {
+		long[] offsets = manifest.offsets;
+		int i = Arrays.binarySearch(offsets, position);
+		i = i >= 0? i : -i - 2;
+		long sent = 0;
+		for (; sent < count && i < manifest.hashes.length; i ++) {
+			long start = Math.max(position + sent - offsets[i], 0);
+			long n = Math.min(offsets[i+1] - offsets[i] - start, count - sent);
+			try (FileChannel chunk = FileChannel.open(
+					pathOf(manifest.hashes[i]), StandardOpenOption.READ)) {
+				sent += Transfers.sendFile(chunk, start, n, target);
+			}
+		}
+		return sent;
+	}
+
+	/**
+	 * <b><em>newInputStream</em></b>
+	 *
+	 * @param manifest - the manifest of a stored file.
+	 *
+	 * @return a stream of the file, which opens each chunk as it gets to
+	 * it.
+	 */
+	public InputStream newInputStream(Manifest manifest) {
+		return new SequenceInputStream(new Enumeration<InputStream>() {
+
+			/** The next chunk to open. */
+			private int next;
+
+			@Override
+			public boolean hasMoreElements() {
+				return next < manifest.hashes.length;
+			}
+
+			@Override
+			public InputStream nextElement() {
+				try {
+					return Files.newInputStream(pathOf(
+							manifest.hashes[next++]));
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * <b><em>collectGarbage</em></b>
+	 *
+	 * <p>Deletes the chunks that no manifest in a directory uses any more,
+	 * e.g. after files were replaced or deleted, and the records of files
+	 * that are no longer manifests. Chunks written in the last hour are
+	 * kept, since a file being stored may still need them.</p>
+	 *
+	 * @param dir - the directory with the manifests.
+	 *
+	 * @return the number of chunks deleted.
+	 * @throws IOException if the directory or store could not be listed.
+	 */
+	public synchronized int collectGarbage(Path dir) throws IOException {
+
+		// Find every chunk in use
+		Set<String> used = new HashSet<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
+			for (Path path : stream) {
+				if (!Files.isRegularFile(path)) {
+					continue;
+				}
+				try (FileChannel file = FileChannel.open(path,
+						StandardOpenOption.READ)) {
+					Manifest manifest = readManifest(path, file);
+					if (manifest != null) {
+						used.addAll(Arrays.asList(manifest.hashes));
+					}
+				}
+			}
+		}
+
+		// Forget the files that were deleted or replaced by plain files
+		if (Files.isDirectory(records)) {
+			try (DirectoryStream<Path> stream =
+					Files.newDirectoryStream(records)) {
+				for (Path record : stream) {
+					String name = record.getFileName().toString();
+					if (FTServer.isValidName(name)) {
+						synchronized (recordLock) {
+							if (!isRecorded(dir.resolve(name))) {
+								Files.deleteIfExists(record);
+							}
+						}
+					}
+				}
+			}
+		}
+
+		// Delete the rest
+		if (!Files.isDirectory(chunks)) {
+			return 0;
+		}
+		long oldest = System.currentTimeMillis() - COLLECT_GRACE;
+		int deleted = 0;
+		try (DirectoryStream<Path> prefixes = Files.newDirectoryStream(chunks)) {
+			for (Path prefix : prefixes) {
+				try (DirectoryStream<Path> stream =
+						Files.newDirectoryStream(prefix)) {
+					for (Path chunk : stream) {
+						String name = chunk.getFileName().toString();
+						if (!used.contains(name) && Files.getLastModifiedTime(
+								chunk).toMillis() < oldest) {
+							Files.deleteIfExists(chunk);
+							deleted ++;
+						}
+					}
+				}
+			}
+		}
+		return deleted;
+	}
+
+	/** Checks if a file is a manifest the store recorded. */
+	private boolean isRecorded(Path path) throws IOException {
+		try (FileChannel file = FileChannel.open(path,
+				StandardOpenOption.READ)) {
+			return readManifest(path, file) != null;
+		} catch (NoSuchFileException e) {
+			return false;
+		}
+	}
+
+	/** Adds a chunk to the store if it is not there yet, returns its hash. */
+	private String put(MessageDigest digest, byte[] data, int length)
+			throws IOException {
+		digest.reset();
+		digest.update(data, 0, length);
+		String hash = toHex(digest.digest());
+		totalChunks.increment();
+		Path path = pathOf(hash);
+		if (Files.exists(path)) {
+			duplicateChunks.increment();
+			return hash;
+		}
+
+		// Write it next to where it goes and move it into place, so a chunk
+		// is never seen half written
+		Files.createDirectories(path.getParent());
+		Path temp = Files.createTempFile(path.getParent(), hash, ".tmp");
+		try {
+			try (FileChannel out = FileChannel.open(temp,
+					StandardOpenOption.WRITE)) {
+				ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+				while (buffer.hasRemaining()) {
+					out.write(buffer);
+				}
+			}
+			try {
+				Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, path);
+			}
+			storedBytes.add(length);
+		} catch (FileAlreadyExistsException e) {
+			duplicateChunks.increment();
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+		return hash;
+	}
+
+	/** Gets the path of the chunk with a hash. */
+	private Path pathOf(String hash) throws IOException {
+		if (hash.length() < 3 || !hash.matches("[0-9a-f]+")) {
+			throw new IOException("bad chunk hash: " + hash);
+		}
+		return chunks.resolve(hash.substring(0, 2)).resolve(hash);
+	}
+
+	private static MessageDigest sha256() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder sb = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+				.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	public Path getChunkDirectory() {
+		return chunks;
+	}
+
+	public long getLogicalBytes() {
+		return logicalBytes.sum();
+	}
+
+	public long getStoredBytes() {
+		return storedBytes.sum();
+	}
+
+	public long getTotalChunks() {
+		return totalChunks.sum();
+	}
+
+	public long getDuplicateChunks() {
+		return duplicateChunks.sum();
+	}
+
+	/**
+	 * <b><em>getDedupRatio</em></b>
+	 *
+	 * @return the bytes of file data stored for each byte of new chunks
+	 * written, or 1 if nothing was stored yet.
+	 */
+	public double getDedupRatio() {
+		long stored = getStoredBytes();
+		return stored == 0? 1 : getLogicalBytes() / (double) stored;
+	}
+
+	@Override
+	public String toString() {
+		return "DedupStore[" + chunks + ", logical=" + getLogicalBytes() +
+				", stored=" + getStoredBytes() + ", chunks=" +
+				getTotalChunks() + ", duplicates=" + getDuplicateChunks() +
+				String.format(", ratio=%.2f]", getDedupRatio());
+	}
+
+	/**
+	 * The {@code Manifest} class is the list of chunks a stored file is made
+	 * of.
+	 */
+	public static class Manifest {
+
+		/** The hashes of the chunks, in order. */
+		private final String[] hashes;
+
+		/** The position of each chunk in the file, followed by the size of
+		 * the file. */
+		private final long[] offsets;
+
+		/** The hash and length of the manifest file, as it is recorded. */
+		private final String record;
+
+		private Manifest(String[] hashes, long[] offsets, String record) {
+			this.hashes = hashes;
+			this.offsets = offsets;
+			this.record = record;
+		}
+
+		public long getSize() {
+			return offsets[offsets.length - 1];
+		}
+
+		public int getChunkCount() {
+			return hashes.length;
+		}
+	}
+}
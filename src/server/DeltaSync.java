@@ -0,0 +1,528 @@
+package server;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The {@code DeltaSync} class updates a file that the other side already
+ * has an older copy of by sending only what changed, the way rsync does.
+ * <ol>
+ * <li>The side with the old copy (the basis) splits it into blocks and sends
+ * a {@link Signature}: a cheap rolling checksum and an MD5 hash of each
+ * block.</li>
+ * <li>The side with the new file slides a window over it one byte at a time,
+ * and looks the rolling checksum of the window up in the signature. When the
+ * hash matches too, it sends an instruction to copy that block of the basis
+ * instead of the data. Everything in between is sent as it is. See
+ * {@link #delta(Signature, InputStream, OutputStream, CompressionStats)}.
+ * </li>
+ * <li>The side with the basis rebuilds the new file from the blocks and the
+ * data, see {@link #apply(InputStream, Basis, WritableByteChannel,
+ * CompressionStats)}.</li>
+ * </ol>
+ * <p>
+ * Blocks are matched at any position, so data that was inserted or removed
+ * only costs the blocks around it. A delta is made of {@code C start count}
+ * (copy blocks), {@code D length data} (new data) and {@code E} (end)
+ * instructions, after the block size and size of the basis. Signatures and
+ * deltas mark their own end, so they can be sent without a length.
+ */
+public class DeltaSync {
+
+	/** The smallest block size. */
+	public static final int MIN_BLOCK = 2048;
+
+	/** The largest block size. */
+	public static final int MAX_BLOCK = 128 * 1024;
+
+	/** Files smaller than this are not worth a signature and are sent
+	 * whole. */
+	public static final long MIN_SIZE = 64 * 1024;
+
+	/** The most new data in one instruction. */
+	private static final int MAX_DATA = 64 * 1024;
+
+	/** Copy blocks of the basis. */
+	private static final int COPY = 'C';
+
+	/** New data. */
+	private static final int DATA = 'D';
+
+	/** The end of the delta. */
+	private static final int END = 'E';
+
+	/** The length of the MD5 hash of a block. */
+	private static final int HASH_LENGTH = 16;
+
+	/**
+	 * The {@code Basis} interface reads the old copy of a file while a delta
+	 * is applied.
+	 */
+	public interface Basis {
+
+		/**
+		 * <b><em>copy</em></b>
+		 *
+		 * @param position - the position in the basis to start at.
+		 * @param count - the number of bytes to copy.
+		 * @param target - the channel to copy to.
+		 *
+		 * @return the number of bytes copied.
+		 * @throws IOException if the basis could not be read.
+		 */
+		long copy(long position, long count, WritableByteChannel target)
+				throws IOException;
+	}
+
+	/**
+	 * <b><em>blockSize</em></b>
+	 *
+	 * <p>Gets the block size for a file, which is about the square root of
+	 * its size so the signature and the cost of a change stay balanced.</p>
+	 *
+	 * @param size - the size of the file.
+	 *
+	 * @return the block size.
+	 */
+	public static int blockSize(long size) {
+		long root = ((long) Math.sqrt(size) + 1023) / 1024 * 1024;
+		return (int) Math.max(MIN_BLOCK, Math.min(MAX_BLOCK, root));
+	}
+
+	/**
+	 * <b><em>signature</em></b>
+	 *
+	 * <p>Computes the signature of a file.</p>
+	 *
+	 * @param in - the stream with the file. It is not closed.
+	 * @param size - the size of the file.
+	 *
+	 * @return the signature.
+	 * @throws IOException if the file could not be read.
+	 */
+	public static Signature signature(InputStream in, long size)
+			throws IOException {
+		int blockSize = blockSize(size);
+		int count = (int) ((size + blockSize - 1) / blockSize);
+		int[] weak = new int[count];
+		byte[][] strong = new byte[count][];
+		MessageDigest md5 = md5();
+		DataInputStream data = new DataInputStream(in);
+		byte[] block = new byte[blockSize];
+		for (int i = 0; i < count; i ++) {
+			int n = (int) Math.min(blockSize, size - (long) i * blockSize);
+			data.readFully(block, 0, n);
+			weak[i] = checksum(block, 0, n);
+			md5.update(block, 0, n);
+			strong[i] = md5.digest();
+		}
+		return new Signature(blockSize, size, weak, strong);
+	}
+
+	/**
+	 * <b><em>delta</em></b>
+	 *
+	 * <p>Computes the delta that turns the file a signature was made from
+	 * into a new file, and writes it as it goes.</p>
+	 *
+	 * @param signature - the signature of the basis.
+	 * @param in - the stream with the new file. It is not closed.
+	 * @param out - the stream to write the delta to. It is flushed but not
+	 * closed.
+	 * @param stats - counts the size of the new file and of the delta, or
+	 * null.
+	 *
+	 * @return the number of bytes of the delta.
+	 * @throws IOException if the file could not be read or the delta could
+	 * not be written.
+	 */
+	public static long delta(Signature signature, InputStream in,
+			OutputStream out, CompressionStats stats) throws IOException {
+		DeltaWriter writer = new DeltaWriter(signature, out);
+		int n = signature.blockSize;
+		byte[] buf = new byte[2 * MAX_DATA + 2 * n];
+		int start = 0;
+		int window = 0;
+		int end = 0;
+		boolean eof = false;
+		boolean rolling = false;
+		int a = 0;
+		int b = 0;
+		long length = 0;
+		while (true) {
+
+			// Make sure the window and the byte after it are read
+			if (end - window <= n && !eof) {
+				if (end == buf.length) {
+					System.arraycopy(buf, start, buf, 0, end - start);
+					window -= start;
+					end -= start;
+					start = 0;
+				}
+				int r = in.read(buf, end, buf.length - end);
+				if (r < 0) {
+					eof = true;
+				} else {
+					end += r;
+					length += r;
+				}
+				continue;
+			}
+			if (end - window < n) {
+				break;
+			}
+
+			// Look the window up in the signature
+			if (!rolling) {
+				a = 0;
+				b = 0;
+				for (int i = 0; i < n; i ++) {
+					int x = buf[window + i] & 0xff;
+					a += x;
+					b += (n - i) * x;
+				}
+				rolling = true;
+			}
+			int block = writer.find((a & 0xffff) | (b << 16), buf, window, n);
+			if (block >= 0) {
+				writer.data(buf, start, window - start);
+				writer.copy(block);
+				window += n;
+				start = window;
+				rolling = false;
+				continue;
+			}
+
+			// Slide the window one byte
+			if (window + n >= end) {
+				break;
+			}
+			int o = buf[window] & 0xff;
+			a += (buf[window + n] & 0xff) - o;
+			b += a - n * o;
+			window ++;
+			if (window - start >= MAX_DATA) {
+				writer.data(buf, start, window - start);
+				start = window;
+			}
+		}
+
+		// The end of the file may match the last block, which is shorter
+		int rest = end - window;
+		if (rest > 0 && rest < n) {
+			int block = writer.find(checksum(buf, window, rest), buf, window,
+					rest);
+			if (block >= 0) {
+				writer.data(buf, start, window - start);
+				writer.copy(block);
+				start = end;
+			}
+		}
+		writer.data(buf, start, end - start);
+		long written = writer.finish();
+		if (stats != null) {
+			stats.addSent(length, written);
+		}
+		return written;
+	}
+
+	/**
+	 * <b><em>apply</em></b>
+	 *
+	 * <p>Rebuilds a new file from a delta and the basis the signature was
+	 * made from.</p>
+	 *
+	 * @param in - the stream with the delta. It is not closed, and nothing
+	 * after the delta is read.
+	 * @param basis - the old copy of the file.
+	 * @param target - the channel to write the new file to.
+	 * @param stats - counts the size of the delta and of the new file, or
+	 * null.
+	 *
+	 * @return the size of the new file.
+	 * @throws IOException if the delta is not valid, or the basis could not
+	 * be read or the file written.
+	 */
+	public static long apply(InputStream in, Basis basis,
+			WritableByteChannel target, CompressionStats stats)
+			throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		int blockSize = data.readInt();
+		long basisSize = data.readLong();
+		if (blockSize < MIN_BLOCK || blockSize > MAX_BLOCK || basisSize < 0) {
+			throw new IOException("bad delta: block size " + blockSize);
+		}
+		byte[] buffer = new byte[MAX_DATA];
+		long length = 0;
+		long read = 12;
+		while (true) {
+			int op = data.read();
+			read ++;
+			if (op == END) {
+				break;
+			} else if (op == COPY) {
+				long position = (long) data.readInt() * blockSize;
+				int count = data.readInt();
+				read += 8;
+				long n = Math.min((long) count * blockSize,
+						basisSize - position);
+				if (position < 0 || count <= 0 || n <= 0) {
+					throw new IOException("bad delta: copy " + count +
+							" blocks at " + position);
+				}
+				if (basis.copy(position, n, target) != n) {
+					throw new IOException("basis is shorter than " +
+							basisSize + " bytes");
+				}
+				length += n;
+			} else if (op == DATA) {
+				int n = data.readInt();
+				if (n <= 0 || n > MAX_DATA) {
+					throw new IOException("bad delta: data of " + n +
+							" bytes");
+				}
+				data.readFully(buffer, 0, n);
+				ByteBuffer bb = ByteBuffer.wrap(buffer, 0, n);
+				while (bb.hasRemaining()) {
+					target.write(bb);
+				}
+				read += 4 + n;
+				length += n;
+			} else {
+				throw new IOException(op < 0? "delta ended early" :
+						"bad delta: instruction " + op);
+			}
+		}
+		if (stats != null) {
+			stats.addReceived(length, read);
+		}
+		return length;
+	}
+
+	/** Computes the rolling checksum of a block. */
+	private static int checksum(byte[] buf, int offset, int n) {
+		int a = 0;
+		int b = 0;
+		for (int i = 0; i < n; i ++) {
+			int x = buf[offset + i] & 0xff;
+			a += x;
+			b += (n - i) * x;
+		}
+		return (a & 0xffff) | (b << 16);
+	}
+
+	private static MessageDigest md5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * The {@code Signature} class is the checksums of the blocks of a file.
+	 */
+	public static class Signature {
+
+		/** The size of the blocks. The last one may be shorter. */
+		private final int blockSize;
+
+		/** The size of the file. */
+		private final long size;
+
+		/** The rolling checksum of each block. */
+		private final int[] weak;
+
+		/** The MD5 hash of each block. */
+		private final byte[][] strong;
+
+		private Signature(int blockSize, long size, int[] weak,
+				byte[][] strong) {
+			this.blockSize = blockSize;
+			this.size = size;
+			this.weak = weak;
+			this.strong = strong;
+		}
+
+		/**
+		 * <b><em>writeTo</em></b>
+		 *
+		 * @param out - the stream to write the signature to. It is flushed
+		 * but not closed.
+		 *
+		 * @throws IOException if the signature could not be written.
+		 */
+		public void writeTo(OutputStream out) throws IOException {
+			DataOutputStream data = new DataOutputStream(
+					new BufferedOutputStream(out, Transfers.BUFFER_SIZE));
+			data.writeInt(blockSize);
+			data.writeLong(size);
+			data.writeInt(weak.length);
+			for (int i = 0; i < weak.length; i ++) {
+				data.writeInt(weak[i]);
+				data.write(strong[i]);
+			}
+			data.flush();
+		}
+
+		/**
+		 * <b><em>readFrom</em></b>
+		 *
+		 * @param in - the stream to read the signature from. It is not
+		 * closed, and nothing after the signature is read.
+		 *
+		 * @return the signature.
+		 * @throws IOException if the signature could not be read or is not
+		 * valid.
+		 */
+		public static Signature readFrom(InputStream in) throws IOException {
+			DataInputStream data = new DataInputStream(in);
+			int blockSize = data.readInt();
+			long size = data.readLong();
+			int count = data.readInt();
+			if (blockSize < MIN_BLOCK || blockSize > MAX_BLOCK || size < 0 ||
+					count != (size + blockSize - 1) / blockSize) {
+				throw new IOException("bad signature: " + count +
+						" blocks of " + blockSize + " for " + size + " bytes");
+			}
+			int[] weak = new int[count];
+			byte[][] strong = new byte[count][HASH_LENGTH];
+			for (int i = 0; i < count; i ++) {
+				weak[i] = data.readInt();
+				data.readFully(strong[i]);
+			}
+			return new Signature(blockSize, size, weak, strong);
+		}
+
+		public int getBlockSize() {
+			return blockSize;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public int getBlockCount() {
+			return weak.length;
+		}
+	}
+
+	/** Writes the instructions of a delta, joining copies of runs of
+	 * blocks. */
+	private static class DeltaWriter {
+
+		/** The signature of the basis. */
+		private final Signature signature;
+
+		/** The stream the delta is written to. */
+		private final DataOutputStream out;
+
+		/** The first block with each checksum. */
+		private final Map<Integer, Integer> first = new HashMap<>();
+
+		/** The next block with the same checksum, or -1. */
+		private final int[] next;
+
+		/** Computes the hash of a window that may match. */
+		private final MessageDigest md5 = md5();
+
+		/** The first block of the copy not written yet, or -1. */
+		private int copyStart = -1;
+
+		/** The number of blocks in that copy. */
+		private int copyCount;
+
+		private DeltaWriter(Signature signature, OutputStream out)
+				throws IOException {
+			this.signature = signature;
+			this.out = new DataOutputStream(new BufferedOutputStream(out,
+					Transfers.BUFFER_SIZE));
+			this.next = new int[signature.weak.length];
+			for (int i = next.length - 1; i >= 0; i --) {
+				Integer known = first.put(signature.weak[i], i);
+				next[i] = known == null? -1 : known;
+			}
+			this.out.writeInt(signature.blockSize);
+			this.out.writeLong(signature.size);
+		}
+
+		/** Finds a block of the basis that matches a window, or -1. */
+		private int find(int checksum, byte[] buf, int offset, int n) {
+			Integer block = first.get(checksum);
+			if (block == null) {
+				return -1;
+			}
+			byte[] hash = null;
+			for (int i = block; i >= 0; i = next[i]) {
+				long blockLength = Math.min(signature.blockSize,
+						signature.size - (long) i * signature.blockSize);
+				if (blockLength != n) {
+					continue;
+				}
+				if (hash == null) {
+					md5.update(buf, offset, n);
+					hash = md5.digest();
+				}
+				if (Arrays.equals(hash, signature.strong[i])) {
+					return i;
+				}
+			}
+			return -1;
+		}
+
+		/** Adds a block to the copy, writing the last copy if it is not
+		 * the block before. */
+		private void copy(int block) throws IOException {
+			if (copyStart >= 0 && copyStart + copyCount == block) {
+				copyCount ++;
+				return;
+			}
+			flushCopy();
+			copyStart = block;
+			copyCount = 1;
+		}
+
+		/** Writes new data. */
+		private void data(byte[] buf, int offset, int n) throws IOException {
+			if (n <= 0) {
+				return;
+			}
+			flushCopy();
+			for (int i = 0; i < n; i += MAX_DATA) {
+				int length = Math.min(MAX_DATA, n - i);
+				out.write(DATA);
+				out.writeInt(length);
+				out.write(buf, offset + i, length);
+			}
+		}
+
+		/** Writes the copy that is being joined, if any. */
+		private void flushCopy() throws IOException {
+			if (copyStart >= 0) {
+				out.write(COPY);
+				out.writeInt(copyStart);
+				out.writeInt(copyCount);
+				copyStart = -1;
+			}
+		}
+
+		/** Ends the delta and returns its size. */
+		private long finish() throws IOException {
+			flushCopy();
+			out.write(END);
+			out.flush();
+			return out.size();
+		}
+	}
+}
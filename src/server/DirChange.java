@@ -0,0 +1,88 @@
+package server;
+
+/**
+ * The {@code DirChange} class is one line of an incremental DIR response: a
+ * file that was added, removed or modified since the version the client
+ * already has. Added and modified files carry their current
+ * {@link FileEntry}.
+ */
+public class DirChange {
+
+	/** The kinds of change. */
+	public enum Kind {
+
+		/** The file was created. */
+		ADDED,
+
+		/** The file was deleted. */
+		REMOVED,
+
+		/** The size or modification time of the file changed. */
+		MODIFIED
+	}
+
+	/** What happened to the file. */
+	private final Kind kind;
+
+	/** The name of the file. */
+	private final String name;
+
+	/** The file as it is now, or null if it was removed. */
+	private final FileEntry entry;
+
+	/**
+	 * Constructs a change.
+	 *
+	 * @param kind - what happened to the file.
+	 * @param name - the name of the file.
+	 * @param entry - the file as it is now, or null if it was removed.
+	 */
+	public DirChange(Kind kind, String name, FileEntry entry) {
+		this.kind = kind;
+		this.name = name;
+		this.entry = entry;
+	}
+
+	/**
+	 * <b><em>toHeader</em></b>
+	 *
+	 * @return the change as a protocol line, e.g.
+	 * {@code ADDED size=12 mtime=1490400000000 notes.txt} or
+	 * {@code REMOVED notes.txt}.
+	 */
+	public Header toHeader() {
+		return entry == null? new Header(kind.name()).arg(name) :
+			entry.toHeader(kind.name());
+	}
+
+	/**
+	 * <b><em>fromHeader</em></b>
+	 *
+	 * @param header - a line from {@link #toHeader()}.
+	 *
+	 * @return the change described by the line.
+	 * @throws IllegalArgumentException if the verb is not a kind of change.
+	 */
+	public static DirChange fromHeader(Header header) {
+		Kind kind = Kind.valueOf(header.getVerb());
+		return new DirChange(kind, header.getArg(0), kind == Kind.REMOVED?
+				null : FileEntry.fromHeader(header));
+	}
+
+	public Kind getKind() {
+		return kind;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public FileEntry getEntry() {
+		return entry;
+	}
+
+	@Override
+	public String toString() {
+		return kind + " " + name;
+	}
+}
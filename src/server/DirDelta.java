@@ -0,0 +1,55 @@
+package server;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The {@code DirDelta} class is the answer to an incremental DIR request: the
+ * changes since the version the client has, and the token of the version the
+ * client has once it applied them. If the server can no longer tell what
+ * changed (the token is from an earlier run of the server, or older than the
+ * change log) the delta is a reset, and the client has to drop its list and
+ * rebuild it from the changes, which then add every file.
+ */
+public class DirDelta {
+
+	/** The token of the version after the changes. */
+	private final String token;
+
+	/** True if the client must drop its list before applying the changes. */
+	private final boolean reset;
+
+	/** The changes, at most one per file. */
+	private final List<DirChange> changes;
+
+	/**
+	 * Constructs a delta.
+	 *
+	 * @param token - the token of the version after the changes.
+	 * @param reset - true if the client must start from an empty list.
+	 * @param changes - the changes, at most one per file.
+	 */
+	public DirDelta(String token, boolean reset, List<DirChange> changes) {
+		this.token = token;
+		this.reset = reset;
+		this.changes = Collections.unmodifiableList(changes);
+	}
+
+	public String getToken() {
+		return token;
+	}
+
+	public boolean isReset() {
+		return reset;
+	}
+
+	public List<DirChange> getChanges() {
+		return changes;
+	}
+
+	@Override
+	public String toString() {
+		return "DirDelta[" + token + (reset? ", reset" : "") + ", changes=" +
+				changes.size() + "]";
+	}
+}
@@ -0,0 +1,250 @@
+package server;
+
+import java.nio.file.FileSystems;
+import java.nio.file.PathMatcher;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * The {@code DirQuery} class describes which page of the file list a version
+ * 2 DIR request wants: the files are filtered by a name prefix and/or a glob,
+ * sorted, and then {@link #getOffset()} files are skipped and at most
+ * {@link #getLimit()} are returned. The query is sent as options of the DIR
+ * header, see {@link #toHeader()} and {@link #fromHeader(Header)}.
+ */
+public class DirQuery {
+
+	/** The ways the files can be sorted. */
+	public enum Sort {
+
+		/** By name. The index is already in this order, so entries can be
+		 * streamed without sorting. */
+		NAME,
+
+		/** By size. */
+		SIZE,
+
+		/** By last modified time. */
+		MODIFIED
+	}
+
+	/** The number of matching files to skip. */
+	private long offset;
+
+	/** The most files to return, or -1 for no limit. */
+	private long limit = -1;
+
+	/** The prefix every name must start with, or null. */
+	private String prefix;
+
+	/** The glob every name must match, or null. */
+	private String glob;
+
+	/** How to sort the files. */
+	private Sort sort = Sort.NAME;
+
+	/** True to sort from largest to smallest. */
+	private boolean descending;
+
+	/**
+	 * <b><em>fromHeader</em></b>
+	 *
+	 * @param request - the header of a DIR request.
+	 *
+	 * @return the query described by the options of the header.
+	 * @throws IllegalArgumentException if an option is not valid.
+	 */
+	public static DirQuery fromHeader(Header request) {
+		DirQuery query = new DirQuery();
+		query.offset = Math.max(0, request.getLong("offset", 0));
+		query.limit = request.getLong("limit", -1);
+		query.prefix = request.get("prefix");
+		query.glob = request.get("glob");
+		query.sort = Sort.valueOf(request.get("sort", "name").toUpperCase());
+		query.descending = "desc".equals(request.get("order"));
+		return query;
+	}
+
+	/**
+	 * <b><em>toHeader</em></b>
+	 *
+	 * @return a DIR header with the options for this query, which asks for
+	 * the size and modification time of every file.
+	 */
+	public Header toHeader() {
+		Header header = new Header(FTServer.LIST_DIRECTORIES)
+				.set("detail", true);
+		if (offset > 0) {
+			header.set("offset", offset);
+		}
+		if (limit >= 0) {
+			header.set("limit", limit);
+		}
+		header.set("prefix", prefix).set("glob", glob);
+		if (sort != Sort.NAME) {
+			header.set("sort", sort.name().toLowerCase());
+		}
+		if (descending) {
+			header.set("order", "desc");
+		}
+		return header;
+	}
+
+	/**
+	 * <b><em>apply</em></b>
+	 *
+	 * <p>Runs the query over the files on the server. When sorting by name,
+	 * matching files are produced one at a time as the result is iterated,
+	 * otherwise the matching files are collected and sorted first.</p>
+	 *
+	 * @param server - the server with the files.
+	 *
+	 * @return the page of matching files.
+	 */
+	public Iterator<FileEntry> apply(FTServer server) {
+		Collection<FileEntry> source = server.listEntries(prefix,
+				sort == Sort.NAME && descending);
+		Iterator<FileEntry> matching = new Filter(source.iterator());
+
+		// Sort if needed
+		if (sort != Sort.NAME) {
+			List<FileEntry> sorted = new ArrayList<>();
+			matching.forEachRemaining(sorted::add);
+			Comparator<FileEntry> cmp = sort == Sort.SIZE?
+					Comparator.comparingLong(FileEntry::getSize) :
+						Comparator.comparingLong(FileEntry::getLastModified);
+			sorted.sort(descending? cmp.reversed() : cmp);
+			matching = sorted.iterator();
+		}
+
+		// Skip to the page
+		for (long i = 0; i < offset && matching.hasNext(); i ++) {
+			matching.next();
+		}
+		return limit < 0? matching : new Limit(matching, limit);
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public DirQuery setOffset(long offset) {
+		this.offset = offset;
+		return this;
+	}
+
+	public long getLimit() {
+		return limit;
+	}
+
+	public DirQuery setLimit(long limit) {
+		this.limit = limit;
+		return this;
+	}
+
+	public String getPrefix() {
+		return prefix;
+	}
+
+	public DirQuery setPrefix(String prefix) {
+		this.prefix = prefix;
+		return this;
+	}
+
+	public String getGlob() {
+		return glob;
+	}
+
+	public DirQuery setGlob(String glob) {
+		this.glob = glob;
+		return this;
+	}
+
+	public Sort getSort() {
+		return sort;
+	}
+
+	public DirQuery setSort(Sort sort) {
+		this.sort = sort == null? Sort.NAME : sort;
+		return this;
+	}
+
+	public boolean isDescending() {
+		return descending;
+	}
+
+	public DirQuery setDescending(boolean descending) {
+		this.descending = descending;
+		return this;
+	}
+
+	/** Passes only the files that match the prefix and glob. */
+	private class Filter implements Iterator<FileEntry> {
+
+		private final Iterator<FileEntry> source;
+
+		private final PathMatcher matcher = glob == null? null :
+			FileSystems.getDefault().getPathMatcher("glob:" + glob);
+
+		private FileEntry next;
+
+		private Filter(Iterator<FileEntry> source) {
+			this.source = source;
+		}
+
+		@Override
+		public boolean hasNext() {
+			while (next == null && source.hasNext()) {
+				FileEntry entry = source.next();
+				if ((prefix == null || entry.getName().startsWith(prefix)) &&
+						(matcher == null ||
+						matcher.matches(Paths.get(entry.getName())))) {
+					next = entry;
+				}
+			}
+			return next != null;
+		}
+
+		@Override
+		public FileEntry next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			FileEntry entry = next;
+			next = null;
+			return entry;
+		}
+	}
+
+	/** Stops after a number of files. */
+	private static class Limit implements Iterator<FileEntry> {
+
+		private final Iterator<FileEntry> source;
+
+		private long remaining;
+
+		private Limit(Iterator<FileEntry> source, long limit) {
+			this.source = source;
+			this.remaining = limit;
+		}
+
+		@Override
+		public boolean hasNext() {
+			return remaining > 0 && source.hasNext();
+		}
+
+		@Override
+		public FileEntry next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			remaining --;
+			return source.next();
+		}
+	}
+}
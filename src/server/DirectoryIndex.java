@@ -0,0 +1,599 @@
+package server;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The {@code DirectoryIndex} class keeps the list of files in the shared path
+ * in memory, so a DIR request does not have to list the directory and stat
+ * every file. The index is built once and then kept current with
+ * {@link WatchService} events. Since events can be lost (e.g. when the
+ * watch service overflows), the whole directory is also reconciled with the
+ * index every {@link #getReconcileInterval()} milliseconds.
+ * <p>
+ * Entries are kept in name order. If the index is not valid when it is used
+ * (it is not started, or an overflow was seen) it is rebuilt on the spot,
+ * which is counted as a miss. The directory is scanned without holding the
+ * lock on the index, so a rebuild does not hold up the updates the server
+ * makes as it changes files.
+ * <p>
+ * Every change to the index gets a new version number, and the last
+ * {@link #getMaxChanges()} changes are logged, so a client that knows the
+ * {@link #getToken() token} of an earlier version can be sent just the files
+ * that changed since (see {@link #changesSince(String)}). Tokens start with
+ * the time the index was created, so tokens from another index (e.g. before
+ * the server restarted) are never mistaken for one of this index.
+ */
+public class DirectoryIndex {
+
+	/** The default number of changes kept in the change log. */
+	public static final int DEFAULT_MAX_CHANGES = 10000;
+
+	/** The default time between reconciliations, in milliseconds. */
+	public static final long DEFAULT_RECONCILE_INTERVAL = 60 * 1000;
+
+	/** The directory being indexed. */
+	private final Path dir;
+
+	/** The store the manifests in the directory point into, or null. */
+	private final DedupStore store;
+
+	/** The files in the directory, by name. */
+	private final ConcurrentSkipListMap<String, FileEntry> entries =
+			new ConcurrentSkipListMap<>();
+
+	/** Identifies this index in version tokens. */
+	private final long epoch = System.currentTimeMillis();
+
+	/** The version of the index, which goes up with every change. */
+	private long version;
+
+	/** The most recent changes, oldest first. The last one is for
+	 * {@link #version}, and the versions have no gaps. */
+	private final ArrayDeque<LoggedChange> changeLog = new ArrayDeque<>();
+
+	/** The number of changes kept in the change log. */
+	private volatile int maxChanges = DEFAULT_MAX_CHANGES;
+
+	/** The time between reconciliations, in milliseconds. */
+	private volatile long reconcileInterval = DEFAULT_RECONCILE_INTERVAL;
+
+	/** False until the index is built, or after events were lost. */
+	private volatile boolean valid;
+
+	/** Lets one rebuild at a time scan the directory. It is never taken
+	 * while holding the lock on the index. */
+	private final Object scanLock = new Object();
+
+	/** The names updated while a rebuild scans the directory, whose entries
+	 * are newer than the scan, or null if no rebuild is scanning. */
+	private Set<String> touched;
+
+	/** The watch service, or null if the index is not running. */
+	private WatchService watcher;
+
+	/** The number of times the index was used while it was valid. */
+	private final LongAdder hits = new LongAdder();
+
+	/** The number of times the index had to be rebuilt before use. */
+	private final LongAdder misses = new LongAdder();
+
+	/** The number of times the index was built from the directory. */
+	private final LongAdder rebuilds = new LongAdder();
+
+	/** The number of watch events applied. */
+	private final LongAdder events = new LongAdder();
+
+	/** The number of entries a reconciliation found out of date. */
+	private final LongAdder corrections = new LongAdder();
+
+	/**
+	 * Constructs an index of a directory. The index is empty until it is
+	 * used or {@link #start()} is called.
+	 *
+	 * @param dir - the directory to index.
+	 */
+	public DirectoryIndex(Path dir) {
+		this(dir, null);
+	}
+
+	/**
+	 * Constructs an index of a directory with files in a
+	 * {@link DedupStore}. Manifests are listed with the size of the file
+	 * they stand for.
+	 *
+	 * @param dir - the directory to index.
+	 * @param store - the store, or null if there is none.
+	 */
+	public DirectoryIndex(Path dir, DedupStore store) {
+		this.dir = dir;
+		this.store = store;
+	}
+
+	/**
+	 * <b><em>start</em></b>
+	 *
+	 * <p>Builds the index and starts the thread that keeps it current.</p>
+	 *
+	 * @throws IOException if the directory could not be watched.
+	 */
+	public void start() throws IOException {
+		synchronized (this) {
+			if (watcher != null) {
+				return;
+			}
+			watcher = dir.getFileSystem().newWatchService();
+			dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+		}
+		rebuild();
+		Thread t = new Thread(this::watch, "ft-index");
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * <b><em>close</em></b>
+	 *
+	 * <p>Stops keeping the index current.</p>
+	 */
+	public synchronized void close() {
+		if (watcher == null) {
+			return;
+		}
+		try {
+			watcher.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		watcher = null;
+		valid = false;
+	}
+
+	/**
+	 * <b><em>list</em></b>
+	 *
+	 * @return the files in the directory, in name order. The collection is a
+	 * live view that is safe to iterate while the index changes.
+	 */
+	public Collection<FileEntry> list() {
+		ensureValid();
+		return entries.values();
+	}
+
+	/**
+	 * <b><em>list</em></b>
+	 *
+	 * @param prefix - the prefix every name starts with, or null for all.
+	 * @param descending - true for reverse name order.
+	 *
+	 * @return a live view of the files whose names start with the prefix.
+	 * Only the matching part of the index is visited.
+	 */
+	public Collection<FileEntry> list(String prefix, boolean descending) {
+		ensureValid();
+		NavigableMap<String, FileEntry> view = entries;
+		if (prefix != null && !prefix.isEmpty()) {
+			view = entries.subMap(prefix, true, prefix + Character.MAX_VALUE,
+					true);
+		}
+		return (descending? view.descendingMap() : view).values();
+	}
+
+	/**
+	 * <b><em>names</em></b>
+	 *
+	 * @return the names of the files in the directory, in order.
+	 */
+	public String[] names() {
+		ensureValid();
+		return entries.keySet().toArray(new String[0]);
+	}
+
+	/**
+	 * <b><em>get</em></b>
+	 *
+	 * @param name - the name of a file.
+	 *
+	 * @return the entry for the file, or null if there is no such file.
+	 */
+	public FileEntry get(String name) {
+		ensureValid();
+		return entries.get(name);
+	}
+
+	/**
+	 * <b><em>getToken</em></b>
+	 *
+	 * @return the token of the current version of the index.
+	 */
+	public synchronized String getToken() {
+		return epoch + ":" + version;
+	}
+
+	/**
+	 * <b><em>changesSince</em></b>
+	 *
+	 * <p>Works out which files changed since an earlier version of the index.
+	 * A file that changed several times appears once: it was added if it did
+	 * not exist at that version, removed if it does not exist now, and
+	 * modified otherwise. A file that was added and then removed again does
+	 * not appear at all.</p>
+	 *
+	 * <p>If the token is not one of this index, or older than the change log,
+	 * the delta is a reset with no changes, and the caller should send every
+	 * file instead (e.g. from {@link #list()}).</p>
+	 *
+	 * @param since - the token the client has, or null if it has none.
+	 *
+	 * @return the changes and the token of the current version.
+	 */
+	public DirDelta changesSince(String since) {
+		ensureValid();
+		synchronized (this) {
+			return changesSince(parseToken(since));
+		}
+	}
+
+	/** Works out the changes since a version. Callers hold the lock on the
+	 * index. */
+	private DirDelta changesSince(long from) {
+		if (from < 0 || from > version || from < version - changeLog.size()) {
+			return new DirDelta(getToken(), true,
+					Collections.<DirChange>emptyList());
+		}
+
+		// Walk back to the client's version, keeping the earliest change to
+		// each file
+		Map<String, Boolean> existed = new TreeMap<>();
+		Iterator<LoggedChange> it = changeLog.descendingIterator();
+		while (it.hasNext()) {
+			LoggedChange change = it.next();
+			if (change.version <= from) {
+				break;
+			}
+			existed.put(change.name, change.existed);
+		}
+
+		// Compare with the files as they are now
+		List<DirChange> changes = new ArrayList<>();
+		for (Map.Entry<String, Boolean> e : existed.entrySet()) {
+			FileEntry entry = entries.get(e.getKey());
+			if (!e.getValue()) {
+				if (entry != null) {
+					changes.add(new DirChange(DirChange.Kind.ADDED,
+							e.getKey(), entry));
+				}
+			} else if (entry == null) {
+				changes.add(new DirChange(DirChange.Kind.REMOVED,
+						e.getKey(), null));
+			} else {
+				changes.add(new DirChange(DirChange.Kind.MODIFIED,
+						e.getKey(), entry));
+			}
+		}
+		return new DirDelta(getToken(), false, changes);
+	}
+
+	/**
+	 * <b><em>update</em></b>
+	 *
+	 * <p>Reads the attributes of one file again. The server calls this after
+	 * it changes a file so the index is current before the watch event
+	 * arrives.</p>
+	 *
+	 * @param name - the name of the file.
+	 */
+	public synchronized void update(String name) {
+		apply(name, stat(dir.resolve(name)));
+		if (touched != null) {
+			touched.add(name);
+		}
+	}
+
+	/**
+	 * <b><em>rebuild</em></b>
+	 *
+	 * <p>Lists the directory and brings every entry up to date.</p>
+	 *
+	 * @throws IOException if the directory could not be listed.
+	 */
+	public void rebuild() throws IOException {
+		synchronized (scanLock) {
+			synchronized (this) {
+				touched = new HashSet<>();
+			}
+			try {
+
+				// Scan the directory without the lock on the index, since
+				// with a store every file is opened as well
+				Map<String, FileEntry> found = new HashMap<>();
+				if (Files.isDirectory(dir)) {
+					try (DirectoryStream<Path> stream =
+							Files.newDirectoryStream(dir)) {
+						for (Path path : stream) {
+							FileEntry entry = stat(path);
+							if (entry != null) {
+								found.put(entry.getName(), entry);
+							}
+						}
+					}
+				}
+				reconcile(found);
+			} finally {
+				synchronized (this) {
+					touched = null;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Brings the index in line with the files a rebuild found, except for
+	 * the files updated since the scan started, which are newer.
+	 */
+	private synchronized void reconcile(Map<String, FileEntry> found) {
+		long fixed = 0;
+		List<String> removed = new ArrayList<>();
+		for (String name : entries.keySet()) {
+			if (!found.containsKey(name) && !touched.contains(name)) {
+				removed.add(name);
+			}
+		}
+		for (String name : removed) {
+			apply(name, null);
+			fixed ++;
+		}
+		for (FileEntry entry : found.values()) {
+			if (!touched.contains(entry.getName()) &&
+					!entry.equals(entries.get(entry.getName()))) {
+				apply(entry.getName(), entry);
+				fixed ++;
+			}
+		}
+		if (valid) {
+			corrections.add(fixed);
+		}
+		rebuilds.increment();
+		valid = watcher != null;
+	}
+
+	/** Rebuilds the index if it is not valid. */
+	private void ensureValid() {
+		if (valid) {
+			hits.increment();
+			return;
+		}
+		misses.increment();
+		try {
+			rebuild();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Adds, replaces or removes (if the entry is null) the entry for a file.
+	 * Every change to the index goes through here, so this is where the
+	 * version goes up and the change is logged. Callers hold the lock on the
+	 * index.
+	 */
+	private void apply(String name, FileEntry entry) {
+		FileEntry old = entry == null? entries.remove(name) :
+			entries.put(name, entry);
+		if (old == null? entry == null : old.equals(entry)) {
+			return;
+		}
+		version ++;
+		changeLog.addLast(new LoggedChange(version, name, old != null));
+		while (changeLog.size() > maxChanges) {
+			changeLog.removeFirst();
+		}
+	}
+
+	/**
+	 * Gets the version in a token, or -1 if it is not a token of this index.
+	 */
+	private long parseToken(String token) {
+		int colon = token == null? -1 : token.indexOf(':');
+		if (colon < 0) {
+			return -1;
+		}
+		try {
+			if (Long.parseLong(token.substring(0, colon)) != epoch) {
+				return -1;
+			}
+			return Long.parseLong(token.substring(colon + 1));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/** Applies watch events until the index is closed. */
+	private void watch() {
+		WatchService ws = watcher;
+		long nextReconcile = System.currentTimeMillis() + reconcileInterval;
+		while (true) {
+			try {
+
+				// Reconcile if it is time
+				long now = System.currentTimeMillis();
+				if (now >= nextReconcile) {
+					rebuild();
+					nextReconcile = now + reconcileInterval;
+				}
+
+				// Wait for events
+				WatchKey key = ws.poll(nextReconcile - now,
+						TimeUnit.MILLISECONDS);
+				if (key == null) {
+					continue;
+				}
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+						valid = false;
+						continue;
+					}
+					Path name = (Path) event.context();
+					update(name.toString());
+					events.increment();
+				}
+				if (!key.reset()) {
+					valid = false;
+				}
+				if (!valid) {
+					rebuild();
+				}
+			} catch (ClosedWatchServiceException e) {
+				return;
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/** Gets the entry for a path, or null if it is not a regular file a
+	 * client may see. */
+	private FileEntry stat(Path path) {
+		if (!FTServer.isValidName(path.getFileName().toString())) {
+			return null;
+		}
+		try {
+			BasicFileAttributes attrs = Files.readAttributes(
+					path, BasicFileAttributes.class);
+			if (!attrs.isRegularFile()) {
+				return null;
+			}
+			long size = attrs.size();
+			if (store != null) {
+				try (FileChannel file = FileChannel.open(path,
+						StandardOpenOption.READ)) {
+					DedupStore.Manifest manifest =
+							store.readManifest(path, file);
+					if (manifest != null) {
+						size = manifest.getSize();
+					}
+				}
+			}
+			return new FileEntry(path.getFileName().toString(), size,
+					attrs.lastModifiedTime().toMillis());
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	public Path getDirectory() {
+		return dir;
+	}
+
+	public boolean isValid() {
+		return valid;
+	}
+
+	public long getReconcileInterval() {
+		return reconcileInterval;
+	}
+
+	public void setReconcileInterval(long reconcileInterval) {
+		this.reconcileInterval = Math.max(1000, reconcileInterval);
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	public int getMaxChanges() {
+		return maxChanges;
+	}
+
+	public synchronized void setMaxChanges(int maxChanges) {
+		this.maxChanges = Math.max(0, maxChanges);
+		while (changeLog.size() > this.maxChanges) {
+			changeLog.removeFirst();
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	public long getRebuilds() {
+		return rebuilds.sum();
+	}
+
+	public long getEvents() {
+		return events.sum();
+	}
+
+	public long getCorrections() {
+		return corrections.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "DirectoryIndex[" + dir + ", files=" + size() + ", version=" +
+				getVersion() + ", hits=" +
+				getHits() + ", misses=" + getMisses() + ", rebuilds=" +
+				getRebuilds() + ", events=" + getEvents() + ", corrections=" +
+				getCorrections() + "]";
+	}
+
+	/** A change in the change log. */
+	private static class LoggedChange {
+
+		/** The version the change made. */
+		private final long version;
+
+		/** The name of the file. */
+		private final String name;
+
+		/** True if the file existed before the change. */
+		private final boolean existed;
+
+		private LoggedChange(long version, String name, boolean existed) {
+			this.version = version;
+			this.name = name;
+			this.existed = existed;
+		}
+	}
+}
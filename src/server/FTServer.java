@@ -9,9 +9,23 @@
 package server;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 public class FTServer {
@@ -29,9 +43,133 @@ public class FTServer {
 	 * specified directory. */
 	public static final String LIST_DIRECTORIES = "DIR";
 	
+	/** The string used to start a persistent session (version 2 only). */
+	public static final String SESSION = "SESSION";
+	
+	/** The string used to start a chunked upload (version 2 only). */
+	public static final String UPLOAD_OPEN = "UPLOAD_OPEN";
+	
+	/** The string used to send a chunk of a chunked upload. */
+	public static final String UPLOAD_CHUNK = "UPLOAD_CHUNK";
+	
+	/** The string used to finish a chunked upload. */
+	public static final String UPLOAD_COMMIT = "UPLOAD_COMMIT";
+	
+	/** The string used to give up on a chunked upload. */
+	public static final String UPLOAD_ABORT = "UPLOAD_ABORT";
+	
+	/** The string used to get the {@link DeltaSync.Signature} of a file. */
+	public static final String SIGNATURE = "SIGNATURE";
+	
+	/** The string used to upload only what changed in a file. */
+	public static final String DELTA_UPLOAD = "DELTA_UPLOAD";
+	
+	/** The string used to download only what changed in a file. */
+	public static final String DELTA_DOWNLOAD = "DELTA_DOWNLOAD";
+	
+	/** The string used to get the SHA-256 hash of a file. */
+	public static final String HASH = "HASH";
+	
+	/** The string used to get the {@link ServerMetrics} of the server, which
+	 * only local clients can do. */
+	public static final String STATS = "STATS";
+	
+	/** The string used to download many files in one response (see
+	 * {@link BatchArchive}). */
+	public static final String BATCH_DOWNLOAD = "BATCH_DOWNLOAD";
+	
+	/** The string used to upload many files in one request (see
+	 * {@link BatchUploadHandler}). */
+	public static final String BATCH_UPLOAD = "BATCH_UPLOAD";
+	
+	/** The start of the reason of the error sent when a file does not
+	 * exist. */
+	public static final String NOT_FOUND = "file not found";
+	
+	/**
+	 * The {@code Engine} enum lists the ways the server can serve its
+	 * connections.
+	 */
+	public enum Engine {
+		
+		/** A blocking accept loop that hands each connection to the
+		 * {@link ConnectionExecutor}. */
+		BLOCKING,
+		
+		/** A {@link NioServerEngine} with a few non-blocking event loops.
+		 * Only one-shot connections are served on the loops; a SESSION is
+		 * handed over to the {@link ConnectionExecutor} and holds one of its
+		 * threads for as long as it is open, so by default the executor runs
+		 * virtual threads where the JVM has them. */
+		NIO
+	}
+	
+	/** The start of the names the server and client keep their own files
+	 * under, which clients can not upload, download or overwrite. */
+	public static final String RESERVED_PREFIX = ".ft-";
+	
+	/** The directory in the shared path where files are written before they
+	 * are complete. Since it is a directory it is never listed. */
+	public static final String TEMP_DIRECTORY = ".ft-tmp";
+	
+	/** The directory in the shared path where the chunks of the
+	 * {@link DedupStore} are kept. */
+	public static final String STORE_DIRECTORY = ".ft-store";
+	
 	/** The server socket used to accept incoming connections. */
 	private ServerSocket serverSocket;
 	
+	/** The strategy used to run the handler for each accepted connection. */
+	private ConnectionExecutor executor;
+	
+	/** True if the executor is the default one, which {@link #listen()}
+	 * replaces with virtual threads for the {@link Engine#NIO} engine. */
+	private boolean defaultExecutor;
+	
+	/** The engine used by {@link #listen()}. */
+	private Engine engine = Engine.BLOCKING;
+	
+	/** The number of event loops used by the {@link Engine#NIO} engine. */
+	private int eventLoops = NioServerEngine.DEFAULT_EVENT_LOOPS;
+	
+	/** The number of requests that can run at once in each session. */
+	private int sessionThreads = 4;
+	
+	/** The number of files of a BATCH_UPLOAD that can be saved at once. */
+	private int batchThreads = 4;
+	
+	/** True if DIR requests should be served from a {@link DirectoryIndex}. */
+	private boolean indexed = true;
+	
+	/** The index of the shared path, while the server is listening. */
+	private DirectoryIndex index;
+	
+	/** Counts the file data sent and received by version 2 requests. */
+	private final CompressionStats compressionStats = new CompressionStats();
+	
+	/** The store uploaded files are kept in, or null if they are kept as
+	 * plain files. */
+	private volatile DedupStore store;
+	
+	/** The cache of hot files, or null if files are always read from disk.
+	 * */
+	private volatile ContentCache cache;
+	
+	/** Counts the connections, bytes and requests served. */
+	private final ServerMetrics metrics = new ServerMetrics(this);
+	
+	/** Shares the bandwidth between transfers. */
+	private final TransferScheduler scheduler = new TransferScheduler();
+	
+	/** Limits the connections and how long they may take. */
+	private final AdmissionController admission = new AdmissionController();
+	
+	/** The chunked uploads in progress. */
+	private final UploadSessionManager uploads = new UploadSessionManager(this);
+	
+	/** The non-blocking engine, if it is the one being used. */
+	private NioServerEngine nioEngine;
+	
 	/** The host. */
 	private String host;
 	
@@ -45,34 +183,95 @@ public class FTServer {
 	 * @param sharedPath - the directory on the server to interact with.
 	 */
 	public FTServer(String host, String sharedPath) {
+		this(host, sharedPath, new BoundedConnectionExecutor());
+		this.defaultExecutor = true;
+	}
+	
+	/**
+	 * Constructs a new server with the host and path on the server, and the
+	 * strategy used to handle connections.
+	 * 
+	 * @param host - the host.
+	 * @param sharedPath - the directory on the server to interact with.
+	 * @param executor - runs the handler for each accepted connection.
+	 */
+	public FTServer(String host, String sharedPath,
+			ConnectionExecutor executor) {
 		this.host = host;
 		this.sharedPath = sharedPath;
+		this.executor = executor;
 	}
 	
 	/**
 	 * <b><em>listen</em></b>
 	 * 
 	 * <p>The listen method causes the server to listen for new connections
-	 * until it is stopped. When a new connection is made, a new thread using a
-	 * {@link ClientConnectionHandler} is constructed to handle the connection.
+	 * until it is stopped. When a new connection is made, a
+	 * {@link ClientConnectionHandler} is constructed and passed to the
+	 * server's {@link ConnectionExecutor}. If the connection is over the
+	 * limits of the {@link AdmissionController}, or the executor rejects it,
+	 * it is sent {@link Protocol#BUSY} right away. If the server uses the
+	 * {@link Engine#NIO} engine, a {@link NioServerEngine} listens instead.
 	 * </p>
 	 */
 	public void listen() {
 		
+		// Index the shared path
+		if (indexed) {
+			DirectoryIndex index = new DirectoryIndex(Paths.get(sharedPath), store);
+			try {
+				index.start();
+				this.index = index;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		uploads.start();
+		metrics.register();
+		scheduler.register();
+		admission.start();
+		
+		// Special case
+		if (engine == Engine.NIO) {
+			
+			// Sessions hold an executor thread for their whole lifetime
+			if (defaultExecutor
+					&& VirtualThreadConnectionExecutor.isSupported()) {
+				executor.shutdown();
+				executor = new VirtualThreadConnectionExecutor();
+			}
+			this.nioEngine = new NioServerEngine(this, eventLoops);
+			this.nioEngine.listen();
+			return;
+		}
+		
 		// Listen for incoming attempts to connect to the server
 		try {
-			serverSocket = new ServerSocket(SERVER_PORT);
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			channel.bind(new InetSocketAddress(SERVER_PORT));
+			serverSocket = channel.socket();
 		} catch (IOException e) {
 			e.printStackTrace();
 			return;
 		}
 		while (!serverSocket.isClosed()) {
 			try {
+				Socket socket = serverSocket.accept();
+				metrics.accepted();
+				AdmissionController.Ticket ticket = admission.admit(socket);
+				if (ticket == null) {
+					admission.reject(socket);
+					continue;
+				}
 				ClientConnectionHandler conn = new ClientConnectionHandler(
-						this, serverSocket.accept());
-				conn.start();
+						this, socket, ticket);
+				if (!executor.execute(conn)) {
+					conn.reject();
+				}
 			} catch (IOException e) {
-				e.printStackTrace();
+				if (!serverSocket.isClosed()) {
+					e.printStackTrace();
+				}
 			}
 		}
 	}
@@ -80,11 +279,24 @@ public class FTServer {
 	/**
 	 * <b><em>close</em></b>
 	 * 
-	 * <p>Shuts down the server.</p>
+	 * <p>Shuts down the server. The connection executor is also shut down,
+	 * but connections that are being handled are allowed to finish.</p>
 	 * 
 	 * @return true if and only if the server listening on the port is stopped.
 	 */
 	public boolean close() {
+		executor.shutdown();
+		uploads.close();
+		metrics.unregister();
+		scheduler.unregister();
+		admission.close();
+		if (index != null) {
+			index.close();
+			index = null;
+		}
+		if (nioEngine != null) {
+			return nioEngine.close();
+		}
 		
 		// Special case
 		if (serverSocket == null) {
@@ -108,13 +320,19 @@ public class FTServer {
 	 * 
 	 * <p>Gets a list of files (and only files) in a given directory, which
 	 * can be set using {@link #setSharedPath(String)} or in the constructor
-	 * {@link #FTServer(String, String)}.</p>
+	 * {@link #FTServer(String, String)}. While the server is listening the
+	 * list comes from the {@link DirectoryIndex}, so the directory is not
+	 * read for every request.</p>
 	 * 
 	 * @return the list of files in the directory.
 	 */
 	public String[] listFiles() {
 
 		// Special case
+		DirectoryIndex index = this.index;
+		if (index != null) {
+			return index.names();
+		}
 		File path = new File(sharedPath);
 		if (!path.exists() || !path.isDirectory()) {
 			return new String[0];
@@ -124,7 +342,7 @@ public class FTServer {
 		File[] dirContents = path.listFiles();
 		List<String> fileList = new ArrayList<>();
 		for (File file : dirContents) {
-			if (file.isFile()) {
+			if (file.isFile() && isValidName(file.getName())) {
 				fileList.add(file.getName());
 			}
 		}
@@ -136,6 +354,395 @@ public class FTServer {
 		return files;
 	}
 
+	/**
+	 * <b><em>listEntries</em></b>
+	 * 
+	 * <p>Gets the files in the shared path with their sizes and modification
+	 * times, in name order.</p>
+	 * 
+	 * @return the files in the directory.
+	 */
+	public Collection<FileEntry> listEntries() {
+		return listEntries(null, false);
+	}
+	
+	/**
+	 * <b><em>listEntries</em></b>
+	 * 
+	 * <p>Gets the files in the shared path whose names start with a prefix,
+	 * with their sizes and modification times.</p>
+	 * 
+	 * @param prefix - the prefix every name starts with, or null for all.
+	 * @param descending - true for reverse name order.
+	 * 
+	 * @return the files in the directory, in name order.
+	 */
+	public Collection<FileEntry> listEntries(String prefix,
+			boolean descending) {
+		DirectoryIndex index = this.index;
+		if (index == null) {
+			index = new DirectoryIndex(Paths.get(sharedPath), store);
+		}
+		return index.list(prefix, descending);
+	}
+	
+	/**
+	 * <b><em>listChanges</em></b>
+	 * 
+	 * <p>Gets the files that changed since a version of the directory index.
+	 * Without a running index there is no history, so the delta is always
+	 * a reset.</p>
+	 * 
+	 * @param since - the token the client has, or null if it has none.
+	 * 
+	 * @return the changes and the token of the current version.
+	 * @see DirectoryIndex#changesSince(String)
+	 */
+	public DirDelta listChanges(String since) {
+		DirectoryIndex index = this.index;
+		if (index == null) {
+			index = new DirectoryIndex(Paths.get(sharedPath), store);
+		}
+		return index.changesSince(since);
+	}
+	
+	/**
+	 * <b><em>resolve</em></b>
+	 * 
+	 * <p>Gets the path of a file in the shared path. Only plain file names are
+	 * allowed, so a client can not reach files outside of the shared path.
+	 * </p>
+	 * 
+	 * @param filename - the name of the file.
+	 * 
+	 * @return the path to the file.
+	 * @throws IOException if the name is not a plain file name.
+	 */
+	public Path resolve(String filename) throws IOException {
+		if (!isValidName(filename)) {
+			throw new IOException("invalid file name: " + filename);
+		}
+		return Paths.get(sharedPath, filename);
+	}
+	
+	/**
+	 * <b><em>isValidName</em></b>
+	 * 
+	 * @param filename - the name of a file.
+	 * 
+	 * @return true if the name is a plain file name, which can not reach
+	 * outside of the directory it is resolved against and does not start
+	 * with the {@link #RESERVED_PREFIX}.
+	 */
+	public static boolean isValidName(String filename) {
+		return filename != null && !filename.isEmpty() &&
+				!filename.equals(".") && !filename.equals("..") &&
+				!filename.startsWith(RESERVED_PREFIX) &&
+				filename.indexOf('/') < 0 && filename.indexOf('\\') < 0 &&
+				filename.indexOf('\0') < 0;
+	}
+	
+	/**
+	 * <b><em>openFile</em></b>
+	 * 
+	 * <p>Opens a file in the shared path for reading.</p>
+	 * 
+	 * @param filename - the name of the file.
+	 * 
+	 * @return the open file.
+	 * @throws FileNotFoundException if there is no such file.
+	 * @throws IOException if the file could not be opened.
+	 */
+	public FileChannel openFile(String filename) throws IOException {
+		try {
+			return FileChannel.open(resolve(filename), StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			throw new FileNotFoundException(NOT_FOUND + ": " + filename);
+		}
+	}
+	
+	/**
+	 * <b><em>createTempFile</em></b>
+	 * 
+	 * <p>Creates an empty temporary file in the {@link #TEMP_DIRECTORY} of the
+	 * shared path. Data should be written there first and then moved into
+	 * place with {@link #commit(Path, String)}, so that a failed transfer
+	 * never leaves a partial file in the shared path.</p>
+	 * 
+	 * @return the path to the new file.
+	 * @throws IOException if the file could not be created.
+	 */
+	public Path createTempFile() throws IOException {
+		Path dir = Paths.get(sharedPath, TEMP_DIRECTORY);
+		Files.createDirectories(dir);
+		return Files.createTempFile(dir, "upload", ".tmp");
+	}
+	
+	/**
+	 * <b><em>commit</em></b>
+	 * 
+	 * <p>Atomically moves a file from {@link #createTempFile()} into the
+	 * shared path, replacing any file with the same name. If the server
+	 * has a {@link DedupStore}, the file is added to the store and its
+	 * manifest is moved into place instead.</p>
+	 * 
+	 * @param temp - the temporary file.
+	 * @param filename - the name of the file in the shared path.
+	 * 
+	 * @return the path to the file in the shared path.
+	 * @throws IOException if the file could not be moved.
+	 */
+	public Path commit(Path temp, String filename) throws IOException {
+		return commit(temp, filename, 0);
+	}
+	
+	/**
+	 * <b><em>commit</em></b>
+	 * 
+	 * <p>Moves a file into the shared path like
+	 * {@link #commit(Path, String)}, with the modification time the client's
+	 * copy has, so both copies list the same way.</p>
+	 * 
+	 * @param temp - the temporary file.
+	 * @param filename - the name of the file in the shared path.
+	 * @param lastModified - the modification time of the file, or 0 to keep
+	 * the time it was written.
+	 * 
+	 * @return the path to the file in the shared path.
+	 * @throws IOException if the file could not be moved.
+	 */
+	public Path commit(Path temp, String filename, long lastModified)
+			throws IOException {
+		Path target = resolve(filename);
+		
+		// Swap the file for its manifest
+		DedupStore store = this.store;
+		DedupStore.Manifest stored = null;
+		if (store != null) {
+			Path manifest = createTempFile();
+			try {
+				stored = store.store(temp, manifest);
+			} catch (IOException e) {
+				Files.deleteIfExists(manifest);
+				throw e;
+			}
+			Files.delete(temp);
+			temp = manifest;
+		}
+		if (lastModified > 0) {
+			Files.setLastModifiedTime(temp, FileTime.fromMillis(lastModified));
+		}
+		if (stored != null) {
+			store.commit(temp, target, stored);
+		} else {
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE,
+						StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		}
+		invalidate(filename);
+		DirectoryIndex index = this.index;
+		if (index != null) {
+			index.update(filename);
+		}
+		return target;
+	}
+	
+	/**
+	 * <b><em>invalidate</em></b>
+	 * 
+	 * <p>Drops a file from the {@link ContentCache}, because it was
+	 * replaced.</p>
+	 * 
+	 * @param filename - the name of the file.
+	 */
+	public void invalidate(String filename) {
+		ContentCache cache = this.cache;
+		if (cache != null) {
+			cache.invalidate(filename);
+		}
+	}
+	
+	/**
+	 * <b><em>getActiveConnections</em></b>
+	 * 
+	 * @return the number of connections currently being handled, by the
+	 * event loops of the {@link Engine#NIO} engine or by blocking handlers.
+	 */
+	public int getActiveConnections() {
+		if (nioEngine != null) {
+			return nioEngine.getOpenConnections() + executor.getActiveCount();
+		}
+		return executor.getActiveCount();
+	}
+	
+	/**
+	 * <b><em>getQueuedConnections</em></b>
+	 * 
+	 * @return the number of accepted connections waiting to be handled.
+	 */
+	public int getQueuedConnections() {
+		return executor.getQueuedCount();
+	}
+
+	/**
+	 * <b><em>getIndex</em></b>
+	 * 
+	 * @return the index of the shared path, or null if the server is not
+	 * listening or is not indexed.
+	 */
+	public DirectoryIndex getIndex() {
+		return index;
+	}
+	
+	public UploadSessionManager getUploads() {
+		return uploads;
+	}
+	
+	public ServerMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * <b><em>getScheduler</em></b>
+	 * 
+	 * @return the scheduler that shares the bandwidth between transfers,
+	 * whose limits can be changed while the server is listening.
+	 */
+	public TransferScheduler getScheduler() {
+		return scheduler;
+	}
+	
+	/**
+	 * <b><em>getAdmission</em></b>
+	 * 
+	 * @return the controller that limits the connections and how long they
+	 * may take, whose limits can be changed while the server is listening.
+	 */
+	public AdmissionController getAdmission() {
+		return admission;
+	}
+	
+	public CompressionStats getCompressionStats() {
+		return compressionStats;
+	}
+	
+	/**
+	 * <b><em>getDedupStore</em></b>
+	 * 
+	 * @return the store uploaded files are kept in, or null if they are kept
+	 * as plain files.
+	 */
+	public DedupStore getDedupStore() {
+		return store;
+	}
+	
+	/**
+	 * <b><em>getCache</em></b>
+	 * 
+	 * @return the cache of hot files, or null if files are always read from
+	 * disk.
+	 */
+	public ContentCache getCache() {
+		return cache;
+	}
+	
+	public boolean isCaching() {
+		return cache != null;
+	}
+	
+	/**
+	 * <b><em>setCaching</em></b>
+	 * 
+	 * <p>Sets whether the data of files that are downloaded often is kept in
+	 * a {@link ContentCache}. Its limits can be changed through
+	 * {@link #getCache()}.</p>
+	 * 
+	 * @param caching - true to cache hot files.
+	 */
+	public void setCaching(boolean caching) {
+		if (caching && cache == null) {
+			this.cache = new ContentCache();
+		} else if (!caching) {
+			this.cache = null;
+		}
+	}
+	
+	public boolean isDedup() {
+		return store != null;
+	}
+	
+	/**
+	 * <b><em>setDedup</em></b>
+	 * 
+	 * <p>Sets whether uploaded files are kept in a {@link DedupStore} under
+	 * the {@link #STORE_DIRECTORY}, so data that is in several files is only
+	 * stored once. Files already in the shared path are left as they are and
+	 * are still served. This should be set before the server starts
+	 * listening.</p>
+	 * 
+	 * @param dedup - true to keep files in a store.
+	 */
+	public void setDedup(boolean dedup) {
+		this.store = dedup? new DedupStore(Paths.get(sharedPath,
+				STORE_DIRECTORY)) : null;
+	}
+
+	public boolean isIndexed() {
+		return indexed;
+	}
+
+	/**
+	 * <b><em>setIndexed</em></b>
+	 * 
+	 * <p>Sets whether the files in the shared path are kept in a
+	 * {@link DirectoryIndex}. This takes effect the next time the server
+	 * starts listening.</p>
+	 * 
+	 * @param indexed - true to keep an index.
+	 */
+	public void setIndexed(boolean indexed) {
+		this.indexed = indexed;
+	}
+
+	public ConnectionExecutor getExecutor() {
+		return executor;
+	}
+
+	public Engine getEngine() {
+		return engine;
+	}
+
+	public void setEngine(Engine engine) {
+		this.engine = engine == null? Engine.BLOCKING : engine;
+	}
+
+	public int getEventLoops() {
+		return eventLoops;
+	}
+
+	public void setEventLoops(int eventLoops) {
+		this.eventLoops = eventLoops;
+	}
+
+	public int getSessionThreads() {
+		return sessionThreads;
+	}
+
+	public void setSessionThreads(int sessionThreads) {
+		this.sessionThreads = sessionThreads;
+	}
+
+	public int getBatchThreads() {
+		return batchThreads;
+	}
+
+	public void setBatchThreads(int batchThreads) {
+		this.batchThreads = batchThreads;
+	}
+
 	public String getHost() {
 		return host;
 	}
@@ -150,5 +757,6 @@ public class FTServer {
 
 	public void setSharedPath(String sharedPath) {
 		this.sharedPath = sharedPath;
+		setDedup(isDedup());
 	}
 }
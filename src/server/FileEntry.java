@@ -0,0 +1,137 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * The {@code FileEntry} class describes a file in the shared path: its name,
+ * its size and when it was last modified.
+ */
+public class FileEntry {
+
+	/** The verb of a line in a detailed DIR response. */
+	public static final String FILE = "FILE";
+
+	/** The name of the file. */
+	private final String name;
+
+	/** The size of the file in bytes. */
+	private final long size;
+
+	/** When the file was last modified, in milliseconds since the epoch. */
+	private final long lastModified;
+
+	/**
+	 * Constructs a new entry.
+	 *
+	 * @param name - the name of the file.
+	 * @param size - the size of the file in bytes.
+	 * @param lastModified - when the file was last modified.
+	 */
+	public FileEntry(String name, long size, long lastModified) {
+		this.name = name;
+		this.size = size;
+		this.lastModified = lastModified;
+	}
+
+	/**
+	 * <b><em>toHeader</em></b>
+	 *
+	 * @param verb - the verb of the line.
+	 *
+	 * @return the entry as a protocol line, e.g.
+	 * {@code FILE size=12 mtime=1490400000000 notes.txt}.
+	 */
+	public Header toHeader(String verb) {
+		return new Header(verb).set("size", size).set("mtime", lastModified)
+				.arg(name);
+	}
+
+	/**
+	 * <b><em>fromHeader</em></b>
+	 *
+	 * @param header - a line from {@link #toHeader(String)}.
+	 *
+	 * @return the entry described by the line.
+	 */
+	public static FileEntry fromHeader(Header header) {
+		return new FileEntry(header.getArg(0), header.getLong("size", 0),
+				header.getLong("mtime", 0));
+	}
+
+	/**
+	 * <b><em>getETag</em></b>
+	 *
+	 * @return a token that changes whenever the size or modification time
+	 * of the file does, e.g. {@code 3e8-171d1f7ad28}.
+	 */
+	public String getETag() {
+		return Long.toHexString(size) + "-" + Long.toHexString(lastModified);
+	}
+
+	/**
+	 * <b><em>hash</em></b>
+	 *
+	 * <p>Computes the SHA-256 hash of the data of a file, which unlike the
+	 * ETag only changes when the data does.</p>
+	 *
+	 * @param in - the stream with the file. It is read to the end but not
+	 * closed.
+	 *
+	 * @return the hash in hex.
+	 * @throws IOException if the file could not be read.
+	 */
+	public static String hash(InputStream in) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+		byte[] buffer = new byte[64 * 1024];
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			digest.update(buffer, 0, n);
+		}
+		StringBuilder sb = new StringBuilder();
+		for (byte b : digest.digest()) {
+			sb.append(Character.forDigit((b >> 4) & 0xf, 16))
+				.append(Character.forDigit(b & 0xf, 16));
+		}
+		return sb.toString();
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (!(o instanceof FileEntry)) {
+			return false;
+		}
+		FileEntry e = (FileEntry) o;
+		return name.equals(e.name) && size == e.size &&
+				lastModified == e.lastModified;
+	}
+
+	@Override
+	public int hashCode() {
+		return name.hashCode() * 31 + Long.hashCode(size ^ lastModified);
+	}
+
+	@Override
+	public String toString() {
+		return name + " (" + size + " bytes)";
+	}
+}
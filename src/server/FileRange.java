@@ -0,0 +1,378 @@
+package server;
+
+import java.io.Closeable;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * The {@code FileRange} class is the part of a file a version 2 DOWNLOAD
+ * asks for. A request may have an {@code offset} and a {@code length}
+ * option to get part of the file, e.g. to resume a download or to fetch
+ * several ranges at once, and an {@code ifmatch} option with the
+ * {@link FileEntry#getETag() ETag} the client saw before. If the file has
+ * changed since, the request fails with {@link #CHANGED} rather than mixing
+ * ranges of two versions of the file.
+ * <p>
+ * A client that already has a copy of the file can send its ETag as an
+ * {@code ifnonematch} option, or its SHA-256 hash and size as {@code ifhash}
+ * and {@code ifsize}. If the copy is the same, the range is empty and the
+ * status says {@link #UNCHANGED}, so nothing is sent.
+ * <p>
+ * If the file is a manifest of the server's {@link DedupStore}, the range is
+ * of the file the manifest stands for, and is read from the store. If the
+ * server has a {@link ContentCache} and the file is in it, the range is read
+ * from memory and the file is not opened at all.
+ */
+public class FileRange implements Closeable {
+
+	/** The reason of the error sent when the ETag does not match. */
+	public static final String CHANGED = "changed";
+
+	/** The option of the status of a range that is not sent because the
+	 * client's copy of the file is the same. */
+	public static final String UNCHANGED = "unchanged";
+
+	/** The open file, or null if the file is in the store or cache. */
+	private final FileChannel file;
+
+	/** The data of the whole file if it is cached, or null. */
+	private final ByteBuffer data;
+
+	/** The store the file is in, or null if it is a plain file. */
+	private final DedupStore store;
+
+	/** The manifest of the file, or null if it is a plain file. */
+	private final DedupStore.Manifest manifest;
+
+	/** The position of the first byte of the range. */
+	private final long offset;
+
+	/** The number of bytes in the range. */
+	private final long length;
+
+	/** The size and modification time of the whole file. */
+	private final FileEntry entry;
+
+	/** True if the client's copy is the same, so the range is empty. */
+	private final boolean unchanged;
+
+	private FileRange(FileChannel file, ByteBuffer data, DedupStore store,
+			DedupStore.Manifest manifest, long offset, long length,
+			FileEntry entry, boolean unchanged) {
+		this.file = file;
+		this.data = data;
+		this.store = store;
+		this.manifest = manifest;
+		this.offset = offset;
+		this.length = length;
+		this.entry = entry;
+		this.unchanged = unchanged;
+	}
+
+	/**
+	 * <b><em>open</em></b>
+	 *
+	 * <p>Opens the range of a file a DOWNLOAD request asks for.</p>
+	 *
+	 * @param server - the server with the file.
+	 * @param request - the header of the request.
+	 *
+	 * @return the range, which must be closed.
+	 * @throws IOException with the message {@link #CHANGED} if the ETag does
+	 * not match, or if the file could not be opened or the range is not in
+	 * the file.
+	 */
+	public static FileRange open(FTServer server, Header request)
+			throws IOException {
+		String filename = request.getArg(0);
+		Path path = server.resolve(filename);
+
+		// Serve a cached file from memory
+		ContentCache cache = server.getCache();
+		if (cache != null) {
+			BasicFileAttributes attrs;
+			try {
+				attrs = Files.readAttributes(path, BasicFileAttributes.class);
+			} catch (NoSuchFileException e) {
+				throw new FileNotFoundException(FTServer.NOT_FOUND + ": " +
+						filename);
+			}
+			ContentCache.Entry cached = cache.get(filename, attrs);
+			if (cached != null) {
+				FileRange range = of(null, cached.getData(), null, null,
+						cached.getFile(), request);
+				cache.served(range.length);
+				return range;
+			}
+		}
+
+		FileChannel file = server.openFile(filename);
+		try {
+
+			// The channel stays on the file it opened even if an upload
+			// replaces it, so the attributes are only checked against it
+			BasicFileAttributes attrs = Files.readAttributes(path,
+					BasicFileAttributes.class);
+			long size = file.size();
+			long lastModified = attrs.size() == size?
+					attrs.lastModifiedTime().toMillis() : 0;
+
+			// A stored file is read from its chunks instead
+			DedupStore store = server.getDedupStore();
+			DedupStore.Manifest manifest = store == null? null :
+				store.readManifest(path, file);
+			if (manifest != null) {
+				size = manifest.getSize();
+				file.close();
+				file = null;
+			}
+			FileEntry entry = new FileEntry(filename, size, lastModified);
+			FileRange range = of(file, null, store, manifest, entry, request);
+			if (cache == null || lastModified == 0 ||
+					range.isUnchanged()) {
+				return range;
+			}
+
+			// Keep the file if it is asked for often
+			ContentCache.Entry cached = cache.offer(filename, attrs, range);
+			if (cached == null) {
+				return range;
+			}
+			range.close();
+			return of(null, cached.getData(), null, null, cached.getFile(),
+					request);
+		} catch (IOException | RuntimeException e) {
+			if (file != null) {
+				file.close();
+			}
+			throw e;
+		}
+	}
+
+	/** Checks the ETag and works out the range a request asks for. */
+	private static FileRange of(FileChannel file, ByteBuffer data,
+			DedupStore store, DedupStore.Manifest manifest, FileEntry entry,
+			Header request) throws IOException {
+		String ifMatch = request.get("ifmatch");
+		if (ifMatch != null && !ifMatch.equals(entry.getETag())) {
+			throw new IOException(CHANGED);
+		}
+		long size = entry.getSize();
+		long offset = request.getLong("offset", 0);
+		long length = request.getLong("length", Long.MAX_VALUE);
+		if (offset < 0 || offset > size || length < 0) {
+			throw new IOException("bad range: offset " + offset +
+					", size " + size);
+		}
+		length = Math.min(length, size - offset);
+		FileRange range = new FileRange(file, data, store, manifest, offset,
+				length, entry, false);
+
+		// Send nothing if the client already has the same data
+		if (range.isSameAs(request)) {
+			return new FileRange(file, data, store, manifest, 0, 0, entry,
+					true);
+		}
+		return range;
+	}
+
+	/**
+	 * Checks whether the client's copy of the file is the same, either by
+	 * its ETag or, if the sizes match, by its SHA-256 hash.
+	 */
+	private boolean isSameAs(Header request) throws IOException {
+		String ifNoneMatch = request.get("ifnonematch");
+		if (ifNoneMatch != null && ifNoneMatch.equals(entry.getETag())) {
+			return true;
+		}
+		String ifHash = request.get("ifhash");
+		if (ifHash == null ||
+				request.getLong("ifsize", -1) != entry.getSize()) {
+			return false;
+		}
+
+		// The stream is read to the end, which closes the chunks of a
+		// manifest but not the file
+		return ifHash.equals(FileEntry.hash(newInputStream()));
+	}
+
+	/**
+	 * <b><em>status</em></b>
+	 *
+	 * @return the status line of the response, e.g.
+	 * {@code OK length=100 offset=200 size=1000 etag=3e8-171d1f7ad28}.
+	 */
+	public Header status() {
+		return new Header(Protocol.OK).set("length", length)
+				.set("offset", offset).set("size", entry.getSize())
+				.set("etag", entry.getETag())
+				.set(UNCHANGED, unchanged? 1 : null);
+	}
+
+	/**
+	 * <b><em>sendTo</em></b>
+	 *
+	 * <p>Sends the range to a blocking channel.</p>
+	 *
+	 * @param target - the channel to send to.
+	 *
+	 * @return the number of bytes sent.
+	 * @throws IOException if the range could not be read or sent.
+	 */
+	public long sendTo(WritableByteChannel target) throws IOException {
+		return copy(offset, length, target);
+	}
+
+	/**
+	 * <b><em>copy</em></b>
+	 *
+	 * <p>Sends any part of the whole file to a blocking channel.</p>
+	 *
+	 * @param position - the position in the file to start at.
+	 * @param count - the number of bytes to send.
+	 * @param target - the channel to send to.
+	 *
+	 * @return the number of bytes sent.
+	 * @throws IOException if the file could not be read or sent.
+	 */
+	public long copy(long position, long count, WritableByteChannel target)
+			throws IOException {
+		if (data != null) {
+			ByteBuffer part = slice(position, count);
+			long n = part.remaining();
+			while (part.hasRemaining()) {
+				target.write(part);
+			}
+			return n;
+		}
+		if (file == null) {
+			return store.copy(manifest, position, count, target);
+		}
+		return Transfers.sendFile(file, position, count, target);
+	}
+
+	/**
+	 * <b><em>newInputStream</em></b>
+	 *
+	 * @return a stream of the whole file. Closing it closes the range.
+	 * @throws IOException if the file could not be read.
+	 */
+	public InputStream newInputStream() throws IOException {
+		if (data != null) {
+			return new BufferInputStream(slice(0, entry.getSize()));
+		}
+		if (file == null) {
+			return store.newInputStream(manifest);
+		}
+		return Channels.newInputStream(file.position(0));
+	}
+
+	@Override
+	public void close() throws IOException {
+		if (file != null) {
+			file.close();
+		}
+	}
+
+	/** Gets part of the cached data, with its own position. */
+	private ByteBuffer slice(long position, long count) {
+		ByteBuffer part = data.duplicate();
+		part.position((int) position);
+		part.limit((int) (position + count));
+		return part;
+	}
+
+	/**
+	 * <b><em>getChannel</em></b>
+	 *
+	 * @return the open file, or null if the file is read from a
+	 * {@link DedupStore} or {@link ContentCache} and has to be sent with
+	 * {@link #sendTo(WritableByteChannel)} or {@link #getBuffer()}.
+	 */
+	public FileChannel getChannel() {
+		return file;
+	}
+
+	/**
+	 * <b><em>getBuffer</em></b>
+	 *
+	 * @return the data of the range if the file is cached, which can be
+	 * written to a non-blocking channel, or null.
+	 */
+	public ByteBuffer getBuffer() {
+		return data == null? null : slice(offset, length);
+	}
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public long getLength() {
+		return length;
+	}
+
+	public long getSize() {
+		return entry.getSize();
+	}
+
+	public long getLastModified() {
+		return entry.getLastModified();
+	}
+
+	public String getETag() {
+		return entry.getETag();
+	}
+
+	/**
+	 * <b><em>isUnchanged</em></b>
+	 *
+	 * @return true if the client's copy of the file is the same, so the
+	 * range is empty.
+	 */
+	public boolean isUnchanged() {
+		return unchanged;
+	}
+
+	/** A stream of the data in a buffer. */
+	private static class BufferInputStream extends InputStream {
+
+		/** The data that is left. */
+		private final ByteBuffer buffer;
+
+		private BufferInputStream(ByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+
+		@Override
+		public int read() {
+			return buffer.hasRemaining()? buffer.get() & 0xff : -1;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) {
+			if (len == 0) {
+				return 0;
+			}
+			if (!buffer.hasRemaining()) {
+				return -1;
+			}
+			int n = Math.min(len, buffer.remaining());
+			buffer.get(b, off, n);
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return buffer.remaining();
+		}
+	}
+}
@@ -0,0 +1,217 @@
+package server;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The {@code Header} class is a single line of the version 2 protocol. It is
+ * used for both requests and responses, and is made up of a verb followed by
+ * options and arguments separated by spaces, e.g.
+ * {@code UPLOAD length=12 notes.txt} or {@code OK length=12}. Options are
+ * written as {@code key=value} and arguments are URL encoded, so neither can
+ * contain a space and an argument can never be mistaken for an option.
+ */
+public class Header {
+
+	/** The verb (command or status). */
+	private final String verb;
+
+	/** The options, in the order they were added. */
+	private final Map<String, String> options = new LinkedHashMap<>();
+
+	/** The arguments, in order. */
+	private final List<String> args = new ArrayList<>();
+
+	/**
+	 * Constructs a header with a verb and no options or arguments.
+	 *
+	 * @param verb - the command or status.
+	 */
+	public Header(String verb) {
+		this.verb = verb;
+	}
+
+	/**
+	 * <b><em>parse</em></b>
+	 *
+	 * <p>Parses a header line.</p>
+	 *
+	 * @param line - the line to parse.
+	 *
+	 * @return the header.
+	 * @throws IllegalArgumentException if the line is empty.
+	 */
+	public static Header parse(String line) {
+		String[] tokens = line.trim().split(" +");
+		if (tokens.length == 0 || tokens[0].isEmpty()) {
+			throw new IllegalArgumentException("empty header");
+		}
+		Header header = new Header(tokens[0]);
+		for (int i = 1; i < tokens.length; i ++) {
+			int eq = tokens[i].indexOf('=');
+			if (eq > 0) {
+				header.options.put(tokens[i].substring(0, eq),
+						decode(tokens[i].substring(eq+1)));
+			} else {
+				header.args.add(decode(tokens[i]));
+			}
+		}
+		return header;
+	}
+
+	/**
+	 * <b><em>set</em></b>
+	 *
+	 * <p>Sets an option. A null value removes the option.</p>
+	 *
+	 * @param key - the name of the option.
+	 * @param value - the value of the option.
+	 *
+	 * @return this header.
+	 */
+	public Header set(String key, Object value) {
+		if (value == null) {
+			options.remove(key);
+		} else {
+			options.put(key, String.valueOf(value));
+		}
+		return this;
+	}
+
+	/**
+	 * <b><em>arg</em></b>
+	 *
+	 * <p>Adds an argument.</p>
+	 *
+	 * @param value - the argument.
+	 *
+	 * @return this header.
+	 */
+	public Header arg(String value) {
+		args.add(value);
+		return this;
+	}
+
+	/**
+	 * <b><em>get</em></b>
+	 *
+	 * @param key - the name of the option.
+	 *
+	 * @return the value of the option, or null if it is not set.
+	 */
+	public String get(String key) {
+		return options.get(key);
+	}
+
+	/**
+	 * <b><em>get</em></b>
+	 *
+	 * @param key - the name of the option.
+	 * @param def - the value to use if the option is not set.
+	 *
+	 * @return the value of the option.
+	 */
+	public String get(String key, String def) {
+		String value = options.get(key);
+		return value == null? def : value;
+	}
+
+	/**
+	 * <b><em>getLong</em></b>
+	 *
+	 * @param key - the name of the option.
+	 * @param def - the value to use if the option is not set.
+	 *
+	 * @return the value of the option as a number.
+	 * @throws NumberFormatException if the option is not a number.
+	 */
+	public long getLong(String key, long def) {
+		String value = options.get(key);
+		return value == null? def : Long.parseLong(value);
+	}
+
+	/**
+	 * <b><em>has</em></b>
+	 *
+	 * @param key - the name of the option.
+	 *
+	 * @return true if the option is set.
+	 */
+	public boolean has(String key) {
+		return options.containsKey(key);
+	}
+
+	/**
+	 * <b><em>hasOptions</em></b>
+	 *
+	 * @return true if any option is set.
+	 */
+	public boolean hasOptions() {
+		return !options.isEmpty();
+	}
+
+	/**
+	 * <b><em>getArg</em></b>
+	 *
+	 * @param index - the index of the argument.
+	 *
+	 * @return the argument, or null if there are not that many arguments.
+	 */
+	public String getArg(int index) {
+		return index < args.size()? args.get(index) : null;
+	}
+
+	public List<String> getArgs() {
+		return Collections.unmodifiableList(args);
+	}
+
+	public String getVerb() {
+		return verb;
+	}
+
+	/**
+	 * <b><em>is</em></b>
+	 *
+	 * @param verb - the verb to check for.
+	 *
+	 * @return true if this header has the verb.
+	 */
+	public boolean is(String verb) {
+		return this.verb.equals(verb);
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder(verb);
+		for (Map.Entry<String, String> e : options.entrySet()) {
+			sb.append(' ').append(e.getKey()).append('=')
+				.append(encode(e.getValue()));
+		}
+		for (String arg : args) {
+			sb.append(' ').append(encode(arg));
+		}
+		return sb.toString();
+	}
+
+	private static String encode(String s) {
+		try {
+			return URLEncoder.encode(s, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static String decode(String s) {
+		try {
+			return URLDecoder.decode(s, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,730 @@
+package server;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code NioConnection} class is the state machine for a single
+ * connection served by the {@link NioServerEngine}. It reads the command line,
+ * then moves to the state that serves the command, and is advanced by its
+ * event loop every time the channel is ready.
+ */
+class NioConnection {
+
+	/** The states a connection can be in. */
+	private enum State {
+
+		/** Waiting for the command line. */
+		READ_HEADER,
+
+		/** Writing a file the client is uploading. */
+		READ_UPLOAD,
+
+		/** Writing a file with a known length that the client is uploading
+		 * with a version 2 request. */
+		READ_BODY,
+
+		/** Writing a response that is held in {@link #out}. */
+		WRITE_RESPONSE,
+
+		/** Writing a file the client is downloading. */
+		WRITE_FILE,
+
+		/** Writing a cached file the client is downloading, which is held in
+		 * {@link #data}. */
+		WRITE_DATA,
+
+		/** The request has to be served by a blocking
+		 * {@link ClientConnectionHandler}, see {@link NioServerEngine}. */
+		HANDOFF,
+
+		/** The connection is finished. */
+		CLOSED
+	}
+
+	/** The server whose commands are being served. */
+	private final FTServer server;
+
+	/** The connection with the client. */
+	private final SocketChannel channel;
+
+	/** The buffer that data from the client is read into. */
+	private ByteBuffer in = ByteBuffer.allocate(1024);
+
+	/** The buffer that data for the client is written from. */
+	private ByteBuffer out;
+
+	/** The file being uploaded or downloaded. */
+	private FileChannel file;
+
+	/** The cached data being downloaded. */
+	private ByteBuffer data;
+
+	/** The position in the file being downloaded. */
+	private long position;
+
+	/** The position in the file where the download ends. */
+	private long end;
+
+	/** The number of bytes of a version 2 upload still to be read. */
+	private long remaining;
+
+	/** The header of the request being served. A legacy UPLOAD gets one
+	 * with just the name of the file. */
+	private Header request;
+
+	/** The temporary file an upload is written to. */
+	private Path temp;
+
+	/** The request line of a request that is being handed off. */
+	private String line;
+
+	/** True if the last byte uploaded was a new line that has not been
+	 * written yet, since the final new line is not part of the file. */
+	private boolean pendingNewLine;
+
+	/** The current state. */
+	private State state = State.READ_HEADER;
+
+	/** The command being served, which is counted in the
+	 * {@link ServerMetrics} when the connection is closed, or null. */
+	private String command;
+
+	/** The time the command started, from {@link System#nanoTime()}. */
+	private long started;
+
+	/** Why the command failed, or null. */
+	private Exception error;
+
+	/** Limits the bandwidth of the transfers over the connection. */
+	private final TransferScheduler.Throttle throttle;
+
+	/** True if the current transfer is throttled. */
+	private boolean throttled;
+
+	/** When the connection is served again after waiting for its throttle,
+	 * from {@link System#nanoTime()}, or 0 if it is not waiting. */
+	private long resumeAt;
+
+	/** The operations the connection was interested in before it started
+	 * waiting. */
+	private int parkedOps;
+
+	/** The place of the connection in the {@link AdmissionController}. */
+	private final AdmissionController.Ticket ticket;
+
+	/** When data was last read or written, from {@link System#nanoTime()}.
+	 * */
+	private long lastActive = System.nanoTime();
+
+	/**
+	 * Constructs a new connection.
+	 *
+	 * @param server - the server whose commands are being served.
+	 * @param channel - the non-blocking connection with the client.
+	 * @param ticket - the place of the connection, which is given back when
+	 * it is closed.
+	 */
+	NioConnection(FTServer server, SocketChannel channel,
+			AdmissionController.Ticket ticket) {
+		this.server = server;
+		this.channel = channel;
+		this.ticket = ticket;
+		this.throttle = server.getScheduler().newThrottle();
+	}
+
+	/**
+	 * <b><em>handle</em></b>
+	 *
+	 * <p>Advances the state machine after the channel became ready.</p>
+	 *
+	 * @param key - the key of the channel that is ready.
+	 */
+	void handle(SelectionKey key) {
+		try {
+			switch (state) {
+			case READ_HEADER:
+				readHeader(key);
+				break;
+			case READ_UPLOAD:
+				readUpload();
+				break;
+			case READ_BODY:
+				readBody(key);
+				break;
+			case WRITE_RESPONSE:
+				writeResponse();
+				break;
+			case WRITE_FILE:
+				writeFile(key);
+				break;
+			case WRITE_DATA:
+				writeData(key);
+				break;
+			default:
+				break;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			error = e;
+			state = State.CLOSED;
+		}
+	}
+
+	/** Reads until the command line is complete, then starts the command. */
+	private void readHeader(SelectionKey key) throws IOException {
+
+		// Read more of the header
+		if (!in.hasRemaining()) {
+			if (in.capacity() >= server.getAdmission().getMaxHeaderSize()) {
+				state = State.CLOSED;
+				return;
+			}
+			ByteBuffer bigger = ByteBuffer.allocate(Math.min(in.capacity() * 2,
+					server.getAdmission().getMaxHeaderSize()));
+			in.flip();
+			bigger.put(in);
+			in = bigger;
+		}
+		if (read(in) < 0) {
+			state = State.CLOSED;
+			return;
+		}
+
+		// Check if the whole line was received
+		int end = -1;
+		for (int i = 0; i < in.position(); i ++) {
+			if (in.get(i) == '\n') {
+				end = i;
+				break;
+			}
+		}
+		if (end < 0) {
+			return;
+		}
+		if (end > server.getAdmission().getMaxHeaderSize()) {
+			state = State.CLOSED;
+			return;
+		}
+		in.flip();
+		byte[] bytes = new byte[end];
+		in.get(bytes);
+		in.get();
+		String line = new String(bytes, StandardCharsets.UTF_8);
+		if (line.endsWith("\r")) {
+			line = line.substring(0, line.length()-1);
+		}
+		start(line, key);
+	}
+
+	/** Moves to the state that serves the command. */
+	private void start(String line, SelectionKey key) throws IOException {
+		started = System.nanoTime();
+
+		// Client is using version 2 of the protocol
+		if (Protocol.isVersion2(line)) {
+			try {
+				startVersion2(Protocol.parseRequest(line), line, key);
+			} catch (IOException | RuntimeException e) {
+				error = e;
+				String reason = e.getMessage();
+				respond(Protocol.error(reason == null? e.toString() : reason),
+						key);
+			}
+		}
+
+		// Client wants a list of directories
+		else if (line.startsWith(FTServer.LIST_DIRECTORIES)) {
+			command = FTServer.LIST_DIRECTORIES;
+			StringBuilder sb = new StringBuilder();
+			for (String file : server.listFiles()) {
+				sb.append(file).append('\n');
+			}
+			out = ByteBuffer.wrap(sb.toString().getBytes());
+			state = State.WRITE_RESPONSE;
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+
+		// Client wants to upload a file (uploads that are chunked and hashed
+		// into a DedupStore when they are committed are served by the
+		// blocking handler)
+		else if (line.startsWith(FTServer.UPLOAD)) {
+			if (server.isDedup()) {
+				this.line = line;
+				state = State.HANDOFF;
+				return;
+			}
+			command = FTServer.UPLOAD;
+			String filename = line.substring(FTServer.UPLOAD.length()+1);
+			server.resolve(filename);
+			request = new Header(FTServer.UPLOAD).arg(filename);
+			temp = server.createTempFile();
+			file = FileChannel.open(temp, StandardOpenOption.WRITE);
+			state = State.READ_UPLOAD;
+			writeUpload();
+			readUpload();
+		}
+
+		// Client wants to download a file
+		else if (line.startsWith(FTServer.DOWNLOAD)) {
+			command = FTServer.DOWNLOAD;
+			String filename = line.substring(FTServer.DOWNLOAD.length()+1);
+			serve(FileRange.open(server, new Header(FTServer.DOWNLOAD)
+					.arg(filename)), null, line, key);
+		}
+
+		// Unknown command
+		else {
+			state = State.CLOSED;
+		}
+	}
+
+	/** Moves to the state that serves a version 2 request. */
+	private void startVersion2(Header request, String line, SelectionKey key)
+			throws IOException {
+		this.request = request;
+		this.command = request.getVerb();
+
+		// Client wants a list of directories (pages are streamed by the
+		// blocking handler)
+		if (request.is(FTServer.LIST_DIRECTORIES) && !request.hasOptions()) {
+			String[] files = server.listFiles();
+			StringBuilder sb = new StringBuilder();
+			sb.append(new Header(Protocol.OK)).append('\n');
+			for (String file : files) {
+				sb.append(file).append('\n');
+			}
+			out = ByteBuffer.wrap(sb.toString().getBytes(
+					StandardCharsets.UTF_8));
+			state = State.WRITE_RESPONSE;
+			key.interestOps(SelectionKey.OP_WRITE);
+		}
+
+		// Client wants to upload a file (compressed uploads, and uploads
+		// that are chunked and hashed into a DedupStore when they are
+		// committed, are served by the blocking handler)
+		else if (request.is(FTServer.UPLOAD) && !request.has("encoding") &&
+				!server.isDedup()) {
+			remaining = request.getLong("length", -1);
+			if (remaining < 0) {
+				throw new IOException("missing length");
+			}
+			server.resolve(request.getArg(0));
+			temp = server.createTempFile();
+			file = FileChannel.open(temp, StandardOpenOption.WRITE);
+			ByteBuffer body = ByteBuffer.allocate((int) Math.min(
+					Protocol.WRITE_BUFFER_SIZE, Math.max(remaining, 1)));
+			if (in.remaining() > remaining) {
+				in.limit(in.position() + (int) remaining);
+			}
+			body.put(in);
+			in = body;
+			throttled = throttle.start(remaining);
+			state = State.READ_BODY;
+			readBody(key);
+		}
+
+		// Client wants to download a file (a download that is revalidated by
+		// hashing the whole file is served by the blocking handler)
+		else if (request.is(FTServer.DOWNLOAD) && !request.has("ifhash")) {
+			FileRange range = FileRange.open(server, request);
+			if (Codecs.choose(request.get("accept"), request.getArg(0),
+					range.getLength()) != null) {
+
+				// Compressed downloads are served by the blocking handler
+				range.close();
+				this.line = line;
+				state = State.HANDOFF;
+				return;
+			}
+			if (serve(range, status(range.status()), line, key)) {
+				server.getCompressionStats().addSent(range.getLength(),
+						range.getLength());
+			}
+		}
+
+		// Everything else is served by a blocking handler
+		else {
+			this.line = line;
+			state = State.HANDOFF;
+		}
+	}
+
+	/**
+	 * Moves to the state that sends a range, from memory if it is cached or
+	 * straight from the file otherwise. Files in a {@link DedupStore} are
+	 * handed to the blocking handler, and false is returned.
+	 */
+	private boolean serve(FileRange range, ByteBuffer status, String line,
+			SelectionKey key) throws IOException {
+		data = range.getBuffer();
+		if (data != null) {
+			state = State.WRITE_DATA;
+		} else if (range.getChannel() != null) {
+			file = range.getChannel();
+			position = range.getOffset();
+			end = position + range.getLength();
+			state = State.WRITE_FILE;
+		} else {
+			range.close();
+			this.line = line;
+			state = State.HANDOFF;
+			return false;
+		}
+		out = status;
+		throttled = throttle.start(range.getLength());
+		key.interestOps(SelectionKey.OP_WRITE);
+		return true;
+	}
+
+	/** Reads the body of a version 2 upload and writes it in large blocks. */
+	private void readBody(SelectionKey key) throws IOException {
+
+		// Read what is available
+		long buffered = in.position();
+		long received = -buffered;
+		int read = 0;
+		while (buffered < remaining && in.hasRemaining()) {
+			if (in.remaining() > remaining - buffered) {
+				in.limit(in.position() + (int) (remaining - buffered));
+			}
+			read = read(in);
+			if (read <= 0) {
+				break;
+			}
+			buffered = in.position();
+		}
+		if (read < 0 && buffered < remaining) {
+			throw new IOException("upload ended early");
+		}
+		received += buffered;
+
+		// Write the data when the buffer is full or the upload is done
+		if (!in.hasRemaining() || buffered == remaining) {
+			in.flip();
+			while (in.hasRemaining()) {
+				file.write(in);
+			}
+			in.clear();
+			remaining -= buffered;
+		}
+		if (remaining > 0) {
+			if (throttled) {
+				park(key, throttle.reserve(received));
+			}
+			return;
+		}
+
+		// Move the file into place and respond
+		file.close();
+		file = null;
+		server.commit(temp, request.getArg(0), request.getLong("mtime", 0));
+		temp = null;
+		long length = request.getLong("length", 0);
+		server.getCompressionStats().addReceived(length, length);
+		respond(new Header(Protocol.OK).set("length", length), key);
+	}
+
+	/** Sends a status line, and closes when it is done. */
+	private void respond(Header status, SelectionKey key) {
+		out = status(status);
+		state = State.WRITE_RESPONSE;
+		key.interestOps(SelectionKey.OP_WRITE);
+	}
+
+	/** Gets a status line as a buffer ready to be written. */
+	private static ByteBuffer status(Header status) {
+		return ByteBuffer.wrap((status + "\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	/**
+	 * Reads the uploaded data that is available. Like the blocking handler,
+	 * the upload ends as soon as no more data is ready to be read, and the
+	 * file is then moved into place.
+	 */
+	private void readUpload() throws IOException {
+		int read;
+		do {
+			in.compact();
+			read = read(in);
+			in.flip();
+			writeUpload();
+		} while (read > 0);
+		file.close();
+		file = null;
+		server.commit(temp, request.getArg(0));
+		temp = null;
+		state = State.CLOSED;
+	}
+
+	/** Writes the buffered upload data to the file. */
+	private void writeUpload() throws IOException {
+		if (!in.hasRemaining()) {
+			return;
+		}
+		if (pendingNewLine) {
+			file.write(ByteBuffer.wrap(new byte[] {'\n'}));
+			pendingNewLine = false;
+		}
+		if (in.get(in.limit()-1) == '\n') {
+			pendingNewLine = true;
+			in.limit(in.limit()-1);
+		}
+		while (in.hasRemaining()) {
+			file.write(in);
+		}
+		in.clear();
+		in.flip();
+	}
+
+	/** Writes the buffered response, and closes when it is done. */
+	private void writeResponse() throws IOException {
+		write(out);
+		if (!out.hasRemaining()) {
+			state = State.CLOSED;
+		}
+	}
+
+	/**
+	 * Sends as much of the file being downloaded as the channel takes, or a
+	 * chunk of it if the download is throttled.
+	 */
+	private void writeFile(SelectionKey key) throws IOException {
+		if (out != null && out.hasRemaining()) {
+			write(out);
+			if (out.hasRemaining()) {
+				return;
+			}
+		}
+		long count = end - position;
+		if (throttled) {
+			count = Math.min(count, TransferScheduler.CHUNK_SIZE);
+		}
+		long sent = Transfers.sendFile(file, position, count, channel);
+		server.getMetrics().addBytesOut(sent);
+		if (sent > 0) {
+			lastActive = System.nanoTime();
+		}
+		position += sent;
+		if (position >= end || (sent == 0 && position >= file.size())) {
+			state = State.CLOSED;
+		} else if (throttled) {
+			park(key, throttle.reserve(sent));
+		}
+	}
+
+	/**
+	 * Sends as much of the cached data being downloaded as the channel takes,
+	 * or a chunk of it if the download is throttled.
+	 */
+	private void writeData(SelectionKey key) throws IOException {
+		int limit = data.limit();
+		if (throttled) {
+			data.limit(Math.min(limit,
+					data.position() + TransferScheduler.CHUNK_SIZE));
+		}
+		long sent = out != null && out.hasRemaining()? write(out, data) :
+			write(data);
+		data.limit(limit);
+		if (!data.hasRemaining() && (out == null || !out.hasRemaining())) {
+			state = State.CLOSED;
+		} else if (throttled) {
+			park(key, throttle.reserve(sent));
+		}
+	}
+
+	/** Stops serving the connection while it waits for its throttle. */
+	private void park(SelectionKey key, long nanos) {
+		if (nanos <= 0) {
+			return;
+		}
+		parkedOps = key.interestOps();
+		key.interestOps(0);
+		resumeAt = System.nanoTime() + nanos;
+	}
+
+	/**
+	 * <b><em>isParked</em></b>
+	 *
+	 * @return true if the connection is waiting for its throttle, and is
+	 * not interested in any operation until it is resumed.
+	 */
+	boolean isParked() {
+		return resumeAt != 0;
+	}
+
+	/**
+	 * <b><em>resume</em></b>
+	 *
+	 * <p>Serves the connection again after it waited for its throttle.</p>
+	 *
+	 * @param key - the key of the channel.
+	 */
+	void resume(SelectionKey key) {
+		resumeAt = 0;
+		lastActive = System.nanoTime();
+		if (key.isValid()) {
+			key.interestOps(parkedOps);
+		}
+	}
+
+	/**
+	 * <b><em>isHandoff</em></b>
+	 *
+	 * @return true if the connection should be handed to a blocking
+	 * {@link ClientConnectionHandler}.
+	 */
+	boolean isHandoff() {
+		return state == State.HANDOFF;
+	}
+
+	/**
+	 * <b><em>handOff</em></b>
+	 *
+	 * <p>Creates the blocking handler that takes over the connection. The
+	 * channel must already be deregistered and in blocking mode.</p>
+	 *
+	 * @return the handler.
+	 */
+	ClientConnectionHandler handOff() {
+		byte[] rest = new byte[in.remaining()];
+		in.get(rest);
+		state = State.CLOSED;
+		command = null;
+		return new ClientConnectionHandler(server, channel.socket(), ticket,
+				line, rest);
+	}
+
+	/** Reads from the client and counts the bytes. */
+	private int read(ByteBuffer buffer) throws IOException {
+		int read = channel.read(buffer);
+		server.getMetrics().addBytesIn(read);
+		if (read > 0) {
+			lastActive = System.nanoTime();
+		}
+		return read;
+	}
+
+	/** Writes to the client and counts the bytes. */
+	private long write(ByteBuffer... buffers) throws IOException {
+		long written = channel.write(buffers);
+		server.getMetrics().addBytesOut(written);
+		if (written > 0) {
+			lastActive = System.nanoTime();
+		}
+		return written;
+	}
+
+	/**
+	 * <b><em>isExpired</em></b>
+	 *
+	 * <p>Checks the timeouts of the server's {@link AdmissionController}: the
+	 * idle timeout while waiting for a request, otherwise the read or write
+	 * timeout. A connection waiting for its throttle never expires.</p>
+	 *
+	 * @param now - the time, from {@link System#nanoTime()}.
+	 *
+	 * @return true if the connection made no progress for too long.
+	 */
+	boolean isExpired(long now) {
+		if (isParked()) {
+			return false;
+		}
+		AdmissionController admission = server.getAdmission();
+		long timeout;
+		switch (state) {
+		case READ_HEADER:
+			timeout = in.position() == 0? admission.getIdleTimeout() :
+				admission.getReadTimeout();
+			break;
+		case READ_UPLOAD:
+		case READ_BODY:
+			timeout = admission.getReadTimeout();
+			break;
+		case WRITE_RESPONSE:
+		case WRITE_FILE:
+		case WRITE_DATA:
+			timeout = admission.getWriteTimeout();
+			break;
+		default:
+			return false;
+		}
+		return timeout > 0 &&
+				now - lastActive > TimeUnit.MILLISECONDS.toNanos(timeout);
+	}
+
+	/**
+	 * <b><em>expire</em></b>
+	 *
+	 * <p>Closes the connection after a timeout.</p>
+	 */
+	void expire() {
+		error = new SocketTimeoutException(state + " timed out");
+		server.getAdmission().timedOut();
+		close();
+	}
+
+	long getResumeAt() {
+		return resumeAt;
+	}
+
+	SocketChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * <b><em>isClosed</em></b>
+	 *
+	 * @return true if the connection is finished.
+	 */
+	boolean isClosed() {
+		return state == State.CLOSED;
+	}
+
+	/**
+	 * <b><em>close</em></b>
+	 *
+	 * <p>Closes the connection and any open file.</p>
+	 *
+	 * @return true if the connection was open before this call.
+	 */
+	boolean close() {
+		if (!channel.isOpen()) {
+			return false;
+		}
+		state = State.CLOSED;
+		ticket.release();
+		if (command != null) {
+			server.getMetrics().record(command, System.nanoTime() - started,
+					error);
+			command = null;
+		} else if (error != null) {
+			server.getMetrics().error(error);
+		}
+		try {
+			if (file != null) {
+				file.close();
+			}
+			if (temp != null) {
+				Files.deleteIfExists(temp);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		return true;
+	}
+}
@@ -0,0 +1,343 @@
+package server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code NioServerEngine} class is a non-blocking alternative to the
+ * blocking accept loop in {@link FTServer#listen()}. Connections are accepted
+ * on the listening thread and spread round-robin over a small number of event
+ * loops. Each event loop owns a {@link Selector} and drives the
+ * {@link NioConnection} state machine of every connection registered with it,
+ * so idle or slow one-shot clients do not hold a thread each.
+ * <p>
+ * The event loops serve the DIR, UPLOAD and DOWNLOAD commands themselves.
+ * Any other version 2 request (e.g. a SESSION), and any request that would
+ * keep the loop busy for long (e.g. an upload that is hashed into a
+ * {@link DedupStore}, or a download revalidated by the hash of the file),
+ * is handed over to a blocking {@link ClientConnectionHandler} run by the
+ * server's {@link ConnectionExecutor}. Transfers held back by the server's
+ * {@link TransferScheduler} are parked: the loop stops watching them until
+ * their wait is over, so it never sleeps on one connection. The loops also
+ * close connections that break the timeouts of the server's
+ * {@link AdmissionController}.
+ * <p>
+ * A SESSION stays with the executor until it is closed, so the engine only
+ * saves threads for one-shot connections: an open session holds a thread
+ * even while it is idle. This is why the server's default executor runs
+ * virtual threads with this engine, where the JVM has them.
+ */
+public class NioServerEngine {
+
+	/** The default number of event loop threads. */
+	public static final int DEFAULT_EVENT_LOOPS =
+			Math.max(1, Runtime.getRuntime().availableProcessors());
+
+	/** How often the connections are checked for timeouts, in milliseconds.
+	 * */
+	private static final long CHECK_PERIOD = 1000;
+
+	/** The server whose commands are being served. */
+	private final FTServer server;
+
+	/** The event loops that connections are spread over. */
+	private final EventLoop[] loops;
+
+	/** The channel used to accept incoming connections. */
+	private ServerSocketChannel serverChannel;
+
+	/** The number of connections currently open. */
+	private final AtomicInteger openConnections = new AtomicInteger();
+
+	/** Set once the engine has been closed. */
+	private volatile boolean closed;
+
+	/**
+	 * Constructs a new engine for a server.
+	 *
+	 * @param server - the server whose commands are being served.
+	 * @param eventLoops - the number of event loop threads.
+	 */
+	public NioServerEngine(FTServer server, int eventLoops) {
+		this.server = server;
+		this.loops = new EventLoop[Math.max(1, eventLoops)];
+	}
+
+	/**
+	 * <b><em>listen</em></b>
+	 *
+	 * <p>Starts the event loops and accepts new connections on the calling
+	 * thread until the engine is closed.</p>
+	 */
+	public void listen() {
+
+		// Start the event loops
+		try {
+			for (int i = 0; i < loops.length; i ++) {
+				loops[i] = new EventLoop(Selector.open());
+				Thread t = new Thread(loops[i], "ft-nio-" + i);
+				t.setDaemon(true);
+				t.start();
+			}
+			serverChannel = ServerSocketChannel.open();
+			serverChannel.bind(new InetSocketAddress(FTServer.SERVER_PORT));
+		} catch (IOException e) {
+			e.printStackTrace();
+			close();
+			return;
+		}
+
+		// Hand each new connection to the next event loop
+		int next = 0;
+		while (!closed && serverChannel.isOpen()) {
+			try {
+				SocketChannel channel = serverChannel.accept();
+				server.getMetrics().accepted();
+				AdmissionController admission = server.getAdmission();
+				AdmissionController.Ticket ticket =
+						admission.admit(channel.socket());
+				if (ticket == null) {
+					admission.reject(channel.socket());
+					continue;
+				}
+				channel.configureBlocking(false);
+				loops[next].register(new NioConnection(server, channel,
+						ticket));
+				next = (next + 1) % loops.length;
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * <b><em>close</em></b>
+	 *
+	 * <p>Stops accepting connections and shuts down the event loops, closing
+	 * any connections that are still open.</p>
+	 *
+	 * @return true if and only if the listening channel was closed.
+	 */
+	public boolean close() {
+		closed = true;
+		boolean err = false;
+		try {
+			if (serverChannel != null) {
+				serverChannel.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			err = true;
+		}
+		for (EventLoop loop : loops) {
+			if (loop != null) {
+				loop.selector.wakeup();
+			}
+		}
+		return !err;
+	}
+
+	/**
+	 * <b><em>getOpenConnections</em></b>
+	 *
+	 * @return the number of connections currently open.
+	 */
+	public int getOpenConnections() {
+		return openConnections.get();
+	}
+
+	public FTServer getServer() {
+		return server;
+	}
+
+	/** A thread that drives all connections registered with its selector. */
+	private class EventLoop implements Runnable {
+
+		/** The selector for this loop's connections. */
+		private final Selector selector;
+
+		/** Connections accepted but not yet registered with the selector. */
+		private final Queue<NioConnection> pending =
+				new ConcurrentLinkedQueue<>();
+
+		/** Connections whose keys were cancelled so they can be handed off. */
+		private final List<NioConnection> handoffs = new ArrayList<>();
+
+		/** The keys of connections waiting for their throttle. */
+		private final List<SelectionKey> parked = new ArrayList<>();
+
+		/** When the connections were last checked for timeouts, from
+		 * {@link System#nanoTime()}. */
+		private long checked = System.nanoTime();
+
+		private EventLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		/** Queues a new connection to be registered by the loop thread. */
+		private void register(NioConnection conn) {
+			pending.add(conn);
+			selector.wakeup();
+		}
+
+		/**
+		 * Hands connections over to the server's {@link ConnectionExecutor}.
+		 * A channel can only go back to blocking mode once its cancelled key
+		 * has been removed from the selector, which happens on the next
+		 * select. The connections are {@link ConnectionExecutor#offer
+		 * offered}, so one the executor has no room for is sent BUSY instead
+		 * of being served on the loop thread. A handed over SESSION keeps its
+		 * executor thread until it is closed.
+		 */
+		private void handOff() {
+			try {
+				selector.selectNow();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+			for (NioConnection conn : handoffs) {
+				openConnections.decrementAndGet();
+				try {
+					conn.getChannel().configureBlocking(true);
+					ClientConnectionHandler handler = conn.handOff();
+					if (!server.getExecutor().offer(handler)) {
+						handler.reject();
+					}
+				} catch (IOException e) {
+					e.printStackTrace();
+					conn.close();
+				}
+			}
+			handoffs.clear();
+		}
+
+		/**
+		 * Resumes the parked connections whose wait is over, and returns how
+		 * long to select for until the next one is or the timeouts are
+		 * checked again, in milliseconds.
+		 */
+		private long resumeParked() {
+			long now = System.nanoTime();
+			long next = Long.MAX_VALUE;
+			Iterator<SelectionKey> it = parked.iterator();
+			while (it.hasNext()) {
+				SelectionKey key = it.next();
+				NioConnection conn = (NioConnection) key.attachment();
+				if (!key.isValid() || conn.getResumeAt() - now <= 0) {
+					conn.resume(key);
+					it.remove();
+				} else {
+					next = Math.min(next, conn.getResumeAt() - now);
+				}
+			}
+			next = Math.min(next, TimeUnit.MILLISECONDS.toNanos(CHECK_PERIOD));
+			return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next + 999_999));
+		}
+
+		/**
+		 * Closes the connections that timed out (see
+		 * {@link NioConnection#isExpired(long)}), at most once per
+		 * {@link #CHECK_PERIOD}.
+		 */
+		private void expire() {
+			long now = System.nanoTime();
+			if (now - checked < TimeUnit.MILLISECONDS.toNanos(CHECK_PERIOD)) {
+				return;
+			}
+			checked = now;
+			for (SelectionKey key : new ArrayList<>(selector.keys())) {
+				NioConnection conn = (NioConnection) key.attachment();
+				if (key.isValid() && conn.isExpired(now)) {
+					conn.expire();
+					openConnections.decrementAndGet();
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			while (!closed) {
+				try {
+					selector.select(resumeParked());
+				} catch (IOException e) {
+					e.printStackTrace();
+					break;
+				}
+
+				// Register new connections
+				NioConnection added;
+				while ((added = pending.poll()) != null) {
+					try {
+						added.getChannel().register(selector,
+								SelectionKey.OP_READ, added);
+						openConnections.incrementAndGet();
+					} catch (IOException e) {
+						e.printStackTrace();
+						added.close();
+					}
+				}
+
+				// Handle the ready connections
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					NioConnection conn = (NioConnection) key.attachment();
+					if (key.isValid()) {
+						conn.handle(key);
+					}
+					if (key.isValid() && conn.isHandoff()) {
+						key.cancel();
+						handoffs.add(conn);
+					} else if (key.isValid() && conn.isParked()) {
+						parked.add(key);
+					} else if ((!key.isValid() || conn.isClosed()) &&
+							conn.close()) {
+						openConnections.decrementAndGet();
+					}
+				}
+
+				// Hand off the connections that need a blocking handler
+				if (!handoffs.isEmpty()) {
+					handOff();
+				}
+				expire();
+			}
+
+			// Shut down
+			NioConnection added;
+			while ((added = pending.poll()) != null) {
+				added.close();
+			}
+			for (SelectionKey key : selector.keys()) {
+				if (((NioConnection) key.attachment()).close()) {
+					openConnections.decrementAndGet();
+				}
+			}
+			closeQuietly(selector);
+		}
+	}
+
+	private static void closeQuietly(Closeable c) {
+		try {
+			c.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
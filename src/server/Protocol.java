@@ -0,0 +1,379 @@
+package server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The {@code Protocol} class has the constants and helpers for version 2 of
+ * the protocol. A version 2 request is a line starting with {@link #VERSION}
+ * followed by a {@link Header}, e.g. {@code FT2 UPLOAD length=12 notes.txt},
+ * and may be followed by exactly as many raw bytes as the header says. The
+ * server answers with a status {@link Header} line ({@link #OK} or
+ * {@link #ERROR}) followed by any response data. Unlike the original text
+ * commands, file data is never read as text, so binary files are safe.
+ */
+public final class Protocol {
+
+	/** The string every version 2 request line starts with. */
+	public static final String VERSION = "FT2";
+
+	/** The status sent when a request succeeded. */
+	public static final String OK = "OK";
+
+	/** The status sent when a request failed. The argument is the reason. */
+	public static final String ERROR = "ERR";
+
+	/** The status sent instead of serving a connection when the server is
+	 * overloaded. The {@code retry-after} option is how long the client
+	 * should wait before trying again, in milliseconds. */
+	public static final String BUSY = "BUSY";
+
+	/** The longest header line that will be read. */
+	public static final int MAX_LINE = 8192;
+
+	/** The size of the buffer data is collected in before it is written to a
+	 * file. */
+	public static final int WRITE_BUFFER_SIZE = 256 * 1024;
+
+	/** The most data sent in a single session response frame. */
+	public static final int MAX_FRAME = 64 * 1024;
+
+	/** The length of the session response frame that ends a response. */
+	public static final int END_OF_RESPONSE = -1;
+
+	/** The body length of a session request frame whose body is sent in
+	 * chunks (see {@link ChunkedOutputStream}). */
+	public static final long CHUNKED = -1;
+
+	private Protocol() {}
+
+	/**
+	 * <b><em>isVersion2</em></b>
+	 *
+	 * @param line - a request line.
+	 *
+	 * @return true if the line is a version 2 request.
+	 */
+	public static boolean isVersion2(String line) {
+		return line.startsWith(VERSION + " ");
+	}
+
+	/**
+	 * <b><em>parseRequest</em></b>
+	 *
+	 * @param line - a version 2 request line.
+	 *
+	 * @return the header of the request.
+	 */
+	public static Header parseRequest(String line) {
+		return Header.parse(line.substring(VERSION.length()+1));
+	}
+
+	/**
+	 * <b><em>request</em></b>
+	 *
+	 * @param header - the header of the request.
+	 *
+	 * @return the request line (with a trailing new line) as bytes.
+	 */
+	public static byte[] request(Header header) {
+		return (VERSION + " " + header + "\n").getBytes(StandardCharsets.UTF_8);
+	}
+
+	/**
+	 * <b><em>error</em></b>
+	 *
+	 * @param reason - why the request failed.
+	 *
+	 * @return an {@link #ERROR} status header.
+	 */
+	public static Header error(String reason) {
+		return new Header(ERROR).arg(reason);
+	}
+
+	/**
+	 * <b><em>readLine</em></b>
+	 *
+	 * <p>Reads a line one byte at a time, so that none of the data after the
+	 * line is consumed. The stream should be buffered.</p>
+	 *
+	 * @param in - the stream to read from.
+	 *
+	 * @return the line without the line terminator, or null if the stream
+	 * ended before any data was read.
+	 * @throws IOException if the line is longer than {@link #MAX_LINE}.
+	 */
+	public static String readLine(InputStream in) throws IOException {
+		return readLine(in, MAX_LINE);
+	}
+
+	/**
+	 * <b><em>readLine</em></b>
+	 *
+	 * <p>Reads a line of limited length one byte at a time.</p>
+	 *
+	 * @param in - the stream to read from.
+	 * @param max - the longest line, in bytes.
+	 *
+	 * @return the line without the line terminator, or null if the stream
+	 * ended before any data was read.
+	 * @throws IOException if the line is longer than the limit.
+	 * @see #readLine(InputStream)
+	 */
+	public static String readLine(InputStream in, int max)
+			throws IOException {
+		ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+		int b;
+		while ((b = in.read()) != '\n') {
+			if (b < 0) {
+				if (line.size() == 0) {
+					return null;
+				}
+				break;
+			}
+			if (line.size() >= max) {
+				throw new IOException("header line too long");
+			}
+			line.write(b);
+		}
+		String s = line.toString("UTF-8");
+		if (s.endsWith("\r")) {
+			s = s.substring(0, s.length()-1);
+		}
+		return s;
+	}
+
+	/**
+	 * <b><em>writeLine</em></b>
+	 *
+	 * <p>Writes a header followed by a new line, and flushes the stream.</p>
+	 *
+	 * @param out - the stream to write to.
+	 * @param header - the header to write.
+	 *
+	 * @throws IOException if the line could not be written.
+	 */
+	public static void writeLine(OutputStream out, Header header)
+			throws IOException {
+		out.write((header + "\n").getBytes(StandardCharsets.UTF_8));
+		out.flush();
+	}
+
+	/**
+	 * <b><em>readStatus</em></b>
+	 *
+	 * <p>Reads a status line sent by the server.</p>
+	 *
+	 * @param in - the stream to read from.
+	 *
+	 * @return the status, if it was {@link #OK}.
+	 * @throws ServerBusyException if the server sent {@link #BUSY}.
+	 * @throws IOException if the server sent {@link #ERROR} or no status.
+	 */
+	public static Header readStatus(InputStream in) throws IOException {
+		String line = readLine(in);
+		if (line == null) {
+			throw new EOFException("no response from server");
+		}
+		Header status = Header.parse(line);
+		checkBusy(status);
+		if (!status.is(OK)) {
+			String reason = status.getArg(0);
+			throw new IOException(reason == null? line : reason);
+		}
+		return status;
+	}
+
+	/**
+	 * <b><em>checkBusy</em></b>
+	 *
+	 * @param status - a status sent by the server.
+	 *
+	 * @throws ServerBusyException if the status is {@link #BUSY}.
+	 */
+	public static void checkBusy(Header status) throws ServerBusyException {
+		if (status.is(BUSY)) {
+			throw new ServerBusyException(status.getLong("retry-after", 0));
+		}
+	}
+
+	/**
+	 * <b><em>writeRequestFrame</em></b>
+	 *
+	 * <p>Writes the start of a session request frame. A request frame is the
+	 * request ID, the length of the header, the header, and the length of the
+	 * body, and must be followed by exactly that many bytes of body. Each
+	 * response frame is the request ID and a length followed by that many
+	 * bytes of the response, and a length of {@link #END_OF_RESPONSE} ends
+	 * the response. The stream is not flushed.</p>
+	 *
+	 * @param out - the stream to write to.
+	 * @param id - the ID the responses will be tagged with.
+	 * @param request - the header of the request.
+	 * @param bodyLength - the number of bytes in the body.
+	 *
+	 * @throws IOException if the frame could not be written.
+	 */
+	public static void writeRequestFrame(DataOutputStream out, int id,
+			Header request, long bodyLength) throws IOException {
+		byte[] header = request.toString().getBytes(StandardCharsets.UTF_8);
+		out.writeInt(id);
+		out.writeInt(header.length);
+		out.write(header);
+		out.writeLong(bodyLength);
+	}
+
+	/**
+	 * <b><em>receive</em></b>
+	 *
+	 * <p>Writes an exact number of bytes from a stream to a channel (usually a
+	 * file), collecting them in a {@link #WRITE_BUFFER_SIZE} buffer so the
+	 * channel is written in large blocks.</p>
+	 *
+	 * @param in - the stream to read from.
+	 * @param count - the number of bytes to read.
+	 * @param file - the channel to write to, at its current position.
+	 *
+	 * @return the number of bytes written.
+	 * @throws EOFException if the stream ended early.
+	 * @throws IOException if the data could not be read or written.
+	 */
+	public static long receive(InputStream in, long count,
+			WritableByteChannel file)
+			throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate(
+				(int) Math.min(WRITE_BUFFER_SIZE, Math.max(count, 1)));
+		byte[] array = buffer.array();
+		long received = 0;
+		while (received < count) {
+			int n = in.read(array, buffer.position(), (int) Math.min(
+					buffer.remaining(), count - received));
+			if (n < 0) {
+				throw new EOFException("expected " + count + " bytes but got "
+						+ received);
+			}
+			buffer.position(buffer.position() + n);
+			received += n;
+			if (!buffer.hasRemaining() || received == count) {
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					file.write(buffer);
+				}
+				buffer.clear();
+			}
+		}
+
+		return received;
+	}
+
+	/**
+	 * <b><em>receive</em></b>
+	 *
+	 * <p>Receives the file data that follows a header. The {@code length}
+	 * option of the header is the length of the data, and if it has an
+	 * {@code encoding} the data is chunked and compressed with that
+	 * {@link Codec}.</p>
+	 *
+	 * @param in - the stream to read from, or the
+	 * {@link ChunkedInputStream} of a session body that is already split
+	 * into the chunks.
+	 * @param header - the request or status before the data.
+	 * @param out - the channel to write the data to.
+	 * @param stats - counts the data, or null.
+	 *
+	 * @return the number of bytes of data received.
+	 * @throws IOException if the data could not be read, decoded or written.
+	 */
+	public static long receive(InputStream in, Header header,
+			WritableByteChannel out, CompressionStats stats)
+			throws IOException {
+		long length = header.getLong("length", 0);
+		String encoding = header.get("encoding");
+		if (encoding == null) {
+			long received = receive(in, length, out);
+			if (stats != null) {
+				stats.addReceived(received, received);
+			}
+			return received;
+		}
+		Codec codec = Codecs.get(encoding);
+
+		// A session passes chunked bodies already wrapped
+		ChunkedInputStream chunked = in instanceof ChunkedInputStream?
+				(ChunkedInputStream) in : new ChunkedInputStream(in);
+		long received;
+		try (InputStream decoded = codec.decode(chunked)) {
+			received = receive(decoded, length, out);
+		}
+		chunked.skipRemaining();
+		if (stats != null) {
+			stats.addReceived(received, chunked.getCount());
+		}
+		return received;
+	}
+
+	/**
+	 * <b><em>sendEncoded</em></b>
+	 *
+	 * <p>Sends part of a file compressed with a codec, in chunks. The header
+	 * before the data should have the {@code encoding} option.</p>
+	 *
+	 * @param file - the file to send.
+	 * @param position - the position in the file to start at.
+	 * @param count - the number of bytes to send.
+	 * @param codec - the codec to compress with.
+	 * @param out - the stream to send to. It is flushed but not closed.
+	 * @param stats - counts the data, or null.
+	 *
+	 * @throws IOException if the file could not be read or sent.
+	 */
+	public static void sendEncoded(FileChannel file, long position,
+			long count, Codec codec, OutputStream out, CompressionStats stats)
+			throws IOException {
+		ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+		try (OutputStream encoded = codec.encode(chunked)) {
+			Transfers.copy(file, position, count, Channels.newChannel(encoded));
+		}
+		if (stats != null) {
+			stats.addSent(count, chunked.getCount());
+		}
+	}
+
+	/**
+	 * <b><em>sendEncoded</em></b>
+	 *
+	 * <p>Sends a range of a file compressed with a codec, in chunks. This
+	 * also works for files read from a {@link DedupStore}.</p>
+	 *
+	 * @param range - the range to send.
+	 * @param codec - the codec to compress with.
+	 * @param out - the stream to send to. It is flushed but not closed.
+	 * @param stats - counts the data, or null.
+	 *
+	 * @throws IOException if the file could not be read or sent.
+	 */
+	public static void sendEncoded(FileRange range, Codec codec,
+			OutputStream out, CompressionStats stats) throws IOException {
+		if (range.getChannel() != null) {
+			sendEncoded(range.getChannel(), range.getOffset(),
+					range.getLength(), codec, out, stats);
+			return;
+		}
+		ChunkedOutputStream chunked = new ChunkedOutputStream(out);
+		try (OutputStream encoded = codec.encode(chunked)) {
+			range.sendTo(Channels.newChannel(encoded));
+		}
+		if (stats != null) {
+			stats.addSent(range.getLength(), chunked.getCount());
+		}
+	}
+}
@@ -0,0 +1,32 @@
+package server;
+
+import java.io.IOException;
+
+/**
+ * The {@code ServerBusyException} class is thrown when the server answered
+ * {@link Protocol#BUSY} instead of serving the connection, because it was
+ * overloaded (see {@link AdmissionController}). The request was not run, so
+ * it can be sent again after {@link #getRetryAfter()}.
+ */
+public class ServerBusyException extends IOException {
+
+	private static final long serialVersionUID = 1L;
+
+	/** How long the server asked the client to wait, in milliseconds. */
+	private final long retryAfter;
+
+	/**
+	 * Constructs a new exception.
+	 *
+	 * @param retryAfter - how long the server asked the client to wait, in
+	 * milliseconds.
+	 */
+	public ServerBusyException(long retryAfter) {
+		super("server busy, retry after " + retryAfter + " ms");
+		this.retryAfter = retryAfter;
+	}
+
+	public long getRetryAfter() {
+		return retryAfter;
+	}
+}
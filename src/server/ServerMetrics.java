@@ -0,0 +1,482 @@
+package server;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+/**
+ * The {@code ServerMetrics} class counts what a server does: the connections
+ * it accepts, the bytes it reads and writes, and for every command the
+ * number of requests, how many failed and a {@link Histogram} of how long
+ * they took. Errors are also counted by the type of the exception, so
+ * a slow or failing server shows which command is responsible.
+ * <p>
+ * Everything is counted with {@link LongAdder}s and
+ * {@link ConcurrentHistogram}s, which record without locking, so connections
+ * on many threads do not contend. Counting can be turned off with
+ * {@link #setEnabled(boolean)}, e.g. to measure what it costs.
+ * <p>
+ * The metrics are shown to local clients with the STATS command (see
+ * {@link #snapshot()}) and over JMX while the server is listening, as
+ * {@value #OBJECT_NAME}. Along with them are the counters of the server's
+ * {@link DirectoryIndex}, {@link ContentCache} and {@link DedupStore}, which
+ * count for themselves.
+ */
+public class ServerMetrics implements ServerMetricsMXBean {
+
+	/** The name the metrics are registered with JMX as. */
+	public static final String OBJECT_NAME = "server:type=FTServer,name=Metrics";
+
+	/** The name requests with an unknown command are counted under. */
+	public static final String UNKNOWN = "UNKNOWN";
+
+	/** The significant digits latencies are kept to, which counts any
+	 * latency within 1% of itself. */
+	private static final int LATENCY_DIGITS = 2;
+
+	/** The commands that are counted under their own name. */
+	private static final Set<String> COMMANDS = new HashSet<>(Arrays.asList(
+			FTServer.LIST_DIRECTORIES, FTServer.UPLOAD, FTServer.DOWNLOAD,
+			FTServer.UPLOAD_OPEN, FTServer.UPLOAD_CHUNK, FTServer.UPLOAD_COMMIT,
+			FTServer.UPLOAD_ABORT, FTServer.SIGNATURE, FTServer.DELTA_UPLOAD,
+			FTServer.DELTA_DOWNLOAD, FTServer.HASH, FTServer.STATS,
+			FTServer.BATCH_DOWNLOAD, FTServer.BATCH_UPLOAD));
+
+	/** The server being counted. */
+	private final FTServer server;
+
+	/** True if anything is counted. */
+	private volatile boolean enabled = true;
+
+	/** The number of connections accepted. */
+	private final LongAdder accepted = new LongAdder();
+
+	/** The bytes read from clients. */
+	private final LongAdder bytesIn = new LongAdder();
+
+	/** The bytes written to clients. */
+	private final LongAdder bytesOut = new LongAdder();
+
+	/** The counts of each command, by name. */
+	private final Map<String, CommandMetrics> commands =
+			new ConcurrentHashMap<>();
+
+	/** The number of errors of each type, by the simple name of the
+	 * exception class. */
+	private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+	/** The name the metrics are registered with JMX as, or null. */
+	private ObjectName registered;
+
+	/**
+	 * Constructs the metrics of a server.
+	 *
+	 * @param server - the server, which is asked for the connections it has
+	 * open and waiting.
+	 */
+	public ServerMetrics(FTServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * <b><em>accepted</em></b>
+	 *
+	 * <p>Counts a connection that was accepted.</p>
+	 */
+	public void accepted() {
+		if (enabled) {
+			accepted.increment();
+		}
+	}
+
+	/**
+	 * <b><em>addBytesIn</em></b>
+	 *
+	 * @param count - a number of bytes read from a client.
+	 */
+	public void addBytesIn(long count) {
+		if (enabled && count > 0) {
+			bytesIn.add(count);
+		}
+	}
+
+	/**
+	 * <b><em>addBytesOut</em></b>
+	 *
+	 * @param count - a number of bytes written to a client.
+	 */
+	public void addBytesOut(long count) {
+		if (enabled && count > 0) {
+			bytesOut.add(count);
+		}
+	}
+
+	/**
+	 * <b><em>record</em></b>
+	 *
+	 * <p>Counts a request that was served.</p>
+	 *
+	 * @param command - the command, e.g. {@code DOWNLOAD}.
+	 * @param nanos - how long the request took, in nanoseconds.
+	 * @param error - why the request failed, or null if it did not.
+	 */
+	public void record(String command, long nanos, Throwable error) {
+		if (!enabled) {
+			return;
+		}
+		if (command == null || !COMMANDS.contains(command)) {
+			command = UNKNOWN;
+		}
+		CommandMetrics metrics = commands.computeIfAbsent(command,
+				k -> new CommandMetrics());
+		metrics.requests.increment();
+		metrics.latency.recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+		if (error != null) {
+			metrics.failures.increment();
+			error(error);
+		}
+	}
+
+	/**
+	 * <b><em>error</em></b>
+	 *
+	 * <p>Counts an error by its type, e.g. one that was not part of a
+	 * request.</p>
+	 *
+	 * @param error - the error.
+	 */
+	public void error(Throwable error) {
+		if (enabled) {
+			errors.computeIfAbsent(error.getClass().getSimpleName(),
+					k -> new LongAdder()).increment();
+		}
+	}
+
+	/**
+	 * <b><em>snapshot</em></b>
+	 *
+	 * <p>Gets every metric by name, e.g. {@code bytes.out} or
+	 * {@code command.DOWNLOAD.p99}, in the order the STATS command sends
+	 * them. Latencies are in microseconds. The {@code index.}, {@code cache.}
+	 * and {@code dedup.} metrics are there if the server has an index, a
+	 * cache or a store.</p>
+	 *
+	 * @return the metrics.
+	 */
+	public Map<String, String> snapshot() {
+		Map<String, String> stats = new LinkedHashMap<>();
+		stats.put("enabled", String.valueOf(enabled));
+		stats.put("connections.active",
+				String.valueOf(getActiveConnections()));
+		stats.put("connections.queued",
+				String.valueOf(getQueuedConnections()));
+		stats.put("connections.accepted",
+				String.valueOf(getAcceptedConnections()));
+		stats.put("connections.rejected",
+				String.valueOf(server.getAdmission().getRejectedConnections()));
+		stats.put("connections.timedOut",
+				String.valueOf(server.getAdmission().getTimedOutConnections()));
+		stats.put("bytes.in", String.valueOf(getBytesIn()));
+		stats.put("bytes.out", String.valueOf(getBytesOut()));
+		DirectoryIndex index = server.getIndex();
+		if (index != null) {
+			stats.put("index.files", String.valueOf(index.size()));
+			stats.put("index.version", String.valueOf(index.getVersion()));
+			stats.put("index.hits", String.valueOf(index.getHits()));
+			stats.put("index.misses", String.valueOf(index.getMisses()));
+			stats.put("index.rebuilds", String.valueOf(index.getRebuilds()));
+			stats.put("index.events", String.valueOf(index.getEvents()));
+			stats.put("index.corrections",
+					String.valueOf(index.getCorrections()));
+		}
+		ContentCache cache = server.getCache();
+		if (cache != null) {
+			stats.put("cache.files", String.valueOf(cache.size()));
+			stats.put("cache.bytes", String.valueOf(cache.getBytes()));
+			stats.put("cache.mapped", String.valueOf(cache.getMappedBytes()));
+			stats.put("cache.hits", String.valueOf(cache.getHits()));
+			stats.put("cache.misses", String.valueOf(cache.getMisses()));
+			stats.put("cache.hitRatio",
+					String.format("%.3f", cache.getHitRatio()));
+			stats.put("cache.bytesServed",
+					String.valueOf(cache.getBytesServed()));
+			stats.put("cache.evictions", String.valueOf(cache.getEvictions()));
+			stats.put("cache.invalidations",
+					String.valueOf(cache.getInvalidations()));
+		}
+		DedupStore store = server.getDedupStore();
+		if (store != null) {
+			stats.put("dedup.logicalBytes",
+					String.valueOf(store.getLogicalBytes()));
+			stats.put("dedup.storedBytes",
+					String.valueOf(store.getStoredBytes()));
+			stats.put("dedup.chunks", String.valueOf(store.getTotalChunks()));
+			stats.put("dedup.duplicateChunks",
+					String.valueOf(store.getDuplicateChunks()));
+			stats.put("dedup.ratio",
+					String.format("%.3f", store.getDedupRatio()));
+		}
+		for (Map.Entry<String, CommandMetrics> e :
+				new TreeMap<>(commands).entrySet()) {
+			String prefix = "command." + e.getKey() + ".";
+			CommandMetrics metrics = e.getValue();
+			Histogram latency = metrics.latency.copy();
+			stats.put(prefix + "requests",
+					String.valueOf(metrics.requests.sum()));
+			stats.put(prefix + "failures",
+					String.valueOf(metrics.failures.sum()));
+			stats.put(prefix + "mean",
+					String.format("%.1f", latency.getMean()));
+			stats.put(prefix + "p50",
+					String.valueOf(latency.getValueAtPercentile(50)));
+			stats.put(prefix + "p99",
+					String.valueOf(latency.getValueAtPercentile(99)));
+			stats.put(prefix + "p99.9",
+					String.valueOf(latency.getValueAtPercentile(99.9)));
+			stats.put(prefix + "max", String.valueOf(latency.getMaxValue()));
+		}
+		for (Map.Entry<String, Long> e : getErrors().entrySet()) {
+			stats.put("error." + e.getKey(), String.valueOf(e.getValue()));
+		}
+		return stats;
+	}
+
+	/**
+	 * <b><em>register</em></b>
+	 *
+	 * <p>Registers the metrics with the platform MBean server, in place of
+	 * those of any other server in the JVM.</p>
+	 */
+	public synchronized void register() {
+		registered = register(this, OBJECT_NAME);
+	}
+
+	/**
+	 * <b><em>unregister</em></b>
+	 *
+	 * <p>Removes the metrics from the platform MBean server, if they are
+	 * still registered.</p>
+	 */
+	public synchronized void unregister() {
+		unregister(registered);
+		registered = null;
+	}
+
+	/**
+	 * Registers a bean of the server with the platform MBean server, in place
+	 * of that of any other server in the JVM, and returns its name, or null
+	 * if it could not be registered.
+	 */
+	static ObjectName register(Object bean, String name) {
+		try {
+			MBeanServer mbeans = ManagementFactory.getPlatformMBeanServer();
+			ObjectName objectName = new ObjectName(name);
+			try {
+				mbeans.registerMBean(bean, objectName);
+			} catch (InstanceAlreadyExistsException e) {
+				mbeans.unregisterMBean(objectName);
+				mbeans.registerMBean(bean, objectName);
+			}
+			return objectName;
+		} catch (JMException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/** Removes a bean registered with {@link #register(Object, String)}. */
+	static void unregister(ObjectName name) {
+		if (name == null) {
+			return;
+		}
+		try {
+			ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+		} catch (JMException e) {
+			// Another server took the name over
+		}
+	}
+
+	@Override
+	public void reset() {
+		accepted.reset();
+		bytesIn.reset();
+		bytesOut.reset();
+		commands.clear();
+		errors.clear();
+	}
+
+	@Override
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	@Override
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	@Override
+	public int getActiveConnections() {
+		return server.getActiveConnections();
+	}
+
+	@Override
+	public int getQueuedConnections() {
+		return server.getQueuedConnections();
+	}
+
+	@Override
+	public long getAcceptedConnections() {
+		return accepted.sum();
+	}
+
+	@Override
+	public long getBytesIn() {
+		return bytesIn.sum();
+	}
+
+	@Override
+	public long getBytesOut() {
+		return bytesOut.sum();
+	}
+
+	@Override
+	public Map<String, Long> getRequests() {
+		Map<String, Long> map = new TreeMap<>();
+		commands.forEach((k, v) -> map.put(k, v.requests.sum()));
+		return map;
+	}
+
+	@Override
+	public Map<String, Long> getFailures() {
+		Map<String, Long> map = new TreeMap<>();
+		commands.forEach((k, v) -> map.put(k, v.failures.sum()));
+		return map;
+	}
+
+	@Override
+	public Map<String, Double> getMeanLatencies() {
+		Map<String, Double> map = new TreeMap<>();
+		commands.forEach((k, v) -> map.put(k, v.latency.getMean()));
+		return map;
+	}
+
+	@Override
+	public Map<String, Long> getP99Latencies() {
+		Map<String, Long> map = new TreeMap<>();
+		commands.forEach((k, v) -> map.put(k,
+				v.latency.getValueAtPercentile(99)));
+		return map;
+	}
+
+	@Override
+	public Map<String, Long> getErrors() {
+		Map<String, Long> map = new TreeMap<>();
+		errors.forEach((k, v) -> map.put(k, v.sum()));
+		return map;
+	}
+
+	@Override
+	public long getIndexHits() {
+		DirectoryIndex index = server.getIndex();
+		return index == null? 0 : index.getHits();
+	}
+
+	@Override
+	public long getIndexMisses() {
+		DirectoryIndex index = server.getIndex();
+		return index == null? 0 : index.getMisses();
+	}
+
+	@Override
+	public long getIndexRebuilds() {
+		DirectoryIndex index = server.getIndex();
+		return index == null? 0 : index.getRebuilds();
+	}
+
+	@Override
+	public double getCacheHitRatio() {
+		ContentCache cache = server.getCache();
+		return cache == null? 0 : cache.getHitRatio();
+	}
+
+	@Override
+	public long getCacheBytesServed() {
+		ContentCache cache = server.getCache();
+		return cache == null? 0 : cache.getBytesServed();
+	}
+
+	@Override
+	public long getCacheEvictions() {
+		ContentCache cache = server.getCache();
+		return cache == null? 0 : cache.getEvictions();
+	}
+
+	@Override
+	public long getDedupLogicalBytes() {
+		DedupStore store = server.getDedupStore();
+		return store == null? 0 : store.getLogicalBytes();
+	}
+
+	@Override
+	public long getDedupStoredBytes() {
+		DedupStore store = server.getDedupStore();
+		return store == null? 0 : store.getStoredBytes();
+	}
+
+	@Override
+	public double getDedupRatio() {
+		DedupStore store = server.getDedupStore();
+		return store == null? 1 : store.getDedupRatio();
+	}
+
+	/**
+	 * <b><em>getLatency</em></b>
+	 *
+	 * @param command - a command, e.g. {@code DOWNLOAD}.
+	 *
+	 * @return how long the requests with the command took, in microseconds,
+	 * or null if there were none.
+	 */
+	public Histogram getLatency(String command) {
+		CommandMetrics metrics = commands.get(command);
+		return metrics == null? null : metrics.latency;
+	}
+
+	@Override
+	public String toString() {
+		return "ServerMetrics[accepted=" + getAcceptedConnections() +
+				", in=" + getBytesIn() + ", out=" + getBytesOut() +
+				", requests=" + getRequests() + ", errors=" + getErrors() +
+				"]";
+	}
+
+	/** The counts of one command. */
+	private static class CommandMetrics {
+
+		/** The number of requests. */
+		private final LongAdder requests = new LongAdder();
+
+		/** The number of requests that failed. */
+		private final LongAdder failures = new LongAdder();
+
+		/** How long the requests took, in microseconds. */
+		private final ConcurrentHistogram latency =
+				new ConcurrentHistogram(LATENCY_DIGITS);
+	}
+}
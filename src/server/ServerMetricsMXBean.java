@@ -0,0 +1,63 @@
+package server;
+
+import java.util.Map;
+
+/**
+ * The {@code ServerMetricsMXBean} interface is what a {@link ServerMetrics}
+ * shows over JMX, e.g. in JConsole. Latencies are in microseconds, and the
+ * maps are by command (e.g. {@code DOWNLOAD}) or, for the errors, by the
+ * type of the exception. The counters of the index, cache and store are 0
+ * (a ratio of 1 for the store) if the server does not have one.
+ */
+public interface ServerMetricsMXBean {
+
+	boolean isEnabled();
+
+	void setEnabled(boolean enabled);
+
+	int getActiveConnections();
+
+	int getQueuedConnections();
+
+	long getAcceptedConnections();
+
+	long getBytesIn();
+
+	long getBytesOut();
+
+	Map<String, Long> getRequests();
+
+	Map<String, Long> getFailures();
+
+	Map<String, Double> getMeanLatencies();
+
+	Map<String, Long> getP99Latencies();
+
+	Map<String, Long> getErrors();
+
+	long getIndexHits();
+
+	long getIndexMisses();
+
+	long getIndexRebuilds();
+
+	double getCacheHitRatio();
+
+	long getCacheBytesServed();
+
+	long getCacheEvictions();
+
+	long getDedupLogicalBytes();
+
+	long getDedupStoredBytes();
+
+	double getDedupRatio();
+
+	/**
+	 * <b><em>reset</em></b>
+	 *
+	 * <p>Sets every counter back to 0, except those of the index, cache
+	 * and store.</p>
+	 */
+	void reset();
+}
@@ -0,0 +1,315 @@
+package server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code SessionHandler} class serves a persistent connection that was
+ * started with a version 2 SESSION request. After the {@link Protocol#OK}
+ * status, the client sends any number of request frames and the server
+ * answers each with response frames tagged with the same request ID (see
+ * {@link Protocol#writeRequestFrame(DataOutputStream, int, Header, long)}).
+ * <p>
+ * Requests without a body are run on a small pool of session threads, so
+ * their responses can come back in any order and can be interleaved. A
+ * request with a body (e.g. UPLOAD) is handled as it is read, since its body
+ * has to be consumed before the next frame can be read.
+ */
+class SessionHandler {
+
+	/** The handler that serves each request. */
+	private final ClientConnectionHandler handler;
+
+	/** The stream request frames are read from. */
+	private final DataInputStream in;
+
+	/** The stream response frames are written to. Writes must hold the
+	 * lock on this stream so frames are never mixed together. */
+	private final DataOutputStream out;
+
+	/** The threads that run requests without a body. */
+	private final ExecutorService workers;
+
+	/** The number of requests running on the workers. */
+	private final AtomicInteger running = new AtomicInteger();
+
+	/**
+	 * Constructs a new session.
+	 *
+	 * @param handler - the handler that serves each request.
+	 * @param in - the stream from the client.
+	 * @param out - the stream to the client.
+	 * @param threads - the number of requests that can run at once.
+	 */
+	SessionHandler(ClientConnectionHandler handler, InputStream in,
+			OutputStream out, int threads) {
+		this.handler = handler;
+		this.in = new DataInputStream(in instanceof BufferedInputStream?
+				in : new BufferedInputStream(in));
+		this.out = new DataOutputStream(new BufferedOutputStream(
+				out, Protocol.MAX_FRAME + 8));
+		this.workers = Executors.newFixedThreadPool(Math.max(1, threads),
+				new SessionThreadFactory());
+	}
+
+	/**
+	 * <b><em>run</em></b>
+	 *
+	 * <p>Reads and serves request frames until the client closes the
+	 * session.</p>
+	 *
+	 * @throws IOException if the connection failed.
+	 */
+	void run() throws IOException {
+		try {
+			Protocol.writeLine(out, new Header(Protocol.OK));
+			while (true) {
+
+				// Wait for the next request frame, for no longer than the
+				// idle timeout unless responses are still being sent
+				if (!awaitRequest()) {
+					break;
+				}
+				int id = in.readInt();
+				int headerLength = in.readInt();
+				if (headerLength < 0 || headerLength >
+						handler.getServer().getAdmission().getMaxHeaderSize()) {
+					throw new IOException("bad frame header length");
+				}
+				byte[] bytes = new byte[headerLength];
+				in.readFully(bytes);
+				long bodyLength = in.readLong();
+				Header request = Header.parse(
+						new String(bytes, StandardCharsets.UTF_8));
+				FrameOutputStream response = new FrameOutputStream(id);
+
+				// Requests with a body are handled right away
+				if (bodyLength == Protocol.CHUNKED) {
+					ChunkedInputStream body = new ChunkedInputStream(in);
+					serve(request, body, response);
+					body.skipRemaining();
+				} else if (bodyLength > 0) {
+					BoundedInputStream body = new BoundedInputStream(
+							in, bodyLength);
+					serve(request, body, response);
+					body.skipRemaining();
+				} else {
+					running.incrementAndGet();
+					workers.execute(() -> {
+						try {
+							serve(request, BoundedInputStream.EMPTY, response);
+						} catch (IOException e) {
+
+							// The response can not be ended, so the session
+							// is closed instead of leaving it unanswered
+							e.printStackTrace();
+							handler.close();
+						} finally {
+							running.decrementAndGet();
+						}
+					});
+				}
+			}
+		} finally {
+			workers.shutdown();
+			try {
+				workers.awaitTermination(1, TimeUnit.MINUTES);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Waits until the client starts the next request frame, and returns
+	 * false if the session ended instead. The session is closed if it is
+	 * idle for the idle timeout, but not while requests are still running.
+	 */
+	private boolean awaitRequest() throws IOException {
+		handler.setTimeout(true);
+		while (true) {
+			in.mark(1);
+			try {
+				if (in.read() < 0) {
+					return false;
+				}
+				in.reset();
+				handler.setTimeout(false);
+				return true;
+			} catch (SocketTimeoutException e) {
+				if (running.get() == 0) {
+					handler.getServer().getAdmission().timedOut();
+					return false;
+				}
+			}
+		}
+	}
+
+	/** Serves one request and ends its response. */
+	private void serve(Header request, InputStream body,
+			FrameOutputStream response) throws IOException {
+		if (request.is(FTServer.SESSION)) {
+			Protocol.writeLine(response,
+					Protocol.error("already in a session"));
+		} else {
+			handler.handle(request, body, response);
+		}
+		response.close();
+	}
+
+	/**
+	 * The {@code FrameOutputStream} class collects the response to one
+	 * request and writes it as frames of at most {@link Protocol#MAX_FRAME}
+	 * bytes. Closing the stream writes the end of response frame.
+	 */
+	private class FrameOutputStream extends OutputStream {
+
+		private final int id;
+
+		private final byte[] buffer = new byte[Protocol.MAX_FRAME];
+
+		private int count;
+
+		private boolean closed;
+
+		private FrameOutputStream(int id) {
+			this.id = id;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			if (count == buffer.length) {
+				flush();
+			}
+			buffer[count++] = (byte) b;
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			while (len > 0) {
+				if (count == buffer.length) {
+					flush();
+				}
+				int n = Math.min(len, buffer.length - count);
+				System.arraycopy(b, off, buffer, count, n);
+				count += n;
+				off += n;
+				len -= n;
+			}
+		}
+
+		@Override
+		public void flush() throws IOException {
+			if (count == 0) {
+				return;
+			}
+			synchronized (out) {
+				out.writeInt(id);
+				out.writeInt(count);
+				out.write(buffer, 0, count);
+				out.flush();
+			}
+			count = 0;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			flush();
+			synchronized (out) {
+				out.writeInt(id);
+				out.writeInt(Protocol.END_OF_RESPONSE);
+				out.flush();
+			}
+		}
+	}
+
+	/** A stream that reads no more than a set number of bytes. */
+	private static class BoundedInputStream extends InputStream {
+
+		private static final BoundedInputStream EMPTY =
+				new BoundedInputStream(null, 0);
+
+		private final InputStream in;
+
+		private long remaining;
+
+		private BoundedInputStream(InputStream in, long length) {
+			this.in = in;
+			this.remaining = length;
+		}
+
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = in.read();
+			if (b >= 0) {
+				remaining --;
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int n = in.read(b, off, (int) Math.min(len, remaining));
+			if (n > 0) {
+				remaining -= n;
+			}
+			return n;
+		}
+
+		@Override
+		public int available() throws IOException {
+			return remaining <= 0? 0 :
+				(int) Math.min(in.available(), remaining);
+		}
+
+		/** Skips what the handler did not read, so the next frame lines up. */
+		private void skipRemaining() throws IOException {
+			while (remaining > 0) {
+				long n = in.skip(remaining);
+				if (n <= 0) {
+					if (in.read() < 0) {
+						throw new EOFException();
+					}
+					n = 1;
+				}
+				remaining -= n;
+			}
+		}
+	}
+
+	/** Creates the named daemon session threads. */
+	private static class SessionThreadFactory implements ThreadFactory {
+
+		private static final AtomicInteger COUNT = new AtomicInteger();
+
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "ft-session-" + COUNT.incrementAndGet());
+			t.setDaemon(true);
+			return t;
+		}
+	}
+}
@@ -0,0 +1,100 @@
+package server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The {@code TokenBucket} class limits a rate, e.g. of bytes per second.
+ * Tokens are added at the rate up to a burst, and taken out by
+ * {@link #reserve(long)}. Taking more than there are does not fail: the
+ * bucket goes into debt and the caller is told how long to wait before
+ * going on, so the next caller waits behind it. Callers that each take a
+ * little at a time are then served in turn, and share the rate fairly.
+ * <p>
+ * The rate can be changed at any time, and a rate of 0 is unlimited.
+ */
+public class TokenBucket {
+
+	/** The number of nanoseconds in a second. */
+	private static final double NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/** The tokens added per second, or 0 if the rate is unlimited. */
+	private long rate;
+
+	/** The most tokens the bucket holds. */
+	private long burst;
+
+	/** The tokens in the bucket, which is negative if it is in debt. */
+	private double tokens;
+
+	/** When tokens were last added, from {@link System#nanoTime()}. */
+	private long refilled = System.nanoTime();
+
+	/**
+	 * Constructs a bucket that starts full.
+	 *
+	 * @param rate - the tokens added per second, or 0 for no limit.
+	 * @param burst - the most tokens the bucket holds.
+	 */
+	public TokenBucket(long rate, long burst) {
+		this.rate = Math.max(0, rate);
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+	}
+
+	/**
+	 * <b><em>reserve</em></b>
+	 *
+	 * <p>Takes tokens out of the bucket, going into debt if there are not
+	 * enough.</p>
+	 *
+	 * @param count - the number of tokens.
+	 *
+	 * @return how long to wait for the debt to be paid, in nanoseconds, or 0
+	 * if the tokens were there.
+	 */
+	public synchronized long reserve(long count) {
+		if (rate == 0) {
+			return 0;
+		}
+		refill();
+		tokens -= count;
+		return tokens >= 0? 0 : (long) Math.ceil(-tokens * NANOS / rate);
+	}
+
+	/** Adds the tokens earned since the last refill. */
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(burst, tokens + (now - refilled) * rate / NANOS);
+		refilled = now;
+	}
+
+	public synchronized long getRate() {
+		return rate;
+	}
+
+	/**
+	 * <b><em>setRate</em></b>
+	 *
+	 * <p>Changes the rate. Tokens earned so far are kept, and any debt is
+	 * paid at the new rate.</p>
+	 *
+	 * @param rate - the tokens added per second, or 0 for no limit.
+	 * @param burst - the most tokens the bucket holds.
+	 */
+	public synchronized void setRate(long rate, long burst) {
+		if (this.rate != 0) {
+			refill();
+		} else {
+			refilled = System.nanoTime();
+		}
+		this.rate = Math.max(0, rate);
+		this.burst = Math.max(1, burst);
+		tokens = Math.min(tokens, this.burst);
+	}
+
+	@Override
+	public synchronized String toString() {
+		return "TokenBucket[rate=" + rate + ", burst=" + burst + ", tokens=" +
+				(long) tokens + "]";
+	}
+}
@@ -0,0 +1,346 @@
+package server;
+
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * The {@code TransferScheduler} class shares the server's bandwidth between
+ * the files being uploaded and downloaded, so one client pulling a huge file
+ * cannot starve everyone else. There are two limits, both in bytes per
+ * second and both unlimited (0) by default:
+ * <ul>
+ * <li>the global rate, shared by every transfer on the server</li>
+ * <li>the connection rate, which each connection gets on its own</li>
+ * </ul>
+ * Each connection has a {@link Throttle}. Only bulk transfers, those longer
+ * than the {@link #getSmallTransfer() small transfer} size, are throttled:
+ * DIR listings, metadata commands and small files are never held back, so
+ * they stay fast while large files are moving. A bulk transfer pays for
+ * what it sent at most {@value #CHUNK_SIZE} bytes at a time, and waits if
+ * the {@link TokenBucket}s are in debt. Since every transfer waits behind
+ * the debt of the others, concurrent transfers take turns and share the
+ * global rate fairly.
+ * <p>
+ * The limits can be changed at any time, from the server or over JMX as
+ * {@value #OBJECT_NAME}, and transfers in progress follow the new limits.
+ */
+public class TransferScheduler implements TransferSchedulerMXBean {
+
+	/** The name the scheduler is registered with JMX as. */
+	public static final String OBJECT_NAME =
+			"server:type=FTServer,name=Scheduler";
+
+	/** The most bytes a bulk transfer sends before it pays for them. */
+	public static final int CHUNK_SIZE = 64 * 1024;
+
+	/** The default length up to which transfers are never throttled. */
+	public static final long DEFAULT_SMALL_TRANSFER = 256 * 1024;
+
+	/** How much of its rate a bucket can send at once, in milliseconds. */
+	private static final long BURST_MILLIS = 100;
+
+	/** The bandwidth shared by every transfer. */
+	private final TokenBucket global = new TokenBucket(0, CHUNK_SIZE);
+
+	/** The global rate, or 0 if it is unlimited. */
+	private volatile long globalRate;
+
+	/** The rate of each connection, or 0 if it is unlimited. */
+	private volatile long connectionRate;
+
+	/** The length up to which transfers are never throttled. */
+	private volatile long smallTransfer = DEFAULT_SMALL_TRANSFER;
+
+	/** The number of transfers that were throttled. */
+	private final LongAdder throttledTransfers = new LongAdder();
+
+	/** The bytes sent or received by throttled transfers. */
+	private final LongAdder throttledBytes = new LongAdder();
+
+	/** The time throttled transfers were told to wait, in nanoseconds. */
+	private final LongAdder delayed = new LongAdder();
+
+	/** The name the scheduler is registered with JMX as, or null. */
+	private ObjectName registered;
+
+	/**
+	 * <b><em>newThrottle</em></b>
+	 *
+	 * @return the throttle of a new connection.
+	 */
+	public Throttle newThrottle() {
+		return new Throttle();
+	}
+
+	/**
+	 * <b><em>register</em></b>
+	 *
+	 * <p>Registers the scheduler with the platform MBean server, in place of
+	 * that of any other server in the JVM.</p>
+	 */
+	public synchronized void register() {
+		registered = ServerMetrics.register(this, OBJECT_NAME);
+	}
+
+	/**
+	 * <b><em>unregister</em></b>
+	 *
+	 * <p>Removes the scheduler from the platform MBean server, if it is still
+	 * registered.</p>
+	 */
+	public synchronized void unregister() {
+		ServerMetrics.unregister(registered);
+		registered = null;
+	}
+
+	/** Gets the burst of a bucket with a rate. */
+	private static long burst(long rate) {
+		return Math.max(CHUNK_SIZE, rate * BURST_MILLIS / 1000);
+	}
+
+	@Override
+	public long getGlobalRate() {
+		return globalRate;
+	}
+
+	@Override
+	public void setGlobalRate(long rate) {
+		this.globalRate = Math.max(0, rate);
+		global.setRate(globalRate, burst(globalRate));
+	}
+
+	@Override
+	public long getConnectionRate() {
+		return connectionRate;
+	}
+
+	@Override
+	public void setConnectionRate(long rate) {
+		this.connectionRate = Math.max(0, rate);
+	}
+
+	@Override
+	public long getSmallTransfer() {
+		return smallTransfer;
+	}
+
+	@Override
+	public void setSmallTransfer(long size) {
+		this.smallTransfer = Math.max(0, size);
+	}
+
+	@Override
+	public long getThrottledTransfers() {
+		return throttledTransfers.sum();
+	}
+
+	@Override
+	public long getThrottledBytes() {
+		return throttledBytes.sum();
+	}
+
+	@Override
+	public long getDelayMillis() {
+		return TimeUnit.NANOSECONDS.toMillis(delayed.sum());
+	}
+
+	@Override
+	public String toString() {
+		return "TransferScheduler[global=" + globalRate + ", connection=" +
+				connectionRate + ", small=" + smallTransfer + ", throttled=" +
+				getThrottledTransfers() + ", delay=" + getDelayMillis() + "ms]";
+	}
+
+	/**
+	 * The {@code Throttle} class limits the transfers of one connection,
+	 * including the requests that run at once in a session. Blocking
+	 * handlers wait in {@link #acquire(long)} or through the streams of
+	 * {@link #throttle(InputStream, long)}, and the {@link NioServerEngine}
+	 * parks the connection for the delay returned by {@link #reserve(long)}.
+	 */
+	public class Throttle {
+
+		/** The bandwidth of the connection. */
+		private final TokenBucket bucket = new TokenBucket(0, CHUNK_SIZE);
+
+		/** The rate the bucket was last set to. */
+		private volatile long rate;
+
+		private Throttle() {
+		}
+
+		/**
+		 * <b><em>start</em></b>
+		 *
+		 * <p>Starts a transfer, and tells if it is a bulk transfer that has
+		 * to pay for its bytes.</p>
+		 *
+		 * @param length - the bytes to transfer, or -1 if it is not known.
+		 *
+		 * @return true if the transfer is throttled.
+		 */
+		public boolean start(long length) {
+			if ((globalRate == 0 && connectionRate == 0) ||
+					(length >= 0 && length <= smallTransfer)) {
+				return false;
+			}
+			throttledTransfers.increment();
+			return true;
+		}
+
+		/**
+		 * <b><em>reserve</em></b>
+		 *
+		 * <p>Pays for bytes of a throttled transfer, without waiting.</p>
+		 *
+		 * @param count - the bytes that were sent or received.
+		 *
+		 * @return how long the transfer must wait before it goes on, in
+		 * nanoseconds.
+		 */
+		public long reserve(long count) {
+			if (count <= 0) {
+				return 0;
+			}
+			long limit = connectionRate;
+			if (limit != rate) {
+				bucket.setRate(limit, burst(limit));
+				rate = limit;
+			}
+			long delay = Math.max(global.reserve(count), bucket.reserve(count));
+			throttledBytes.add(count);
+			delayed.add(delay);
+			return delay;
+		}
+
+		/**
+		 * <b><em>acquire</em></b>
+		 *
+		 * <p>Pays for bytes of a throttled transfer, and waits as long as
+		 * the transfer must.</p>
+		 *
+		 * @param count - the bytes that were sent or received.
+		 *
+		 * @throws InterruptedIOException if the thread was interrupted.
+		 */
+		public void acquire(long count) throws InterruptedIOException {
+			long delay = reserve(count);
+			if (delay <= 0) {
+				return;
+			}
+			try {
+				TimeUnit.NANOSECONDS.sleep(delay);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("transfer interrupted");
+			}
+		}
+
+		/**
+		 * <b><em>throttle</em></b>
+		 *
+		 * <p>Starts a transfer that is read from a stream.</p>
+		 *
+		 * @param in - the stream.
+		 * @param length - the bytes to read, or -1 if it is not known.
+		 *
+		 * @return a stream that waits as it is read if the transfer is
+		 * throttled, or the stream itself. A {@link ChunkedInputStream} is
+		 * always returned itself, throttled underneath.
+		 */
+		public InputStream throttle(InputStream in, long length) {
+			if (!start(length)) {
+				return in;
+			}
+
+			// The body of a session is throttled under its chunks, so it is
+			// still seen as split into them and not read as chunks again
+			if (in instanceof ChunkedInputStream) {
+				((ChunkedInputStream) in).filter(s ->
+						new ThrottledInputStream(s, this));
+				return in;
+			}
+			return new ThrottledInputStream(in, this);
+		}
+
+		/**
+		 * <b><em>throttle</em></b>
+		 *
+		 * <p>Starts a transfer that is written to a stream. Closing the
+		 * returned stream closes the stream.</p>
+		 *
+		 * @param out - the stream.
+		 * @param length - the bytes to write, or -1 if it is not known.
+		 *
+		 * @return a stream that waits as it is written if the transfer is
+		 * throttled, or the stream itself.
+		 */
+		public OutputStream throttle(OutputStream out, long length) {
+			return start(length)? new ThrottledOutputStream(out, this) : out;
+		}
+	}
+
+	/** A stream that pays for the bytes read from it. */
+	private static class ThrottledInputStream extends FilterInputStream {
+
+		/** The throttle the bytes are paid to. */
+		private final Throttle throttle;
+
+		private ThrottledInputStream(InputStream in, Throttle throttle) {
+			super(in);
+			this.throttle = throttle;
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = in.read();
+			if (b >= 0) {
+				throttle.acquire(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = in.read(b, off, Math.min(len, CHUNK_SIZE));
+			throttle.acquire(n);
+			return n;
+		}
+	}
+
+	/** A stream that pays for the bytes written to it. */
+	private static class ThrottledOutputStream extends FilterOutputStream {
+
+		/** The throttle the bytes are paid to. */
+		private final Throttle throttle;
+
+		private ThrottledOutputStream(OutputStream out, Throttle throttle) {
+			super(out);
+			this.throttle = throttle;
+		}
+
+		@Override
+		public void write(int b) throws IOException {
+			out.write(b);
+			throttle.acquire(1);
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			for (int i = 0; i < len; ) {
+				int n = Math.min(len - i, CHUNK_SIZE);
+				out.write(b, off + i, n);
+				throttle.acquire(n);
+				i += n;
+			}
+		}
+	}
+}
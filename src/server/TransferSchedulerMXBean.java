@@ -0,0 +1,27 @@
+package server;
+
+/**
+ * The {@code TransferSchedulerMXBean} interface is what a
+ * {@link TransferScheduler} shows over JMX, so its limits can be changed
+ * while the server runs. Rates are in bytes per second, and 0 is unlimited.
+ */
+public interface TransferSchedulerMXBean {
+
+	long getGlobalRate();
+
+	void setGlobalRate(long rate);
+
+	long getConnectionRate();
+
+	void setConnectionRate(long rate);
+
+	long getSmallTransfer();
+
+	void setSmallTransfer(long size);
+
+	long getThrottledTransfers();
+
+	long getThrottledBytes();
+
+	long getDelayMillis();
+}
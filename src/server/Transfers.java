@@ -0,0 +1,179 @@
+package server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * The {@code Transfers} class has the methods used to move file data to a
+ * connection. Where possible, data is sent with
+ * {@link FileChannel#transferTo(long, long, WritableByteChannel)} so the
+ * operating system can copy it straight from the page cache to the socket
+ * (sendfile). Otherwise it is copied through a large direct buffer.
+ */
+public final class Transfers {
+
+	/** The size of the direct buffers used when a copy is needed. */
+	public static final int BUFFER_SIZE = 1024 * 1024;
+
+	/** The most buffers kept around for reuse. */
+	private static final int MAX_POOLED = 64;
+
+	/** Direct buffers that are free to be reused. */
+	private static final Queue<ByteBuffer> POOL = new ConcurrentLinkedQueue<>();
+
+	private Transfers() {}
+
+	/**
+	 * <b><em>sendFile</em></b>
+	 *
+	 * <p>Sends part of a file to a channel. If the channel is in blocking mode
+	 * this only returns once all the data was sent, but if it is non-blocking
+	 * it returns as soon as the channel can not take any more data.</p>
+	 *
+	 * @param file - the file to send.
+	 * @param position - the position in the file to start at.
+	 * @param count - the number of bytes to send.
+	 * @param target - the channel to send to.
+	 *
+	 * @return the number of bytes sent.
+	 * @throws IOException if the file could not be read or sent.
+	 */
+	public static long sendFile(FileChannel file, long position, long count,
+			WritableByteChannel target) throws IOException {
+
+		// Special case
+		boolean nonBlocking = target instanceof SelectableChannel &&
+				!((SelectableChannel) target).isBlocking();
+		if (!nonBlocking && !(target instanceof SocketChannel) &&
+				!(target instanceof FileChannel)) {
+			return copy(file, position, count, target);
+		}
+
+		// Let the OS move the data
+		long sent = 0;
+		while (sent < count) {
+			long n = file.transferTo(position + sent, count - sent, target);
+			if (n <= 0) {
+				if (nonBlocking || position + sent >= file.size()) {
+					break;
+				}
+				return sent + copy(file, position + sent, count - sent, target);
+			}
+			sent += n;
+		}
+
+		return sent;
+	}
+
+	/**
+	 * <b><em>copy</em></b>
+	 *
+	 * <p>Copies part of a file to a blocking channel through a direct buffer.
+	 * </p>
+	 *
+	 * @param file - the file to copy.
+	 * @param position - the position in the file to start at.
+	 * @param count - the number of bytes to copy.
+	 * @param target - the channel to copy to.
+	 *
+	 * @return the number of bytes copied.
+	 * @throws IOException if the file could not be read or written.
+	 */
+	public static long copy(FileChannel file, long position, long count,
+			WritableByteChannel target) throws IOException {
+		ByteBuffer buffer = acquire();
+		long copied = 0;
+		try {
+			while (copied < count) {
+				buffer.clear();
+				if (count - copied < buffer.capacity()) {
+					buffer.limit((int) (count - copied));
+				}
+				int read = file.read(buffer, position + copied);
+				if (read < 0) {
+					break;
+				}
+				buffer.flip();
+				while (buffer.hasRemaining()) {
+					target.write(buffer);
+				}
+				copied += read;
+			}
+		} finally {
+			release(buffer);
+		}
+
+		return copied;
+	}
+
+	/**
+	 * <b><em>writeAt</em></b>
+	 *
+	 * <p>Gets a channel that writes to a file from a position on, without
+	 * using or moving the position of the file itself, so several threads
+	 * can write different parts of one file at once. Closing the returned
+	 * channel does not close the file.</p>
+	 *
+	 * @param file - the file to write to.
+	 * @param position - the position of the first byte written.
+	 *
+	 * @return the channel.
+	 */
+	public static WritableByteChannel writeAt(FileChannel file,
+			long position) {
+		return new WritableByteChannel() {
+
+			private long next = position;
+
+			@Override
+			public int write(ByteBuffer src) throws IOException {
+				int n = file.write(src, next);
+				next += n;
+				return n;
+			}
+
+			@Override
+			public boolean isOpen() {
+				return file.isOpen();
+			}
+
+			@Override
+			public void close() {
+			}
+		};
+	}
+
+	/**
+	 * <b><em>acquire</em></b>
+	 *
+	 * @return a cleared direct buffer of {@link #BUFFER_SIZE} bytes, which
+	 * should be given back with {@link #release(ByteBuffer)}.
+	 */
+	public static ByteBuffer acquire() {
+		ByteBuffer buffer = POOL.poll();
+		if (buffer == null) {
+			return ByteBuffer.allocateDirect(BUFFER_SIZE);
+		}
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * <b><em>release</em></b>
+	 *
+	 * <p>Gives back a buffer from {@link #acquire()} so it can be reused.</p>
+	 *
+	 * @param buffer - the buffer to give back.
+	 */
+	public static void release(ByteBuffer buffer) {
+		if (buffer != null && POOL.size() < MAX_POOLED) {
+			POOL.add(buffer);
+		}
+	}
+}
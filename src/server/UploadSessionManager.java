@@ -0,0 +1,371 @@
+package server;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * The {@code UploadSessionManager} class keeps track of chunked uploads. A
+ * client opens an upload with {@link FTServer#UPLOAD_OPEN} and gets an ID,
+ * sends the chunks of the file with {@link FTServer#UPLOAD_CHUNK} in any
+ * order and over any number of connections, and then finishes with
+ * {@link FTServer#UPLOAD_COMMIT}. Chunks are written at their offsets into a
+ * temporary file, which is only moved into the shared path once the commit
+ * finds that every byte of the file was received. A failed chunk can simply
+ * be sent again.
+ * <p>
+ * Uploads that are not used for {@link #getTimeout()} milliseconds (e.g.
+ * because the client went away) are aborted and their temporary files
+ * deleted.
+ */
+public class UploadSessionManager {
+
+	/** The default time an upload can go unused, in milliseconds. */
+	public static final long DEFAULT_TIMEOUT = 10 * 60 * 1000;
+
+	/** The default most uploads that can be open at once. */
+	public static final int DEFAULT_MAX_UPLOADS = 256;
+
+	/** The server the files are uploaded to. */
+	private final FTServer server;
+
+	/** The open uploads, by ID. */
+	private final Map<String, Upload> uploads = new ConcurrentHashMap<>();
+
+	/** The time an upload can go unused, in milliseconds. */
+	private volatile long timeout = DEFAULT_TIMEOUT;
+
+	/** The most uploads that can be open at once. */
+	private volatile int maxUploads = DEFAULT_MAX_UPLOADS;
+
+	/** Runs {@link #expire()}, while the server is listening. */
+	private ScheduledExecutorService collector;
+
+	/** The number of uploads that were committed. */
+	private final LongAdder committed = new LongAdder();
+
+	/** The number of uploads that timed out. */
+	private final LongAdder expired = new LongAdder();
+
+	/**
+	 * Constructs a manager for the uploads to a server.
+	 *
+	 * @param server - the server the files are uploaded to.
+	 */
+	public UploadSessionManager(FTServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * <b><em>start</em></b>
+	 *
+	 * <p>Starts the thread that aborts uploads that timed out.</p>
+	 */
+	public synchronized void start() {
+		if (collector != null) {
+			return;
+		}
+		collector = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread t = new Thread(r, "ft-upload-gc");
+			t.setDaemon(true);
+			return t;
+		});
+		long period = Math.max(1000, timeout / 4);
+		collector.scheduleWithFixedDelay(this::expire, period, period,
+				TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * <b><em>close</em></b>
+	 *
+	 * <p>Stops the collector thread and aborts every open upload.</p>
+	 */
+	public synchronized void close() {
+		if (collector != null) {
+			collector.shutdownNow();
+			collector = null;
+		}
+		for (String id : uploads.keySet()) {
+			try {
+				abort(id);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * <b><em>open</em></b>
+	 *
+	 * <p>Starts a chunked upload.</p>
+	 *
+	 * @param filename - the name the file will have in the shared path.
+	 * @param size - the size of the whole file.
+	 * @param lastModified - the modification time the file will have, or 0
+	 * for the time it is committed.
+	 *
+	 * @return the ID of the upload.
+	 * @throws IOException if the name is not valid, too many uploads are
+	 * open, or the temporary file could not be created.
+	 */
+	public String open(String filename, long size, long lastModified)
+			throws IOException {
+		server.resolve(filename);
+		if (size < 0) {
+			throw new IOException("missing size");
+		}
+		if (uploads.size() >= maxUploads) {
+			throw new IOException("too many uploads");
+		}
+		Path temp = server.createTempFile();
+		try {
+			Upload upload = new Upload(filename, size, lastModified, temp);
+			String id = UUID.randomUUID().toString();
+			uploads.put(id, upload);
+			return id;
+		} catch (IOException e) {
+			Files.deleteIfExists(temp);
+			throw e;
+		}
+	}
+
+	/**
+	 * <b><em>write</em></b>
+	 *
+	 * <p>Writes a chunk of an upload at its offset. Chunks of one upload can
+	 * be written by several threads at once.</p>
+	 *
+	 * @param id - the ID of the upload.
+	 * @param offset - the position of the chunk in the file.
+	 * @param length - the number of bytes in the chunk.
+	 * @param in - the stream to read the chunk from.
+	 *
+	 * @return the number of bytes written.
+	 * @throws IOException if there is no such upload, the chunk is not in
+	 * the file, or the chunk could not be read or written.
+	 */
+	public long write(String id, long offset, long length, InputStream in)
+			throws IOException {
+		Upload upload = get(id);
+		if (offset < 0 || length < 0 || offset + length > upload.size) {
+			throw new IOException("bad chunk: offset " + offset +
+					", length " + length + ", size " + upload.size);
+		}
+		upload.lock.readLock().lock();
+		try {
+			if (!upload.file.isOpen()) {
+				throw new IOException("unknown upload: " + id);
+			}
+			Protocol.receive(in, length, Transfers.writeAt(upload.file,
+					offset));
+			upload.received(offset, offset + length);
+		} finally {
+			upload.lock.readLock().unlock();
+		}
+		return length;
+	}
+
+	/**
+	 * <b><em>commit</em></b>
+	 *
+	 * <p>Finishes an upload by moving the file into the shared path.</p>
+	 *
+	 * @param id - the ID of the upload.
+	 *
+	 * @return the size of the file.
+	 * @throws IOException if there is no such upload, part of the file was
+	 * never received, or the file could not be moved.
+	 */
+	public long commit(String id) throws IOException {
+		Upload upload = get(id);
+		upload.lock.writeLock().lock();
+		try {
+			long missing = upload.firstMissing();
+			if (missing < upload.size) {
+				throw new IOException("incomplete upload: missing byte " +
+						missing);
+			}
+			uploads.remove(id);
+			upload.file.close();
+			try {
+				server.commit(upload.temp, upload.filename,
+						upload.lastModified);
+			} catch (IOException e) {
+				Files.deleteIfExists(upload.temp);
+				throw e;
+			}
+		} finally {
+			upload.lock.writeLock().unlock();
+		}
+		committed.increment();
+		return upload.size;
+	}
+
+	/**
+	 * <b><em>abort</em></b>
+	 *
+	 * <p>Drops an upload and deletes what was received.</p>
+	 *
+	 * @param id - the ID of the upload.
+	 *
+	 * @throws IOException if there is no such upload, or the temporary file
+	 * could not be deleted.
+	 */
+	public void abort(String id) throws IOException {
+		Upload upload = uploads.remove(id);
+		if (upload == null) {
+			throw new IOException("unknown upload: " + id);
+		}
+		upload.lock.writeLock().lock();
+		try {
+			upload.file.close();
+			Files.deleteIfExists(upload.temp);
+		} finally {
+			upload.lock.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * <b><em>expire</em></b>
+	 *
+	 * <p>Aborts the uploads that have not been used for longer than the
+	 * timeout. Uploads with a chunk being written are left alone.</p>
+	 *
+	 * @return the number of uploads aborted.
+	 */
+	public int expire() {
+		long oldest = System.currentTimeMillis() - timeout;
+		int count = 0;
+		Iterator<Map.Entry<String, Upload>> it = uploads.entrySet().iterator();
+		while (it.hasNext()) {
+			Upload upload = it.next().getValue();
+			if (upload.lastUsed >= oldest ||
+					!upload.lock.writeLock().tryLock()) {
+				continue;
+			}
+			try {
+				it.remove();
+				upload.file.close();
+				Files.deleteIfExists(upload.temp);
+				count ++;
+			} catch (IOException e) {
+				e.printStackTrace();
+			} finally {
+				upload.lock.writeLock().unlock();
+			}
+		}
+		expired.add(count);
+		return count;
+	}
+
+	/** Gets an open upload and marks it as used. */
+	private Upload get(String id) throws IOException {
+		Upload upload = id == null? null : uploads.get(id);
+		if (upload == null) {
+			throw new IOException("unknown upload: " + id);
+		}
+		upload.lastUsed = System.currentTimeMillis();
+		return upload;
+	}
+
+	public int getOpenUploads() {
+		return uploads.size();
+	}
+
+	public long getCommitted() {
+		return committed.sum();
+	}
+
+	public long getExpired() {
+		return expired.sum();
+	}
+
+	public long getTimeout() {
+		return timeout;
+	}
+
+	public void setTimeout(long timeout) {
+		this.timeout = Math.max(1000, timeout);
+	}
+
+	public int getMaxUploads() {
+		return maxUploads;
+	}
+
+	public void setMaxUploads(int maxUploads) {
+		this.maxUploads = Math.max(1, maxUploads);
+	}
+
+	/** An open upload. */
+	private static class Upload {
+
+		/** The name the file will have. */
+		private final String filename;
+
+		/** The size of the whole file. */
+		private final long size;
+
+		/** The modification time the file will have, or 0. */
+		private final long lastModified;
+
+		/** The temporary file the chunks are written to. */
+		private final Path temp;
+
+		/** The open temporary file. */
+		private final FileChannel file;
+
+		/** Held for reading while a chunk is written, and for writing while
+		 * the upload is committed or aborted. */
+		private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+		/** The chunks received, as start and end offsets. */
+		private final TreeMap<Long, Long> chunks = new TreeMap<>();
+
+		/** When the upload was last used. */
+		private volatile long lastUsed = System.currentTimeMillis();
+
+		private Upload(String filename, long size, long lastModified,
+				Path temp) throws IOException {
+			this.filename = filename;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.temp = temp;
+			this.file = FileChannel.open(temp, StandardOpenOption.WRITE);
+		}
+
+		/** Records a chunk that was written. */
+		private synchronized void received(long start, long end) {
+			Long known = chunks.get(start);
+			if (known == null || known < end) {
+				chunks.put(start, end);
+			}
+		}
+
+		/** Gets the first byte that was not received, or the size if the
+		 * whole file was. */
+		private synchronized long firstMissing() {
+			long covered = 0;
+			for (Map.Entry<Long, Long> chunk : chunks.entrySet()) {
+				if (chunk.getKey() > covered) {
+					break;
+				}
+				covered = Math.max(covered, chunk.getValue());
+			}
+			return covered;
+		}
+	}
+}
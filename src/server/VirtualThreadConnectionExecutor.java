@@ -0,0 +1,91 @@
+package server;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The {@code VirtualThreadConnectionExecutor} class handles every connection
+ * on its own virtual thread. Virtual threads are cheap enough that there is
+ * no need to limit or queue connections, so {@link #getQueuedCount()} is
+ * always 0. Virtual threads are only available on Java 21 or newer, which can
+ * be checked with {@link #isSupported()}.
+ */
+public class VirtualThreadConnectionExecutor implements ConnectionExecutor {
+
+	/** The executor that starts a virtual thread per task. */
+	private final ExecutorService executor;
+
+	/** The number of connections currently being handled. */
+	private final AtomicInteger active = new AtomicInteger();
+
+	/**
+	 * Constructs a new virtual thread executor.
+	 *
+	 * @throws UnsupportedOperationException if the running JVM does not
+	 * support virtual threads.
+	 */
+	public VirtualThreadConnectionExecutor() {
+		Method factory = findFactory();
+		if (factory == null) {
+			throw new UnsupportedOperationException(
+					"virtual threads require Java 21 or newer");
+		}
+		try {
+			this.executor = (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException e) {
+			throw new UnsupportedOperationException(e);
+		}
+	}
+
+	/**
+	 * <b><em>isSupported</em></b>
+	 *
+	 * @return true if the running JVM supports virtual threads.
+	 */
+	public static boolean isSupported() {
+		return findFactory() != null;
+	}
+
+	private static Method findFactory() {
+		try {
+			return Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	@Override
+	public boolean execute(ClientConnectionHandler connection) {
+		try {
+			executor.execute(() -> {
+				active.incrementAndGet();
+				try {
+					connection.run();
+				} finally {
+					active.decrementAndGet();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public int getActiveCount() {
+		return active.get();
+	}
+
+	@Override
+	public int getQueuedCount() {
+		return 0;
+	}
+
+	@Override
+	public void shutdown() {
+		executor.shutdown();
+	}
+}